@@ -83,6 +83,10 @@ grails.project.dependency.resolution = {
      
                 // Better Zip Support
                 'org.apache.commons:commons-compress:1.8',
+
+                // Faster compression codecs for the work bucket data files
+                'org.iq80.snappy:snappy:0.4',
+                'com.github.luben:zstd-jni:1.5.5-11',
 				
 				// Better IO Support
 				'commons-io:commons-io:2.6',
@@ -24,16 +24,12 @@ import java.util.Set;
 
 import grails.converters.JSON
 
-import com.netflix.ice.tag.ConsolidatedOperation
-import com.netflix.ice.tag.CostType
-import com.netflix.ice.tag.FamilyTag
 import com.netflix.ice.tag.Product
 import com.netflix.ice.tag.Account
 import com.netflix.ice.tag.Region
 import com.netflix.ice.tag.UserTag
 import com.netflix.ice.tag.Zone
 import com.netflix.ice.tag.UsageType
-import com.netflix.ice.tag.OrganizationalUnit
 import com.netflix.ice.tag.Operation
 import com.netflix.ice.tag.ResourceGroup
 import com.netflix.ice.tag.Tag
@@ -46,7 +42,6 @@ import org.joda.time.DateTime
 import org.joda.time.Interval
 
 import com.netflix.ice.processor.Instances
-import com.netflix.ice.processor.TagCoverageMetrics
 import com.netflix.ice.reader.*;
 import com.google.common.collect.Lists
 import com.google.common.collect.Sets
@@ -92,6 +87,7 @@ class DashboardController {
 		userTagValues: "POST",
 		getOperations: "POST",
 		getUsageTypes: "POST",
+		getFacets: "POST",
 		tags: "GET",
 		getData: "POST",
 		readerStats: "GET",
@@ -302,6 +298,42 @@ class DashboardController {
         render result as JSON
     }
 	
+    /**
+     * Get the values of all the filter dimensions and user tags in one request. The values of each
+     * dimension are restricted by the filters on all the other dimensions.
+     */
+    def getFacets = {
+        def text = request.reader.text;
+        JSONObject query = (JSONObject)JSON.parse(text);
+        List<Account> accounts = getConfig().accountService.getAccounts(listParams(query, "account"));
+        List<Region> regions = Region.getRegions(listParams(query, "region"));
+        List<Zone> zones = Zone.getZones(listParams(query, "zone"));
+        List<Product> products = getConfig().productService.getProducts(listParams(query, "product"));
+        List<Operation> operations = Operation.getOperations(listParams(query, "operation"));
+        List<UsageType> usageTypes = UsageType.getUsageTypes(listParams(query, "usageType"));
+        boolean forReservation = query.has("forReservation") ? query.getBoolean("forReservation") : false;
+		boolean forSavingsPlans = query.has("forSavingsPlans") ? query.getBoolean("forSavingsPlans") : false;
+		boolean showLent = query.has("showLent") ? query.getBoolean("showLent") : false;
+		boolean isCost = query.has("usage_cost") ? query.getString("usage_cost").equals("cost") : false;
+		List<Operation.Identity.Value> exclude = Operation.exclude(listParams(query, "exclude"), showLent, isCost, forReservation || forSavingsPlans);
+		
+		List<List<UserTag>> userTagLists = Lists.newArrayList();
+		String[] keys = config.userTags;
+		for (int i = 0; i < keys.length; i++)
+			userTagLists.add(UserTag.getUserTags(listParams(query, "tag-" + keys[i])));
+		
+		TagFacets facets = getManagers().getFacets(new TagListsWithUserTags(accounts, regions, zones, products, operations, usageTypes, userTagLists), exclude);
+		
+		def userTags = [:]
+		for (int i = 0; i < keys.length; i++)
+			userTags[keys[i]] = facets.userTags.get(i);
+		
+		def data = [account: facets.accounts, region: facets.regions, zone: facets.zones, product: facets.products,
+			operation: facets.operations, usageType: facets.usageTypes, userTags: userTags]
+        def result = [status: 200, data: data]
+        render result as JSON
+    }
+	
 	def tags = {
 		List<String> userTags = config.userTags;
 		List<UserTag> data = Lists.newArrayList();
@@ -362,52 +394,47 @@ class DashboardController {
 		for (Map.Entry entry: params.entrySet()) {
 			query.put(entry.getKey(), entry.getValue());
 		}
-
-        def result = doGetData(query);
-
-        File file = File.createTempFile("aws", "csv");
-
-        BufferedWriter bwriter = new BufferedWriter(new FileWriter(file));
-        Long start = result.start;
-        int num = result.data.values().iterator().next().length;
-
-        String[] record = new String[result.data.size() + 1];
-        record[0] = "Time";
-        int index = 1;
-        for (Map.Entry entry: result.data) {
-            record[index++] = entry.getKey().name;
-        }
-        bwriter.write(StringUtils.join(record, ","));
-        bwriter.newLine();
-
-        ConsolidateType consolidateType = ConsolidateType.valueOf(query.getString("consolidate"));
-        for (int timeIndex = 0; timeIndex < num; timeIndex++) {
-            record[0] = dateFormatterForDownload.print(start);
-            index = 1;
-            for (Map.Entry entry: result.data) {
-                double[] values = entry.getValue();
-                record[index++] = values[timeIndex];
-            }
-            bwriter.write(StringUtils.join(record, ","));
-            bwriter.newLine();
-            if (consolidateType != ConsolidateType.monthly)
-                start += result.interval;
-            else
-                start = new DateTime(start, DateTimeZone.UTC).plusMonths(1).getMillis()
-        }
-        bwriter.close();
-
-        response.setHeader("Content-Type","application/octet-stream;")
-        response.setHeader("Content-Length", "${file.size()}")
-        response.setHeader("Content-disposition", "attachment;filename=aws.csv")
-
-        FileInputStream input = new FileInputStream(file);
-        response.outputStream << input;
-        response.outputStream.flush();
-        input.close();
-        file.delete();
+		
+		// exportFormat is csv or ndjson. longFormat writes one (time, tag, value) row per non-zero value.
+		DataExporter.Format format = query.has("exportFormat") ? DataExporter.Format.valueOf(query.getString("exportFormat")) : DataExporter.Format.csv;
+		boolean longFormat = query.has("longFormat") ? query.getBoolean("longFormat") : false;
+		
+        response.setHeader("Content-Type", format == DataExporter.Format.csv ? "application/octet-stream;" : "application/x-ndjson;")
+        response.setHeader("Content-disposition", "attachment;filename=aws." + (format == DataExporter.Format.csv ? "csv" : "ndjson"))
+		
+		DataExporter exporter = new DataExporter(response.outputStream, format, longFormat);
+		ConsolidateType consolidateType = query.has("consolidate") ? ConsolidateType.valueOf(query.getString("consolidate")) : ConsolidateType.hourly;
+		
+		if (longFormat && !query.has("spans") && (consolidateType == ConsolidateType.hourly || consolidateType == ConsolidateType.daily)) {
+			// Long format rows don't depend on the other time intervals, so query and write a month at a time
+			// to keep only one month of the result in memory.
+			DateTime start = dateFormatter.parseDateTime(query.getString("start"));
+			DateTime end = dateFormatter.parseDateTime(query.getString("end"));
+			while (start.isBefore(end)) {
+				DateTime next = start.withDayOfMonth(1).withMillisOfDay(0).plusMonths(1);
+				if (next.isAfter(end))
+					next = end;
+				query.put("start", dateFormatter.print(start));
+				query.put("end", dateFormatter.print(next));
+				exportData(exporter, doGetData(query));
+				start = next;
+			}
+		}
+		else {
+			exportData(exporter, doGetData(query));
+		}
+		exporter.close();
         return;
     }
+	
+	private void exportData(DataExporter exporter, Map result) {
+		Map<Tag, double[]> data = result.data;
+		int num = data.size() > 0 ? data.values().iterator().next().length : 0;
+		long[] times = new long[num];
+		for (int i = 0; i < num; i++)
+			times[i] = result.time != null ? result.time.get(i) : result.start + i * result.interval;
+		exporter.write(data, times);
+	}
 
     def getData = {
         def text = request.reader.text;
@@ -456,7 +483,9 @@ class DashboardController {
 			def result = [];
 			for (Instance i: instances) {
 				def zone = (i.zone == null) ? null : i.zone.name;
-				result += [id: i.id, type: i.type, accountId: i.account.id, accountName: i.account.name, region: i.region.name, zone: zone, product: i.product.name, tags: i.tags];
+				// Show user tags without their "user:" prefix the same way the csv file does
+				def tags = i.tags.collectEntries { k, v -> [(k.startsWith("user:") ? k.substring("user:".length()) : k): v] };
+				result += [id: i.id, type: i.type, accountId: i.account.id, accountName: i.account.name, region: i.region.name, zone: zone, product: i.product.name, tags: tags];
 			}
 						
 			response.status = 200;
@@ -528,8 +557,23 @@ class DashboardController {
         boolean elasticity = query.has("elasticity") ? query.getBoolean("elasticity") : false;
         boolean showZones = query.has("showZones") ? query.getBoolean("showZones") : false;
 		boolean consolidateGroups = query.has("consolidateGroups") ? query.getBoolean("consolidateGroups") : false;
+		// Return only the topN groups ranked by total with the rest combined into a single "(other)" series
+		int topN = query.has("topN") && !elasticity ? query.getInt("topN") : 0;
 		List<Operation.Identity.Value> exclude = Operation.exclude(listParams(query, "exclude"), showLent, isCost, forReservation || forSavingsPlans);
 		
+		// Consolidated groups are aggregated by the data managers as the data is read
+		GroupKeyMapper mapper = null;
+		if (groupByOrgUnit)
+			mapper = GroupKeyMapper.orgUnit;
+		else if (groupByCostType)
+			mapper = GroupKeyMapper.costType;
+		else if (consolidateGroups) {
+			if (groupBy == TagType.UsageType)
+				mapper = GroupKeyMapper.family;
+			else if (groupBy == TagType.Operation)
+				mapper = GroupKeyMapper.consolidatedOperation;
+		}
+		
 		// Still support the old name "showResourceGroupTags" for new name showUserTags
         boolean showResourceGroupTags = query.has("showResourceGroupTags") ? query.getBoolean("showResourceGroupTags") : false;
         boolean showUserTags = query.has("showUserTags") ? query.getBoolean("showUserTags") : false;
@@ -592,37 +636,21 @@ class DashboardController {
 		if (tagCoverage) {
 			logger.debug("tagCoverage: groupBy=" + groupBy + ", aggregate=" + aggregate + ", tagKeys=" + tagKeys);
 			if (showUserTags) {
-				if (products.size() == 0) {
-					Set productSet = Sets.newTreeSet();
-					for (Product product: getManagers().getProducts()) {
-						if (product == null)
-							continue;
-	
-						Collection<Product> tmp = getManagers().getTagGroupManager(product).getProducts(new TagLists(accounts, regions, zones));
-						productSet.addAll(tmp);
-					}
-					products = Lists.newArrayList(productSet);
-				}
-				Map<Tag, TagCoverageMetrics[]> rawMetrics = Maps.newHashMap();
-				for (Product product: products) {
-					if (product == null)
-						continue;
-	                TagCoverageDataManager dataManager = (TagCoverageDataManager) getManagers().getTagCoverageManager(product, consolidateType);
-					if (dataManager == null) {
-						continue;
-					}
-					TagLists tagLists;
-	                Map<Tag, TagCoverageMetrics[]> dataOfProduct = dataManager.getRawData(
-	                    interval,
-	                    new TagListsWithUserTags(accounts, regions, zones, Lists.newArrayList(product), operations, usageTypes, userTagLists),
-	                    groupBy,
-                        aggregate,
-						userTagGroupByIndex
-	                );
-	               	logger.debug("  product: " + product + ", tags:" + dataOfProduct.keySet());      
-					mergeTagCoverage(dataOfProduct, rawMetrics);
-				}
-				data = TagCoverageDataManager.processResult(rawMetrics, groupBy, aggregate, tagKeys, config.userTags);
+				data = getManagers().getTagCoverageData(
+					interval,
+					accounts,
+					regions,
+					zones,
+					products,
+					operations,
+					usageTypes,
+					consolidateType,
+					groupBy,
+					aggregate,
+					userTagLists,
+					userTagGroupByIndex,
+					tagKeys,
+					mapper);
 			}
 			else {
 				TagCoverageDataManager dataManager = (TagCoverageDataManager) getManagers().getTagCoverageManager(null, consolidateType);
@@ -632,7 +660,8 @@ class DashboardController {
 					groupBy,
                     aggregate,
 					userTagGroupByIndex,
-					tagKeys
+					tagKeys,
+					mapper
 				);			
 			}
 			logger.debug("groupBy: " + groupBy + (groupBy == TagType.Tag ? ":" + config.userTags.get(userTagGroupByIndex) : "") + ", tags = " + data.keySet());
@@ -653,35 +682,37 @@ class DashboardController {
 				exclude,
 				usageUnit,
 				userTagLists,
-				userTagGroupByIndex);			
+				userTagGroupByIndex,
+				mapper,
+				topN);
         }
         else {
 			logger.debug("doGetData: " + operations + ", forReservation: " + (forReservation || forSavingsPlans));
 			
             DataManager dataManager = isCost ? getManagers().getCostManager(null, consolidateType) : getManagers().getUsageManager(null, consolidateType);
+			TagLists tagLists = new TagLists(accounts, regions, zones, products, operations, usageTypes);
+			if (isCost) {
+				// Answer from the smallest pre-aggregated cube that covers the filters and group by
+				dataManager = getManagers().getCostCubeManager(interval, consolidateType, tagLists, groupBy) ?: dataManager;
+			}
+			Collection<Tag> groups = null;
+			if (topN > 0 && groupBy != null) {
+				groups = TopGroups.select(dataManager.getGroupTotals(interval, tagLists, groupBy, exclude, usageUnit, userTagGroupByIndex, mapper), topN);
+			}
             data = dataManager.getData(
                 interval,
-                new TagLists(accounts, regions, zones, products, operations, usageTypes),
+                tagLists,
                 groupBy,
                 aggregate,
 				exclude,
 				usageUnit,
-				userTagGroupByIndex
+				userTagGroupByIndex,
+				mapper,
+				groups
             );
 		
 			logger.debug("  -- tags: " + data.keySet());
         }
-		
-		if (groupByOrgUnit)
-			data = consolidateAccounts(data);
-		else if (groupByCostType)
-			data = consolidateToCostTypes(data);
-		else if (consolidateGroups) {
-			if (groupBy == TagType.UsageType)
-				data = consolidateFamilies(data);
-			else if (groupBy == TagType.Operation)
-				data = consolidateOperations(data);
-		}
 			
 		def stats = [:];
 		if (elasticity) {
@@ -811,25 +842,6 @@ class DashboardController {
         }
     }
 	
-    private void mergeTagCoverage(Map<Tag, TagCoverageMetrics[]> from, Map<Tag, TagCoverageMetrics[]> to) {
-        for (Map.Entry<Tag, TagCoverageMetrics[]> entry: from.entrySet()) {
-            Tag tag = entry.getKey();
-            TagCoverageMetrics[] newValues = entry.getValue();
-            if (to.containsKey(tag)) {
-                TagCoverageMetrics[] oldValues = to.get(tag);
-                for (int i = 0; i < newValues.length; i++) {
-					if (oldValues[i] == null)
-						oldValues[i] = newValues[i];
-					else if (newValues[i] != null)
-                    	oldValues[i].add(newValues[i]);
-                }
-            }
-            else {
-                to.put(tag, newValues);
-            }
-        }
-    }
-	
 	private Map<Tag, double[]> reduceToDailyElasticity(Map<Tag, double[]> data, Map<Tag, Map> stats) {
 		// Run through the hourly data reducing to a daily elasticity value
 		Map<Tag, double[]> result = Maps.newTreeMap();
@@ -877,113 +889,6 @@ class DashboardController {
 		return result;
 	}
 	
-	private Map<Tag, double[]> consolidateFamilies(Map<Tag, double[]> data) {
-		// Run through the data reducing EC2 Linux Instance Types and appropriate RDS Instances to a Family Type
-		// Also consolidate CloudFront Edge regions
-		Map<Tag, double[]> result = Maps.newTreeMap();
-		for (Map.Entry<Tag, double[]> entry: data.entrySet()) {
-			if (entry.getKey() == Tag.aggregated) {
-				// Don't mess with the aggregated data series.
-				result[entry.getKey()] = entry.getValue();
-				continue;
-			}
-			
-            Tag familyTag = new FamilyTag(entry.getKey().name);
-            double[] values = entry.getValue();
-			double[] consolidated = result[familyTag];
-			if (consolidated == null) {
-				result[familyTag] = values;
-			}
-			else {
-				for (int i = 0; i < consolidated.length; i++)
-					consolidated[i] += values[i];
-			}
-		}
-		return result;
-	}
-	
-	private Map<Tag, double[]> consolidateOperations(Map<Tag, double[]> data) {
-		// Run through the data reducing Reserved Instance Operation Types to a single category:
-		//	Amortization = AmortizedRIs - *
-		//  Used RIs = Used RIs - * + Borrowed RIs - *
-		//  Unused RIs = Unused RIs - *
-		//	Lent RIs = Lent RIs - *
-		//  Savings = Savings - *
-		Map<Tag, double[]> result = Maps.newTreeMap();
-		for (Map.Entry<Tag, double[]> entry: data.entrySet()) {
-			if (entry.getKey() == Tag.aggregated) {
-				// Don't mess with the aggregated data series.
-				result[entry.getKey()] = entry.getValue();
-				continue;
-			}
-			
-			Tag riTag = new ConsolidatedOperation(entry.getKey().name);
-			double[] values = entry.getValue();
-			double[] consolidated = result[riTag];
-			if (consolidated == null) {
-				result[riTag] = values;
-			}
-			else {
-				for (int i = 0; i < consolidated.length; i++)
-					consolidated[i] += values[i];
-			}
-		}
-		return result;
-	}
-	
-	// consolidate accounts down into organization units
-	private Map<Tag, double[]> consolidateAccounts(Map<Tag, double[]> data) {
-		Map<Tag, double[]> result = Maps.newTreeMap();
-		for (Map.Entry<Tag, double[]> entry: data.entrySet()) {
-			if (entry.getKey() == Tag.aggregated) {
-				// Don't mess with the aggregated data series.
-				result[entry.getKey()] = entry.getValue();
-				continue;
-			}
-			
-			Tag ou = OrganizationalUnit.get(((Account)entry.getKey()).getParents());
-			double[] values = entry.getValue();
-			double[] consolidated = result[ou];
-			if (consolidated == null) {
-				result[ou] = values;
-			}
-			else {
-				for (int i = 0; i < consolidated.length; i++)
-					consolidated[i] += values[i];
-			}
-		}
-		return result;
-	}
-	
-	// consolidate operations down to cost types
-	private Map<Tag, double[]> consolidateToCostTypes(Map<Tag, double[]> data) {
-		// Run through the data reducing Operation Types to their cost types
-		Map<Tag, double[]> result = Maps.newTreeMap();
-		for (Map.Entry<Tag, double[]> entry: data.entrySet()) {
-			if (entry.getKey() == Tag.aggregated) {
-				// Don't mess with the aggregated data series.
-				result[entry.getKey()] = entry.getValue();
-				continue;
-			}
-			CostType costType = CostType.other;
-			Tag t = entry.getKey();
-			if (t instanceof Operation) {
-				Operation op = (Operation) t;
-				costType = CostType.getCostType(op);
-			}
-			double[] values = entry.getValue();
-			double[] consolidated = result[costType];
-			if (consolidated == null) {
-				result[costType] = values;
-			}
-			else {
-				for (int i = 0; i < consolidated.length; i++)
-					consolidated[i] += values[i];
-			}
-		}
-		return result;
-	}
-		
     private Map<Tag, Map> getStats(Map<Tag, double[]> data) {
         def result = [:];
 
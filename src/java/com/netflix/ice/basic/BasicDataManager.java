@@ -147,6 +147,26 @@ public class BasicDataManager extends CommonDataManager<ReadOnlyData, Double> im
         return result;
 	}
 
+	@Override
+	protected Double[] sumColumns(ReadOnlyData data, int from, int to) {
+		double[] sums = new double[data.getTagGroups().size()];
+		for (int i = from; i < to && i < data.getNum(); i++) {
+			Double[] row = data.getData(i);
+			if (row == null)
+				continue;
+			for (int j = 0; j < row.length && j < sums.length; j++) {
+				if (row[j] != null)
+					sums[j] += row[j];
+			}
+		}
+		return ArrayUtils.toObject(sums);
+	}
+	
+	@Override
+	protected double getRankValue(Double value) {
+		return value == null ? 0 : value;
+	}
+
 	@Override
 	protected Map<Tag, double[]> processResult(Map<Tag, Double[]> data, TagType groupBy, AggregateType aggregate, List<UserTag> tagKeys) {
 		Map<Tag, double[]> result = Maps.newTreeMap();
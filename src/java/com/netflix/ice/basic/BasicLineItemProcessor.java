@@ -29,7 +29,6 @@ import com.netflix.ice.tag.Zone.BadZone;
 import org.apache.commons.lang.StringUtils;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
-import org.joda.time.Interval;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -65,7 +64,7 @@ public class BasicLineItemProcessor implements LineItemProcessor {
     	return productService.getProductByServiceName(lineItem.getProduct());
     }
     
-    protected boolean ignore(String fileName, DateTime reportStart, DateTime reportModTime, String root, Interval usageInterval, LineItem lineItem) {
+    protected boolean ignore(String fileName, long reportStartMilli, long reportModMilli, String root, long usageStartMilli, long usageEndMilli, LineItem lineItem) {
         if (StringUtils.isEmpty(lineItem.getAccountId()) ||
             StringUtils.isEmpty(lineItem.getProduct()) ||
             StringUtils.isEmpty(lineItem.getCost()))
@@ -92,12 +91,12 @@ public class BasicLineItemProcessor implements LineItemProcessor {
     		// Registrar product renewals occur before they expire, so often start in the following month.
     		// We handle the out-of-date-range problem later.
     		// All other cases are ignored here.
-    		long nextMonthStartMillis = reportStart.plusMonths(1).getMillis();
-	        if (usageInterval.getStartMillis() >= nextMonthStartMillis) {
+    		long nextMonthStartMillis = nextMonthStartMillis(reportStartMilli);
+	        if (usageStartMilli >= nextMonthStartMillis) {
 	        	logger.error(fileName + " line item starts in a later month. Line item type = " + lineItemType + ", product = " + lineItem.getProduct() + ", cost = " + lineItem.getCost());
 	        	return true;
 	        }
-	        if (usageInterval.getEndMillis() > nextMonthStartMillis) {
+	        if (usageEndMilli > nextMonthStartMillis) {
 	        	logger.error(fileName + " line item ends in a later month. Line item type = " + lineItemType + ", product = " + lineItem.getProduct() + ", cost = " + lineItem.getCost());
 	        	return true;
 	        }
@@ -155,23 +154,43 @@ public class BasicLineItemProcessor implements LineItemProcessor {
         return TagGroup.getTagGroup(account, region, zone, product, operation, usageType, rg);
     }
     
-    private Interval getUsageInterval(String fileName, DateTime reportStart, LineItem lineItem) {
+    /*
+     * Start of the month following the report month. Only a handful of report months are ever
+     * processed, so hold on to the last one to avoid building DateTimes for every line item.
+     */
+    private volatile long[] nextMonthStart = new long[]{ 0, 0 };
+    
+    protected long nextMonthStartMillis(long reportStartMilli) {
+    	long[] cached = nextMonthStart;
+    	if (cached[0] != reportStartMilli || cached[1] == 0) {
+    		cached = new long[]{ reportStartMilli, new DateTime(reportStartMilli, DateTimeZone.UTC).plusMonths(1).getMillis() };
+    		nextMonthStart = cached;
+    	}
+    	return cached[1];
+    }
+    
+    private long getUsageStartMillis(long reportStartMilli, LineItem lineItem, Product origProduct) {
         long millisStart = lineItem.getStartMillis();
-        long millisEnd = lineItem.getEndMillis();
-
-        Product origProduct = productService.getProduct(lineItem.getProduct(), lineItem.getProductServiceCode());
+        
         if (origProduct.isRegistrar()) {
         	// Put all out-of-month registrar fees at the start of the month
-	        long nextMonthStartMillis = reportStart.plusMonths(1).getMillis();
-        	if (millisStart > nextMonthStartMillis) {
-        		millisStart = reportStart.getMillis();
+        	if (millisStart > nextMonthStartMillis(reportStartMilli)) {
+        		millisStart = reportStartMilli;
         	}
+        }
+        return millisStart;
+    }
+    
+    private long getUsageEndMillis(String fileName, long usageStartMilli, LineItem lineItem, Product origProduct) {
+        long millisEnd = lineItem.getEndMillis();
+
+        if (origProduct.isRegistrar()) {
         	// Put the whole fee in the first hour
-        	millisEnd = new DateTime(millisStart, DateTimeZone.UTC).plusHours(1).getMillis();
+        	millisEnd = usageStartMilli + AwsUtils.hourMillis;
         }
         else if (origProduct.isSupport()) {
         	// Put the whole fee in the first hour
-        	millisEnd = new DateTime(millisStart, DateTimeZone.UTC).plusHours(1).getMillis();
+        	millisEnd = usageStartMilli + AwsUtils.hourMillis;
         	logger.info(fileName + " Support: " + lineItem);
         }
         
@@ -180,7 +199,7 @@ public class BasicLineItemProcessor implements LineItemProcessor {
 	        case Credit:
 	        	// Most credits have end times that are one second into the next hour
 	        	// Truncate partial seconds end time.
-	        	millisEnd = new DateTime(millisEnd, DateTimeZone.UTC).withSecondOfMinute(0).getMillis();
+	        	millisEnd -= millisEnd % 60000L;
 	        	break;
 	        case Tax:
 	        	break;
@@ -191,7 +210,7 @@ public class BasicLineItemProcessor implements LineItemProcessor {
 	        }
         }
         
-        return new Interval(millisStart, millisEnd, DateTimeZone.UTC);
+        return millisEnd;
     }
     
     public Result process(
@@ -205,18 +224,21 @@ public class BasicLineItemProcessor implements LineItemProcessor {
     		double edpDiscount) {
     	
     	final long startMilli = costAndUsageData.getStartMilli();
-    	final DateTime reportStart = new DateTime(startMilli, DateTimeZone.UTC);
-    	final DateTime reportModTime = new DateTime(reportMilli, DateTimeZone.UTC).withMinuteOfHour(0).withSecondOfMinute(0).withMillisOfSecond(0);
-        final Interval usageInterval = getUsageInterval(fileName, reportStart, lineItem);
+    	final long reportModMilli = reportMilli - reportMilli % AwsUtils.hourMillis;
+    	final Product origProduct = productService.getProduct(lineItem.getProduct(), lineItem.getProductServiceCode());
+        final long usageStartMilli = getUsageStartMillis(startMilli, lineItem, origProduct);
+        final long usageEndMilli = getUsageEndMillis(fileName, usageStartMilli, lineItem, origProduct);
+        if (usageEndMilli < usageStartMilli)
+        	throw new IllegalArgumentException("The end instant must be greater or equal to the start");
         
-    	if (ignore(fileName, reportStart, reportModTime, root, usageInterval, lineItem))
+    	if (ignore(fileName, startMilli, reportModMilli, root, usageStartMilli, usageEndMilli, lineItem))
     		return Result.ignore;
     	
         final Account account = accountService.getAccountById(lineItem.getAccountId(), root);
         final Region region = getRegion(lineItem);
         final Zone zone = getZone(fileName, region, lineItem);
        
-        PurchaseOption defaultReservationPurchaseOption = reservationService.getDefaultPurchaseOption(usageInterval.getStartMillis());
+        PurchaseOption defaultReservationPurchaseOption = reservationService.getDefaultPurchaseOption(usageStartMilli);
         String purchaseOption = lineItem.getPurchaseOption();
         ReservationArn reservationArn = ReservationArn.get(lineItem.getReservationArn());
         if (StringUtils.isEmpty(purchaseOption) && !reservationArn.name.isEmpty()) {
@@ -234,18 +256,18 @@ public class BasicLineItemProcessor implements LineItemProcessor {
         
         final TagGroup tagGroup = getTagGroup(lineItem, account, region, zone, product, operation, usageType, null);
         
-        int startIndex = (int)((usageInterval.getStartMillis() - startMilli)/ AwsUtils.hourMillis);
-        int endIndex = (int)((usageInterval.getEndMillis() + 1000 - startMilli)/ AwsUtils.hourMillis);
+        int startIndex = (int)((usageStartMilli - startMilli)/ AwsUtils.hourMillis);
+        int endIndex = (int)((usageEndMilli + 1000 - startMilli)/ AwsUtils.hourMillis);
 
         // Add all resources to the instance catalog
         addResourceInstance(lineItem, instances, tagGroup);
 
         double costValue = Double.parseDouble(lineItem.getCost());
-        final Result result = getResult(lineItem, reportStart, reportModTime, tagGroup, processDelayed, lineItem.isReserved(), costValue);
+        final Result result = getResult(lineItem, startMilli, reportModMilli, tagGroup, processDelayed, lineItem.isReserved(), costValue);
 
         ResourceGroup resourceGroup = null;
         if (resourceService != null) {
-            resourceGroup = resourceService.getResourceGroup(account, region, product, lineItem, usageInterval.getStartMillis());
+            resourceGroup = resourceService.getResourceGroup(account, region, product, lineItem, usageStartMilli);
         }
         
         // Do line-item-specific processing
@@ -289,14 +311,14 @@ public class BasicLineItemProcessor implements LineItemProcessor {
     	double usageValue = Double.parseDouble(lineItem.getUsageQuantity());
 
         if (result == Result.daily) {
-            long millisStart = usageInterval.getStart().withTimeAtStartOfDay().getMillis();
+            long millisStart = usageStartMilli - usageStartMilli % (24 * AwsUtils.hourMillis);
             startIndex = (int)((millisStart - startMilli)/ AwsUtils.hourMillis);
             endIndex = startIndex + 24;
         }
         else if (result == Result.monthly) {
             startIndex = 0;
             endIndex = costAndUsageData.getUsage(null).getNum();
-            int numHoursInMonth = new DateTime(startMilli, DateTimeZone.UTC).dayOfMonth().getMaximumValue() * 24;
+            int numHoursInMonth = (int)((nextMonthStartMillis(startMilli) - startMilli) / AwsUtils.hourMillis);
             usageValue = usageValue * endIndex / numHoursInMonth;
             costValue = costValue * endIndex / numHoursInMonth;
         }
@@ -305,7 +327,7 @@ public class BasicLineItemProcessor implements LineItemProcessor {
         }
 
         if (monthlyCost) {
-            int numHoursInMonth = new DateTime(startMilli, DateTimeZone.UTC).dayOfMonth().getMaximumValue() * 24;
+            int numHoursInMonth = (int)((nextMonthStartMillis(startMilli) - startMilli) / AwsUtils.hourMillis);
             usageValue = usageValue * numHoursInMonth;
         }
 
@@ -367,13 +389,15 @@ public class BasicLineItemProcessor implements LineItemProcessor {
                 }
                 
                 addValue(costDataOfProduct, i, resourceTagGroup, costValue);
-                
-                // Collect statistics on tag coverage
-            	boolean[] userTagCoverage = resourceService.getUserTagCoverage(lineItem);
-            	costAndUsageData.addTagCoverage(null, i, tagGroup, userTagCoverage);
-            	costAndUsageData.addTagCoverage(product, i, resourceTagGroup, userTagCoverage);
             }
         }
+        
+        if (resourceService != null) {
+            // Collect statistics on tag coverage. Coverage is a property of the line item, so evaluate it once for all hours.
+        	boolean[] userTagCoverage = resourceService.getUserTagCoverage(lineItem);
+        	costAndUsageData.addTagCoverage(null, indexes, tagGroup, userTagCoverage);
+        	costAndUsageData.addTagCoverage(product, indexes, resourceTagGroup, userTagCoverage);
+        }
     }
 
     protected void addValue(ReadWriteData rwd, int i, TagGroup tagGroup, double value) {
@@ -397,7 +421,7 @@ public class BasicLineItemProcessor implements LineItemProcessor {
     	return;
     }
 
-    protected Result getResult(LineItem lineItem, DateTime reportStart, DateTime reportModTime, TagGroup tg, boolean processDelayed, boolean reservationUsage, double costValue) {
+    protected Result getResult(LineItem lineItem, long reportStartMilli, long reportModMilli, TagGroup tg, boolean processDelayed, boolean reservationUsage, double costValue) {
         Result result = Result.hourly;
         if (tg.product.isEc2Instance()) {
             result = processEc2Instance(processDelayed, reservationUsage, tg.operation, tg.zone);
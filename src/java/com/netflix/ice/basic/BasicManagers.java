@@ -19,12 +19,15 @@ package com.netflix.ice.basic;
 
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.netflix.ice.common.*;
 import com.netflix.ice.common.Config.TagCoverage;
 import com.netflix.ice.common.Config.WorkBucketConfig;
+import com.netflix.ice.processor.TagCoverageMetrics;
 import com.netflix.ice.processor.TagGroupWriter;
 import com.netflix.ice.reader.*;
 import com.netflix.ice.tag.Account;
@@ -50,16 +53,22 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.StopWatch;
 import org.joda.time.DateTime;
 import org.joda.time.Interval;
+import org.joda.time.Months;
 
 /**
  * This class manages all BasicTagGroupManager and BasicDataManager instances.
  */
 public class BasicManagers extends Poller implements Managers {
+    // Facets are kept briefly so repeated filter changes on the dashboard don't rescan the tag groups
+    private static final int facetCacheSeconds = 60;
+    private static final int facetCacheSize = 1000;
+
     private ReaderConfig config;
     private boolean compress;
 
@@ -68,12 +77,18 @@ public class BasicManagers extends Poller implements Managers {
     private Map<Product, BasicTagGroupManager> tagGroupManagers = Maps.newHashMap();
     private TreeMap<Key, BasicDataManager> costManagers = Maps.newTreeMap();
     private TreeMap<Key, BasicDataManager> usageManagers = Maps.newTreeMap();
+    // Cost cubes across all products keyed by database name
+    private Map<String, BasicDataManager> cubeManagers = Maps.newHashMap();
     private TreeMap<Key, TagCoverageDataManager> tagCoverageManagers = Maps.newTreeMap();
     private InstanceMetricsService instanceMetricsService = null;
     private InstancesService instancesService = null;
     private Long lastPollMillis = 0L;
 	private ExecutorService pool;
 	private ExecutorService refreshPool;
+	private Cache<String, TagFacets> facetCache = CacheBuilder.newBuilder()
+			.maximumSize(facetCacheSize)
+			.expireAfterWrite(facetCacheSeconds, TimeUnit.SECONDS)
+			.<String, TagFacets>build();
     
     BasicManagers(boolean compress) {
     	this.compress = compress;
@@ -101,11 +116,19 @@ public class BasicManagers extends Poller implements Managers {
         return tagGroupManagers.get(product);
     }
 
-    public DataManager getCostManager(Product product, ConsolidateType consolidateType) {
+    public BasicDataManager getCostManager(Product product, ConsolidateType consolidateType) {
         return costManagers.get(new Key(product, consolidateType));
     }
 
-    public DataManager getUsageManager(Product product, ConsolidateType consolidateType) {
+    protected BasicDataManager getCubeManager(DataCube cube, ConsolidateType consolidateType) {
+    	return cubeManagers.get(getCubeDbName(cube, consolidateType));
+    }
+    
+    private static String getCubeDbName(DataCube cube, ConsolidateType consolidateType) {
+    	return "cost_" + consolidateType + "_" + cube.productName;
+    }
+
+    public BasicDataManager getUsageManager(Product product, ConsolidateType consolidateType) {
         return usageManagers.get(new Key(product, consolidateType));
     }
     
@@ -135,10 +158,14 @@ public class BasicManagers extends Poller implements Managers {
     	if (lastPollMillis >= lastProcessedPoller.getLastProcessedMillis())
     		return;	// nothing to do
     	
+       	Long previousPollMillis = lastPollMillis;
        	lastPollMillis = lastProcessedPoller.getLastProcessedMillis();
        	    	
-    	// Refresh all the data manager caches
-    	refreshDataManagers(wbc);
+    	// Refresh all the data manager caches. If some files failed, try them again on the next poll
+    	// rather than waiting for the processor to write new data.
+    	if (refreshDataManagers(wbc))
+    		lastPollMillis = previousPollMillis;
+    	facetCache.invalidateAll();
     	    	
     	
         logger.info("trying to find new tag group and data managers...");
@@ -146,6 +173,7 @@ public class BasicManagers extends Poller implements Managers {
         Map<Product, BasicTagGroupManager> tagGroupManagers = Maps.newHashMap(this.tagGroupManagers);
         TreeMap<Key, BasicDataManager> costManagers = Maps.newTreeMap(this.costManagers);
         TreeMap<Key, BasicDataManager> usageManagers = Maps.newTreeMap(this.usageManagers);
+        Map<String, BasicDataManager> cubeManagers = Maps.newHashMap(this.cubeManagers);
 
         Set<Product> newProducts = Sets.newHashSet();
         AmazonS3Client s3Client = AwsUtils.getAmazonS3Client();
@@ -193,6 +221,13 @@ public class BasicManagers extends Poller implements Managers {
 	                		config.monthlyCacheSize, config.workBucketConfig, config.accountService, config.productService, null));
 	                usageManagers.put(key, new BasicDataManager(config.startDate, "usage_" + partialDbName, consolidateType, tagGroupManager, compress, numUserTags,
 	                		config.monthlyCacheSize, config.workBucketConfig, config.accountService, config.productService, instanceMetricsService));
+	                if (product == null && consolidateType != ConsolidateType.hourly) {
+	                	for (DataCube cube: DataCube.values()) {
+	                		String dbName = getCubeDbName(cube, consolidateType);
+	                		cubeManagers.put(dbName, new BasicDataManager(config.startDate, dbName, consolidateType, tagGroupManager, compress, 0,
+	                				config.monthlyCacheSize, config.workBucketConfig, config.accountService, config.productService, null));
+	                	}
+	                }
 	                if (loadTagCoverage && consolidateType != ConsolidateType.hourly) {
 	    	            tagCoverageManagers.put(key, new TagCoverageDataManager(config.startDate, "coverage_" + partialDbName, consolidateType, tagGroupManager, compress, config.userTags,
 	            				config.monthlyCacheSize, config.workBucketConfig, config.accountService, config.productService));
@@ -204,27 +239,72 @@ public class BasicManagers extends Poller implements Managers {
         if (newProducts.size() > 0) {
             this.costManagers = costManagers;
             this.usageManagers = usageManagers;
+            this.cubeManagers = cubeManagers;
             this.tagGroupManagers = tagGroupManagers;
             this.products = products;
         }
     }
     
-    private void refreshDataManagers(WorkBucketConfig wbc) {
-    	for (DataCache d: tagGroupManagers.values()) {
-    		refresh(d);
+    /*
+     * Load the files changed by the processor into all the tag group and data managers before
+     * publishing any of them, so queries never mix tag groups and data from different processor runs.
+     * Returns true if any of the files couldn't be staged. Those files are put back in the poller's changed files.
+     */
+    private boolean refreshDataManagers(WorkBucketConfig wbc) {
+    	Set<String> changedFiles = lastProcessedPoller.takeChangedFiles();
+    	logger.info("refreshing " + (changedFiles == null ? "all files" : changedFiles.size() + " changed files"));
+    	
+    	List<StagedDataCache> caches = Lists.newArrayList();
+    	caches.addAll(tagGroupManagers.values());
+    	caches.addAll(costManagers.values());
+    	caches.addAll(usageManagers.values());
+    	caches.addAll(cubeManagers.values());
+    	caches.addAll(tagCoverageManagers.values());
+    	
+    	List<Future<Boolean>> futures = Lists.newArrayList();
+    	for (StagedDataCache c: caches)
+    		futures.add(stage(c, changedFiles));
+    	boolean error = false;
+    	for (Future<Boolean> f: futures) {
+    		try {
+				error |= f.get();
+			} catch (InterruptedException e) {
+				logger.error("interrupted while staging data", e);
+				Thread.currentThread().interrupt();
+				error = true;
+			} catch (ExecutionException e) {
+				logger.error("error staging data", e);
+				error = true;
+			}
     	}
-    	for (DataCache d: costManagers.values()) {
-    		refresh(d);
+    	// Whatever was staged is still published, but check the files again on the next refresh
+    	// so a failed download doesn't leave a cache serving the old data until the next processor run.
+    	if (error) {
+    		logger.warn("failed to stage some files, will retry on next refresh");
+    		lastProcessedPoller.restoreChangedFiles(changedFiles);
     	}
-    	for (DataCache d: usageManagers.values()) {
-    		refresh(d);
+    	
+    	DataFileCache.publishLock.writeLock().lock();
+    	try {
+	    	for (StagedDataCache c: caches)
+	    		c.publish();
     	}
-    	for (DataCache d: tagCoverageManagers.values()) {
-    		refresh(d);
+    	finally {
+    		DataFileCache.publishLock.writeLock().unlock();
     	}
     	
     	refresh(instancesService);
     	refresh(instanceMetricsService);
+    	return error;
+    }
+
+    private Future<Boolean> stage(final StagedDataCache dataCache, final Set<String> changedFiles) {
+    	return refreshPool.submit(new Callable<Boolean>() {
+    		@Override
+    		public Boolean call() throws Exception {
+    			return dataCache.stage(changedFiles);
+    		}
+    	});    	
     }
 
     private Future<Void> refresh(final DataCache dataCache) {
@@ -317,6 +397,69 @@ public class BasicManagers extends Poller implements Managers {
     	});    	
     }
 
+    @Override
+    public TagFacets getFacets(TagLists tagLists, Collection<Operation.Identity.Value> exclude) throws Exception {
+    	String key = tagLists.toString() + "," + (exclude == null ? "null" : exclude.toString());
+    	TagFacets facets = facetCache.getIfPresent(key);
+    	if (facets != null)
+    		return facets;
+    	
+    	List<Future<TagFacets>> futures = Lists.newArrayList();
+        for (Product product: getProducts()) {
+            if (product == null)
+                continue;
+            TagGroupManager tagGroupManager = getTagGroupManager(product);
+			if (tagGroupManager == null)
+				continue;
+			futures.add(getFacetsForProduct(tagLists, tagGroupManager));
+        }
+        
+		// Wait for completion and merge the values
+        facets = new TagFacets(config.userTags.size());
+		for (Future<TagFacets> f: futures)
+			facets.add(f.get());
+		
+		facets.excludeOperations(exclude);
+		// Report empty user tag values as "None" the same way as getUserTagValues()
+		for (Set<UserTag> values: facets.userTags) {
+			values.remove(UserTag.get(""));
+			values.add(UserTag.get(UserTag.none));
+		}
+		
+		facetCache.put(key, facets);
+		return facets;
+    }
+
+    private Future<TagFacets> getFacetsForProduct(final TagLists tagLists, final TagGroupManager tagGroupManager) {
+    	return pool.submit(new Callable<TagFacets>() {
+    		@Override
+    		public TagFacets call() throws Exception {
+    			return tagGroupManager.getFacets(tagLists, config.userTags.size());
+    		}
+    	});    	
+    }
+
+    @Override
+    public Map<Tag, double[]> getData(
+    		Interval interval,
+    		List<Account> accounts,
+    		List<Region> regions,
+    		List<Zone> zones,
+    		List<Product> products,
+    		List<Operation> operations,
+    		List<UsageType> usageTypes,
+    		boolean isCost,
+    		ConsolidateType consolidateType,
+    		TagType groupBy,
+    		AggregateType aggregate,
+    		List<Operation.Identity.Value> exclude,
+    		UsageUnit usageUnit,
+    		List<List<UserTag>> userTagLists,
+    		int userTagGroupByIndex) throws Exception {
+    	return getData(interval, accounts, regions, zones, products, operations, usageTypes, isCost, consolidateType,
+    			groupBy, aggregate, exclude, usageUnit, userTagLists, userTagGroupByIndex, null);
+    }
+
     @Override
     public Map<Tag, double[]> getData(
     		Interval interval,
@@ -333,69 +476,322 @@ public class BasicManagers extends Poller implements Managers {
     		List<Operation.Identity.Value> exclude,
     		UsageUnit usageUnit,
     		List<List<UserTag>> userTagLists,
-    		int userTagGroupByIndex) throws Exception {    	
+    		int userTagGroupByIndex,
+    		GroupKeyMapper mapper) throws Exception {
+    	return getData(interval, accounts, regions, zones, products, operations, usageTypes, isCost, consolidateType,
+    			groupBy, aggregate, exclude, usageUnit, userTagLists, userTagGroupByIndex, mapper, 0);
+    }
+
+    @Override
+    public Map<Tag, double[]> getData(
+    		Interval interval,
+    		List<Account> accounts,
+    		List<Region> regions,
+    		List<Zone> zones,
+    		List<Product> products,
+    		List<Operation> operations,
+    		List<UsageType> usageTypes,
+    		boolean isCost,
+    		ConsolidateType consolidateType,
+    		TagType groupBy,
+    		AggregateType aggregate,
+    		List<Operation.Identity.Value> exclude,
+    		UsageUnit usageUnit,
+    		List<List<UserTag>> userTagLists,
+    		int userTagGroupByIndex,
+    		GroupKeyMapper mapper,
+    		int topN) throws Exception {
+    	if (isCost) {
+    		TagLists tagLists = new TagListsWithUserTags(accounts, regions, zones, products, operations, usageTypes, userTagLists);
+    		BasicDataManager cubeManager = getCostCubeManager(interval, consolidateType, tagLists, groupBy);
+    		if (cubeManager != null)
+    			return getCubeData(interval, tagLists, groupBy, aggregate, exclude, usageUnit, mapper, topN, cubeManager);
+    	}
+    	
+    	final ConsolidateType ct = consolidateType;
+    	final boolean cost = isCost;
+    	return getData(interval, accounts, regions, zones, products, operations, usageTypes, groupBy, aggregate, exclude, usageUnit,
+    			userTagLists, userTagGroupByIndex, mapper, topN, new DataManagerSource() {
+    		@Override
+    		public BasicDataManager get(Product product) {
+    			return cost ? getCostManager(product, ct) : getUsageManager(product, ct);
+    		}
+    	});
+    }
+    
+    @Override
+    public BasicDataManager getCostCubeManager(Interval interval, ConsolidateType consolidateType, TagLists tagLists, TagType groupBy) {
+    	if (consolidateType == ConsolidateType.hourly || !isEmpty(tagLists.zones) || !isEmpty(tagLists.usageTypes) || !isEmpty(tagLists.resourceGroups))
+    		return null;
+    	if (tagLists instanceof TagListsWithUserTags) {
+    		List<List<UserTag>> userTagLists = ((TagListsWithUserTags) tagLists).resourceUserTagLists;
+    		for (int i = 0; userTagLists != null && i < userTagLists.size(); i++) {
+    			if (!isEmpty(userTagLists.get(i)))
+    				return null;
+    		}
+    	}
+    	
+    	// Cubes are ordered smallest first, so use the first one that fits and has all the months of the interval
+    	for (DataCube cube: DataCube.values()) {
+    		if ((groupBy == null || cube.has(groupBy)) && (isEmpty(tagLists.regions) || cube.has(TagType.Region))) {
+    			BasicDataManager cubeManager = getCubeManager(cube, consolidateType);
+    			if (cubeManager != null && isCubeComplete(cube, interval))
+    				return cubeManager;
+    		}
+    	}
+    	return null;
+    }
+    
+    private static boolean isEmpty(List<?> list) {
+    	return list == null || list.size() == 0;
+    }
+    
+    /*
+     * Months processed before the processor wrote cubes only have full data, so make sure the cube
+     * has each month of the interval that the full cost data has.
+     */
+    protected boolean isCubeComplete(DataCube cube, Interval interval) {
+    	BasicDataManager cubeManager = getCubeManager(cube, ConsolidateType.monthly);
+    	BasicDataManager costManager = costManagers.get(new Key(null, ConsolidateType.monthly));
+    	if (cubeManager == null || costManager == null)
+    		return false;
+    	
+    	DateTime start = config.startDate;
+    	int from = Math.max(0, Months.monthsBetween(start, interval.getStart().withDayOfMonth(1).withMillisOfDay(0)).getMonths());
+    	int to = Months.monthsBetween(start, interval.getEnd().minusMillis(1).withDayOfMonth(1).withMillisOfDay(0)).getMonths();
+    	for (int i = from; i <= to; i++) {
+    		if (costManager.hasRow(start, i) && !cubeManager.hasRow(start, i))
+    			return false;
+    	}
+    	return true;
+    }
+    
+    private Map<Tag, double[]> getCubeData(
+    		Interval interval,
+    		TagLists tagLists,
+    		TagType groupBy,
+    		AggregateType aggregate,
+    		List<Operation.Identity.Value> exclude,
+    		UsageUnit usageUnit,
+    		GroupKeyMapper mapper,
+    		int topN,
+    		BasicDataManager cubeManager) {
     	
 		StopWatch sw = new StopWatch();
 		sw.start();
 		
-		if (products.size() == 0) {
-	    	List<Future<Collection<Product>>> futures = Lists.newArrayList();
-            TagLists tagLists = new TagLists(accounts, regions, zones);
-            for (Product product: getProducts()) {
-                if (product == null)
-                    continue;
-
-                futures.add(getFilteredProduct(tagLists, getTagGroupManager(product)));
-            }
-    		// Wait for completion
-            Set<Product> productSet = Sets.newTreeSet();
-    		for (Future<Collection<Product>> f: futures) {
-                productSet.addAll(f.get());
-    		}
-            products = Lists.newArrayList(productSet);
-		}
-				
-    	List<Future<Map<Tag, double[]>>> futures = Lists.newArrayList();
+        Map<Tag, double[]> data = Maps.newTreeMap();
+        cubeManager.load(interval);
+        // Rank the groups and read the series from the same published data
+        DataFileCache.publishLock.readLock().lock();
+        try {
+	        Collection<Tag> groups = null;
+	        if (topN > 0 && groupBy != null)
+	        	groups = TopGroups.select(cubeManager.readGroupTotals(interval, tagLists, groupBy, exclude, usageUnit, 0, mapper), topN);
+	        
+	        data.putAll(cubeManager.readData(interval, tagLists, groupBy, aggregate, exclude, usageUnit, 0, null, mapper, groups));
+        }
+        finally {
+        	DataFileCache.publishLock.readLock().unlock();
+        }
+        
+        // Match the per-product results which always include the total across products
+        if (groupBy == TagType.Product && data.size() > 0 && !data.containsKey(Tag.aggregated)) {
+        	double[] total = null;
+        	for (double[] values: data.values()) {
+        		if (total == null)
+        			total = new double[values.length];
+        		for (int i = 0; i < values.length && i < total.length; i++)
+        			total[i] += values[i];
+        	}
+        	data.put(Tag.aggregated, total);
+        }
+		
+		logger.debug("getCubeData() time to process: " + sw);
+    	return data;
+    }
+    
+    private interface DataManagerSource {
+    	BasicDataManager get(Product product);
+    }
+    
+    private Map<Tag, double[]> getData(
+    		Interval interval,
+    		List<Account> accounts,
+    		List<Region> regions,
+    		List<Zone> zones,
+    		List<Product> products,
+    		List<Operation> operations,
+    		List<UsageType> usageTypes,
+    		TagType groupBy,
+    		AggregateType aggregate,
+    		List<Operation.Identity.Value> exclude,
+    		UsageUnit usageUnit,
+    		List<List<UserTag>> userTagLists,
+    		int userTagGroupByIndex,
+    		GroupKeyMapper mapper,
+    		int topN,
+    		DataManagerSource dataManagers) throws Exception {
+    	
+		StopWatch sw = new StopWatch();
+		sw.start();
+		
+		if (products.size() == 0)
+			products = getFilteredProducts(accounts, regions, zones);
+		
+		Map<BasicDataManager, TagLists> productManagers = Maps.newLinkedHashMap();
         for (Product product: products) {
             if (product == null)
                 continue;
 
-            DataManager dataManager = isCost ? getCostManager(product, consolidateType) : getUsageManager(product, consolidateType);
+            BasicDataManager dataManager = dataManagers.get(product);
 			if (dataManager == null) {
 				//logger.error("No DataManager for product " + product);
 				continue;
 			}
-			TagLists tagLists = new TagListsWithUserTags(accounts, regions, zones, Lists.newArrayList(product), operations, usageTypes, userTagLists);
-			logger.debug("-------------- Process product ----------------" + product);
-            futures.add(getDataForProduct(
-                    interval,
-                    tagLists,
-                    groupBy,
-                    aggregate,
-                    exclude,
-    				usageUnit,
-    				userTagGroupByIndex,
-    				dataManager));            
+			productManagers.put(dataManager, new TagListsWithUserTags(accounts, regions, zones, Lists.newArrayList(product), operations, usageTypes, userTagLists));
         }
-        // Wait for completion
-        Map<Tag, double[]> data = Maps.newTreeMap();
         
-		for (Future<Map<Tag, double[]>> f: futures) {
-			Map<Tag, double[]> dataOfProduct = f.get();
-			
-            if (groupBy == TagType.Product && dataOfProduct.size() > 0) {
-                double[] currentProductValues = dataOfProduct.get(dataOfProduct.keySet().iterator().next());
-                dataOfProduct.put(Tag.aggregated, Arrays.copyOf(currentProductValues, currentProductValues.length));
-            } 
-            
-            merge(dataOfProduct, data);
-		}
+        load(interval, productManagers.keySet());
+        
+        // Hold the read lock across all the products so a publish can't land part way through the query.
+        // The product tasks run on the pool threads without taking the lock themselves.
+        Map<Tag, double[]> data = Maps.newTreeMap();
+        DataFileCache.publishLock.readLock().lock();
+        try {
+	        // For top-N queries, rank the groups by their totals before reading any time series
+	        Collection<Tag> groups = null;
+	        if (topN > 0 && groupBy != null && groupBy != TagType.TagKey)
+	        	groups = getTopGroups(interval, productManagers, groupBy, exclude, usageUnit, userTagGroupByIndex, mapper, topN);
+					
+	    	List<Future<Map<Tag, double[]>>> futures = Lists.newArrayList();
+	        for (BasicDataManager dataManager: productManagers.keySet()) {
+				TagLists tagLists = productManagers.get(dataManager);
+				logger.debug("-------------- Process product ----------------" + tagLists.products);
+	            futures.add(getDataForProduct(
+	                    interval,
+	                    tagLists,
+	                    groupBy,
+	                    aggregate,
+	                    exclude,
+	    				usageUnit,
+	    				userTagGroupByIndex,
+	    				mapper,
+	    				groups,
+	    				dataManager));            
+	        }
+	        // Wait for completion
+			for (Future<Map<Tag, double[]>> f: futures) {
+				Map<Tag, double[]> dataOfProduct = f.get();
+				
+	            if (groupBy == TagType.Product && dataOfProduct.size() > 0) {
+	                double[] currentProductValues = dataOfProduct.get(dataOfProduct.keySet().iterator().next());
+	                dataOfProduct.put(Tag.aggregated, Arrays.copyOf(currentProductValues, currentProductValues.length));
+	            } 
+	            
+	            merge(dataOfProduct, data);
+			}
+        }
+        finally {
+        	DataFileCache.publishLock.readLock().unlock();
+        }
 		
 		logger.debug("getData() time to process: " + sw);
 
     	return data;
     }
     
+    @Override
+    public Map<Tag, double[]> getTagCoverageData(
+    		Interval interval,
+    		List<Account> accounts,
+    		List<Region> regions,
+    		List<Zone> zones,
+    		List<Product> products,
+    		List<Operation> operations,
+    		List<UsageType> usageTypes,
+    		ConsolidateType consolidateType,
+    		TagType groupBy,
+    		AggregateType aggregate,
+    		List<List<UserTag>> userTagLists,
+    		int userTagGroupByIndex,
+    		List<UserTag> tagKeys,
+    		GroupKeyMapper mapper) throws Exception {
+    	
+		StopWatch sw = new StopWatch();
+		sw.start();
+		
+		if (products.size() == 0)
+			products = getFilteredProducts(accounts, regions, zones);
+		
+		Map<TagCoverageDataManager, TagLists> productManagers = Maps.newLinkedHashMap();
+        for (Product product: products) {
+            if (product == null)
+                continue;
+
+            TagCoverageDataManager dataManager = tagCoverageManagers.get(new Key(product, consolidateType));
+			if (dataManager == null)
+				continue;
+			
+			productManagers.put(dataManager, new TagListsWithUserTags(accounts, regions, zones, Lists.newArrayList(product), operations, usageTypes, userTagLists));
+        }
+        load(interval, productManagers.keySet());
+        
+        Map<Tag, TagCoverageCounts> counts = Maps.newHashMap();
+        DataFileCache.publishLock.readLock().lock();
+        try {
+	    	List<Future<Map<Tag, TagCoverageCounts>>> futures = Lists.newArrayList();
+	        for (TagCoverageDataManager dataManager: productManagers.keySet())
+	            futures.add(getTagCoverageForProduct(interval, productManagers.get(dataManager), groupBy, aggregate, userTagGroupByIndex, mapper, dataManager));
+	        
+	        // Wait for completion and merge the counts
+			for (Future<Map<Tag, TagCoverageCounts>> f: futures)
+				TagCoverageCounts.merge(f.get(), counts);
+        }
+        finally {
+        	DataFileCache.publishLock.readLock().unlock();
+        }
+		
+		Map<Tag, double[]> data = TagCoverageDataManager.processCounts(counts, groupBy, aggregate, tagKeys, config.userTags);
+		logger.debug("getTagCoverageData() time to process: " + sw);
+		return data;
+    }
+    
+    private Future<Map<Tag, TagCoverageCounts>> getTagCoverageForProduct(
+    		final Interval interval,
+    		final TagLists tagLists,
+    		final TagType groupBy,
+    		final AggregateType aggregate,
+    		final int userTagGroupByIndex,
+    		final GroupKeyMapper mapper,
+    		final TagCoverageDataManager dataManager) {
+    	
+    	return pool.submit(new Callable<Map<Tag, TagCoverageCounts>>() {
+    		@Override
+    		public Map<Tag, TagCoverageCounts> call() throws Exception {
+    			Map<Tag, TagCoverageMetrics[]> metrics = dataManager.readRawData(interval, tagLists, groupBy, aggregate, userTagGroupByIndex, mapper);
+    			return TagCoverageCounts.fromMetrics(metrics, config.userTags.size());
+    		}
+    	});
+    }
+    
+    private List<Product> getFilteredProducts(List<Account> accounts, List<Region> regions, List<Zone> zones) throws Exception {
+    	List<Future<Collection<Product>>> futures = Lists.newArrayList();
+        TagLists tagLists = new TagLists(accounts, regions, zones);
+        for (Product product: getProducts()) {
+            if (product == null)
+                continue;
+
+            futures.add(getFilteredProduct(tagLists, getTagGroupManager(product)));
+        }
+		// Wait for completion
+        Set<Product> productSet = Sets.newTreeSet();
+		for (Future<Collection<Product>> f: futures) {
+            productSet.addAll(f.get());
+		}
+        return Lists.newArrayList(productSet);
+    }
+    
     private Future<Collection<Product>> getFilteredProduct(final TagLists tagLists, final TagGroupManager tagGroupManager) {
     	return pool.submit(new Callable<Collection<Product>>() {
     		@Override
@@ -405,6 +801,24 @@ public class BasicManagers extends Poller implements Managers {
     	});    	
     }
 
+    /*
+     * Load the data for the query into the managers' caches in parallel before the query takes the read lock.
+     */
+    private void load(final Interval interval, Collection<? extends DataFileCache<?>> dataManagers) throws Exception {
+    	List<Future<Void>> futures = Lists.newArrayList();
+    	for (final DataFileCache<?> dataManager: dataManagers) {
+    		futures.add(pool.submit(new Callable<Void>() {
+	    		@Override
+	    		public Void call() throws Exception {
+	    			dataManager.load(interval);
+	    			return null;
+	    		}
+    		}));
+    	}
+    	for (Future<Void> f: futures)
+    		f.get();
+    }
+
     private Future<Map<Tag, double[]>> getDataForProduct(
     		final Interval interval,
     		final TagLists tagLists,
@@ -413,24 +827,78 @@ public class BasicManagers extends Poller implements Managers {
     		final List<Operation.Identity.Value> exclude,
     		final UsageUnit usageUnit,
     		final int userTagGroupByIndex,
-    		final DataManager dataManager) {
+    		final GroupKeyMapper mapper,
+    		final Collection<Tag> groups,
+    		final BasicDataManager dataManager) {
     	
     	return pool.submit(new Callable<Map<Tag, double[]>>() {
     		@Override
     		public Map<Tag, double[]> call() throws Exception {
-    			Map<Tag, double[]> data = dataManager.getData(
+    			Map<Tag, double[]> data = dataManager.readData(
                         interval,
                         tagLists,
                         groupBy,
                         aggregate,
                         exclude,
         				usageUnit,
-        				userTagGroupByIndex
+        				userTagGroupByIndex,
+        				null,
+        				mapper,
+        				groups
                     );
     			return data;
     		}
     	});    	
     }
+    
+    /*
+     * Get the topN groups ranked by their totals summed across all the products.
+     * Returns null if all the groups should be read.
+     */
+    private Collection<Tag> getTopGroups(
+    		Interval interval,
+    		Map<BasicDataManager, TagLists> productManagers,
+    		TagType groupBy,
+    		List<Operation.Identity.Value> exclude,
+    		UsageUnit usageUnit,
+    		int userTagGroupByIndex,
+    		GroupKeyMapper mapper,
+    		int topN) throws Exception {
+    	
+    	List<Future<Map<Tag, Double>>> futures = Lists.newArrayList();
+        for (BasicDataManager dataManager: productManagers.keySet())
+        	futures.add(getGroupTotalsForProduct(interval, productManagers.get(dataManager), groupBy, exclude, usageUnit, userTagGroupByIndex, mapper, dataManager));
+        
+        // Wait for completion and sum the totals
+        Map<Tag, Double> totals = Maps.newHashMap();
+        boolean rankable = true;
+		for (Future<Map<Tag, Double>> f: futures) {
+			Map<Tag, Double> totalsOfProduct = f.get();
+			if (totalsOfProduct == null)
+				rankable = false;
+			else
+				TopGroups.merge(totalsOfProduct, totals);
+		}
+		return rankable ? TopGroups.select(totals, topN) : null;
+    }
+    
+    private Future<Map<Tag, Double>> getGroupTotalsForProduct(
+    		final Interval interval,
+    		final TagLists tagLists,
+    		final TagType groupBy,
+    		final List<Operation.Identity.Value> exclude,
+    		final UsageUnit usageUnit,
+    		final int userTagGroupByIndex,
+    		final GroupKeyMapper mapper,
+    		final BasicDataManager dataManager) {
+    	
+    	return pool.submit(new Callable<Map<Tag, Double>>() {
+    		@Override
+    		public Map<Tag, Double> call() throws Exception {
+    			return dataManager.readGroupTotals(interval, tagLists, groupBy, exclude, usageUnit, userTagGroupByIndex, mapper);
+    		}
+    	});
+    }
 
     
     private void merge(Map<Tag, double[]> from, Map<Tag, double[]> to) {
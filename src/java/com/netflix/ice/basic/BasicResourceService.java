@@ -17,10 +17,13 @@
  */
 package com.netflix.ice.basic;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -32,6 +35,7 @@ import org.joda.time.DateTimeZone;
 import com.amazonaws.services.ec2.model.Tag;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.netflix.ice.common.LineItem;
 import com.netflix.ice.common.ProductService;
 import com.netflix.ice.common.ResourceService;
@@ -69,6 +73,24 @@ public class BasicResourceService extends ResourceService {
     private static final String defaultTagSeparator = "/";
     private static final String defaultTagEffectiveDateSeparator = "=";
     private static final String suspend = "<suspend>";
+    private static final int maxResourceGroupCacheSize = 1000000;
+    
+    /**
+     *  Cache of resolved resource groups. Most line items in a month share a relatively small number
+     *  of distinct tag value tuples, so we resolve each tuple once. The key holds the raw line item values
+     *  that feed the resolution along with the rule epoch - the number of mapped tag rule and default tag
+     *  effective dates that are at or before the usage start time. Rules that take effect mid-month
+     *  therefore land in a new epoch rather than returning stale values.
+     *  
+     *  The cache is cleared whenever the report header, tag configs, or default tags change.
+     */
+    private ConcurrentMap<ResourceGroupKey, ResourceGroup> resourceGroupCache;
+    
+    // Line item resource tag indeces that feed the custom tag values
+    private int[] resourceGroupKeyIndeces;
+    
+    // Sorted effective dates of all mapped tag rules and default tag values
+    private long[] ruleEffectiveDates;
     
     /**
      *  Map containing values to assign to destination tags based on a match with a value
@@ -202,6 +224,41 @@ public class BasicResourceService extends ResourceService {
     	}
     }
 
+    private static final class ResourceGroupKey {
+    	private final String accountId;
+    	private final String payerAccountId;
+    	private final int epoch;
+    	private final String[] values;
+    	private final int hashCode;
+    	
+    	ResourceGroupKey(String accountId, String payerAccountId, int epoch, String[] values) {
+    		this.accountId = accountId;
+    		this.payerAccountId = payerAccountId;
+    		this.epoch = epoch;
+    		this.values = values;
+    		this.hashCode = ((accountId.hashCode() * 31 + (payerAccountId == null ? 0 : payerAccountId.hashCode())) * 31 + epoch) * 31 + Arrays.hashCode(values);
+    	}
+    	
+    	@Override
+    	public int hashCode() {
+    		return hashCode;
+    	}
+    	
+    	@Override
+    	public boolean equals(Object o) {
+    		if (this == o)
+    			return true;
+    		if (!(o instanceof ResourceGroupKey))
+    			return false;
+    		ResourceGroupKey other = (ResourceGroupKey) o;
+    		return hashCode == other.hashCode &&
+    				epoch == other.epoch &&
+    				accountId.equals(other.accountId) &&
+    				StringUtils.equals(payerAccountId, other.payerAccountId) &&
+    				Arrays.equals(values, other.values);
+    	}
+    }
+
     public BasicResourceService(ProductService productService, String[] customTags, String[] additionalTags, boolean includeReservationIds) {
 		super();
 		this.includeReservationIds = includeReservationIds;
@@ -227,6 +284,8 @@ public class BasicResourceService extends ResourceService {
 		this.tagConfigs = Maps.newHashMap();
 		this.tagValuesInverted = Maps.newHashMap();
 		this.mappedTags = Maps.newHashMap();
+		this.resourceGroupCache = Maps.newConcurrentMap();
+		this.ruleEffectiveDates = new long[]{};
 	}
     
     @Override
@@ -240,6 +299,7 @@ public class BasicResourceService extends ResourceService {
     		// Remove existing configs and indeces
     		this.tagConfigs.remove(payerAccountId);
     		this.tagValuesInverted.remove(payerAccountId);
+    		resetResourceGroupCache();
     		return;
     	}
     	
@@ -286,6 +346,40 @@ public class BasicResourceService extends ResourceService {
 			mapped.put(config.name, mappedTags);			
 		}
 		this.mappedTags.put(payerAccountId, mapped);
+		resetResourceGroupCache();
+    }
+    
+    /**
+     * Clear the resolved resource groups and rebuild the list of rule effective dates.
+     * Called whenever anything that feeds the resource group resolution changes.
+     */
+    private void resetResourceGroupCache() {
+    	Set<Long> dates = Sets.newTreeSet();
+    	for (Map<String, Map<Long, List<MappedTags>>> mappedTagsForPayerAccount: mappedTags.values()) {
+    		for (Map<Long, List<MappedTags>> mappedTagsMap: mappedTagsForPayerAccount.values())
+    			dates.addAll(mappedTagsMap.keySet());
+    	}
+    	for (Map<String, DefaultTag> defaults: defaultTags.values()) {
+    		for (DefaultTag dt: defaults.values()) {
+    			for (DefaultTag.DateValue dv: dt.timeOrderedValues)
+    				dates.add(dv.startMillis);
+    		}
+    	}
+    	long[] effectiveDates = new long[dates.size()];
+    	int i = 0;
+    	for (Long date: dates)
+    		effectiveDates[i++] = date;
+    	
+    	ruleEffectiveDates = effectiveDates;
+    	resourceGroupCache = Maps.newConcurrentMap();
+    }
+    
+    /**
+     * Number of rule effective dates at or before the supplied start time.
+     */
+    private int getRuleEpoch(long millisStart) {
+    	int pos = Arrays.binarySearch(ruleEffectiveDates, millisStart);
+    	return pos >= 0 ? pos + 1 : -(pos + 1);
     }
 
 	@Override
@@ -309,6 +403,33 @@ public class BasicResourceService extends ResourceService {
 
     @Override
     public ResourceGroup getResourceGroup(Account account, Region region, Product product, LineItem lineItem, long millisStart) {
+    	// Product doesn't participate in the resolution, so isn't part of the key
+    	ResourceGroupKey key = getResourceGroupKey(account, lineItem, millisStart);
+    	ResourceGroup resourceGroup = resourceGroupCache.get(key);
+    	if (resourceGroup == null) {
+    		resourceGroup = resolveResourceGroup(account, lineItem, millisStart);
+    		if (resourceGroupCache.size() < maxResourceGroupCacheSize)
+    			resourceGroupCache.put(key, resourceGroup);
+    	}
+    	return resourceGroup;
+    }
+    
+    private ResourceGroupKey getResourceGroupKey(Account account, LineItem lineItem, long millisStart) {
+    	int size = resourceGroupKeyIndeces.length;
+    	String[] values = new String[size + (includeReservationIds ? 2 : 0)];
+    	int resourceTagsSize = lineItem.getResourceTagsSize();
+    	for (int i = 0; i < size; i++) {
+    		int index = resourceGroupKeyIndeces[i];
+    		values[i] = resourceTagsSize > index ? lineItem.getResourceTag(index) : null;
+    	}
+    	if (includeReservationIds) {
+    		values[size] = lineItem.getReservationArn();
+    		values[size + 1] = lineItem.getSavingsPlanArn();
+    	}
+    	return new ResourceGroupKey(account.getId(), lineItem.getPayerAccountId(), getRuleEpoch(millisStart), values);
+    }
+    
+    private ResourceGroup resolveResourceGroup(Account account, LineItem lineItem, long millisStart) {
         // Build the resource group based on the values of the custom tags
     	String[] tags = new String[customTags.size()];
        	for (int i = 0; i < customTags.size(); i++) {
@@ -353,6 +474,7 @@ public class BasicResourceService extends ResourceService {
     	for (String key: tags.keySet())
     		defaults.put(key, new DefaultTag(tags.get(key)));
     	defaultTags.put(accountId, defaults);
+    	resetResourceGroupCache();
     }
     
     private String getDefaultUserTagValue(Account account, String tagKey, long startMillis) {
@@ -523,5 +645,19 @@ public class BasicResourceService extends ResourceService {
             	}
             }
     	}
+    	
+    	// Collect the line item indeces that feed the custom tags for the resource group cache keys
+    	Set<Integer> keyIndeces = Sets.newTreeSet();
+    	for (String tag: customTags) {
+    		List<Integer> indeces = tagLineItemIndeces.get(tag);
+    		if (indeces != null)
+    			keyIndeces.addAll(indeces);
+    	}
+    	int[] resourceGroupKeyIndeces = new int[keyIndeces.size()];
+    	int i = 0;
+    	for (Integer index: keyIndeces)
+    		resourceGroupKeyIndeces[i++] = index;
+    	this.resourceGroupKeyIndeces = resourceGroupKeyIndeces;
+    	resetResourceGroupCache();
     }
 }
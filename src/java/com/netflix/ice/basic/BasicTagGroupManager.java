@@ -22,11 +22,13 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.netflix.ice.common.AccountService;
 import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.Codec;
 import com.netflix.ice.common.Config.WorkBucketConfig;
 import com.netflix.ice.common.ProductService;
 import com.netflix.ice.common.TagGroup;
 import com.netflix.ice.processor.TagGroupWriter;
-import com.netflix.ice.reader.DataCache;
+import com.netflix.ice.reader.GroupKeyMapper;
+import com.netflix.ice.reader.TagFacets;
 import com.netflix.ice.reader.TagGroupManager;
 import com.netflix.ice.reader.TagLists;
 import com.netflix.ice.tag.*;
@@ -44,9 +46,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
-import java.util.zip.GZIPInputStream;
 
-public class BasicTagGroupManager implements TagGroupManager, DataCache {
+public class BasicTagGroupManager implements TagGroupManager, StagedDataCache {
     protected Logger logger = LoggerFactory.getLogger(getClass());
     
     public static final String compressExtension = ".gz";
@@ -58,8 +59,14 @@ public class BasicTagGroupManager implements TagGroupManager, DataCache {
     private final File file;
     private TreeMap<Long, Collection<TagGroup>> tagGroups;
     private TreeMap<Long, Collection<TagGroup>> tagGroupsWithResourceGroups;
+    private TreeMap<Long, TagGroupIndex> indexes;
+    private TreeMap<Long, TagGroupIndex> indexesWithResourceGroups;
     private Interval totalInterval;
     private boolean compress;
+    // ETag of the work bucket file the tag groups were loaded from
+    private String eTag;
+    // tag groups loaded by stage() waiting to be published
+    private Staged staged;
 
     BasicTagGroupManager(Product product, boolean compress, WorkBucketConfig workBucketConfig, AccountService accountService, ProductService productService) {
     	this.compress = compress;
@@ -76,6 +83,8 @@ public class BasicTagGroupManager implements TagGroupManager, DataCache {
     BasicTagGroupManager(TreeMap<Long, Collection<TagGroup>> tagGroupsWithResourceGroups, Interval totalInterval) {
     	this.tagGroupsWithResourceGroups = tagGroupsWithResourceGroups;
     	this.tagGroups = removeResourceGroups(tagGroupsWithResourceGroups);
+    	this.indexes = buildIndexes(this.tagGroups);
+    	this.indexesWithResourceGroups = buildIndexes(tagGroupsWithResourceGroups);
     	this.workBucketConfig = null;
     	this.accountService = null;
     	this.productService = null;
@@ -138,17 +147,55 @@ public class BasicTagGroupManager implements TagGroupManager, DataCache {
     	return sizes;
     }
     
+    private static class Staged {
+    	TreeMap<Long, Collection<TagGroup>> tagGroups;
+    	TreeMap<Long, Collection<TagGroup>> tagGroupsWithResourceGroups;
+    	TreeMap<Long, TagGroupIndex> indexes;
+    	TreeMap<Long, TagGroupIndex> indexesWithResourceGroups;
+    	Interval totalInterval;
+    	String eTag;
+    }
+    
     @Override
     public boolean refresh() {
-        boolean downloaded = AwsUtils.downloadFileIfChanged(workBucketConfig.workS3BucketName, workBucketConfig.workS3BucketPrefix, file);
-        if (downloaded || tagGroups == null) {
-	        logger.info("trying to read from " + file);
+    	boolean error = stage(null);
+    	DataFileCache.publishLock.writeLock().lock();
+    	try {
+    		publish();
+    	}
+    	finally {
+    		DataFileCache.publishLock.writeLock().unlock();
+    	}
+    	return error;
+    }
+    
+    @Override
+    public synchronized void publish() {
+    	if (staged == null)
+    		return;
+        this.totalInterval = staged.totalInterval;
+        this.indexes = staged.indexes;
+        this.indexesWithResourceGroups = staged.indexesWithResourceGroups;
+        this.tagGroups = staged.tagGroups;
+        this.tagGroupsWithResourceGroups = staged.tagGroupsWithResourceGroups;
+        this.eTag = staged.eTag;
+        staged = null;
+    }
+    
+    @Override
+    public synchronized boolean stage(Set<String> changedFiles) {
+    	if (tagGroups != null && changedFiles != null && !changedFiles.contains(file.getName()))
+    		return false;
+    	
+        String eTag = AwsUtils.downloadFileIfChangedGetETag(workBucketConfig.workS3BucketName, workBucketConfig.workS3BucketPrefix, file);
+        if (tagGroups == null || !eTag.equals(this.eTag)) {
 	        InputStream is = null;
 	        DataInputStream in = null;
+	        logger.info("trying to read from " + file);
 	        try {
 	            is = new FileInputStream(file);
 	            if (compress)
-	            	is = new GZIPInputStream(is);
+	            	is = Codec.decompress(is);
 	            in = new DataInputStream(is);
 	            
                 TreeMap<Long, Collection<TagGroup>> tagGroupsWithResourceGroups = TagGroup.Serializer.deserializeTagGroups(accountService, productService, in);
@@ -157,16 +204,23 @@ public class BasicTagGroupManager implements TagGroupManager, DataCache {
                 if (tagGroups.size() > 0) {
                     totalInterval = new Interval(tagGroups.firstKey(), new DateTime(tagGroups.lastKey()).plusMonths(1).getMillis(), DateTimeZone.UTC);
                 }
-                this.totalInterval = totalInterval;
-                this.tagGroups = tagGroups;
-                this.tagGroupsWithResourceGroups = tagGroupsWithResourceGroups;
+                Staged staged = new Staged();
+                staged.totalInterval = totalInterval;
+                staged.indexes = buildIndexes(tagGroups);
+                staged.indexesWithResourceGroups = buildIndexes(tagGroupsWithResourceGroups);
+                staged.tagGroups = tagGroups;
+                staged.tagGroupsWithResourceGroups = tagGroupsWithResourceGroups;
+                staged.eTag = eTag;
+                this.staged = staged;
                 logger.info("done reading " + file);
             }
             catch (IOException e) {
                 logger.error("failed to download " + file, e);
+                return true;
             }
 	        catch (BadZone e) {
                 logger.error("failed to download " + file, e);
+                return true;
 	        }
             finally {
             	if (in != null) {
@@ -197,20 +251,11 @@ public class BasicTagGroupManager implements TagGroupManager, DataCache {
         return result;
     }
 
-    private Set<TagGroup> getTagGroupsInRange(Collection<Long> monthMillis) {
-        Set<TagGroup> tagGroupsInRange = Sets.newHashSet();
-        for (Long monthMilli: monthMillis) {
-            tagGroupsInRange.addAll(this.tagGroups.get(monthMilli));
-        }
-        return tagGroupsInRange;
-    }
-
-    private Set<TagGroup> getTagGroupsWithResourceGroupsInRange(Collection<Long> monthMillis) {
-        Set<TagGroup> tagGroupsInRange = Sets.newHashSet();
-        for (Long monthMilli: monthMillis) {
-            tagGroupsInRange.addAll(this.tagGroupsWithResourceGroups.get(monthMilli));
-        }
-        return tagGroupsInRange;
+    private TreeMap<Long, TagGroupIndex> buildIndexes(TreeMap<Long, Collection<TagGroup>> tagGroups) {
+        TreeMap<Long, TagGroupIndex> result = Maps.newTreeMap();
+        for (Long key: tagGroups.keySet())
+            result.put(key, new TagGroupIndex(tagGroups.get(key)));
+        return result;
     }
 
     private Collection<Long> getMonthMillis(Interval interval) {
@@ -224,138 +269,74 @@ public class BasicTagGroupManager implements TagGroupManager, DataCache {
         return result;
     }
 
-    public Collection<Account> getAccounts(Set<TagGroup> tagGroupsInRange, TagLists tagLists) {
-        Set<Account> accounts = Sets.newHashSet();
-
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup))
-            	accounts.add(tagGroup.account);
-        }
-
-        return accounts;
-    }
-
-    public Collection<Region> getRegions(Set<TagGroup> tagGroupsInRange, TagLists tagLists) {
-        Set<Region> regions = Sets.newHashSet();
-
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup))
-            	regions.add(tagGroup.region);
-        }
-
-        return regions;
-    }
-
-    public Collection<Zone> getZones(Set<TagGroup> tagGroupsInRange, TagLists tagLists) {
-        Set<Zone> zones = Sets.newHashSet();
-
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup) && tagGroup.zone != null)
-                zones.add(tagGroup.zone);
+    /*
+     * Get the distinct values of a dimension for the tag groups in the months that match the tagLists
+     */
+    private <T extends Tag> Set<T> getValues(TreeMap<Long, TagGroupIndex> indexes, Collection<Long> monthMillis, TagType dimension, TagLists tagLists) {
+        Set<T> values = Sets.newHashSet();
+        for (Long monthMilli: monthMillis) {
+            TagGroupIndex index = indexes.get(monthMilli);
+            index.addValues(dimension, index.filter(tagLists), values);
         }
-
-        return zones;
+        return values;
     }
 
-    public Collection<Product> getProducts(Set<TagGroup> tagGroupsInRange, TagLists tagLists) {
-        Set<Product> products = Sets.newHashSet();
-
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup))
-                products.add(tagGroup.product);
-        }
-
-        return products;
-    }
-    
-    public Set<Operation> getOperations(Set<TagGroup> tagGroupsInRange, TagLists tagLists, Collection<Operation.Identity.Value> exclude) {
-        Set<Operation> operations = Sets.newHashSet();
+    private Set<Operation> getOperations(Collection<Long> monthMillis, TagLists tagLists, Collection<Operation.Identity.Value> exclude) {
+        Set<Operation> operations = getValues(indexes, monthMillis, TagType.Operation, tagLists);
         int excludeBitSet = exclude == null ? 0 : Operation.Identity.getIdentitySet(exclude);
+        if (excludeBitSet == 0)
+        	return operations;
         
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup)) {
-            	if (excludeBitSet == 0 || !tagGroup.operation.isOneOf(excludeBitSet))
-            		operations.add(tagGroup.operation);
-            }
-        }
-
-        return operations;
-    }
-
-    public Collection<UsageType> getUsageTypes(Set<TagGroup> tagGroupsInRange, TagLists tagLists) {
-        Set<UsageType> usageTypes = Sets.newHashSet();
-
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup))
-                usageTypes.add(tagGroup.usageType);
+        Set<Operation> result = Sets.newHashSet();
+        for (Operation operation: operations) {
+            if (!operation.isOneOf(excludeBitSet))
+            	result.add(operation);
         }
-
-        return usageTypes;
+        return result;
     }
 
     public Collection<ResourceGroup> getResourceGroups(Interval interval, TagLists tagLists) {
-        Set<ResourceGroup> groups = Sets.newHashSet();
-        Set<TagGroup> tagGroupsInRange = getTagGroupsWithResourceGroupsInRange(getMonthMillis(interval));
-
-        // Add ResourceGroup tags that are non-null, just the product name, or userTag CSVs.
-        for (TagGroup tagGroup: tagGroupsInRange) {
-            if (tagLists.contains(tagGroup) && tagGroup.resourceGroup != null) {
-                groups.add(tagGroup.resourceGroup);
-            }
-        }
-
-        return groups;
+        return getValues(indexesWithResourceGroups, getMonthMillis(interval), TagType.ResourceGroup, tagLists);
     }
 
     public Collection<UserTag> getResourceGroupTags(Interval interval, TagLists tagLists, int userTagGroupByIndex) {
         Set<UserTag> userTags = Sets.newHashSet();
-        Set<TagGroup> tagGroupsInRange = getTagGroupsWithResourceGroupsInRange(getMonthMillis(interval));
-        
         UserTag emptyUserTag = UserTag.get("");
-
-        // Add ResourceGroup tags that are null, just the product name, or userTag CSVs.
-        for (TagGroup tagGroup: tagGroupsInRange) {
-        	//logger.info("tag group <" + tagLists.contains(tagGroup) + ">: " + tagGroup);
-            if (tagLists.contains(tagGroup)) {
-            	try {
-            		UserTag t = tagGroup.resourceGroup == null ? emptyUserTag : tagGroup.resourceGroup.getUserTags()[userTagGroupByIndex];
-            		userTags.add(t);
-            	}
-            	catch (Exception e) {
-            		logger.error("Bad resourceGroup: " + tagGroup.resourceGroup + ", " + e);
-            	}
-            }
+        
+        // Add user tags for tag groups with null ResourceGroups as empty
+        for (Long monthMilli: getMonthMillis(interval)) {
+            TagGroupIndex index = indexesWithResourceGroups.get(monthMilli);
+            index.addUserTagValues(userTagGroupByIndex, index.filter(tagLists), userTags, emptyUserTag);
         }
-
         return userTags;
     }
 
     public Collection<Account> getAccounts(TagLists tagLists) {
-    	List<Account> accounts = Lists.newArrayList(getAccounts(getTagGroupsInRange(getMonthMillis(totalInterval)), tagLists));
+    	List<Account> accounts = Lists.newArrayList(this.<Account>getValues(indexes, getMonthMillis(totalInterval), TagType.Account, tagLists));
     	accounts.sort(null);
         return accounts;
     }
 
     public Collection<Region> getRegions(TagLists tagLists) {
-    	List<Region> regions = Lists.newArrayList(getRegions(getTagGroupsInRange(getMonthMillis(totalInterval)), tagLists));
+    	List<Region> regions = Lists.newArrayList(this.<Region>getValues(indexes, getMonthMillis(totalInterval), TagType.Region, tagLists));
     	regions.sort(null);
         return regions;
     }
 
     public Collection<Zone> getZones(TagLists tagLists) {
-    	List<Zone> zones = Lists.newArrayList(getZones(getTagGroupsInRange(getMonthMillis(totalInterval)), tagLists));
+    	List<Zone> zones = Lists.newArrayList(this.<Zone>getValues(indexes, getMonthMillis(totalInterval), TagType.Zone, tagLists));
     	zones.sort(null);
         return zones;
     }
 
     public Collection<Product> getProducts(TagLists tagLists) {
-    	List<Product> products = Lists.newArrayList(getProducts(getTagGroupsInRange(getMonthMillis(totalInterval)), tagLists));
+    	List<Product> products = Lists.newArrayList(this.<Product>getValues(indexes, getMonthMillis(totalInterval), TagType.Product, tagLists));
     	products.sort(null);
     	return products;
     }
 
     public Collection<Operation> getOperationsUnsorted(TagLists tagLists, Collection<Operation.Identity.Value> exclude) {
-    	return getOperations(getTagGroupsInRange(getMonthMillis(totalInterval)), tagLists, exclude);
+    	return getOperations(getMonthMillis(totalInterval), tagLists, exclude);
     }
 
     public Collection<Operation> getOperations(TagLists tagLists, Collection<Operation.Identity.Value> exclude) {
@@ -365,7 +346,7 @@ public class BasicTagGroupManager implements TagGroupManager, DataCache {
     }
 
     public Collection<UsageType> getUsageTypes(TagLists tagLists) {
-    	List<UsageType> usageTypes = Lists.newArrayList(getUsageTypes(getTagGroupsInRange(getMonthMillis(totalInterval)), tagLists));
+    	List<UsageType> usageTypes = Lists.newArrayList(this.<UsageType>getValues(indexes, getMonthMillis(totalInterval), TagType.UsageType, tagLists));
     	usageTypes.sort(null);
     	return usageTypes;
     }
@@ -376,6 +357,13 @@ public class BasicTagGroupManager implements TagGroupManager, DataCache {
     	return resourceGroups;
     }
 
+    public TagFacets getFacets(TagLists tagLists, int numUserTags) {
+    	TagFacets facets = new TagFacets(numUserTags);
+        for (Long monthMilli: getMonthMillis(totalInterval))
+        	indexesWithResourceGroups.get(monthMilli).addFacets(tagLists, facets);
+        return facets;
+    }
+
     public Interval getOverlapInterval(Interval interval) {
         return totalInterval == null ? null : totalInterval.overlap(interval);
     }
@@ -385,9 +373,13 @@ public class BasicTagGroupManager implements TagGroupManager, DataCache {
     }
     
     public Map<Tag, TagLists> getTagListsMap(Interval interval, TagLists tagLists, TagType groupBy, List<Operation.Identity.Value> exclude, int userTagGroupByIndex) {
+    	return getTagListsMap(interval, tagLists, groupBy, exclude, userTagGroupByIndex, null);
+    }
+    
+    public Map<Tag, TagLists> getTagListsMap(Interval interval, TagLists tagLists, TagType groupBy, List<Operation.Identity.Value> exclude, int userTagGroupByIndex, GroupKeyMapper mapper) {
         Map<Tag, TagLists> result = Maps.newHashMap();
         
-        Set<TagGroup> tagGroupsInRange = getTagGroupsInRange(getMonthMillis(interval));
+        Collection<Long> monthMillis = getMonthMillis(interval);
         
         // Get all the GroupBy tags. If we're not grouping by ResourceGroup or User Tag, then work with a TagLists that doesn't contain resourceGroups.
         // Filtering of results against resourceGroup values is handled later.
@@ -403,7 +395,7 @@ public class BasicTagGroupManager implements TagGroupManager, DataCache {
         // for all dashboards choose between Borrowed and Lent Operations so we don't double count the cost/usage    	
     	List<Operation> ops = tagListsForTag.operations;
         if (ops == null || ops.size() == 0) {
-        	ops = Lists.newArrayList(getOperations(tagGroupsInRange, tagListsForTag, exclude));
+        	ops = Lists.newArrayList(getOperations(monthMillis, tagListsForTag, exclude));
         }
         else {
         	ops = Operation.exclude(ops, exclude);
@@ -422,22 +414,12 @@ public class BasicTagGroupManager implements TagGroupManager, DataCache {
         List<Tag> groupByTags = Lists.newArrayList();
         switch (groupBy) {
             case Account:
-                groupByTags.addAll(getAccounts(tagGroupsInRange, tagListsForTag));
-                break;
             case Region:
-                groupByTags.addAll(getRegions(tagGroupsInRange, tagListsForTag));
-                break;
             case Zone:
-                groupByTags.addAll(getZones(tagGroupsInRange, tagListsForTag));
-                break;
             case Product:
-                groupByTags.addAll(getProducts(tagGroupsInRange, tagListsForTag));
-                break;
             case Operation:
-                groupByTags.addAll(getOperations(tagGroupsInRange, tagListsForTag, null));
-                break;
             case UsageType:
-                groupByTags.addAll(getUsageTypes(tagGroupsInRange, tagListsForTag));
+                groupByTags.addAll(getValues(indexes, monthMillis, groupBy, tagListsForTag));
                 break;
             case ResourceGroup:
                 groupByTags.addAll(getResourceGroups(interval, tagListsForTag));
@@ -458,6 +440,25 @@ public class BasicTagGroupManager implements TagGroupManager, DataCache {
         // Get the TagLists with the ResourceGroups, but use the already filtered operations
         tagListsForTag = tagLists.getTagListsWithOperations(ops);
 
+        if (mapper != null && groupBy != TagType.Tag) {
+        	// Collect the groupBy tags under the keys they map to so each key is aggregated in a single pass
+        	Map<Tag, List<Tag>> mapped = Maps.newHashMap();
+            for (Tag tag: groupByTags) {
+                if (tagListsForTag.contains(tag, groupBy, userTagGroupByIndex)) {
+                	Tag key = mapper.map(tag);
+                	List<Tag> tags = mapped.get(key);
+                	if (tags == null) {
+                		tags = Lists.newArrayList();
+                		mapped.put(key, tags);
+                	}
+                	tags.add(tag);
+                }
+            }
+            for (Map.Entry<Tag, List<Tag>> entry: mapped.entrySet())
+            	result.put(entry.getKey(), tagListsForTag.getTagLists(entry.getValue(), groupBy));
+            return result;
+        }
+
         for (Tag tag: groupByTags) {
             if (tagListsForTag.contains(tag, groupBy, userTagGroupByIndex)) {
                 //logger.info("get tag lists for " + tag + ", " + groupByOperationOnReservationDashboard);
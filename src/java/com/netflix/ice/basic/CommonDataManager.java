@@ -17,6 +17,7 @@
  */
 package com.netflix.ice.basic;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -38,6 +39,7 @@ import com.netflix.ice.common.ProductService;
 import com.netflix.ice.common.TagGroup;
 import com.netflix.ice.reader.AggregateType;
 import com.netflix.ice.reader.DataManager;
+import com.netflix.ice.reader.GroupKeyMapper;
 import com.netflix.ice.reader.ReadOnlyGenericData;
 import com.netflix.ice.reader.TagGroupManager;
 import com.netflix.ice.reader.TagLists;
@@ -63,18 +65,29 @@ public abstract class CommonDataManager<T extends ReadOnlyGenericData<D>, D>  ex
 	 * Aggregate the columns of data for a single instance in time
 	 */
     abstract protected D aggregate(List<Integer> columns, List<TagGroup> tagGroups, UsageUnit usageUnit, D[] data);
+    
+    /*
+     * Sum each column of data over the time indecies from (inclusive) to to (exclusive).
+     * Returns null if the data can't be ranked.
+     */
+    abstract protected D[] sumColumns(T data, int from, int to);
+    
+    /*
+     * Get the value used to rank a group from an aggregated value.
+     */
+    abstract protected double getRankValue(D value);
         
     /*
      * Aggregate all the data matching the tags in tagLists starting at time start for the specified to and from indecies.
      */
-    protected int aggregateData(DateTime start, TagLists tagLists, int from, int to, D[] result, UsageUnit usageUnit, TagType groupBy, Tag tag, int userTagGroupByIndex) throws ExecutionException {
+    protected int aggregateData(DateTime start, TagLists tagLists, int from, int to, D[] result, UsageUnit usageUnit, TagType groupBy, List<? extends Tag> tags, int userTagGroupByIndex) throws ExecutionException {
         T data = getReadOnlyData(start);
 
         // Figure out which columns we're going to aggregate
         List<Integer> columnIndecies = Lists.newArrayList();
         List<TagGroup> tagGroups = Lists.newArrayList();
         
-    	getColumns(groupBy, tag, userTagGroupByIndex, data, tagLists, columnIndecies, tagGroups);
+    	getColumns(groupBy, tags, userTagGroupByIndex, data, tagLists, columnIndecies, tagGroups);
         
         int fromIndex = from;
         int resultIndex = to;
@@ -86,8 +99,19 @@ public abstract class CommonDataManager<T extends ReadOnlyGenericData<D>, D>  ex
         return fromIndex - from;
     }
         
-    private void getColumns(TagType groupBy, Tag tag, int userTagGroupByIndex, T data, TagLists tagLists, List<Integer> columnIndecies, List<TagGroup> tagGroups) {    	
-    	Map<TagGroup, Integer> m = data.getTagGroups(groupBy, tag, userTagGroupByIndex);
+    private void getColumns(TagType groupBy, List<? extends Tag> tags, int userTagGroupByIndex, T data, TagLists tagLists, List<Integer> columnIndecies, List<TagGroup> tagGroups) {
+    	if (tags.size() > 1 && data.hasIndex(groupBy, userTagGroupByIndex)) {
+    		// Several groupBy values are aggregated together, take the union of their indecies.
+    		// A value with no index entry has no tag groups in this data set.
+    		for (Tag tag: tags) {
+    			Map<TagGroup, Integer> m = data.getTagGroups(groupBy, tag, userTagGroupByIndex);
+    			if (m != null)
+    				addColumns(m, tagLists, columnIndecies, tagGroups);
+    		}
+    		return;
+    	}
+    	
+    	Map<TagGroup, Integer> m = tags.size() == 1 ? data.getTagGroups(groupBy, tags.get(0), userTagGroupByIndex) : null;
     	if (m == null) {
     		// No index, do it the hard way
             int columnIndex = 0;
@@ -102,6 +126,10 @@ public abstract class CommonDataManager<T extends ReadOnlyGenericData<D>, D>  ex
     		return;
     	}
     	
+    	addColumns(m, tagLists, columnIndecies, tagGroups);
+    }
+    
+    private void addColumns(Map<TagGroup, Integer> m, TagLists tagLists, List<Integer> columnIndecies, List<TagGroup> tagGroups) {
         for (TagGroup tagGroup: m.keySet()) {
         	boolean contains = tagLists.contains(tagGroup, true);
             if (contains) {
@@ -152,6 +180,13 @@ public abstract class CommonDataManager<T extends ReadOnlyGenericData<D>, D>  ex
     }
     
     public D[] getData(Interval interval, TagLists tagLists, UsageUnit usageUnit, TagType groupBy, Tag tag, int userTagGroupByIndex) throws ExecutionException {
+    	return getData(interval, tagLists, usageUnit, groupBy, Lists.newArrayList(tag), userTagGroupByIndex);
+    }
+    
+    /*
+     * Get the data aggregated across all of the groupBy tags
+     */
+    public D[] getData(Interval interval, TagLists tagLists, UsageUnit usageUnit, TagType groupBy, List<? extends Tag> tags, int userTagGroupByIndex) throws ExecutionException {
     	Interval adjusted = getAdjustedInterval(interval);
         DateTime start = adjusted.getStart();
         DateTime end = adjusted.getEnd();
@@ -161,7 +196,7 @@ public abstract class CommonDataManager<T extends ReadOnlyGenericData<D>, D>  ex
         do {
             int resultIndex = getResultIndex(start, interval);
             int fromIndex = getFromIndex(start, interval);            
-            int count = aggregateData(start, tagLists, fromIndex, resultIndex, result, usageUnit, groupBy, tag, userTagGroupByIndex);
+            int count = aggregateData(start, tagLists, fromIndex, resultIndex, result, usageUnit, groupBy, tags, userTagGroupByIndex);
             fromIndex += count;
             resultIndex += count;
 
@@ -177,6 +212,82 @@ public abstract class CommonDataManager<T extends ReadOnlyGenericData<D>, D>  ex
         return result;
     }
     
+    /*
+     * Get the total of each groupBy value across the interval. The columns of each data set are summed
+     * over time once, so the totals are computed without building a time series for each group.
+     * Returns null if the data can't be ranked.
+     */
+    public Map<Tag, Double> getGroupTotals(Interval interval, TagLists tagLists, TagType groupBy, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex, GroupKeyMapper mapper) {
+    	load(interval);
+    	publishLock.readLock().lock();
+    	try {
+    		return readGroupTotals(interval, tagLists, groupBy, exclude, usageUnit, userTagGroupByIndex, mapper);
+    	}
+    	finally {
+    		publishLock.readLock().unlock();
+    	}
+    }
+    
+    /*
+     * Same as getGroupTotals() for callers that already hold the read lock of publishLock for the whole query.
+     */
+    Map<Tag, Double> readGroupTotals(Interval interval, TagLists tagLists, TagType groupBy, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex, GroupKeyMapper mapper) {
+    	if (groupBy == null || groupBy == TagType.Tag || groupBy == TagType.TagKey)
+    		mapper = null;
+    	return getGroupTotals(interval, groupBy, usageUnit, userTagGroupByIndex, mapper, tagGroupManager.getTagListsMap(interval, tagLists, groupBy, exclude, userTagGroupByIndex, mapper));
+    }
+    
+    private Map<Tag, Double> getGroupTotals(Interval interval, TagType groupBy, UsageUnit usageUnit, int userTagGroupByIndex, GroupKeyMapper mapper, Map<Tag, TagLists> tagListsMap) {
+    	Map<Tag, Double> totals = Maps.newHashMap();
+    	
+    	Interval adjusted = getAdjustedInterval(interval);
+        DateTime start = adjusted.getStart();
+        DateTime end = adjusted.getEnd();
+        int size = getSize(interval);
+        
+        try {
+	        do {
+	            int resultIndex = getResultIndex(start, interval);
+	            int fromIndex = getFromIndex(start, interval);
+	            T data = getReadOnlyData(start);
+	            int count = Math.min(size - resultIndex, data.getNum() - fromIndex);
+	            if (count > 0) {
+	            	D[] sums = sumColumns(data, fromIndex, fromIndex + count);
+	            	if (sums == null)
+	            		return null;
+	            	
+	            	for (Tag tag: tagListsMap.keySet()) {
+	            		TagLists tl = tagListsMap.get(tag);
+	                    List<? extends Tag> tags = mapper == null ? Lists.newArrayList(tag) : tl.getTags(groupBy);
+	                    List<Integer> columnIndecies = Lists.newArrayList();
+	                    List<TagGroup> tagGroups = Lists.newArrayList();
+	                	getColumns(groupBy, tags, userTagGroupByIndex, data, tl, columnIndecies, tagGroups);
+	                	if (columnIndecies.isEmpty())
+	                		continue;
+	                	
+	                	double value = getRankValue(aggregate(columnIndecies, tagGroups, usageUnit, sums));
+	                	Tag key = groupBy == TagType.Tag && tag.name.isEmpty() ? UserTag.get(UserTag.none) : tag;
+	                	Double total = totals.get(key);
+	                	totals.put(key, total == null ? value : total + value);
+	            	}
+	            }
+	
+	            if (consolidateType  == ConsolidateType.hourly)
+	                start = start.plusMonths(1);
+	            else if (consolidateType  == ConsolidateType.daily)
+	                start = start.plusYears(1);
+	            else
+	                break;
+	        }
+	        while (start.isBefore(end));
+        }
+        catch (ExecutionException e) {
+            logger.error("error in getGroupTotals for " + interval, e);
+            return null;
+        }
+    	return totals;
+    }
+    
     public int getDataLength(DateTime start) {
         try {
             T data = getReadOnlyData(start);
@@ -188,17 +299,105 @@ public abstract class CommonDataManager<T extends ReadOnlyGenericData<D>, D>  ex
         }
     }
 
+    /**
+     * Returns true if the data loaded for start has values for the interval at index.
+     */
+    public boolean hasRow(DateTime start, int index) {
+        try {
+            T data = getReadOnlyData(start);
+            return index < data.getNum() && data.getData(index) != null;
+        }
+        catch (ExecutionException e) {
+            logger.error("error in hasRow for " + start, e);
+            return false;
+        }
+    }
+
     abstract protected void addData(D[] from, D[] to);
     abstract protected boolean hasData(D[] data);
     abstract protected Map<Tag, double[]> processResult(Map<Tag, D[]> data, TagType groupBy, AggregateType aggregate, List<UserTag> tagKeys);
 
     protected Map<Tag, D[]> getRawData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex) {
+    	return getRawData(interval, tagLists, groupBy, aggregate, exclude, usageUnit, userTagGroupByIndex, null);
+    }
+    
+    protected Map<Tag, D[]> getRawData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex, GroupKeyMapper mapper) {
     	//logger.info("Entered with groupBy: " + groupBy + ", userTagGroupByIndex: " + userTagGroupByIndex + ", tagLists: " + tagLists);
-    	Map<Tag, TagLists> tagListsMap = tagGroupManager.getTagListsMap(interval, tagLists, groupBy, exclude, userTagGroupByIndex);
-    	return getGroupedData(interval, tagListsMap, usageUnit, groupBy, userTagGroupByIndex);
+    	if (groupBy == null || groupBy == TagType.Tag || groupBy == TagType.TagKey)
+    		mapper = null;
+    	Map<Tag, TagLists> tagListsMap = tagGroupManager.getTagListsMap(interval, tagLists, groupBy, exclude, userTagGroupByIndex, mapper);
+    	return getGroupedData(interval, tagListsMap, usageUnit, groupBy, userTagGroupByIndex, mapper);
+    }
+    
+    /*
+     * Get the raw data for the groupBy values in groups and combine all the other groupBy values into a single series
+     * under Tag.other. If groups is null, all groupBy values are returned.
+     */
+    protected Map<Tag, D[]> getRawData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex, GroupKeyMapper mapper, Collection<Tag> groups) {
+    	if (groups == null || groupBy == null || groupBy == TagType.TagKey)
+    		return getRawData(interval, tagLists, groupBy, aggregate, exclude, usageUnit, userTagGroupByIndex, mapper);
+    	
+    	if (groupBy == TagType.Tag)
+    		mapper = null;
+    	return getRawData(interval, groupBy, usageUnit, userTagGroupByIndex, mapper, groups, tagGroupManager.getTagListsMap(interval, tagLists, groupBy, exclude, userTagGroupByIndex, mapper));
+    }
+    
+    private Map<Tag, D[]> getRawData(Interval interval, TagType groupBy, UsageUnit usageUnit, int userTagGroupByIndex, GroupKeyMapper mapper, Collection<Tag> groups, Map<Tag, TagLists> tagListsMap) {
+    	Map<Tag, TagLists> kept = Maps.newHashMap();
+    	Map<Tag, TagLists> rest = Maps.newHashMap();
+    	for (Tag tag: tagListsMap.keySet()) {
+        	Tag key = groupBy == TagType.Tag && tag.name.isEmpty() ? UserTag.get(UserTag.none) : tag;
+        	if (groups.contains(key))
+        		kept.put(tag, tagListsMap.get(tag));
+        	else
+        		rest.put(tag, tagListsMap.get(tag));
+    	}
+    	
+    	Map<Tag, D[]> rawResult = getGroupedData(interval, kept, usageUnit, groupBy, userTagGroupByIndex, mapper);
+    	if (!rest.isEmpty()) {
+    		try {
+	    		D[] other = getOtherData(interval, rest, usageUnit, groupBy, userTagGroupByIndex, mapper);
+	    		if (hasData(other))
+	    			rawResult.put(Tag.other, other);
+    		}
+            catch (ExecutionException e) {
+                logger.error("error in getData for other " + interval, e);
+            }
+    	}
+    	return rawResult;
+    }
+    
+    /*
+     * Get a single series for all the groupBy values in tagListsMap
+     */
+    private D[] getOtherData(Interval interval, Map<Tag, TagLists> tagListsMap, UsageUnit usageUnit, TagType groupBy, int userTagGroupByIndex, GroupKeyMapper mapper) throws ExecutionException {
+    	List<Tag> tags = Lists.newArrayList();
+    	for (Tag tag: tagListsMap.keySet()) {
+    		if (mapper == null)
+    			tags.add(tag);
+    		else
+    			tags.addAll(tagListsMap.get(tag).getTags(groupBy));
+    	}
+    	
+    	// The TagLists for each groupBy value only differ in the groupBy list, so read all of them in one pass if we can.
+    	TagLists tagLists = tagListsMap.values().iterator().next().getTagLists(tags, groupBy);
+    	if (tagLists != null)
+    		return getData(interval, tagLists, usageUnit, groupBy, tags, userTagGroupByIndex);
+    	
+    	// Otherwise, add up the series for each of the values
+    	D[] result = null;
+    	for (Tag tag: tagListsMap.keySet()) {
+            List<? extends Tag> t = mapper == null ? Lists.newArrayList(tag) : tagListsMap.get(tag).getTags(groupBy);
+    		D[] data = getData(interval, tagListsMap.get(tag), usageUnit, groupBy, t, userTagGroupByIndex);
+    		if (result == null)
+    			result = data;
+    		else
+    			addData(data, result);
+    	}
+    	return result;
     }
     
-    private Map<Tag, D[]> getGroupedData(Interval interval, Map<Tag, TagLists> tagListsMap, UsageUnit usageUnit, TagType groupBy, int userTagGroupByIndex) {
+    private Map<Tag, D[]> getGroupedData(Interval interval, Map<Tag, TagLists> tagListsMap, UsageUnit usageUnit, TagType groupBy, int userTagGroupByIndex, GroupKeyMapper mapper) {
         Map<Tag, D[]> rawResult = Maps.newTreeMap();
 //        StopWatch sw = new StopWatch();
 //        sw.start();
@@ -207,7 +406,10 @@ public abstract class CommonDataManager<T extends ReadOnlyGenericData<D>, D>  ex
         for (Tag tag: tagListsMap.keySet()) {
             try {
                 //logger.info("Tag: " + tag + ", TagLists: " + tagListsMap.get(tag));
-                D[] data = getData(interval, tagListsMap.get(tag), usageUnit, groupBy, tag, userTagGroupByIndex);
+                TagLists tagLists = tagListsMap.get(tag);
+                // When mapping, the groupBy list of the TagLists holds all the tags aggregated under the key
+                List<? extends Tag> tags = mapper == null ? Lists.newArrayList(tag) : tagLists.getTags(groupBy);
+                D[] data = getData(interval, tagLists, usageUnit, groupBy, tags, userTagGroupByIndex);
                 
             	// Check for values in the data array and ignore if all zeros
                 if (hasData(data)) {
@@ -237,10 +439,24 @@ public abstract class CommonDataManager<T extends ReadOnlyGenericData<D>, D>  ex
         return rawResult;
     }
 
-    private Map<Tag, double[]> getData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex, List<UserTag> tagKeys) {
+    private Map<Tag, double[]> getData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex, List<UserTag> tagKeys, GroupKeyMapper mapper, Collection<Tag> groups) {
+    	load(interval);
+    	publishLock.readLock().lock();
+    	try {
+    		return readData(interval, tagLists, groupBy, aggregate, exclude, usageUnit, userTagGroupByIndex, tagKeys, mapper, groups);
+    	}
+    	finally {
+    		publishLock.readLock().unlock();
+    	}
+    }
+    
+    /*
+     * Same as getData() for callers that already hold the read lock of publishLock for the whole query.
+     */
+    Map<Tag, double[]> readData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex, List<UserTag> tagKeys, GroupKeyMapper mapper, Collection<Tag> groups) {
     	StopWatch sw = new StopWatch();
     	sw.start();
-    	Map<Tag, D[]> rawResult = getRawData(interval, tagLists, groupBy, aggregate, exclude, usageUnit, userTagGroupByIndex);
+    	Map<Tag, D[]> rawResult = getRawData(interval, tagLists, groupBy, aggregate, exclude, usageUnit, userTagGroupByIndex, mapper, groups);
         Map<Tag, double[]> result = processResult(rawResult, groupBy, aggregate, tagKeys);
         logger.debug("getData elapsed time: " + sw);
         return result;
@@ -248,7 +464,12 @@ public abstract class CommonDataManager<T extends ReadOnlyGenericData<D>, D>  ex
 
 	@Override
     public Map<Tag, double[]> getData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex) {
-    	return getData(interval, tagLists, groupBy, aggregate, exclude, usageUnit, userTagGroupByIndex, null);
+    	return getData(interval, tagLists, groupBy, aggregate, exclude, usageUnit, userTagGroupByIndex, null, null, null);
+    }
+
+	@Override
+    public Map<Tag, double[]> getData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex, GroupKeyMapper mapper) {
+    	return getData(interval, tagLists, groupBy, aggregate, exclude, usageUnit, userTagGroupByIndex, null, mapper, null);
     }
 
 	@Override
@@ -258,9 +479,20 @@ public abstract class CommonDataManager<T extends ReadOnlyGenericData<D>, D>  ex
 		return getData(interval, tagLists, groupBy, aggregate, exclude, usageUnit, 0);
 	}
 
+	@Override
+    public Map<Tag, double[]> getData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex, GroupKeyMapper mapper, Collection<Tag> groups) {
+    	return getData(interval, tagLists, groupBy, aggregate, exclude, usageUnit, userTagGroupByIndex, null, mapper, groups);
+    }
+
 	@Override
 	public Map<Tag, double[]> getData(Interval interval, TagLists tagLists,
 			TagType groupBy, AggregateType aggregate, int userTagGroupByIndex, List<UserTag> tagKeys) {
-		return getData(interval, tagLists, groupBy, aggregate, null, null, userTagGroupByIndex, tagKeys);
+		return getData(interval, tagLists, groupBy, aggregate, null, null, userTagGroupByIndex, tagKeys, null, null);
+	}
+
+	@Override
+	public Map<Tag, double[]> getData(Interval interval, TagLists tagLists,
+			TagType groupBy, AggregateType aggregate, int userTagGroupByIndex, List<UserTag> tagKeys, GroupKeyMapper mapper) {
+		return getData(interval, tagLists, groupBy, aggregate, null, null, userTagGroupByIndex, tagKeys, mapper, null);
 	}
 }
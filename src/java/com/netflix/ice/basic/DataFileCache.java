@@ -24,8 +24,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.joda.time.DateTime;
 import org.joda.time.Interval;
@@ -43,19 +45,22 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.netflix.ice.common.AccountService;
 import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.Codec;
 import com.netflix.ice.common.Config.WorkBucketConfig;
 import com.netflix.ice.common.ConsolidateType;
 import com.netflix.ice.common.ProductService;
-import com.netflix.ice.reader.DataCache;
 import com.netflix.ice.tag.Zone.BadZone;
 
 /**
  * This class reads data from s3 bucket and feeds the data to UI
  */
-abstract public class DataFileCache<T> implements DataCache {
+abstract public class DataFileCache<T> implements StagedDataCache {
     protected Logger logger = LoggerFactory.getLogger(getClass());
     
     protected static final String compressExtension = ".gz";
+    
+    // Queries hold the read lock so they see either all or none of the data staged from a processor run
+    static final ReadWriteLock publishLock = new ReentrantReadWriteLock();
 
     protected final DateTime startDate;
     protected final String dbName;
@@ -68,9 +73,16 @@ abstract public class DataFileCache<T> implements DataCache {
     // map of files we've loaded into the cache
     protected Map<DateTime, File> fileCache = Maps.newConcurrentMap();
     
+    // ETags of the work bucket files the cached data was loaded from
+    protected Map<DateTime, String> eTags = Maps.newConcurrentMap();
+    
     // data cache
     protected LoadingCache<DateTime, T> data;
     
+    // data loaded by stage() waiting to be published
+    private Map<DateTime, T> stagedData = Maps.newHashMap();
+    private Map<DateTime, String> stagedETags = Maps.newHashMap();
+    
     public DataFileCache(DateTime startDate, final String dbName, ConsolidateType consolidateType, boolean compress,
     		int monthlyCacheSize, WorkBucketConfig workBucketConfig, AccountService accountService, ProductService productService) {
     	this.startDate = startDate;
@@ -91,6 +103,7 @@ abstract public class DataFileCache<T> implements DataCache {
      	           public void onRemoval(RemovalNotification<DateTime, T> objectRemovalNotification) {
      	               logger.info(dbName + " removing from file cache " + objectRemovalNotification.getKey() + ", " + objectRemovalNotification.getCause().name());
      	               fileCache.remove(objectRemovalNotification.getKey());
+     	               eTags.remove(objectRemovalNotification.getKey());
      	           }
      	       })
      	       .build(
@@ -106,34 +119,67 @@ abstract public class DataFileCache<T> implements DataCache {
      */
     @Override
     public boolean refresh() {
-        logger.info(dbName + " refresh...");
+    	boolean error = stage(null);
+    	publishLock.writeLock().lock();
+    	try {
+    		publish();
+    	}
+    	finally {
+    		publishLock.writeLock().unlock();
+    	}
+    	return error;
+    }
+    
+    /*
+     * Keep going after a failure so the other files are still staged. The caller retries
+     * the files of a failed stage on the next refresh.
+     */
+    @Override
+    public synchronized boolean stage(Set<String> changedFiles) {
+        logger.info(dbName + " stage...");
+        boolean error = false;
         for (DateTime key: Sets.newHashSet(fileCache.keySet())) {
             File file = fileCache.get(key);
+            if (file == null || (changedFiles != null && !changedFiles.contains(file.getName())))
+            	continue;
             try {
                 logger.info("trying to download " + file);
-                boolean downloaded = downloadFile(file);
-                if (downloaded || (data.get(key) == null && file.exists())) {
-                    T newData = loadDataFromFile(file);
-                    data.put(key, newData);
-                    fileCache.put(key, file);
+                String eTag = fetchFile(file);
+                if (eTag != null && !eTag.equals(eTags.get(key))) {
+                    stagedData.put(key, loadDataFromFile(file));
+                    stagedETags.put(key, eTag);
                 }
             }
             catch (Exception e) {
                 logger.error("failed to download " + file, e);
-                return true;
+                error = true;
             }
         }
-        return false;
+        return error;
+    }
+    
+    @Override
+    public synchronized void publish() {
+    	for (DateTime key: stagedData.keySet()) {
+    		data.put(key, stagedData.get(key));
+    		fileCache.put(key, getFile(key));
+    		eTags.put(key, stagedETags.get(key));
+    	}
+    	stagedData.clear();
+    	stagedETags.clear();
     }
 
     abstract protected T newEmptyData();
 
     private T loadData(DateTime monthDate) throws InterruptedException {
         while (true) {
-            File file = getDownloadFile(monthDate);
+            File file = getFile(monthDate);
+            String eTag = downloadFile(file);
             try {
                 T result = loadDataFromFile(file);
                 fileCache.put(monthDate, file);
+                if (eTag != null)
+                	eTags.put(monthDate, eTag);
                 return result;
             }
             catch (FileNotFoundException e) {
@@ -152,12 +198,6 @@ abstract public class DataFileCache<T> implements DataCache {
         }
     }
 
-    private synchronized File getDownloadFile(DateTime monthDate) {
-        File file = getFile(monthDate);
-        downloadFile(file);
-        return file;
-    }
-
     protected File getFile(DateTime monthDate) {
     	String filename = dbName;
         if (consolidateType == ConsolidateType.hourly)
@@ -168,26 +208,39 @@ abstract public class DataFileCache<T> implements DataCache {
         return new File(workBucketConfig.localDir, filename + (compress ? compressExtension : ""));
     }
 
-    protected synchronized boolean downloadFile(File file) {
+    /**
+     * Download the file if the local copy is not current.
+     * @return ETag of the work bucket file or null if it couldn't be checked
+     */
+    protected synchronized String downloadFile(File file) {
         try {
-            return AwsUtils.downloadFileIfChanged(workBucketConfig.workS3BucketName, workBucketConfig.workS3BucketPrefix, file);
-        }
-        catch (AmazonServiceException ase) {
-        	if (ase.getStatusCode() == 404) {
-            	logger.warn("file not found: " + file.getName());
-            	if (file.exists()) {
-                    logger.info("deleted stale file " + file);
-            		file.delete();
-            	}
-        	}
-        	else {
-                logger.error("error downloading " + file.getName(), ase);
-        	}
-            return false;
+            return fetchFile(file);
         }
         catch (Exception e) {
             logger.error("error downloading " + file.getName(), e);
-            return false;
+            return null;
+        }
+    }
+    
+    /**
+     * Download the file if the local copy is not current.
+     * @return ETag of the work bucket file or null if the file isn't in the work bucket
+     * @throws Exception if the file couldn't be checked
+     */
+    protected String fetchFile(File file) throws Exception {
+        try {
+            return AwsUtils.downloadFileIfChangedGetETag(workBucketConfig.workS3BucketName, workBucketConfig.workS3BucketPrefix, file);
+        }
+        catch (AmazonServiceException ase) {
+        	if (ase.getStatusCode() != 404)
+        		throw ase;
+        	
+        	logger.warn("file not found: " + file.getName());
+        	if (file.exists()) {
+                logger.info("deleted stale file " + file);
+        		file.delete();
+        	}
+            return null;
         }
     }
     
@@ -197,7 +250,7 @@ abstract public class DataFileCache<T> implements DataCache {
         logger.info("trying to load data from " + file);
         InputStream is = new FileInputStream(file);
         if (compress)
-        	is = new GZIPInputStream(is);
+        	is = Codec.decompress(is);
         DataInputStream in = new DataInputStream(is);
         try {
             T result = deserializeData(in);
@@ -234,6 +287,31 @@ abstract public class DataFileCache<T> implements DataCache {
         return result;
     }
     
+    /**
+     * Load the data covering the interval into the cache. Queries call this before taking the read lock
+     * of publishLock so a slow download doesn't hold up publishing and the queries waiting behind it.
+     */
+    void load(Interval interval) {
+    	DateTime start = getAdjustedInterval(interval).getStart();
+    	do {
+    		try {
+    			getReadOnlyData(start);
+    		}
+    		catch (ExecutionException e) {
+    			// Reported again by the query
+    			logger.error("error loading " + dbName + " for " + start, e);
+    		}
+    		
+            if (consolidateType == ConsolidateType.hourly)
+                start = start.plusMonths(1);
+            else if (consolidateType == ConsolidateType.daily)
+                start = start.plusYears(1);
+            else
+                break;
+    	}
+    	while (start.isBefore(interval.getEnd()));
+    }
+    
     protected Interval getAdjustedInterval(Interval interval) {
     	// For hourly and daily consolidation, we need to start at first of month or year
         DateTime start = startDate;
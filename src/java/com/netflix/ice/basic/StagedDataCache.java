@@ -0,0 +1,40 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.basic;
+
+import java.util.Set;
+
+import com.netflix.ice.reader.DataCache;
+
+/**
+ * Cache that refreshes in two phases so new data from a processor run can be swapped in all at once.
+ * New data is loaded by stage() without changing what queries see, then made visible by publish().
+ */
+interface StagedDataCache extends DataCache {
+	/**
+	 * Load the new versions of the changed files without publishing them.
+	 * @param changedFiles names of the work bucket files that changed or null to check all the files
+	 * @return true if there was an error
+	 */
+	public boolean stage(Set<String> changedFiles);
+	
+	/**
+	 * Make the staged data visible to queries. Called while holding the write lock of DataFileCache.publishLock.
+	 */
+	public void publish();
+}
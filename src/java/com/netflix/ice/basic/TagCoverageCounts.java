@@ -0,0 +1,97 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.basic;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import com.netflix.ice.processor.TagCoverageMetrics;
+import com.netflix.ice.tag.Tag;
+
+/**
+ * Tag coverage totals and counts for a series held in primitive arrays so results from
+ * several data managers can be merged without allocating metrics objects per interval.
+ */
+public class TagCoverageCounts {
+	public final int[] totals;
+	public final int[][] counts; // indexed by user tag then by time interval
+
+	public TagCoverageCounts(int numUserTags, int size) {
+		totals = new int[size];
+		counts = new int[numUserTags][size];
+	}
+
+	public int size() {
+		return totals.length;
+	}
+
+	public void add(TagCoverageMetrics[] metrics) {
+		for (int i = 0; i < metrics.length && i < totals.length; i++) {
+			TagCoverageMetrics m = metrics[i];
+			if (m == null || m.getTotal() == 0)
+				continue;
+			totals[i] += m.getTotal();
+			for (int j = 0; j < counts.length; j++)
+				counts[j][i] += m.getCount(j);
+		}
+	}
+
+	public void add(TagCoverageCounts other) {
+		for (int i = 0; i < totals.length && i < other.totals.length; i++) {
+			if (other.totals[i] == 0)
+				continue;
+			totals[i] += other.totals[i];
+			for (int j = 0; j < counts.length; j++)
+				counts[j][i] += other.counts[j][i];
+		}
+	}
+
+	public double getPercentage(int userTagIndex, int i) {
+		if (totals[i] == 0)
+			return 0.0;
+		return (double) counts[userTagIndex][i] / (double) totals[i] * 100.0;
+	}
+
+	/**
+	 * Convert raw tag coverage metrics to counts.
+	 */
+	public static Map<Tag, TagCoverageCounts> fromMetrics(Map<Tag, TagCoverageMetrics[]> data, int numUserTags) {
+		Map<Tag, TagCoverageCounts> result = Maps.newHashMap();
+		for (Map.Entry<Tag, TagCoverageMetrics[]> entry: data.entrySet()) {
+			if (entry.getValue() == null)
+				continue;
+			TagCoverageCounts c = new TagCoverageCounts(numUserTags, entry.getValue().length);
+			c.add(entry.getValue());
+			result.put(entry.getKey(), c);
+		}
+		return result;
+	}
+
+	/**
+	 * Add the counts in from to the counts in to. Arrays in from may be handed over to to.
+	 */
+	public static void merge(Map<Tag, TagCoverageCounts> from, Map<Tag, TagCoverageCounts> to) {
+		for (Map.Entry<Tag, TagCoverageCounts> entry: from.entrySet()) {
+			TagCoverageCounts existing = to.get(entry.getKey());
+			if (existing == null)
+				to.put(entry.getKey(), entry.getValue());
+			else
+				existing.add(entry.getValue());
+		}
+	}
+}
@@ -35,6 +35,7 @@ import com.netflix.ice.common.TagGroup;
 import com.netflix.ice.processor.TagCoverageMetrics;
 import com.netflix.ice.reader.AggregateType;
 import com.netflix.ice.reader.DataManager;
+import com.netflix.ice.reader.GroupKeyMapper;
 import com.netflix.ice.reader.ReadOnlyTagCoverageData;
 import com.netflix.ice.reader.TagGroupManager;
 import com.netflix.ice.reader.TagLists;
@@ -105,6 +106,17 @@ public class TagCoverageDataManager extends CommonDataManager<ReadOnlyTagCoverag
         return result;
 	}
 
+	@Override
+	protected TagCoverageMetrics[] sumColumns(ReadOnlyTagCoverageData data, int from, int to) {
+		// Coverage percentages can't be ranked by total
+		return null;
+	}
+
+	@Override
+	protected double getRankValue(TagCoverageMetrics value) {
+		return 0;
+	}
+
 	@Override
 	protected boolean hasData(TagCoverageMetrics[] data) {
     	// Check for values in the data array and ignore if all zeros
@@ -126,25 +138,14 @@ public class TagCoverageDataManager extends CommonDataManager<ReadOnlyTagCoverag
     	return TagCoverageDataManager.processResult(data, groupBy, aggregate, tagKeys, userTags);
     }
     
-    /*
-     * Class to hold a single tag coverage ratio
-     */
-    private static class Ratio {
-    	public int total;
-    	public int count;
-    	
-    	Ratio(int total, int count) {
-    		this.total = total;
-    		this.count = count;
-    	}
-    	
-    	public void add(int total, int count) {
-    		this.total += total;
-    		this.count += count;
-    	}
+    static public Map<Tag, double[]> processResult(Map<Tag, TagCoverageMetrics[]> data, TagType groupBy, AggregateType aggregate, List<UserTag> tagKeys, List<String> userTags) {
+    	return processCounts(TagCoverageCounts.fromMetrics(data, userTags.size()), groupBy, aggregate, tagKeys, userTags);
     }
     
-    static public Map<Tag, double[]> processResult(Map<Tag, TagCoverageMetrics[]> data, TagType groupBy, AggregateType aggregate, List<UserTag> tagKeys, List<String> userTags) {
+    /**
+     * Convert tag coverage counts to percentages.
+     */
+    static public Map<Tag, double[]> processCounts(Map<Tag, TagCoverageCounts> data, TagType groupBy, AggregateType aggregate, List<UserTag> tagKeys, List<String> userTags) {
     	// list of tagKeys we want to export
     	List<Integer> tagKeyIndecies = Lists.newArrayList();
     	for (UserTag tagKey: tagKeys) {
@@ -155,29 +156,25 @@ public class TagCoverageDataManager extends CommonDataManager<ReadOnlyTagCoverag
     	}    	
     	
 		Map<Tag, double[]> result = Maps.newTreeMap();
-		Ratio[] aggregateCoverage = null;
+		int[] aggregateTotals = null;
+		int[] aggregateCounts = null;
 		
 		if (groupBy == null || groupBy == TagType.TagKey) {
 			// All data is under the aggregated tag
-			TagCoverageMetrics[] metricsArray = data.get(Tag.aggregated);
-			if (metricsArray == null)
+			TagCoverageCounts counts = data.get(Tag.aggregated);
+			if (counts == null)
 				return result;
 
-			if (aggregateCoverage == null) {
-				aggregateCoverage = new Ratio[metricsArray.length];
-			}
+			aggregateTotals = new int[counts.size()];
+			aggregateCounts = new int[counts.size()];
 
-			double[][] d = new double[tagKeys.size()][metricsArray.length];
+			double[][] d = new double[tagKeys.size()][counts.size()];
 			
-			for (int i = 0; i < metricsArray.length; i++) {
+			for (int i = 0; i < counts.size(); i++) {
 				for (int j = 0; j < tagKeyIndecies.size(); j++) {
-					if (metricsArray[i] != null) {
-						d[j][i] = metricsArray[i].getPercentage(tagKeyIndecies.get(j));
-						if (aggregateCoverage[i] == null)
-							aggregateCoverage[i] = new Ratio(metricsArray[i].getTotal(), metricsArray[i].getCount(j));
-						else
-							aggregateCoverage[i].add(metricsArray[i].getTotal(), metricsArray[i].getCount(j));						
-					}
+					d[j][i] = counts.getPercentage(tagKeyIndecies.get(j), i);
+					aggregateTotals[i] += counts.totals[i];
+					aggregateCounts[i] += counts.counts[j][i];
 				}
 			}
 			
@@ -195,24 +192,21 @@ public class TagCoverageDataManager extends CommonDataManager<ReadOnlyTagCoverag
 			int userTagIndex = tagKeyIndecies.get(0);
 			
 			for (Tag tag: data.keySet()) {
-				TagCoverageMetrics[] metricsArray = data.get(tag);
-				if (metricsArray == null)
+				TagCoverageCounts counts = data.get(tag);
+				if (counts == null)
 					continue;
 				
-				if (aggregateCoverage == null) {
-					aggregateCoverage = new Ratio[metricsArray.length];
+				if (aggregateTotals == null) {
+					aggregateTotals = new int[counts.size()];
+					aggregateCounts = new int[counts.size()];
 				}
 				
-				double[] d = new double[metricsArray.length];
+				double[] d = new double[counts.size()];
 				
-				for (int i = 0; i < metricsArray.length; i++) {
-					if (metricsArray[i] != null) {
-						d[i] = metricsArray[i].getPercentage(userTagIndex);
-						if (aggregateCoverage[i] == null)
-							aggregateCoverage[i] = new Ratio(metricsArray[i].getTotal(), metricsArray[i].getCount(userTagIndex));
-						else
-							aggregateCoverage[i].add(metricsArray[i].getTotal(), metricsArray[i].getCount(userTagIndex));
-					}
+				for (int i = 0; i < counts.size(); i++) {
+					d[i] = counts.getPercentage(userTagIndex, i);
+					aggregateTotals[i] += counts.totals[i];
+					aggregateCounts[i] += counts.counts[userTagIndex][i];
 				}
 				
 				// Put the data into the map
@@ -220,15 +214,11 @@ public class TagCoverageDataManager extends CommonDataManager<ReadOnlyTagCoverag
 			}
 		}
 		
-		if (!result.containsKey(Tag.aggregated) && aggregateCoverage != null) {
-			// Convert aggregated ratios to percentage
-		    double[] aggregated = new double[aggregateCoverage.length];
-		    for (int i = 0; i < aggregateCoverage.length; i++) {
-		    	if (aggregateCoverage[i] == null) {
-		    		aggregated[i] = 0;
-		    		continue;
-		    	}
-		        aggregated[i] = aggregateCoverage[i].total > 0 ? (double) aggregateCoverage[i].count / (double) aggregateCoverage[i].total * 100.0 : 0.0;
+		if (!result.containsKey(Tag.aggregated) && aggregateTotals != null) {
+			// Convert aggregated counts to percentage
+		    double[] aggregated = new double[aggregateTotals.length];
+		    for (int i = 0; i < aggregateTotals.length; i++) {
+		        aggregated[i] = aggregateTotals[i] > 0 ? (double) aggregateCounts[i] / (double) aggregateTotals[i] * 100.0 : 0.0;
 		    }
 		    result.put(Tag.aggregated, aggregated);          
 		}
@@ -237,6 +227,24 @@ public class TagCoverageDataManager extends CommonDataManager<ReadOnlyTagCoverag
 	}
     
     public Map<Tag, TagCoverageMetrics[]> getRawData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, int userTagGroupByIndex) {
-    	return getRawData(interval, tagLists, groupBy, aggregate, null, null, userTagGroupByIndex);
+    	return getRawData(interval, tagLists, groupBy, aggregate, userTagGroupByIndex, null);
+    }
+    
+    public Map<Tag, TagCoverageMetrics[]> getRawData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, int userTagGroupByIndex, GroupKeyMapper mapper) {
+    	load(interval);
+    	publishLock.readLock().lock();
+    	try {
+    		return readRawData(interval, tagLists, groupBy, aggregate, userTagGroupByIndex, mapper);
+    	}
+    	finally {
+    		publishLock.readLock().unlock();
+    	}
+    }
+    
+    /*
+     * Same as getRawData() for callers that already hold the read lock of publishLock for the whole query.
+     */
+    Map<Tag, TagCoverageMetrics[]> readRawData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, int userTagGroupByIndex, GroupKeyMapper mapper) {
+    	return getRawData(interval, tagLists, groupBy, aggregate, null, null, userTagGroupByIndex, mapper);
     }
 }
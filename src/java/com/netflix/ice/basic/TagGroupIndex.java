@@ -0,0 +1,348 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.basic;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.reader.TagFacets;
+import com.netflix.ice.reader.TagLists;
+import com.netflix.ice.reader.TagListsWithUserTags;
+import com.netflix.ice.tag.Tag;
+import com.netflix.ice.tag.TagType;
+import com.netflix.ice.tag.UserTag;
+
+/**
+ * Id based table of the tag groups for a single month with the set of tag group ids for each value of each dimension.
+ * A TagLists filter is the intersection of the sets of the listed values and the distinct values of a dimension
+ * are the values whose sets intersect the filter. Filtering matches TagLists.contains(TagGroup).
+ * <p>
+ * Most values of the operation, usage type, resource group and user tag dimensions only have a few tag groups,
+ * so a value's ids are kept as a sorted array unless a bitmap of all the tag groups would be smaller.
+ */
+class TagGroupIndex {
+	private static final TagType[] dimensions = new TagType[]{
+		TagType.Account, TagType.Region, TagType.Zone, TagType.Product, TagType.Operation, TagType.UsageType, TagType.ResourceGroup
+	};
+
+	private final TagGroup[] tagGroups;
+	private final BitSet all;
+	// Null zones and resource groups are indexed under the null key
+	private final EnumMap<TagType, Map<Tag, Ids>> values;
+	// Indexed by user tag index. Tag groups with too few user tags are in shortUserTags
+	private final List<Map<Tag, Ids>> userTags;
+	private final List<Ids> shortUserTags;
+	private final Ids withResourceGroup;
+
+	TagGroupIndex(Collection<TagGroup> tagGroups) {
+		this.tagGroups = tagGroups.toArray(new TagGroup[tagGroups.size()]);
+		this.all = new BitSet(this.tagGroups.length);
+		this.all.set(0, this.tagGroups.length);
+		this.values = new EnumMap<TagType, Map<Tag, Ids>>(TagType.class);
+		for (TagType dimension: dimensions)
+			values.put(dimension, Maps.<Tag, Ids>newHashMap());
+		this.userTags = Lists.newArrayList();
+		this.shortUserTags = Lists.newArrayList();
+		this.withResourceGroup = new Ids();
+
+		for (int id = 0; id < this.tagGroups.length; id++) {
+			TagGroup tg = this.tagGroups[id];
+			for (TagType dimension: dimensions)
+				add(values.get(dimension), getValue(tg, dimension), id);
+
+			if (tg.resourceGroup == null)
+				continue;
+
+			UserTag[] tags = tg.resourceGroup.getUserTags();
+			while (userTags.size() < tags.length) {
+				userTags.add(Maps.<Tag, Ids>newHashMap());
+				// Tag groups already seen with a resource group don't have this user tag
+				shortUserTags.add(new Ids(withResourceGroup));
+			}
+			withResourceGroup.add(id);
+			for (int i = 0; i < tags.length; i++)
+				add(userTags.get(i), tags[i], id);
+			for (int i = tags.length; i < shortUserTags.size(); i++)
+				shortUserTags.get(i).add(id);
+		}
+		
+		for (Map<Tag, Ids> map: values.values())
+			trim(map.values());
+		for (Map<Tag, Ids> map: userTags)
+			trim(map.values());
+		trim(shortUserTags);
+		withResourceGroup.trim();
+	}
+
+	private static void add(Map<Tag, Ids> map, Tag value, int id) {
+		Ids ids = map.get(value);
+		if (ids == null) {
+			ids = new Ids();
+			map.put(value, ids);
+		}
+		ids.add(id);
+	}
+	
+	private static void trim(Collection<Ids> idSets) {
+		for (Ids ids: idSets)
+			ids.trim();
+	}
+
+	private static Tag getValue(TagGroup tg, TagType dimension) {
+		switch (dimension) {
+		case Account:
+			return tg.account;
+		case Region:
+			return tg.region;
+		case Zone:
+			return tg.zone;
+		case Product:
+			return tg.product;
+		case Operation:
+			return tg.operation;
+		case UsageType:
+			return tg.usageType;
+		case ResourceGroup:
+			return tg.resourceGroup;
+		default:
+			return null;
+		}
+	}
+
+	int size() {
+		return tagGroups.length;
+	}
+
+	/**
+	 * Get the ids of the tag groups that match the tagLists.
+	 */
+	BitSet filter(TagLists tagLists) {
+		BitSet result = (BitSet) all.clone();
+		for (BitSet matches: getMatches(tagLists)) {
+			if (matches != null)
+				result.and(matches);
+		}
+		return result;
+	}
+
+	/**
+	 * Add the distinct values of each dimension and user tag to the facets. The values for a dimension
+	 * are taken from the tag groups that match the filters on all the other dimensions.
+	 */
+	void addFacets(TagLists tagLists, TagFacets facets) {
+		List<BitSet> matches = getMatches(tagLists);
+		for (int i = 0; i < dimensions.length + facets.userTags.size(); i++) {
+			BitSet filter = (BitSet) all.clone();
+			for (int j = 0; j < matches.size() && !filter.isEmpty(); j++) {
+				if (j != i && matches.get(j) != null)
+					filter.and(matches.get(j));
+			}
+			if (i < dimensions.length) {
+				Collection<? extends Tag> values = facets.get(dimensions[i]);
+				if (values != null)
+					addValues(dimensions[i], filter, values);
+			}
+			else {
+				int userTagIndex = i - dimensions.length;
+				addUserTagValues(userTagIndex, filter, facets.userTags.get(userTagIndex), null);
+			}
+		}
+	}
+
+	/*
+	 * Get the ids of the tag groups that match the tagLists for each dimension followed by each user tag.
+	 * Dimensions without a filter are null.
+	 */
+	private List<BitSet> getMatches(TagLists tagLists) {
+		List<BitSet> result = Lists.newArrayList();
+		result.add(match(TagType.Account, tagLists.accounts));
+		result.add(match(TagType.Region, tagLists.regions));
+		result.add(match(TagType.Zone, tagLists.zones));
+		result.add(match(TagType.Product, tagLists.products));
+		result.add(match(TagType.Operation, tagLists.operations));
+		result.add(match(TagType.UsageType, tagLists.usageTypes));
+		result.add(match(TagType.ResourceGroup, tagLists.resourceGroups));
+
+		if (tagLists instanceof TagListsWithUserTags) {
+			List<List<UserTag>> userTagLists = ((TagListsWithUserTags) tagLists).resourceUserTagLists;
+			for (int i = 0; userTagLists != null && i < userTagLists.size(); i++)
+				result.add(matchUserTag(i, userTagLists.get(i)));
+		}
+		return result;
+	}
+
+	private BitSet match(TagType dimension, List<? extends Tag> list) {
+		if (list == null || list.size() == 0)
+			return null;
+
+		Map<Tag, Ids> map = values.get(dimension);
+		BitSet matches = new BitSet(tagGroups.length);
+		for (Tag value: list) {
+			Ids ids = map.get(value);
+			if (ids != null)
+				ids.setIn(matches);
+		}
+		return matches;
+	}
+
+	private BitSet matchUserTag(int userTagIndex, List<UserTag> list) {
+		if (list == null || list.size() == 0)
+			return null;
+
+		// Tag groups without a resource group always pass the user tag filters
+		BitSet matches = (BitSet) all.clone();
+		withResourceGroup.clearIn(matches);
+		if (list.contains(TagListsWithUserTags.emptyTag))
+			(userTagIndex < shortUserTags.size() ? shortUserTags.get(userTagIndex) : withResourceGroup).setIn(matches);
+		if (userTagIndex < userTags.size()) {
+			for (UserTag value: list) {
+				Ids ids = userTags.get(userTagIndex).get(value);
+				if (ids != null)
+					ids.setIn(matches);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Add the distinct non-null values of the dimension for the tag groups in filter.
+	 */
+	@SuppressWarnings("unchecked")
+	<T extends Tag> void addValues(TagType dimension, BitSet filter, Collection<T> result) {
+		if (filter.isEmpty())
+			return;
+		for (Map.Entry<Tag, Ids> entry: values.get(dimension).entrySet()) {
+			if (entry.getKey() != null && entry.getValue().intersects(filter))
+				result.add((T) entry.getKey());
+		}
+	}
+
+	/**
+	 * Add the distinct values of a user tag for the tag groups in filter. Tag groups without a resource group
+	 * add emptyUserTag unless it is null. Tag groups with too few user tags are skipped.
+	 */
+	void addUserTagValues(int userTagIndex, BitSet filter, Collection<UserTag> result, UserTag emptyUserTag) {
+		if (filter.isEmpty())
+			return;
+		Ids noResourceGroup = values.get(TagType.ResourceGroup).get(null);
+		if (emptyUserTag != null && noResourceGroup != null && noResourceGroup.intersects(filter))
+			result.add(emptyUserTag);
+		if (userTagIndex >= userTags.size())
+			return;
+		for (Map.Entry<Tag, Ids> entry: userTags.get(userTagIndex).entrySet()) {
+			if (entry.getValue().intersects(filter))
+				result.add((UserTag) entry.getKey());
+		}
+	}
+	
+	/**
+	 * Approximate number of bytes used by the sets of ids, not counting the maps that hold them.
+	 */
+	long getIdBytes() {
+		long bytes = withResourceGroup.getBytes();
+		for (Map<Tag, Ids> map: values.values()) {
+			for (Ids ids: map.values())
+				bytes += ids.getBytes();
+		}
+		for (Map<Tag, Ids> map: userTags) {
+			for (Ids ids: map.values())
+				bytes += ids.getBytes();
+		}
+		for (Ids ids: shortUserTags)
+			bytes += ids.getBytes();
+		return bytes;
+	}
+	
+	/*
+	 * Set of tag group ids. Ids are added in increasing order and kept in a sorted array until trim() is called,
+	 * which switches to a bitmap if that's smaller.
+	 */
+	private static class Ids {
+		private int[] ids;
+		private int size;
+		private BitSet bits;
+		
+		Ids() {
+			ids = new int[4];
+			size = 0;
+		}
+		
+		Ids(Ids other) {
+			ids = Arrays.copyOf(other.ids, Math.max(4, other.size));
+			size = other.size;
+		}
+		
+		void add(int id) {
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+		}
+		
+		void trim() {
+			// A bitmap takes one bit per id up to the largest one in the set
+			if (size > 0 && (long) size * Integer.SIZE > ids[size - 1] + 1) {
+				bits = new BitSet(ids[size - 1] + 1);
+				for (int i = 0; i < size; i++)
+					bits.set(ids[i]);
+				ids = null;
+			}
+			else if (ids.length > size) {
+				ids = Arrays.copyOf(ids, size);
+			}
+		}
+		
+		boolean intersects(BitSet filter) {
+			if (bits != null)
+				return bits.intersects(filter);
+			for (int i = 0; i < size; i++) {
+				if (filter.get(ids[i]))
+					return true;
+			}
+			return false;
+		}
+		
+		void setIn(BitSet result) {
+			if (bits != null) {
+				result.or(bits);
+				return;
+			}
+			for (int i = 0; i < size; i++)
+				result.set(ids[i]);
+		}
+		
+		void clearIn(BitSet result) {
+			if (bits != null) {
+				result.andNot(bits);
+				return;
+			}
+			for (int i = 0; i < size; i++)
+				result.clear(ids[i]);
+		}
+		
+		long getBytes() {
+			return bits != null ? bits.size() / Byte.SIZE : (long) ids.length * Integer.SIZE / Byte.SIZE;
+		}
+	}
+}
@@ -63,9 +63,12 @@ import com.amazonaws.services.simpleemail.AmazonSimpleEmailServiceClientBuilder;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonWebServiceRequest;
 import com.amazonaws.ClientConfiguration;
+import com.amazonaws.SdkClientException;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import com.netflix.ice.tag.Region;
 
 import org.apache.commons.lang.StringUtils;
@@ -80,6 +83,10 @@ import java.io.*;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -102,6 +109,19 @@ public class AwsUtils {
             .withZone(DateTimeZone.UTC);
     public static long hourMillis = 3600000L;
 
+    // User metadata key for the MD5 digest of the work bucket files we upload
+    private static final String md5MetadataKey = "ice-md5";
+    private static final int maxPartRetries = 4;
+    private static final long maxBackoffMillis = 60 * 1000L;
+    private static long downloadPartSize = 64 * 1024 * 1024;
+    private static int downloadThreads = 1;
+    private static ExecutorService downloadPool;
+    // S3 doesn't accept parts smaller than 5MB other than the last
+    private static final int minUploadPartSize = 5 * 1024 * 1024;
+    private static int uploadPartSize = 16 * 1024 * 1024;
+    private static int uploadThreads = 4;
+    private static ExecutorService uploadPool;
+
     public static String workS3BucketRegion;
     private static AmazonS3Client s3Client;
     private static AmazonSimpleEmailServiceClient emailServiceClient;
@@ -200,6 +220,77 @@ public class AwsUtils {
         return s3Client;
     }
 
+    /**
+     * Set how large objects are downloaded. Objects larger than one part are fetched as ranges
+     * using the number of threads. One thread downloads each object with a single request.
+     *
+     * @param partSizeMB size of each range in megabytes
+     * @param threads number of ranges to fetch at once across all downloads
+     */
+    public static synchronized void setDownloadOptions(int partSizeMB, int threads) {
+        downloadPartSize = Math.max(1, partSizeMB) * 1024L * 1024L;
+        if (threads != downloadThreads && downloadPool != null) {
+            downloadPool.shutdown();
+            downloadPool = null;
+        }
+        downloadThreads = Math.max(1, threads);
+    }
+
+    private static synchronized ExecutorService getDownloadPool() {
+        if (downloadPool == null)
+            downloadPool = newDaemonPool(downloadThreads, "s3-download-");
+        return downloadPool;
+    }
+
+    /**
+     * Set how streamed uploads are split into parts.
+     *
+     * @param partSizeMB size of each part in megabytes, at least 5
+     * @param threads number of parts to upload at once across all uploads
+     */
+    public static synchronized void setUploadOptions(int partSizeMB, int threads) {
+        uploadPartSize = Math.max(minUploadPartSize, partSizeMB * 1024 * 1024);
+        if (threads != uploadThreads && uploadPool != null) {
+            uploadPool.shutdown();
+            uploadPool = null;
+        }
+        uploadThreads = Math.max(1, threads);
+    }
+
+    private static synchronized ExecutorService getUploadPool() {
+        if (uploadPool == null)
+            uploadPool = newDaemonPool(uploadThreads, "s3-upload-");
+        return uploadPool;
+    }
+
+    private static ExecutorService newDaemonPool(int threads, final String namePrefix) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final ThreadFactory factory = Executors.defaultThreadFactory();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = factory.newThread(r);
+                t.setName(namePrefix + t.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Delay before the next attempt of a failed request. The delay grows exponentially with the attempt
+     * and is randomized over the upper half of the range so concurrent retries don't hit S3 together.
+     *
+     * @param baseMillis delay for the first retry
+     * @param attempt number of attempts that have failed
+     */
+    public static long jitteredBackoff(long baseMillis, int attempt) {
+        if (baseMillis <= 0)
+            return 0;
+        long ceiling = Math.min(maxBackoffMillis, baseMillis << Math.min(Math.max(attempt - 1, 0), 16));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
     public static AmazonSimpleEmailServiceClient getAmazonSimpleEmailServiceClient() {
         if (emailServiceClient == null)
             emailServiceClient = (AmazonSimpleEmailServiceClient) AmazonSimpleEmailServiceClientBuilder.standard()
@@ -592,7 +683,90 @@ public class AwsUtils {
     }
 
     public static void upload(String bucketName, String prefix, File file) {
-        s3Client.putObject(bucketName, prefix + file.getName(), file);
+        putObject(bucketName, prefix + file.getName(), file);
+    }
+
+    public static void deleteFile(String bucketName, String fileKey) {
+        s3Client.deleteObject(bucketName, fileKey);
+    }
+
+    /**
+     * Open a stream that uploads what's written to it to S3 as it's written. Output larger than the
+     * upload part size is sent as a multipart upload with the parts uploaded in parallel. The object is
+     * written when the stream is closed and nothing is written if the stream is aborted.
+     *
+     * @param bucketName The S3 bucket name to write to.
+     * @param key        The key of the object.
+     * @return The stream. Caller must close or abort it.
+     */
+    public static MultipartOutputStream uploadStream(final String bucketName, final String key) {
+        int partSize;
+        int threads;
+        synchronized (AwsUtils.class) {
+            partSize = uploadPartSize;
+            threads = uploadThreads;
+        }
+        return new MultipartOutputStream(key, partSize, getUploadPool(), threads + 1, maxPartRetries) {
+            @Override
+            protected String initiate() {
+                return s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+            }
+
+            @Override
+            protected String uploadPart(String uploadId, int partNumber, byte[] data, int length) {
+                UploadPartRequest request = new UploadPartRequest().withBucketName(bucketName).withKey(key)
+                        .withUploadId(uploadId).withPartNumber(partNumber)
+                        .withInputStream(new ByteArrayInputStream(data, 0, length)).withPartSize(length);
+                return s3Client.uploadPart(request).getPartETag().getETag();
+            }
+
+            @Override
+            protected void complete(String uploadId, List<String> eTags, String md5) {
+                List<PartETag> parts = Lists.newArrayList();
+                for (int i = 0; i < eTags.size(); i++)
+                    parts.add(new PartETag(i + 1, eTags.get(i)));
+                s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, parts));
+                
+                // The ETag of a multipart object isn't the digest of its content and the digest isn't known when
+                // the upload starts, so copy the object onto itself to add the digest for verify().
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.addUserMetadata(md5MetadataKey, md5);
+                try {
+                    s3Client.copyObject(new CopyObjectRequest(bucketName, key, bucketName, key).withNewObjectMetadata(metadata));
+                }
+                catch (AmazonClientException e) {
+                    logger.warn("unable to add digest to " + key + ", downloads won't be verified: " + e);
+                }
+            }
+
+            @Override
+            protected void abort(String uploadId) {
+                s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            }
+
+            @Override
+            protected void put(byte[] data, int length) {
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(length);
+                metadata.addUserMetadata(md5MetadataKey, Hashing.md5().hashBytes(data, 0, length).toString());
+                s3Client.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(data, 0, length), metadata));
+            }
+        };
+    }
+
+    /*
+     * Upload the file with its MD5 digest in the user metadata so downloads can be checked even when
+     * the ETag isn't the digest of the content.
+     */
+    private static void putObject(String bucketName, String key, File file) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        try {
+            metadata.addUserMetadata(md5MetadataKey, Files.hash(file, Hashing.md5()).toString());
+        }
+        catch (IOException e) {
+            logger.warn("unable to compute digest of " + file + ", " + e);
+        }
+        s3Client.putObject(new PutObjectRequest(bucketName, key, file).withMetadata(metadata));
     }
 
     public static void upload(String bucketName, String prefix, String localDir, final String filePrefix) {
@@ -604,7 +778,7 @@ public class AwsUtils {
             }
         });
         for (File file : files)
-            s3Client.putObject(bucketName, prefix + file.getName(), file);
+            putObject(bucketName, prefix + file.getName(), file);
     }
 
     public static long getLastModified(String bucketName, String fileKey) {
@@ -618,20 +792,27 @@ public class AwsUtils {
         }
     }
 
+    /*
+     * Get a client for the bucket region and role. Clients other than the shared work bucket client
+     * must be shut down by the caller.
+     */
+    private static AmazonS3Client getS3Client(String bucketRegion, String accountId, String assumeRole, String externalId) {
+        if (!StringUtils.isEmpty(accountId) && !StringUtils.isEmpty(assumeRole)) {
+            return (AmazonS3Client) AmazonS3ClientBuilder.standard().withRegion(bucketRegion)
+                    .withCredentials(getAssumedCredentialsProvider(accountId, assumeRole, externalId))
+                    .withClientConfiguration(clientConfig).build();
+        } else if (!s3Client.getRegionName().equals(bucketRegion)) {
+            return (AmazonS3Client) AmazonS3ClientBuilder.standard().withRegion(bucketRegion)
+                    .withCredentials(awsCredentialsProvider).withClientConfiguration(clientConfig).build();
+        }
+        return s3Client;
+    }
+
     public static boolean downloadFileIfChangedSince(String bucketName, String bucketRegion, String bucketFilePrefix,
             File file, long milles, String accountId, String assumeRole, String externalId) {
-        AmazonS3Client s3Client = AwsUtils.s3Client;
+        AmazonS3Client s3Client = getS3Client(bucketRegion, accountId, assumeRole, externalId);
 
         try {
-            if (!StringUtils.isEmpty(accountId) && !StringUtils.isEmpty(assumeRole)) {
-                s3Client = (AmazonS3Client) AmazonS3ClientBuilder.standard().withRegion(bucketRegion)
-                        .withCredentials(getAssumedCredentialsProvider(accountId, assumeRole, externalId))
-                        .withClientConfiguration(clientConfig).build();
-            } else if (!s3Client.getRegionName().equals(bucketRegion)) {
-                s3Client = (AmazonS3Client) AmazonS3ClientBuilder.standard().withRegion(bucketRegion)
-                        .withCredentials(awsCredentialsProvider).withClientConfiguration(clientConfig).build();
-            }
-
             ObjectMetadata metadata = s3Client.getObjectMetadata(bucketName, bucketFilePrefix + file.getName());
             boolean download = !file.exists() || metadata.getLastModified().getTime() > milles;
 
@@ -645,6 +826,59 @@ public class AwsUtils {
         }
     }
 
+    /**
+     * Open a stream on an S3 object that reads ahead on a background thread instead of downloading
+     * the object to a local file first. The read is pinned to the ETag of the object when it was opened
+     * and resumes from the current byte offset if the transfer fails part way through.
+     *
+     * @param bucketName  The S3 bucket name to read from.
+     * @param bucketRegion The region of the bucket.
+     * @param fileKey     The key of the object.
+     * @param bufferSize  The maximum number of bytes to buffer ahead of the reader.
+     * @param maxRetries  The number of consecutive failures before the stream reports an error.
+     * @return The stream. Caller must close it.
+     */
+    public static PrefetchingInputStream openStream(final String bucketName, String bucketRegion, final String fileKey,
+            String accountId, String assumeRole, String externalId, int bufferSize, int maxRetries) {
+        final AmazonS3Client client = getS3Client(bucketRegion, accountId, assumeRole, externalId);
+        ObjectMetadata metadata;
+        try {
+            metadata = client.getObjectMetadata(bucketName, fileKey);
+        }
+        catch (RuntimeException e) {
+            if (client != s3Client)
+                client.shutdown();
+            throw e;
+        }
+        final String eTag = metadata.getETag();
+
+        PrefetchingInputStream stream = new PrefetchingInputStream(fileKey, metadata.getContentLength(), bufferSize, maxRetries, 5000L) {
+            @Override
+            protected InputStream open(long offset) throws IOException {
+                GetObjectRequest request = new GetObjectRequest(bucketName, fileKey).withMatchingETagConstraint(eTag);
+                if (offset > 0)
+                    request.setRange(offset);
+                S3Object s3Object = client.getObject(request);
+                if (s3Object == null)
+                    throw new IOException("object changed while reading " + bucketName + "/" + fileKey);
+                return s3Object.getObjectContent();
+            }
+
+            @Override
+            protected void abort(InputStream in) {
+                // Don't drain the rest of the object from the connection
+                ((S3ObjectInputStream) in).abort();
+            }
+
+            @Override
+            protected void release() {
+                if (client != s3Client)
+                    client.shutdown();
+            }
+        };
+        return stream.start();
+    }
+
     public static boolean downloadFileIfChangedSince(String bucketName, String bucketFilePrefix, File file,
             long milles) {
         ObjectMetadata metadata = s3Client.getObjectMetadata(bucketName, bucketFilePrefix + file.getName());
@@ -680,6 +914,30 @@ public class AwsUtils {
         return false;
     }
 
+    /**
+     * Download the specified file from S3 if it doesn't exist locally or the local
+     * copy is not current and return the ETag of the S3 object so that state derived
+     * from the file can be keyed by the version of the file it was built from.
+     *
+     * @param bucketName       The S3 bucket name to pull from.
+     * @param bucketFilePrefix The bucket prefix for the file
+     * @param file             The local path for the file. The filename is appended
+     *                         to the prefix to get the S3 key.
+     * @return ETag of the S3 object.
+     */
+    public static String downloadFileIfChangedGetETag(String bucketName, String bucketFilePrefix, File file) {
+        ObjectMetadata metadata = s3Client.getObjectMetadata(bucketName, bucketFilePrefix + file.getName());
+        boolean download = !file.exists() || metadata.getLastModified().getTime() > file.lastModified();
+
+        if (download) {
+            logger.info("downloadFileIfChanged " + file + " " + metadata.getLastModified().getTime() + " "
+                    + file.lastModified());
+            download(bucketName, bucketFilePrefix + file.getName(), file);
+        }
+
+        return metadata.getETag();
+    }
+
     public static boolean downloadFileIfNotExist(String bucketName, String bucketFilePrefix, File file) {
         boolean download = !file.exists();
         if (download) {
@@ -699,6 +957,13 @@ public class AwsUtils {
     }
 
     private static boolean download(AmazonS3Client s3Client, String bucketName, String fileKey, File file) {
+        if (downloadThreads > 1) {
+            ObjectMetadata metadata = s3Client.getObjectMetadata(bucketName, fileKey);
+            if (metadata.getContentLength() > downloadPartSize)
+                return downloadParts(s3Client, bucketName, fileKey, file, metadata);
+        }
+
+        int attempt = 0;
         do {
             S3Object s3Object = s3Client.getObject(bucketName, fileKey);
             InputStream input = null;
@@ -707,6 +972,7 @@ public class AwsUtils {
             long lastModified = 0;
             boolean downloaded = false;
             long size = 0;
+            attempt++;
             try {
                 input = s3Object.getObjectContent();
                 targetSize = s3Object.getObjectMetadata().getContentLength();
@@ -748,13 +1014,81 @@ public class AwsUtils {
                 if (contentLenth != size) {
                     logger.warn("size does not match contentLenth=" + contentLenth + " downloadSize=" + size
                             + "targetSize=" + targetSize + " ... re-downlaoding " + fileKey);
-                } else
+                } else if (verify(file, s3Object.getObjectMetadata()))
                     return true;
             }
             try {
-                Thread.sleep(2000L);
+                Thread.sleep(jitteredBackoff(2000L, attempt));
             } catch (Exception e) {
             }
         } while (true);
     }
+
+    /*
+     * Download the object as ranges fetched in parallel. The ranges are written to a temporary file which
+     * replaces the local file once the whole object has been downloaded and checked.
+     */
+    private static boolean downloadParts(final AmazonS3Client s3Client, final String bucketName, final String fileKey, File file, ObjectMetadata metadata) {
+        final String eTag = metadata.getETag();
+        RangedDownloader downloader = new RangedDownloader(fileKey, metadata.getContentLength(), downloadPartSize, getDownloadPool(), maxPartRetries, 1000L) {
+            @Override
+            protected InputStream open(long start, long end) throws IOException {
+                S3Object s3Object = s3Client.getObject(new GetObjectRequest(bucketName, fileKey).withRange(start, end).withMatchingETagConstraint(eTag));
+                if (s3Object == null)
+                    throw new IOException("object changed while downloading " + bucketName + "/" + fileKey);
+                return s3Object.getObjectContent();
+            }
+
+            @Override
+            protected void abort(InputStream in) {
+                // Don't drain the rest of the range from the connection
+                ((S3ObjectInputStream) in).abort();
+            }
+        };
+
+        File tmp = new File(file.getPath() + ".part");
+        try {
+            logger.info("downloading " + fileKey + " in " + downloader.getNumParts() + " parts");
+            downloader.download(tmp);
+            if (!verify(tmp, metadata))
+                throw new IOException("digest does not match");
+            if (file.exists() && !file.delete())
+                throw new IOException("unable to replace " + file);
+            if (!tmp.renameTo(file))
+                throw new IOException("unable to rename " + tmp + " to " + file);
+            file.setLastModified(metadata.getLastModified().getTime());
+            return true;
+        }
+        catch (IOException e) {
+            throw new SdkClientException("error downloading " + bucketName + "/" + fileKey + ": " + e.getMessage(), e);
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+
+    /*
+     * Check the downloaded file against the digest stored when we uploaded it or, for objects not uploaded in
+     * parts or encrypted with KMS or customer keys, against the ETag. Returns true if there's no digest to check.
+     */
+    private static boolean verify(File file, ObjectMetadata metadata) {
+        String digest = metadata.getUserMetaDataOf(md5MetadataKey);
+        String eTag = metadata.getETag();
+        if (digest == null && eTag != null && !eTag.contains("-") && metadata.getSSECustomerAlgorithm() == null
+                && !SSEAlgorithm.KMS.getAlgorithm().equals(metadata.getSSEAlgorithm()))
+            digest = eTag;
+        if (digest == null)
+            return true;
+
+        try {
+            String actual = Files.hash(file, Hashing.md5()).toString();
+            if (actual.equalsIgnoreCase(digest))
+                return true;
+            logger.warn("digest of " + file + " is " + actual + ", expected " + digest);
+        }
+        catch (IOException e) {
+            logger.error("unable to compute digest of " + file, e);
+        }
+        return false;
+    }
 }
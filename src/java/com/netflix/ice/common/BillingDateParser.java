@@ -0,0 +1,126 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+/**
+ * Parses the fixed-layout UTC timestamps found in billing report line items without going through Joda.
+ *
+ * Handles the Cost and Usage Report layout "yyyy-MM-ddTHH:mm:ssZ" and the Detailed Billing Report layouts
+ * "yyyy-MM-dd HH:mm:ss" and "yyyy/MM/dd HH:mm:ss". Anything else is handed to the Joda formatters in LineItem.
+ *
+ * A month of billing data has only a few hundred distinct timestamps, so the last value parsed and the
+ * start of the last day seen are cached. Instances are not thread safe - each LineItem owns its own parsers.
+ */
+public class BillingDateParser {
+	private static final long dayMillis = 24 * AwsUtils.hourMillis;
+	private static final int[] daysInMonth = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+	private String lastValue = null;
+	private long lastMillis;
+	private int lastDayKey = -1;
+	private long lastDayMillis;
+
+	public long parseMillis(String value) {
+		if (value == lastValue || value.equals(lastValue))
+			return lastMillis;
+
+		long millis = parse(value);
+		lastValue = value;
+		lastMillis = millis;
+		return millis;
+	}
+
+	private long parse(String value) {
+		int length = value.length();
+		boolean iso = length == 20 && value.charAt(10) == 'T' && value.charAt(19) == 'Z' && value.charAt(4) == '-' && value.charAt(7) == '-';
+		boolean dbr = length == 19 && value.charAt(10) == ' ' &&
+				((value.charAt(4) == '-' && value.charAt(7) == '-') || (value.charAt(4) == '/' && value.charAt(7) == '/'));
+
+		if ((iso || dbr) && value.charAt(13) == ':' && value.charAt(16) == ':') {
+			int year = digits(value, 0, 4);
+			int month = digits(value, 5, 2);
+			int day = digits(value, 8, 2);
+			int hour = digits(value, 11, 2);
+			int minute = digits(value, 14, 2);
+			int second = digits(value, 17, 2);
+
+			if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month) &&
+					hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+				return dayStartMillis(year, month, day) + hour * AwsUtils.hourMillis + minute * 60000L + second * 1000L;
+			}
+		}
+		return parseWithJoda(value);
+	}
+
+	private long dayStartMillis(int year, int month, int day) {
+		int dayKey = (year * 100 + month) * 100 + day;
+		if (dayKey != lastDayKey) {
+			lastDayMillis = daysFromEpoch(year, month, day) * dayMillis;
+			lastDayKey = dayKey;
+		}
+		return lastDayMillis;
+	}
+
+	/**
+	 * Fall back to the Joda formatters for anything that doesn't match one of the fixed layouts.
+	 * Malformed values throw IllegalArgumentException just as they always have.
+	 */
+	private long parseWithJoda(String value) {
+		if (value.length() > 10 && value.charAt(10) == 'T')
+			return LineItem.amazonBillingDateFormatISO.parseMillis(value);
+
+		try {
+			return LineItem.amazonBillingDateFormat.parseMillis(value);
+		}
+		catch (IllegalArgumentException e) {
+			return LineItem.amazonBillingDateFormat2.parseMillis(value);
+		}
+	}
+
+	/**
+	 * Returns the non-negative value of the digits in the specified range or -1 if any character isn't a digit.
+	 */
+	private static int digits(String value, int start, int count) {
+		int result = 0;
+		for (int i = start; i < start + count; i++) {
+			int d = value.charAt(i) - '0';
+			if (d < 0 || d > 9)
+				return -1;
+			result = result * 10 + d;
+		}
+		return result;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		if (month == 2 && (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)))
+			return 29;
+		return daysInMonth[month - 1];
+	}
+
+	/**
+	 * Number of days between 1970-01-01 and the supplied date in the proleptic Gregorian calendar.
+	 */
+	protected static long daysFromEpoch(int year, int month, int day) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+}
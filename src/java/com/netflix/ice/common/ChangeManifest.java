@@ -0,0 +1,119 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.netflix.ice.common.Config.WorkBucketConfig;
+
+/**
+ * Names of the work bucket data and tag group files rewritten when the processor archived a month.
+ * The manifest for a month is written before its lastProcessMillis file, so a reader that sees a new
+ * process time can refresh just the listed files. The manifest also records the previous process time
+ * so a reader that missed a run knows the manifest doesn't cover all of its changes.
+ */
+public class ChangeManifest {
+    public static final String dbName = "lastProcessChanges";
+
+    private final Set<String> files;
+    private long processTime;
+    private long previousProcessTime;
+
+    public ChangeManifest() {
+    	files = Collections.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+    }
+
+    public static String getFilename(DateTime month) {
+    	return dbName + "_" + AwsUtils.monthDateFormat.print(month);
+    }
+
+    public void add(String filename) {
+    	files.add(filename);
+    }
+
+    public Set<String> getFiles() {
+    	return files;
+    }
+
+    public long getProcessTime() {
+    	return processTime;
+    }
+
+    public long getPreviousProcessTime() {
+    	return previousProcessTime;
+    }
+
+    /**
+     * Write the manifest for the month and upload it to the work bucket.
+     */
+    public void archive(WorkBucketConfig workBucketConfig, DateTime month, long previousProcessTime, long processTime) throws IOException {
+    	this.previousProcessTime = previousProcessTime;
+    	this.processTime = processTime;
+    	File file = new File(workBucketConfig.localDir, getFilename(month));
+    	Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    	try {
+    		write(out);
+    	}
+    	finally {
+    		out.close();
+    	}
+    	AwsUtils.upload(workBucketConfig.workS3BucketName, workBucketConfig.workS3BucketPrefix, file);
+    }
+
+    /**
+     * Write the process times on the first line followed by a line for each file.
+     */
+    public void write(Writer out) throws IOException {
+    	out.write(previousProcessTime + "," + processTime + "\n");
+    	for (String filename: Sets.newTreeSet(files))
+    		out.write(filename + "\n");
+    }
+
+    public static ChangeManifest read(InputStream in) throws IOException {
+    	BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    	String line = reader.readLine();
+    	if (line == null)
+    		throw new IOException("empty change manifest");
+    	String[] times = line.split(",");
+    	if (times.length != 2)
+    		throw new IOException("bad change manifest header: " + line);
+
+    	ChangeManifest manifest = new ChangeManifest();
+    	manifest.previousProcessTime = Long.parseLong(times[0]);
+    	manifest.processTime = Long.parseLong(times[1]);
+    	while ((line = reader.readLine()) != null) {
+    		if (!line.isEmpty())
+    			manifest.add(line);
+    	}
+    	return manifest;
+    }
+}
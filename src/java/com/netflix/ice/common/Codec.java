@@ -0,0 +1,134 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.iq80.snappy.SnappyFramedInputStream;
+import org.iq80.snappy.SnappyFramedOutputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Compression used for the data files in the work bucket. Each format starts with its own magic number,
+ * so readers detect the codec from the file header and files keep their names whichever codec wrote them.
+ * gzip remains the default so older readers can still load the files.
+ */
+public enum Codec {
+	// Standard gzip, readable by everything
+	gzip(new byte[]{ (byte) 0x1f, (byte) 0x8b }) {
+		@Override
+		public OutputStream compress(OutputStream out) throws IOException {
+			return new GZIPOutputStream(out, bufferSize);
+		}
+
+		@Override
+		protected InputStream decompressStream(InputStream in) throws IOException {
+			return new GZIPInputStream(in, bufferSize);
+		}
+	},
+	// Framed snappy. Fast to write and read, but larger than gzip
+	snappy(new byte[]{ (byte) 0xff, 0x06, 0x00, 0x00, 's', 'N', 'a', 'P', 'p', 'Y' }) {
+		@Override
+		public OutputStream compress(OutputStream out) throws IOException {
+			return new SnappyFramedOutputStream(out);
+		}
+
+		@Override
+		protected InputStream decompressStream(InputStream in) throws IOException {
+			return new SnappyFramedInputStream(in, true);
+		}
+	},
+	// Zstandard. Smaller than gzip and faster to read
+	zstd(new byte[]{ 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd }) {
+		@Override
+		public OutputStream compress(OutputStream out) throws IOException {
+			return new BufferedOutputStream(new ZstdOutputStream(out, zstdLevel).setChecksum(true), bufferSize);
+		}
+
+		@Override
+		protected InputStream decompressStream(InputStream in) throws IOException {
+			return new BufferedInputStream(new ZstdInputStream(in), bufferSize);
+		}
+	};
+
+	private static final int bufferSize = 64 * 1024;
+	private static final int zstdLevel = 9;
+	private static final int maxMagicLength = 10;
+
+	private final byte[] magic;
+
+	private Codec(byte[] magic) {
+		this.magic = magic;
+	}
+
+	/**
+	 * Wrap the output stream so what's written to it is compressed. Closing the returned stream closes out.
+	 */
+	abstract public OutputStream compress(OutputStream out) throws IOException;
+
+	abstract protected InputStream decompressStream(InputStream in) throws IOException;
+
+	private boolean matches(byte[] header, int length) {
+		if (length < magic.length)
+			return false;
+		for (int i = 0; i < magic.length; i++) {
+			if (header[i] != magic[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Identify the codec from the first bytes of the stream without consuming them.
+	 */
+	public static Codec detect(InputStream in) throws IOException {
+		byte[] header = new byte[maxMagicLength];
+		in.mark(header.length);
+		int length = 0;
+		try {
+			int n;
+			while (length < header.length && (n = in.read(header, length, header.length - length)) >= 0)
+				length += n;
+		}
+		finally {
+			in.reset();
+		}
+		for (Codec codec: values()) {
+			if (codec.matches(header, length))
+				return codec;
+		}
+		throw new IOException("unrecognized compression format");
+	}
+
+	/**
+	 * Wrap the input stream to decompress it with whichever codec it was written with.
+	 */
+	public static InputStream decompress(InputStream in) throws IOException {
+		if (!in.markSupported())
+			in = new BufferedInputStream(in, bufferSize);
+		return detect(in).decompressStream(in);
+	}
+}
@@ -102,6 +102,8 @@ public abstract class Config {
         
         if (credentialsProvider != null)
         	AwsUtils.init(credentialsProvider, workBucketConfig.workS3BucketRegion, debugProperties.get("sdkMetrics"));        
+        AwsUtils.setDownloadOptions(Integer.parseInt(properties.getProperty(IceOptions.DOWNLOAD_PART_SIZE, "64")),
+        		Integer.parseInt(properties.getProperty(IceOptions.DOWNLOAD_THREADS, "1")));
     }
 
 	public TagCoverage getTagCoverage() {
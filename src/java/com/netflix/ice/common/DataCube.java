@@ -0,0 +1,68 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import java.util.EnumSet;
+
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.TagType;
+import com.netflix.ice.tag.UsageType;
+
+/**
+ * Pre-aggregated copies of the cost data with fewer dimensions. The processor writes each cube
+ * next to the daily, weekly and monthly cost data for all products and the reader answers a query
+ * from the smallest cube that keeps every dimension the query filters or groups by.
+ *
+ * Account, product and operation are always kept. Operations can't be collapsed to cost types
+ * because the reader excludes lent, borrowed, amortized and savings operations individually.
+ * Dropped dimensions are collapsed to a single value. Cubes are listed from smallest to largest.
+ */
+public enum DataCube {
+	accountProductOperation("apo", TagType.Account, TagType.Product, TagType.Operation),
+	accountRegionProductOperation("arpo", TagType.Account, TagType.Region, TagType.Product, TagType.Operation);
+
+	private static final String prefix = "cube_";
+	private static final UsageType collapsedUsageType = UsageType.getUsageType("", "");
+
+	// Name used in place of the product service code in the data file names
+	public final String productName;
+	private final EnumSet<TagType> dimensions;
+
+	private DataCube(String name, TagType first, TagType... rest) {
+		this.productName = prefix + name;
+		this.dimensions = EnumSet.of(first, rest);
+	}
+
+	public boolean has(TagType dimension) {
+		return dimensions.contains(dimension);
+	}
+
+	/**
+	 * Get the cube tag group that the values of tagGroup are aggregated into.
+	 */
+	public TagGroup reduce(TagGroup tagGroup) {
+		return TagGroup.getTagGroup(
+				tagGroup.account,
+				has(TagType.Region) ? tagGroup.region : Region.GLOBAL,
+				null,
+				tagGroup.product,
+				tagGroup.operation,
+				collapsedUsageType,
+				null);
+	}
+}
@@ -219,6 +219,83 @@ public class IceOptions {
      */
     public static final String PROCESSOR_THREADS = "ice.numthreads";
     
+    /**
+     * Maximum number of billing months the processor holds in memory at once. Months are still downloaded and parsed one
+     * at a time and archived in month order, but reservation, savings plan, Kubernetes and post processing of a month can overlap
+     * with parsing of the following months. Default is 1 which processes each month to completion before starting the next.
+     */
+    public static final String PROCESSOR_MONTH_PARALLELISM = "ice.processor.monthParallelism";
+    
+    /**
+     * Percentage of the maximum heap above which the processor won't start parsing another month until an in-flight month
+     * has been archived. Only used when ice.processor.monthParallelism is greater than 1. Default is 50.
+     */
+    public static final String PROCESSOR_MONTH_MEMORY_GUARD = "ice.processor.monthMemoryGuard";
+    
+    /**
+     * If true, cost and usage report files are decompressed and parsed as they are read from the billing bucket
+     * rather than downloaded to the local directory first. Default is false.
+     */
+    public static final String PROCESSOR_STREAM_REPORTS = "ice.processor.streamReports";
+    
+    /**
+     * Megabytes of each report file to read ahead of the parser when ice.processor.streamReports is true. Default is 16.
+     */
+    public static final String PROCESSOR_STREAM_BUFFER = "ice.processor.streamBuffer";
+    
+    /**
+     * Size in megabytes of the ranges fetched when downloading large objects from S3. Default is 64.
+     */
+    public static final String DOWNLOAD_PART_SIZE = "ice.download.partSize";
+    
+    /**
+     * Number of ranges to fetch from S3 at once. Objects larger than ice.download.partSize are downloaded in
+     * parallel ranges when this is greater than 1. Default is 1 which downloads each object with a single request.
+     */
+    public static final String DOWNLOAD_THREADS = "ice.download.threads";
+    
+    /**
+     * If true, the processor writes each data file to the local directory before uploading it to the work bucket.
+     * Useful for debugging. Default is false which compresses the data straight into a streamed upload.
+     */
+    public static final String PROCESSOR_ARCHIVE_LOCAL_FILES = "ice.processor.archiveLocalFiles";
+    
+    /**
+     * Size in megabytes of the parts of streamed uploads to the work bucket. Minimum and default are 5 and 16.
+     */
+    public static final String UPLOAD_PART_SIZE = "ice.upload.partSize";
+    
+    /**
+     * Number of parts of streamed uploads to send to S3 at once. Default is 4.
+     */
+    public static final String UPLOAD_THREADS = "ice.upload.threads";
+    
+    /**
+     * Compression codec for the hourly data files in the work bucket, possible values are gzip, snappy, zstd.
+     * Default is gzip. Readers detect the codec from the file header, so it can be changed at any time once
+     * all readers have been upgraded.
+     */
+    public static final String PROCESSOR_HOURLY_CODEC = "ice.processor.hourlyCodec";
+    
+    /**
+     * Compression codec for the daily, weekly and monthly data files in the work bucket, possible values are
+     * gzip, snappy, zstd. Default is gzip.
+     */
+    public static final String PROCESSOR_SUMMARY_CODEC = "ice.processor.summaryCodec";
+    
+    /**
+     * Where to save the intermediate results of processing a month after each stage so a failed run can resume
+     * from the last completed stage, possible values are none, local, workBucket. Default is none.
+     */
+    public static final String PROCESSOR_CHECKPOINTS = "ice.processor.checkpoints";
+    
+    /**
+     * Estimated size in megabytes the cost, usage and tag coverage data of a month being processed may take up
+     * on the heap before the least recently used products are spilled to memory-mapped files in the local directory.
+     * Each report processed in parallel has its own budget. Default is 0, which never spills.
+     */
+    public static final String PROCESSOR_MEMORY_BUDGET_MB = "ice.processor.memoryBudgetMB";
+    
     /**
      * default reservation period, possible values are oneyear, threeyear
      */
@@ -55,17 +55,22 @@ public class Instance {
 		this.zone = zone;
 		this.product = product;
 		this.tags = Maps.newHashMap();
-		for (String k: tags.keySet()) {
-			String v = tags.get(k);
-			if (v.contains(tagSeparator)) {
-				logger.warn("Tag " + k + "=" + v + " has a value with the tagSeparator " + tagSeparator + ". Replacing with " + tagSeparatorReplacement);
-				v = v.replace(tagSeparator, tagSeparatorReplacement);
-			}
-			this.tags.put(k, v);
-		}
+		for (String k: tags.keySet())
+			this.tags.put(k, cleanTagValue(k, tags.get(k)));
 		this.startMillis = startMillis;
 	}
 	
+	/**
+	 * Replace any tagSeparator in the tag value so the tags can be serialized as a single string.
+	 */
+	public static String cleanTagValue(String key, String value) {
+		if (value.contains(tagSeparator)) {
+			logger.warn("Tag " + key + "=" + value + " has a value with the tagSeparator " + tagSeparator + ". Replacing with " + tagSeparatorReplacement);
+			value = value.replace(tagSeparator, tagSeparatorReplacement);
+		}
+		return value;
+	}
+	
 	public Instance(String[] values, AccountService accountService, ProductService productService) throws BadZone {
         this.id = values[0];
         this.type = values[1];
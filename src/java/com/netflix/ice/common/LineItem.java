@@ -31,6 +31,8 @@ public abstract class LineItem {
     public static final DateTimeFormatter amazonBillingDateFormatISO = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ssZ").withZone(DateTimeZone.UTC);
 
     private int lineNumber = 0;
+    private final BillingDateParser startTimeParser = new BillingDateParser();
+    private final BillingDateParser endTimeParser = new BillingDateParser();
     
 	protected int accountIdIndex;
 	protected int payerAccountIdIndex;
@@ -127,21 +129,11 @@ public abstract class LineItem {
     }
 
     public long getStartMillis() {
-        try {
-            return amazonBillingDateFormat.parseMillis(items[startTimeIndex]);
-        }
-        catch (IllegalArgumentException e) {
-            return amazonBillingDateFormat2.parseMillis(items[startTimeIndex]);
-        }
+        return startTimeParser.parseMillis(items[startTimeIndex]);
     }
 
     public long getEndMillis() {
-        try {
-            return amazonBillingDateFormat.parseMillis(items[endTimeIndex]);
-        }
-        catch (IllegalArgumentException e) {
-            return amazonBillingDateFormat2.parseMillis(items[endTimeIndex]);
-        }
+        return endTimeParser.parseMillis(items[endTimeIndex]);
     }
     
     abstract public String[] getResourceTagsHeader();
@@ -0,0 +1,249 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Output stream that uploads what's written to it as the parts of a multipart upload. Each part is
+ * uploaded on the pool as soon as it fills so the upload overlaps with the writer, and at most
+ * maxPendingParts are held in memory at once. Output smaller than one part is written with a single put.
+ * The upload is completed by close() and aborted if any part fails or abort() is called. The MD5 digest of
+ * everything written is computed as it's written and passed to complete() so it can be stored with the object.
+ */
+public abstract class MultipartOutputStream extends OutputStream {
+    protected Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final String name;
+    private final int partSize;
+    private final ExecutorService pool;
+    private final int maxRetries;
+    private final Semaphore pending;
+    private final List<Future<String>> parts = Lists.newArrayList();
+
+    private byte[] buffer;
+    private int count = 0;
+    private String uploadId = null;
+    private boolean closed = false;
+    private final Hasher md5 = Hashing.md5().newHasher();
+    // First part failure, later ones are usually caused by aborting the upload
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    /**
+     * @param name name of the object for logging
+     * @param partSize size of each part
+     * @param pool threads used to upload the parts
+     * @param maxPendingParts maximum number of filled parts waiting to be uploaded
+     * @param maxRetries number of times to retry a part before failing the upload
+     */
+    public MultipartOutputStream(String name, int partSize, ExecutorService pool, int maxPendingParts, int maxRetries) {
+    	this.name = name;
+    	this.partSize = partSize;
+    	this.pool = pool;
+    	this.maxRetries = maxRetries;
+    	this.pending = new Semaphore(Math.max(1, maxPendingParts));
+    	this.buffer = new byte[partSize];
+    }
+
+    /**
+     * Start the multipart upload and return its id.
+     */
+    abstract protected String initiate() throws IOException;
+
+    /**
+     * Upload a part and return its ETag. Part numbers start at 1.
+     */
+    abstract protected String uploadPart(String uploadId, int partNumber, byte[] data, int length) throws IOException;
+
+    /**
+     * Complete the multipart upload with the ETags of the parts in order.
+     * @param md5 hex MD5 digest of the whole object
+     */
+    abstract protected void complete(String uploadId, List<String> eTags, String md5) throws IOException;
+
+    abstract protected void abort(String uploadId);
+
+    /**
+     * Write output that fits in a single part without a multipart upload.
+     */
+    abstract protected void put(byte[] data, int length) throws IOException;
+
+    @Override
+    public void write(int b) throws IOException {
+    	if (count == partSize)
+    		flushPart();
+    	buffer[count++] = (byte) b;
+    	md5.putByte((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+    	md5.putBytes(b, off, len);
+    	while (len > 0) {
+    		if (count == partSize)
+    			flushPart();
+    		int n = Math.min(len, partSize - count);
+    		System.arraycopy(b, off, buffer, count, n);
+    		count += n;
+    		off += n;
+    		len -= n;
+    	}
+    }
+
+    /*
+     * Queue the filled buffer for upload, waiting if too many parts are already pending.
+     */
+    private void flushPart() throws IOException {
+    	if (closed)
+    		throw new IOException("multipart stream for " + name + " is closed");
+    	checkFailure();
+    	if (uploadId == null)
+    		uploadId = initiate();
+
+    	try {
+    		pending.acquire();
+    	}
+    	catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new InterruptedIOException("interrupted uploading " + name);
+    	}
+    	final byte[] data = buffer;
+    	final int length = count;
+    	final int partNumber = parts.size() + 1;
+    	parts.add(pool.submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				try {
+					return uploadPartWithRetries(partNumber, data, length);
+				}
+				catch (Exception e) {
+					failure.compareAndSet(null, e);
+					throw e;
+				}
+				finally {
+					pending.release();
+				}
+			}
+    	}));
+    	buffer = new byte[partSize];
+    	count = 0;
+    }
+
+    private String uploadPartWithRetries(int partNumber, byte[] data, int length) throws Exception {
+    	for (int attempt = 1; ; attempt++) {
+    		try {
+    			return uploadPart(uploadId, partNumber, data, length);
+    		}
+    		catch (Exception e) {
+    			if (attempt > maxRetries || failure.get() != null)
+    				throw e;
+    			logger.warn("error uploading part " + partNumber + " of " + name + ", retry " + attempt + ": " + e);
+    			Thread.sleep(AwsUtils.jitteredBackoff(1000L, attempt));
+    		}
+    	}
+    }
+
+    private void checkFailure() throws IOException {
+    	Exception e = failure.get();
+    	if (e != null) {
+    		abort();
+    		throw e instanceof IOException ? (IOException) e : new IOException("error uploading " + name, e);
+    	}
+    }
+
+    /**
+     * Finish the upload. The object isn't visible until close() returns.
+     */
+    @Override
+    public void close() throws IOException {
+    	if (closed)
+    		return;
+
+    	try {
+	    	if (uploadId == null) {
+	    		put(buffer, count);
+	    	}
+	    	else {
+	    		if (count > 0)
+	    			flushPart();
+	    		List<String> eTags = Lists.newArrayList();
+	    		for (Future<String> part: parts)
+	    			eTags.add(part.get());
+	    		complete(uploadId, eTags, md5.hash().toString());
+	    		logger.info("uploaded " + name + " in " + eTags.size() + " parts");
+	    	}
+	    	closed = true;
+	    	buffer = null;
+    	}
+    	catch (ExecutionException e) {
+    		abort();
+    		Exception cause = failure.get() != null ? failure.get() : e;
+    		throw cause instanceof IOException ? (IOException) cause : new IOException("error uploading " + name, cause);
+    	}
+    	catch (InterruptedException e) {
+    		abort();
+    		Thread.currentThread().interrupt();
+    		throw new InterruptedIOException("interrupted uploading " + name);
+    	}
+    	catch (IOException e) {
+    		abort();
+    		throw e;
+    	}
+    	catch (RuntimeException e) {
+    		abort();
+    		throw e;
+    	}
+    }
+
+    /**
+     * Abandon the upload. Nothing written to the stream becomes visible.
+     */
+    public void abort() {
+    	if (closed)
+    		return;
+    	closed = true;
+    	buffer = null;
+    	for (Future<String> part: parts)
+    		part.cancel(true);
+    	if (uploadId != null) {
+    		logger.warn("aborting upload of " + name);
+    		try {
+    			abort(uploadId);
+    		}
+    		catch (RuntimeException e) {
+    			logger.error("error aborting upload of " + name, e);
+    		}
+    	}
+    }
+}
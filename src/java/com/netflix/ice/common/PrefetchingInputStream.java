@@ -0,0 +1,261 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Input stream that reads ahead from a remote object on a background thread into a bounded buffer so the
+ * network transfer overlaps with the consumer's inflate and parse. If the transfer fails part way through,
+ * the object is reopened at the offset of the first byte not yet buffered and the read continues from there.
+ */
+public abstract class PrefetchingInputStream extends InputStream {
+    protected Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final int chunkSize = 256 * 1024;
+    private static final byte[] endOfStream = new byte[0];
+
+    private final String name;
+    private final long length;
+    private final int maxRetries;
+    private final long retryDelayMillis;
+    private final BlockingQueue<byte[]> chunks;
+    private final Thread fetcher;
+    private volatile boolean closed = false;
+    private volatile IOException error = null;
+    private volatile int resumes = 0;
+
+    // Only used by the fetcher thread
+    private long fetched = 0;
+
+    // Only used by the reader
+    private byte[] chunk = null;
+    private int pos = 0;
+
+    /**
+     * @param name name of the object for logging
+     * @param length size of the object in bytes
+     * @param bufferSize maximum number of bytes to read ahead of the consumer
+     * @param maxRetries number of consecutive failed reads before giving up
+     * @param retryDelayMillis base delay for the jittered back off before reopening the object
+     */
+    public PrefetchingInputStream(String name, long length, int bufferSize, int maxRetries, long retryDelayMillis) {
+    	this.name = name;
+    	this.length = length;
+    	this.maxRetries = maxRetries;
+    	this.retryDelayMillis = retryDelayMillis;
+    	this.chunks = new ArrayBlockingQueue<byte[]>(Math.max(1, bufferSize / chunkSize));
+    	this.fetcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				fetch();
+			}
+    	}, "prefetch-" + name);
+    	this.fetcher.setDaemon(true);
+    }
+
+    /**
+     * Open the object starting at offset.
+     */
+    abstract protected InputStream open(long offset) throws IOException;
+
+    /**
+     * Called with a stream from open() that is being abandoned before its end.
+     */
+    protected void abort(InputStream in) {
+    	try {
+    		in.close();
+    	}
+    	catch (IOException e) {
+    	}
+    }
+
+    /**
+     * Called on the fetcher thread once it no longer needs to open the object.
+     */
+    protected void release() {
+    }
+
+    /**
+     * Start reading ahead. Must be called before the first read.
+     */
+    public PrefetchingInputStream start() {
+    	fetcher.start();
+    	return this;
+    }
+
+    public long getLength() {
+    	return length;
+    }
+
+    /**
+     * Number of times the object was reopened after a failed read.
+     */
+    public int getResumes() {
+    	return resumes;
+    }
+
+    /**
+     * The error that ended the transfer or null if there wasn't one.
+     */
+    public IOException getError() {
+    	return error;
+    }
+
+    private void fetch() {
+    	int failures = 0;
+    	try {
+	    	while (fetched < length && !closed) {
+	    		InputStream in = null;
+	    		boolean complete = false;
+	    		try {
+	    			in = open(fetched);
+	    			byte[] buf = new byte[chunkSize];
+	    			int n = 0;
+	    			int len;
+	    			while (!closed && (len = in.read(buf, n, buf.length - n)) >= 0) {
+	    				n += len;
+	    				if (n == buf.length) {
+	    					put(buf);
+	    					fetched += n;
+	    					failures = 0;
+	    					buf = new byte[chunkSize];
+	    					n = 0;
+	    				}
+	    			}
+	    			if (n > 0) {
+	    				put(Arrays.copyOf(buf, n));
+	    				fetched += n;
+	    			}
+	    			if (!closed && fetched < length)
+	    				throw new EOFException("premature end of " + name + " at byte " + fetched + " of " + length);
+	    			complete = true;
+	    		}
+	    		catch (InterruptedException e) {
+	    			break;
+	    		}
+	    		catch (Exception e) {
+	    			if (closed)
+	    				break;
+	    			failures++;
+	    			if (failures > maxRetries) {
+	    				error = e instanceof IOException ? (IOException) e : new IOException(e);
+	    				logger.error("giving up reading " + name + " at byte " + fetched + " of " + length + " after " + maxRetries + " retries", e);
+	    				break;
+	    			}
+	    			logger.warn("error reading " + name + " at byte " + fetched + " of " + length + ", resuming... retry " + failures + ": " + e);
+	    			resumes++;
+	    			Thread.sleep(AwsUtils.jitteredBackoff(retryDelayMillis, failures));
+	    		}
+	    		finally {
+	    			if (in != null) {
+	    				if (complete) {
+	    					try { in.close(); } catch (IOException e) {}
+	    				}
+	    				else {
+	    					abort(in);
+	    				}
+	    			}
+	    		}
+	    	}
+	    	put(endOfStream);
+    	}
+    	catch (InterruptedException e) {
+    		if (!closed && error == null)
+    			error = new InterruptedIOException("interrupted reading " + name);
+    		chunks.offer(endOfStream);
+    	}
+    	finally {
+    		release();
+    	}
+    }
+
+    private void put(byte[] chunk) throws InterruptedException {
+    	while (!closed) {
+    		if (chunks.offer(chunk, 100, TimeUnit.MILLISECONDS))
+    			return;
+    	}
+    }
+
+    /*
+     * Make sure there is an unread byte in the current chunk. Returns false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+    	if (closed)
+    		throw new IOException("prefetching stream is closed");
+    	while (chunk != endOfStream && (chunk == null || pos >= chunk.length)) {
+    		try {
+    			chunk = chunks.take();
+    			pos = 0;
+    		}
+    		catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			throw new InterruptedIOException("interrupted reading " + name);
+    		}
+    	}
+    	if (chunk == endOfStream) {
+    		if (error != null)
+    			throw error;
+    		return false;
+    	}
+    	return true;
+    }
+
+	@Override
+	public int read() throws IOException {
+		if (!fill())
+			return -1;
+		return chunk[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!fill())
+			return -1;
+		int n = Math.min(len, chunk.length - pos);
+		System.arraycopy(chunk, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return chunk == null || chunk == endOfStream ? 0 : chunk.length - pos;
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		chunks.clear();
+		fetcher.interrupt();
+	}
+}
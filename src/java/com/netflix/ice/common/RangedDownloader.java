@@ -0,0 +1,195 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Downloads an object as a set of byte ranges fetched in parallel and written into place in the local file.
+ * Each part is retried on its own with jittered back off so one slow or failed connection doesn't restart
+ * the whole transfer.
+ */
+public abstract class RangedDownloader {
+    protected Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final int bufferSize = 64 * 1024;
+
+    private final String name;
+    private final long length;
+    private final long partSize;
+    private final ExecutorService pool;
+    private final int maxRetries;
+    private final long retryDelayMillis;
+
+    /**
+     * @param name name of the object for logging
+     * @param length size of the object in bytes
+     * @param partSize size of each range
+     * @param pool threads used to fetch the parts
+     * @param maxRetries number of times to retry a part before failing the download
+     * @param retryDelayMillis base delay for the jittered back off between retries
+     */
+    public RangedDownloader(String name, long length, long partSize, ExecutorService pool, int maxRetries, long retryDelayMillis) {
+    	this.name = name;
+    	this.length = length;
+    	this.partSize = partSize;
+    	this.pool = pool;
+    	this.maxRetries = maxRetries;
+    	this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Open the range of the object from start to end inclusive.
+     */
+    abstract protected InputStream open(long start, long end) throws IOException;
+
+    /**
+     * Called with a stream from open() that is being abandoned before its end.
+     */
+    protected void abort(InputStream in) {
+    	try {
+    		in.close();
+    	}
+    	catch (IOException e) {
+    	}
+    }
+
+    public int getNumParts() {
+    	return (int) ((length + partSize - 1) / partSize);
+    }
+
+    /**
+     * Download all the parts into the file. The file is left partially written if any part fails.
+     */
+    public void download(File file) throws IOException {
+    	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    	try {
+	    	raf.setLength(length);
+	    	final FileChannel channel = raf.getChannel();
+
+	    	List<Future<Void>> futures = Lists.newArrayList();
+	    	for (long start = 0; start < length; start += partSize) {
+	    		final long partStart = start;
+	    		final long partEnd = Math.min(start + partSize, length) - 1;
+	    		futures.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						downloadPart(channel, partStart, partEnd);
+						return null;
+					}
+	    		}));
+	    	}
+
+	    	IOException error = null;
+	    	for (Future<Void> f: futures) {
+	    		try {
+	    			f.get();
+	    		}
+	    		catch (ExecutionException e) {
+	    			if (error == null) {
+	    				error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		    			// Don't bother with the rest of the parts
+		    			for (Future<Void> other: futures)
+		    				other.cancel(true);
+	    			}
+	    		}
+	    		catch (InterruptedException e) {
+	    			for (Future<Void> other: futures)
+	    				other.cancel(true);
+	    			Thread.currentThread().interrupt();
+	    			throw new InterruptedIOException("interrupted downloading " + name);
+	    		}
+	    		catch (CancellationException e) {
+	    			// cancelled after an earlier part failed
+	    		}
+	    	}
+	    	if (error != null)
+	    		throw error;
+    	}
+    	finally {
+    		raf.close();
+    	}
+    }
+
+    private void downloadPart(FileChannel channel, long start, long end) throws IOException {
+    	for (int attempt = 1; ; attempt++) {
+    		InputStream in = null;
+    		boolean complete = false;
+    		long pos = start;
+    		try {
+    			in = open(start, end);
+    			byte[] buf = new byte[bufferSize];
+    			int len;
+    			while (pos <= end && (len = in.read(buf, 0, (int) Math.min(buf.length, end + 1 - pos))) >= 0) {
+    				ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+    				while (bb.hasRemaining())
+    					pos += channel.write(bb, pos);
+    			}
+    			if (pos != end + 1)
+    				throw new EOFException("premature end of part " + start + "-" + end + " of " + name + " at byte " + pos);
+    			complete = true;
+    			return;
+    		}
+    		catch (Exception e) {
+    			if (Thread.currentThread().isInterrupted())
+    				throw new InterruptedIOException("interrupted downloading " + name);
+    			if (attempt > maxRetries) {
+    				logger.error("giving up on part " + start + "-" + end + " of " + name + " after " + maxRetries + " retries: " + e);
+    				throw e instanceof IOException ? (IOException) e : new IOException(e);
+    			}
+    			logger.warn("error downloading part " + start + "-" + end + " of " + name + " at byte " + pos + ", retry " + attempt + ": " + e);
+    		}
+    		finally {
+    			if (in != null) {
+    				if (complete) {
+    					try { in.close(); } catch (IOException e) {}
+    				}
+    				else {
+    					abort(in);
+    				}
+    			}
+    		}
+
+    		try {
+    			Thread.sleep(AwsUtils.jitteredBackoff(retryDelayMillis, attempt));
+    		}
+    		catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			throw new InterruptedIOException("interrupted downloading " + name);
+    		}
+    	}
+    }
+}
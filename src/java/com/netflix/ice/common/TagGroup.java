@@ -32,6 +32,7 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -201,6 +202,11 @@ public class TagGroup implements Comparable<TagGroup>, Serializable {
     }
 
     public static class Serializer {
+    	/**
+    	 * Marker written in place of the tag group count by serializeTagGroupList(). Legacy data files start
+    	 * with a non-negative count followed by the writeUTF encoded tag groups, so a negative value can't be mistaken for one.
+    	 */
+    	public static final int dictionaryFormatVersion = -2;
 
         public static void serializeTagGroups(DataOutput out, TreeMap<Long, Collection<TagGroup>> tagGroups) throws IOException {
             out.writeInt(tagGroups.size());
@@ -224,6 +230,167 @@ public class TagGroup implements Comparable<TagGroup>, Serializable {
             out.writeUTF(tagGroup.resourceGroup == null ? "" : tagGroup.resourceGroup.toString());
         }
         
+        /**
+         * Serialize a list of tag groups using a per-list string dictionary in the following order:<br/>
+         * 
+         * 1. Format version (int)<br/>
+         * 2. Dictionary size (varint) followed by the dictionary strings (UTF)<br/>
+         * 3. TagGroup count (varint)<br/>
+         * 4. For each TagGroup the dictionary indecies (varint) of the account id, region, zone, product service code,
+         * 		operation, usage type name and usage type unit, the number of user tags (varint, zero if no resource group)
+         * 		and the dictionary indecies of the user tags<br/>
+         */
+        public static void serializeTagGroupList(DataOutput out, Collection<TagGroup> tagGroups) throws IOException {
+        	Map<String, Integer> dictionary = Maps.newHashMap();
+        	List<String> strings = Lists.newArrayList();
+        	// Keep the empty string at index 0 so null zones and resource groups are always cheap
+        	dictionary.put("", 0);
+        	strings.add("");
+        	
+        	IntBuffer tuples = new IntBuffer(tagGroups.size() * 10);
+        	for (TagGroup tagGroup: tagGroups) {
+        		tuples.add(index(dictionary, strings, tagGroup.account.getId()));
+        		tuples.add(index(dictionary, strings, tagGroup.region.toString()));
+        		tuples.add(tagGroup.zone == null ? 0 : index(dictionary, strings, tagGroup.zone.toString()));
+        		tuples.add(index(dictionary, strings, tagGroup.product.getServiceCode()));
+        		tuples.add(index(dictionary, strings, tagGroup.operation.toString()));
+        		tuples.add(index(dictionary, strings, tagGroup.usageType.name));
+        		tuples.add(index(dictionary, strings, tagGroup.usageType.unit));
+        		if (tagGroup.resourceGroup == null || tagGroup.resourceGroup.name.isEmpty()) {
+        			tuples.add(0);
+        		}
+        		else {
+        			UserTag[] userTags = tagGroup.resourceGroup.getUserTags();
+        			tuples.add(userTags.length);
+        			for (UserTag ut: userTags)
+        				tuples.add(index(dictionary, strings, ut.name));
+        		}
+        	}
+        	
+        	out.writeInt(dictionaryFormatVersion);
+        	writeVarInt(out, strings.size());
+        	for (String s: strings)
+        		out.writeUTF(s);
+        	writeVarInt(out, tagGroups.size());
+        	for (int i = 0; i < tuples.size; i++)
+        		writeVarInt(out, tuples.values[i]);
+        }
+        
+        /**
+         * Deserialize a list of tag groups written by either serializeTagGroupList() or the legacy
+         * format of a tag group count followed by serialize() for each tag group.
+         */
+        public static List<TagGroup> deserializeTagGroupList(AccountService accountService, ProductService productService, DataInput in) throws IOException, BadZone {
+        	int header = in.readInt();
+        	if (header >= 0) {
+        		// Legacy format - header is the number of tag groups
+                List<TagGroup> keys = Lists.newArrayListWithCapacity(header);
+                for (int j = 0; j < header; j++)
+                    keys.add(deserialize(accountService, productService, in));
+                return keys;
+        	}
+        	if (header != dictionaryFormatVersion)
+        		throw new IOException("Unsupported tag group format version: " + header);
+        	
+        	String[] strings = new String[readVarInt(in)];
+        	for (int i = 0; i < strings.length; i++)
+        		strings[i] = in.readUTF();
+        	
+        	// Resolve each dictionary entry to its tag at most once per tag type
+        	Account[] accounts = new Account[strings.length];
+        	Region[] regions = new Region[strings.length];
+        	Product[] products = new Product[strings.length];
+        	Operation[] operations = new Operation[strings.length];
+        	Map<Long, UsageType> usageTypes = Maps.newHashMap();
+        	
+        	int numKeys = readVarInt(in);
+            List<TagGroup> keys = Lists.newArrayListWithCapacity(numKeys);
+            for (int j = 0; j < numKeys; j++) {
+            	int accountIndex = readVarInt(in);
+            	int regionIndex = readVarInt(in);
+            	int zoneIndex = readVarInt(in);
+            	int productIndex = readVarInt(in);
+            	int operationIndex = readVarInt(in);
+            	int usageTypeNameIndex = readVarInt(in);
+            	int usageTypeUnitIndex = readVarInt(in);
+            	int numUserTags = readVarInt(in);
+            	
+            	Account account = accounts[accountIndex];
+            	if (account == null)
+            		account = accounts[accountIndex] = accountService.getAccountById(strings[accountIndex]);
+            	Region region = regions[regionIndex];
+            	if (region == null)
+            		region = regions[regionIndex] = Region.getRegionByName(strings[regionIndex]);
+            	Zone zone = zoneIndex == 0 ? null : region.getZone(strings[zoneIndex]);
+            	Product product = products[productIndex];
+            	if (product == null)
+            		product = products[productIndex] = productService.getProductByServiceCode(strings[productIndex]);
+            	Operation operation = operations[operationIndex];
+            	if (operation == null)
+            		operation = operations[operationIndex] = Operation.deserializeOperation(strings[operationIndex]);
+            	Long usageTypeKey = ((long) usageTypeNameIndex << 32) | usageTypeUnitIndex;
+            	UsageType usageType = usageTypes.get(usageTypeKey);
+            	if (usageType == null) {
+            		usageType = UsageType.getUsageType(strings[usageTypeNameIndex], strings[usageTypeUnitIndex]);
+            		usageTypes.put(usageTypeKey, usageType);
+            	}
+            	ResourceGroup resourceGroup = null;
+            	if (numUserTags > 0) {
+            		String[] userTags = new String[numUserTags];
+            		for (int i = 0; i < numUserTags; i++)
+            			userTags[i] = strings[readVarInt(in)];
+            		resourceGroup = ResourceGroup.getResourceGroup(userTags);
+            	}
+            	keys.add(TagGroup.getTagGroup(account, region, zone, product, operation, usageType, resourceGroup));
+            }
+            return keys;
+        }
+        
+        private static int index(Map<String, Integer> dictionary, List<String> strings, String value) {
+        	Integer index = dictionary.get(value);
+        	if (index == null) {
+        		index = strings.size();
+        		dictionary.put(value, index);
+        		strings.add(value);
+        	}
+        	return index;
+        }
+        
+        public static void writeVarInt(DataOutput out, int value) throws IOException {
+        	while ((value & ~0x7F) != 0) {
+        		out.writeByte((value & 0x7F) | 0x80);
+        		value >>>= 7;
+        	}
+        	out.writeByte(value);
+        }
+        
+        public static int readVarInt(DataInput in) throws IOException {
+        	int value = 0;
+        	for (int shift = 0; shift < 32; shift += 7) {
+        		byte b = in.readByte();
+        		value |= (b & 0x7F) << shift;
+        		if ((b & 0x80) == 0)
+        			return value;
+        	}
+        	throw new IOException("Malformed varint");
+        }
+        
+        private static class IntBuffer {
+        	int[] values;
+        	int size;
+        	
+        	IntBuffer(int capacity) {
+        		values = new int[Math.max(capacity, 16)];
+        		size = 0;
+        	}
+        	
+        	void add(int value) {
+        		if (size == values.length)
+        			values = Arrays.copyOf(values, values.length * 2);
+        		values[size++] = value;
+        	}
+        }
+        
         public static void serializeCsvHeader(OutputStreamWriter out) throws IOException {
         	out.write("account,region,zone,product,operation,");
         	UsageType.serializeCsvHeader(out);
@@ -23,6 +23,7 @@ import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
 import com.amazonaws.services.ec2.model.StopInstancesRequest;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.netflix.ice.basic.BasicReservationService;
 import com.netflix.ice.common.*;
@@ -43,6 +44,10 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Class to process billing files and produce tag, usage, cost output files for reader/UI.
@@ -52,17 +57,6 @@ public class BillingFileProcessor extends Poller {
 
     private ProcessorConfig config;
     private WorkBucketConfig workBucketConfig;
-    private Long startMilli;
-    private Long endMilli;
-    /**
-     * The usageDataByProduct map holds both the usage data for each
-     * individual product that has resourceIDs (if ResourceService is enabled) and a "null"
-     * key entry for aggregated data for "all" services.
-     * i.e. the null key means "all"
-     */
-    private CostAndUsageData costAndUsageData;
-    private Instances instances;
-    
     private MonthlyReportProcessor dbrProcessor;
     private MonthlyReportProcessor cauProcessor;
     
@@ -117,46 +111,236 @@ public class BillingFileProcessor extends Poller {
         if (config.costAndUsageStartDate.isBefore(DateTime.now(DateTimeZone.UTC)))
         	reportsToProcess.putAll(cauProcessor.getReportsToProcess());        
         
-        for (DateTime dataTime: reportsToProcess.keySet()) {
-            startMilli = endMilli = dataTime.getMillis();
-            init(startMilli);
-            
-            long lastProcessed = lastProcessTime(AwsUtils.monthDateFormat.print(dataTime));
-            long processTime = new DateTime(DateTimeZone.UTC).getMillis();
+        // When processing months concurrently, reservation, savings plan, Kubernetes and post processing
+        // run on the month pool while archiving runs one month at a time in month order on the archive pool.
+        ExecutorService monthPool = null;
+        ExecutorService archivePool = null;
+        if (config.monthParallelism > 1) {
+        	logger.info("processing up to " + config.monthParallelism + " months concurrently");
+        	monthPool = Executors.newFixedThreadPool(config.monthParallelism - 1);
+        	archivePool = Executors.newSingleThreadExecutor();
+        }
+        LinkedList<Future<Void>> pendingArchives = Lists.newLinkedList();
+        
+        try {
+	        for (DateTime dataTime: reportsToProcess.keySet()) {
+	            long lastProcessed = lastProcessTime(AwsUtils.monthDateFormat.print(dataTime));
+	
+	            boolean hasTags = false;
+	            boolean hasNewFiles = false;
+	            for (MonthlyReport report: reportsToProcess.get(dataTime)) {
+	            	hasTags |= report.hasTags();
+	            	
+	                if (report.getLastModifiedMillis() < lastProcessed) {
+	                    logger.info("data has been processed. ignoring " + report.getReportKey() + "...");
+	                    continue;
+	                }
+	                hasNewFiles = true;
+	            }
+	            
+	            if (!hasNewFiles) {
+	                logger.info("data has been processed. ignoring all files at " + AwsUtils.monthDateFormat.print(dataTime));
+	                continue;
+	            }
+	            
+	            if (monthPool != null)
+	            	waitForMonths(pendingArchives);
+	            
+	            final Month month = new Month(dataTime, reportsToProcess.get(dataTime), hasTags, lastProcessed);
+	            
+	            if (!month.resume()) {
+		            // Reports are always parsed one month at a time. The report processors and the resource service
+		            // hold state for the report being parsed, and each report is already processed on a pool of threads.
+		            month.downloadAndProcessReports(lastProcessed);
+		            
+		            if (dataTime.equals(reportsToProcess.lastKey()))
+		            	month.cutData();
+		            month.checkpoint(MonthCheckpoint.Stage.parsed);
+	            }
+	            
+	            if (monthPool == null) {
+	            	month.process(month.reports.get(0).getProcessor().getReservationProcessor());
+	            	month.archive();
+	            }
+	            else {
+	            	final ReservationProcessor reservationProcessor = month.reports.get(0).getProcessor().newReservationProcessor();
+	            	final Future<Void> processed = monthPool.submit(new Callable<Void>() {
+	            		@Override
+	            		public Void call() throws Exception {
+	            			month.process(reservationProcessor);
+	            			return null;
+	            		}
+	            	});
+	            	// Archive each month only after the previous month has been archived. Summary files are shared
+	            	// between months and the weekly data for weeks that span two months is built from the daily data
+	            	// archived for the previous month.
+	            	final Future<Void> previous = pendingArchives.peekLast();
+	            	pendingArchives.add(archivePool.submit(new Callable<Void>() {
+	            		@Override
+	            		public Void call() throws Exception {
+	            			if (previous != null)
+	            				previous.get();
+	            			processed.get();
+	            			month.archive();
+	            			return null;
+	            		}
+	            	}));
+	            }
+	            wroteConfig = true;
+	        }
+	        
+	        while (!pendingArchives.isEmpty())
+	        	pendingArchives.removeFirst().get();
+        }
+        finally {
+        	if (monthPool != null) {
+        		monthPool.shutdownNow();
+        		archivePool.shutdown();
+        	}
+        }
+        
+        if (!wroteConfig) {
+        	// No reports to process. We still want to update the work bucket config in case
+        	// changes were made to the account configurations.
+            config.saveWorkBucketDataConfig();        	
+        }
 
-            boolean hasTags = false;
-            boolean hasNewFiles = false;
-            for (MonthlyReport report: reportsToProcess.get(dataTime)) {
-            	hasTags |= report.hasTags();
-            	
-                if (report.getLastModifiedMillis() < lastProcessed) {
-                    logger.info("data has been processed. ignoring " + report.getReportKey() + "...");
-                    continue;
-                }
-                hasNewFiles = true;
-            }
-            
-            if (!hasNewFiles) {
-                logger.info("data has been processed. ignoring all files at " + AwsUtils.monthDateFormat.print(dataTime));
-                continue;
-            }
-            
-            for (MonthlyReport report: reportsToProcess.get(dataTime)) {
+        logger.info("AWS usage processed.");
+    }
+    
+    /**
+     * Wait for in-flight months to finish archiving until there's room for another month
+     * and heap usage is below the memory guard.
+     */
+    private void waitForMonths(LinkedList<Future<Void>> pendingArchives) throws Exception {
+    	// Months are archived in order, so completed months are always at the head of the list
+    	while (!pendingArchives.isEmpty() && pendingArchives.getFirst().isDone())
+    		pendingArchives.removeFirst().get();
+    	
+    	while (!pendingArchives.isEmpty()) {
+    		Runtime runtime = Runtime.getRuntime();
+    		long used = runtime.totalMemory() - runtime.freeMemory();
+    		boolean lowMemory = used > runtime.maxMemory() * config.monthMemoryGuard;
+    		
+    		if (pendingArchives.size() < config.monthParallelism - 1 && !lowMemory)
+    			break;
+    		
+    		logger.info("waiting for " + pendingArchives.size() + " months to finish" + (lowMemory ? ", heap used is " + (used >> 20) + "MB" : ""));
+    		pendingArchives.removeFirst().get();
+    	}
+    }
+    
+    /**
+     * Processing state for one month of billing data.
+     */
+    private class Month {
+    	private final DateTime dataTime;
+    	private final List<MonthlyReport> reports;
+    	private final boolean hasTags;
+        private final long startMilli;
+        private long endMilli;
+        private final long processTime;
+        private final long lastProcessTime;
+        private CostAndUsageData costAndUsageData;
+        private Instances instances;
+        private final MonthCheckpoint checkpoint;
+        // Last stage completed by an earlier run
+        private MonthCheckpoint.Stage resumeStage = MonthCheckpoint.Stage.none;
+        
+        Month(DateTime dataTime, List<MonthlyReport> reports, boolean hasTags, long lastProcessTime) {
+        	this.dataTime = dataTime;
+        	this.reports = reports;
+        	this.hasTags = hasTags;
+        	this.startMilli = this.endMilli = dataTime.getMillis();
+        	this.processTime = new DateTime(DateTimeZone.UTC).getMillis();
+        	this.lastProcessTime = lastProcessTime;
+        	this.costAndUsageData = newCostAndUsageData();
+        	this.instances = newInstances();
+        	this.checkpoint = new MonthCheckpoint(workBucketConfig.localDir, workBucketConfig.workS3BucketName, workBucketConfig.workS3BucketPrefix,
+        			config.checkpoints, dataTime, reports);
+        }
+        
+        private CostAndUsageData newCostAndUsageData() {
+        	return new CostAndUsageData(startMilli, config.workBucketConfig, config.resourceService == null ? null : config.resourceService.getUserTags(),
+        			config.getTagCoverage(), config.accountService, config.productService);
+        }
+        
+        private Instances newInstances() {
+        	return new Instances(workBucketConfig.localDir, workBucketConfig.workS3BucketName, workBucketConfig.workS3BucketPrefix);
+        }
+        
+        /**
+         * Load the results of the last stage completed by an earlier run from the same reports.
+         * Returns false if there aren't any and the reports need to be parsed.
+         */
+        boolean resume() {
+        	MonthCheckpoint.Stage stage = checkpoint.getSavedStage();
+        	if (stage == MonthCheckpoint.Stage.none)
+        		return false;
+        	try {
+        		// Load into new objects so a checkpoint that fails part way doesn't leave its values
+        		// behind to be added to again when the reports are parsed
+        		CostAndUsageData loadedData = newCostAndUsageData();
+        		Instances loadedInstances = newInstances();
+        		MonthCheckpoint.Loaded loaded = checkpoint.load(loadedData, loadedInstances, config.accountService, config.productService);
+        		if (loaded.stage != stage)
+        			logger.warn("checkpoint state for " + AwsUtils.monthDateFormat.print(dataTime) + " is stage " + stage + " but the data is from stage " + loaded.stage);
+        		costAndUsageData = loadedData;
+        		instances = loadedInstances;
+        		endMilli = loaded.endMilli;
+        		resumeStage = loaded.stage;
+        		logger.info("resuming " + AwsUtils.monthDateFormat.print(dataTime) + " after stage " + resumeStage);
+        		return true;
+        	}
+        	catch (Exception e) {
+        		logger.error("unable to load checkpoint for " + AwsUtils.monthDateFormat.print(dataTime) + ", processing reports again", e);
+        		checkpoint.delete();
+        		return false;
+        	}
+        }
+        
+        void checkpoint(MonthCheckpoint.Stage stage) {
+        	try {
+        		checkpoint.save(stage, costAndUsageData, endMilli, instances);
+        	}
+        	catch (Exception e) {
+        		// Carry on without it, we just won't be able to resume from this stage
+        		logger.error("unable to save checkpoint for " + AwsUtils.monthDateFormat.print(dataTime) + " after stage " + stage, e);
+        	}
+        }
+        
+        void downloadAndProcessReports(long lastProcessed) throws Exception {
+            for (MonthlyReport report: reports) {
             	long end = report.getProcessor().downloadAndProcessReport(dataTime, report, workBucketConfig.localDir, lastProcessed, costAndUsageData, instances);
                 endMilli = Math.max(endMilli, end);
             }
-        	
-            if (dataTime.equals(reportsToProcess.lastKey())) {
-                int hours = (int) ((endMilli - startMilli)/3600000L);
-    	        String start = LineItem.amazonBillingDateFormat.print(new DateTime(startMilli));
-    	        String end = LineItem.amazonBillingDateFormat.print(new DateTime(endMilli));
+        }
+        
+        void cutData() {
+            int hours = (int) ((endMilli - startMilli)/3600000L);
+	        String start = LineItem.amazonBillingDateFormat.print(new DateTime(startMilli));
+	        String end = LineItem.amazonBillingDateFormat.print(new DateTime(endMilli));
 
-                logger.info("cut hours to " + hours + ", " + start + " to " + end);
-                costAndUsageData.cutData(hours);
-            }
-            
-            
-            
+            logger.info("cut hours to " + hours + ", " + start + " to " + end);
+            costAndUsageData.cutData(hours);
+        }
+        
+        /**
+         * Run the reservation, savings plan, Kubernetes and post processing for the month. Only touches this month's data.
+         * Stages completed by an earlier run are skipped.
+         */
+        void process(ReservationProcessor reservationProcessor) throws Exception {
+        	if (resumeStage.compareTo(MonthCheckpoint.Stage.reserved) < 0) {
+        		processReservations(reservationProcessor);
+        		checkpoint(MonthCheckpoint.Stage.reserved);
+        	}
+        	if (resumeStage.compareTo(MonthCheckpoint.Stage.postProcessed) < 0) {
+        		postProcess();
+        		checkpoint(MonthCheckpoint.Stage.postProcessed);
+        	}
+        }
+        
+        private void processReservations(ReservationProcessor reservationProcessor) throws Exception {
             /***** Debugging */
 //            ReadWriteData costData = costDataByProduct.get(null);
 //            Map<TagGroup, Double> costMap = costData.getData(0);
@@ -166,8 +350,6 @@ public class BillingFileProcessor extends Poller {
             
             // now get reservation capacity to calculate upfront and un-used cost
             
-            // Get the reservation processor from the first report
-            ReservationProcessor reservationProcessor = reportsToProcess.get(dataTime).get(0).getProcessor().getReservationProcessor();
             ReservationService reservationService = config.reservationService;
             if (costAndUsageData.hasReservations()) {
             	// Use the reservations pulled from the CUR rather than those pulled by the capacity poller from the individual accounts.
@@ -210,9 +392,11 @@ public class BillingFileProcessor extends Poller {
         	savingsPlanProcessor.process(null);
         	            
             logger.info("adding savings data for " + dataTime + "...");
-            addSavingsData(dataTime, costAndUsageData, null, config.priceListService.getPrices(dataTime, ServiceCode.AmazonEC2));
-            addSavingsData(dataTime, costAndUsageData, config.productService.getProduct(Product.Code.Ec2Instance), config.priceListService.getPrices(dataTime, ServiceCode.AmazonEC2));
-            
+            addSavingsData(costAndUsageData, null, config.priceListService.getPrices(dataTime, ServiceCode.AmazonEC2));
+            addSavingsData(costAndUsageData, config.productService.getProduct(Product.Code.Ec2Instance), config.priceListService.getPrices(dataTime, ServiceCode.AmazonEC2));
+        }
+        
+        private void postProcess() {
             try {
 	            KubernetesProcessor kubernetesProcessor = new KubernetesProcessor(config, dataTime);
 	            kubernetesProcessor.downloadAndProcessReports(costAndUsageData);
@@ -231,7 +415,12 @@ public class BillingFileProcessor extends Poller {
             	logger.error("Error post processing reports" + e);
             	e.printStackTrace();
             }
-
+        }
+        
+        /**
+         * Archive the month's data. Must be called in month order.
+         */
+        void archive() throws Exception {
             if (hasTags && config.resourceService != null)
                 config.resourceService.commit();
             
@@ -242,61 +431,45 @@ public class BillingFileProcessor extends Poller {
             costAndUsageData.archive(config.startDate, config.jsonFiles, config.priceListService.getInstanceMetrics(), config.priceListService, config.numthreads, config.hourlyData);
             
             logger.info("archiving instance data...");
-            archiveInstances();
+            instances.archive(startMilli);
             
             logger.info("done archiving " + dataTime);
             
             // Write out a new config each time we process a report. We may have added accounts or zones while processing.
             config.saveWorkBucketDataConfig();
-            wroteConfig = true;
 
+            // List the rewritten files before publishing the new process time so readers only refresh those files
+            costAndUsageData.getChanges().archive(workBucketConfig, dataTime, lastProcessTime, processTime);
             updateProcessTime(AwsUtils.monthDateFormat.print(dataTime), processTime);
+            checkpoint.delete();
         }
-        if (!wroteConfig) {
-        	// No reports to process. We still want to update the work bucket config in case
-        	// changes were made to the account configurations.
-            config.saveWorkBucketDataConfig();        	
-        }
-
-        logger.info("AWS usage processed.");
-    }
-    
-    private void addSavingsData(DateTime month, CostAndUsageData data, Product product, InstancePrices ec2Prices) throws Exception {
-    	ReadWriteData usageData = data.getUsage(product);
-    	ReadWriteData costData = data.getCost(product);
-    	
-    	double edpDiscount = config.getDiscount(startMilli);
         
-    	/*
-    	 * Run through all the spot instance usage and add savings data
-    	 */
-    	for (TagGroup tg: usageData.getTagGroups()) {
-    		if (tg.operation == ReservationOperation.spotInstances) {
-    			TagGroup savingsTag = TagGroup.getTagGroup(tg.account, tg.region, tg.zone, tg.product, ReservationOperation.spotInstanceSavings, tg.usageType, tg.resourceGroup);
-    			for (int i = 0; i < usageData.getNum(); i++) {
-    				// For each hour of usage...
-    				Double usage = usageData.get(i, tg);
-    				Double cost = costData.get(i, tg);
-    				if (usage != null && cost != null) {
-    					double onDemandRate = ec2Prices.getOnDemandRate(tg.region, tg.usageType);
-    					// Don't include the EDP discount on top of the spot savings
-    					double edpRate = onDemandRate * (1 - edpDiscount);
-    					costData.put(i, savingsTag, edpRate * usage - cost);
-    				}
-    			}
-    		}
-    	}
-    }
-    
-
-    void init(long startMilli) {
-    	costAndUsageData = new CostAndUsageData(startMilli, config.workBucketConfig, config.resourceService == null ? null : config.resourceService.getUserTags(),
-    			config.getTagCoverage(), config.accountService, config.productService);
-        instances = new Instances(workBucketConfig.localDir, workBucketConfig.workS3BucketName, workBucketConfig.workS3BucketPrefix);
-    }
-
-    private void archiveInstances() throws Exception {
-        instances.archive(startMilli); 	
+        private void addSavingsData(CostAndUsageData data, Product product, InstancePrices ec2Prices) throws Exception {
+        	ReadWriteData usageData = data.getUsage(product);
+        	ReadWriteData costData = data.getCost(product);
+        	
+        	double edpDiscount = config.getDiscount(startMilli);
+            
+        	/*
+        	 * Run through all the spot instance usage and add savings data
+        	 */
+        	for (TagGroup tg: usageData.getTagGroups()) {
+        		if (tg.operation == ReservationOperation.spotInstances) {
+        			TagGroup savingsTag = TagGroup.getTagGroup(tg.account, tg.region, tg.zone, tg.product, ReservationOperation.spotInstanceSavings, tg.usageType, tg.resourceGroup);
+        			for (int i = 0; i < usageData.getNum(); i++) {
+        				// For each hour of usage...
+        				Double usage = usageData.get(i, tg);
+        				Double cost = costData.get(i, tg);
+        				if (usage != null && cost != null) {
+        					double onDemandRate = ec2Prices.getOnDemandRate(tg.region, tg.usageType);
+        					// Don't include the EDP discount on top of the spot savings
+        					double edpRate = onDemandRate * (1 - edpDiscount);
+        					costData.put(i, savingsTag, edpRate * usage - cost);
+        				}
+        			}
+        		}
+        	}
+        }
     }
 
     private void updateLastMillis(long millis, String filename) {
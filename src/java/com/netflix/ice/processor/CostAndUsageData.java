@@ -17,11 +17,20 @@
  */
 package com.netflix.ice.processor;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -38,7 +47,9 @@ import com.google.common.collect.Maps;
 import com.netflix.ice.basic.BasicReservationService.Reservation;
 import com.netflix.ice.common.AccountService;
 import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.ChangeManifest;
 import com.netflix.ice.common.Config;
+import com.netflix.ice.common.DataCube;
 import com.netflix.ice.common.Config.WorkBucketConfig;
 import com.netflix.ice.common.ProductService;
 import com.netflix.ice.common.PurchaseOption;
@@ -53,6 +64,7 @@ import com.netflix.ice.reader.InstanceMetrics;
 import com.netflix.ice.tag.Operation;
 import com.netflix.ice.tag.Product;
 import com.netflix.ice.tag.ReservationArn;
+import com.netflix.ice.tag.Zone.BadZone;
 
 public class CostAndUsageData {
     protected Logger logger = LoggerFactory.getLogger(getClass());
@@ -68,6 +80,15 @@ public class CostAndUsageData {
     private boolean collectTagCoverageWithUserTags;
     private Map<ReservationArn, Reservation> reservations;
     private Map<String, SavingsPlan> savingsPlans;
+    // Data and tag group files uploaded by archive()
+    private final ChangeManifest changes = new ChangeManifest();
+    
+    // Estimated bytes of heap the data may use before the least recently used products are spilled
+    // to memory-mapped files in the local directory. Zero turns spilling off.
+    private static long memoryBudget = 0;
+    // Number of data accesses between checks of the memory used
+    private static final int memoryCheckInterval = 100000;
+    private long accesses = 0;
     
 	public CostAndUsageData(long startMilli, WorkBucketConfig workBucketConfig, List<String> userTags, Config.TagCoverage tagCoverage, AccountService accountService, ProductService productService) {
 		this.startMilli = startMilli;
@@ -89,12 +110,20 @@ public class CostAndUsageData {
         this.savingsPlans = Maps.newHashMap();
 	}
 	
+	public ChangeManifest getChanges() {
+		return changes;
+	}
+	
 	public long getStartMilli() {
 		return startMilli;
 	}
 	
+	static void setMemoryBudget(long bytes) {
+		memoryBudget = bytes;
+	}
+	
 	public ReadWriteData getUsage(Product product) {
-		return usageDataByProduct.get(product);
+		return access(usageDataByProduct.get(product));
 	}
 	
 	public void putUsage(Product product, ReadWriteData data) {
@@ -102,7 +131,7 @@ public class CostAndUsageData {
 	}
 	
 	public ReadWriteData getCost(Product product) {
-		return costDataByProduct.get(product);
+		return access(costDataByProduct.get(product));
 	}
 	
 	public void putCost(Product product, ReadWriteData data) {
@@ -110,7 +139,7 @@ public class CostAndUsageData {
 	}
 	
 	public ReadWriteTagCoverageData getTagCoverage(Product product) {
-		return tagCoverage.get(product);
+		return access(tagCoverage.get(product));
 	}
 	
 	public void putTagCoverage(Product product, ReadWriteTagCoverageData data) {
@@ -118,6 +147,74 @@ public class CostAndUsageData {
 	}
 	
 	
+	/*
+	 * Record the access for picking the data to spill, and check the memory used every so often.
+	 * Synchronized so threads sharing the data count every access and only one of them spills at a time.
+	 */
+	private synchronized <D extends ReadWriteGenericData<?>> D access(D data) {
+		if (memoryBudget <= 0)
+			return data;
+		if (data != null)
+			data.lastAccess = accesses;
+		if (++accesses % memoryCheckInterval == 0)
+			checkMemory();
+		return data;
+	}
+	
+	/**
+	 * Estimated bytes of heap used by all the data.
+	 */
+	long getMemorySize() {
+		long size = 0;
+		for (ReadWriteGenericData<?> data: getAllData())
+			size += data.getMemorySize();
+		return size;
+	}
+	
+	private List<ReadWriteGenericData<?>> getAllData() {
+		List<ReadWriteGenericData<?>> all = Lists.newArrayList();
+		all.addAll(usageDataByProduct.values());
+		all.addAll(costDataByProduct.values());
+		if (tagCoverage != null)
+			all.addAll(tagCoverage.values());
+		return all;
+	}
+	
+	/*
+	 * If the data is over the memory budget, spill the least recently used data until it's back under three
+	 * quarters of the budget so we don't spill again straight away. Spilled data is decoded from its file when
+	 * it's next used, so the processors don't need to know.
+	 */
+	private void checkMemory() {
+		long size = getMemorySize();
+		if (size <= memoryBudget)
+			return;
+		
+		List<ReadWriteGenericData<?>> all = getAllData();
+		Collections.sort(all, new Comparator<ReadWriteGenericData<?>>() {
+			@Override
+			public int compare(ReadWriteGenericData<?> a, ReadWriteGenericData<?> b) {
+				return Long.compare(a.lastAccess, b.lastAccess);
+			}
+		});
+		File dir = new File(workBucketConfig == null ? System.getProperty("java.io.tmpdir") : workBucketConfig.localDir);
+		long target = memoryBudget / 4 * 3;
+		int spilled = 0;
+		for (ReadWriteGenericData<?> data: all) {
+			if (size <= target)
+				break;
+			try {
+				size -= data.spill(dir);
+				spilled++;
+			}
+			catch (IOException e) {
+				logger.error("error spilling data to " + dir, e);
+				return;
+			}
+		}
+		logger.info("spilled " + spilled + " of " + all.size() + " data sets, estimated size now " + (size >> 20) + "MB");
+	}
+	
 	public void putAll(CostAndUsageData data) {
 		// Add all the data from the supplied CostAndUsageData
 		
@@ -154,6 +251,32 @@ public class CostAndUsageData {
 		savingsPlans.putAll(data.savingsPlans);
 	}
 	
+	/**
+	 * Merge the data sets into the first one by adding pairs of them together on the pool until only the first is left.
+	 */
+	static void merge(List<CostAndUsageData> data, ExecutorService pool) throws InterruptedException, ExecutionException {
+		while (data.size() > 1) {
+			List<Future<CostAndUsageData>> merged = Lists.newArrayList();
+			for (int i = 0; i + 1 < data.size(); i += 2) {
+				final CostAndUsageData dest = data.get(i);
+				final CostAndUsageData src = data.get(i + 1);
+				merged.add(pool.submit(new Callable<CostAndUsageData>() {
+					@Override
+					public CostAndUsageData call() {
+						dest.putAll(src);
+						return dest;
+					}
+				}));
+			}
+			List<CostAndUsageData> next = Lists.newArrayList();
+			for (Future<CostAndUsageData> f: merged)
+				next.add(f.get());
+			if (data.size() % 2 == 1)
+				next.add(data.get(data.size() - 1));
+			data = next;
+		}
+	}
+	
     public void cutData(int hours) {
         for (ReadWriteData data: usageDataByProduct.values()) {
             data.cutData(hours);
@@ -206,10 +329,112 @@ public class CostAndUsageData {
     	return savingsPlans != null && savingsPlans.size() > 0;
     }
     
+    /**
+     * Write all the data, reservations and savings plans for a processing checkpoint.
+     */
+    void writeCheckpoint(DataOutput out) throws IOException {
+    	writeCheckpoint(out, usageDataByProduct);
+    	writeCheckpoint(out, costDataByProduct);
+    	out.writeBoolean(tagCoverage != null);
+    	if (tagCoverage != null)
+    		writeCheckpoint(out, tagCoverage);
+    	
+    	out.writeInt(reservations.size());
+    	for (Reservation r: reservations.values()) {
+    		TagGroup.Serializer.serialize(out, r.tagGroup);
+    		out.writeUTF(r.tagGroup.arn == null ? "" : r.tagGroup.arn.name);
+    		out.writeInt(r.count);
+    		out.writeLong(r.start);
+    		out.writeLong(r.end);
+    		out.writeUTF(r.purchaseOption.name());
+    		out.writeDouble(r.hourlyFixedPrice);
+    		out.writeDouble(r.usagePrice);
+    	}
+    	
+    	out.writeInt(savingsPlans.size());
+    	for (SavingsPlan plan: savingsPlans.values()) {
+    		out.writeUTF(plan.arn.name);
+    		out.writeUTF(plan.paymentOption.name());
+    		out.writeDouble(plan.hourlyRecurringFee);
+    		out.writeDouble(plan.hourlyAmortization);
+    	}
+    }
+    
+    private void writeCheckpoint(DataOutput out, Map<Product, ? extends ReadWriteGenericData<?>> dataByProduct) throws IOException {
+    	out.writeInt(dataByProduct.size());
+    	for (Entry<Product, ? extends ReadWriteGenericData<?>> entry: dataByProduct.entrySet()) {
+    		out.writeUTF(entry.getKey() == null ? "" : entry.getKey().getServiceCode());
+    		entry.getValue().serializeCheckpoint(out);
+    	}
+    }
+    
+    /**
+     * Replace all the data, reservations and savings plans with those from a processing checkpoint.
+     */
+    void readCheckpoint(DataInput in) throws IOException, BadZone {
+    	usageDataByProduct = Maps.newHashMap();
+    	int num = in.readInt();
+    	for (int i = 0; i < num; i++) {
+    		Product product = readProduct(in);
+    		ReadWriteData data = new ReadWriteData();
+    		data.deserializeCheckpoint(accountService, productService, in);
+    		usageDataByProduct.put(product, data);
+    	}
+    	costDataByProduct = Maps.newHashMap();
+    	num = in.readInt();
+    	for (int i = 0; i < num; i++) {
+    		Product product = readProduct(in);
+    		ReadWriteData data = new ReadWriteData();
+    		data.deserializeCheckpoint(accountService, productService, in);
+    		costDataByProduct.put(product, data);
+    	}
+    	if (in.readBoolean()) {
+    		Map<Product, ReadWriteTagCoverageData> coverage = Maps.newHashMap();
+        	num = in.readInt();
+        	for (int i = 0; i < num; i++) {
+        		Product product = readProduct(in);
+        		ReadWriteTagCoverageData data = new ReadWriteTagCoverageData(userTags == null ? 0 : userTags.size());
+        		data.deserializeCheckpoint(accountService, productService, in);
+        		coverage.put(product, data);
+        	}
+        	// Only keep it if we're still collecting tag coverage
+        	if (tagCoverage != null)
+        		tagCoverage = coverage;
+    	}
+    	
+    	reservations = Maps.newHashMap();
+    	num = in.readInt();
+    	for (int i = 0; i < num; i++) {
+    		TagGroup tg = TagGroup.Serializer.deserialize(accountService, productService, in);
+    		String arn = in.readUTF();
+    		TagGroupRI tagGroup = TagGroupRI.get(tg.account, tg.region, tg.zone, tg.product, tg.operation, tg.usageType, tg.resourceGroup, arn.isEmpty() ? null : ReservationArn.get(arn));
+    		addReservation(new Reservation(tagGroup, in.readInt(), in.readLong(), in.readLong(), PurchaseOption.valueOf(in.readUTF()), in.readDouble(), in.readDouble()));
+    	}
+    	
+    	savingsPlans = Maps.newHashMap();
+    	num = in.readInt();
+    	for (int i = 0; i < num; i++) {
+    		String arn = in.readUTF();
+    		savingsPlans.put(arn, new SavingsPlan(arn, PurchaseOption.valueOf(in.readUTF()), in.readDouble(), in.readDouble()));
+    	}
+    }
+    
+    private Product readProduct(DataInput in) throws IOException {
+    	String serviceCode = in.readUTF();
+    	return serviceCode.isEmpty() ? null : productService.getProductByServiceCode(serviceCode);
+    }
+    
     /**
      * Add an entry to the tag coverage statistics for the given TagGroup
      */
     public void addTagCoverage(Product product, int index, TagGroup tagGroup, boolean[] userTagCoverage) {
+    	addTagCoverage(product, new int[]{ index }, tagGroup, userTagCoverage);
+    }
+    
+    /**
+     * Add an entry to the tag coverage statistics for the given TagGroup in each of the supplied hours
+     */
+    public void addTagCoverage(Product product, int[] indexes, TagGroup tagGroup, boolean[] userTagCoverage) {
     	if (tagCoverage == null || !tagGroup.product.enableTagCoverage()) {
     		return;
     	}
@@ -218,13 +443,13 @@ public class CostAndUsageData {
     		return;
     	}
     	
-    	ReadWriteTagCoverageData data = tagCoverage.get(product);
+    	ReadWriteTagCoverageData data = access(tagCoverage.get(product));
     	if (data == null) {
     		data = new ReadWriteTagCoverageData(userTags == null ? 0 : userTags.size());
     		tagCoverage.put(product, data);
     	}
     	
-    	data.put(index, tagGroup, TagCoverageMetrics.add(data.get(index, tagGroup), userTagCoverage));
+    	data.add(indexes, tagGroup, userTagCoverage);
     }
     
     class Status {
@@ -268,8 +493,8 @@ public class CostAndUsageData {
         archiveHourly(usageDataByProduct, "usage_", archiveHourlyData, pool, futures);
         archiveHourly(costDataByProduct, "cost_", archiveHourlyData, pool, futures);  
     
-        archiveSummary(startDate, usageDataByProduct, "usage_", pool, futures);
-        archiveSummary(startDate, costDataByProduct, "cost_", pool, futures);
+        archiveSummary(startDate, usageDataByProduct, "usage_", false, pool, futures);
+        archiveSummary(startDate, costDataByProduct, "cost_", true, pool, futures);
         archiveSummaryTagCoverage(startDate, pool, futures);
 
 		// Wait for completion
@@ -342,7 +567,7 @@ public class CostAndUsageData {
     		public Status call() {
     			String name = product == null ? "all" : product.getServiceCode();
     			try {
-	                TagGroupWriter writer = new TagGroupWriter(name, true, workBucketConfig, accountService, productService);
+	                TagGroupWriter writer = new TagGroupWriter(name, true, workBucketConfig, accountService, productService, changes);
 	                writer.archive(startMilli, tagGroups);
     			}
     			catch (Exception e) {
@@ -387,6 +612,7 @@ public class CostAndUsageData {
     		public Status call() {
     			try {
 	                DataWriter writer = getDataWriter(name, data, false);
+	                writer.setHourly();
 	                writer.archive(archiveHourlyData ? null : new RiSpTagGroupFilter());
 	                writer.delete(); // delete local copy to save disk space since we don't need it anymore
     			}
@@ -406,7 +632,7 @@ public class CostAndUsageData {
     }
 
 
-    private void archiveSummary(DateTime startDate, Map<Product, ReadWriteData> dataMap, String prefix,
+    private void archiveSummary(DateTime startDate, Map<Product, ReadWriteData> dataMap, String prefix, boolean cubes,
     		ExecutorService pool, List<Future<Status>> futures) {
 
         DateTime monthDateTime = new DateTime(startMilli, DateTimeZone.UTC);
@@ -415,6 +641,8 @@ public class CostAndUsageData {
         // don't like to have it last with other threads idle.
         ReadWriteData data = dataMap.get(null);
         futures.add(archiveSummaryProductFuture(monthDateTime, startDate, "all", data, prefix, pool));
+        if (cubes)
+        	futures.add(archiveCubesFuture(monthDateTime, startDate, data, prefix, pool));
                 
         for (Product product: dataMap.keySet()) {
         	if (product == null)
@@ -469,7 +697,7 @@ public class CostAndUsageData {
     }
     
     protected DataWriter getDataWriter(String name, ReadWriteDataSerializer data, boolean load) throws Exception {
-        return new DataWriter(name, data, load, workBucketConfig, accountService, productService);
+        return new DataWriter(name, data, load, workBucketConfig, accountService, productService, changes);
     }
     
     protected void archiveSummaryProduct(DateTime monthDateTime, DateTime startDate, String prodName, ReadWriteData data, String prefix, Collection<TagGroup> tagGroups) throws Exception {
@@ -570,6 +798,73 @@ public class CostAndUsageData {
         });
     }
     
+    /**
+     * Aggregate the hourly data into the tag groups of the cube.
+     */
+    protected ReadWriteData getCubeData(ReadWriteData data, DataCube cube) {
+    	return getCubeData(data, EnumSet.of(cube)).get(cube);
+    }
+    
+    /**
+     * Aggregate the hourly data into the tag groups of each of the cubes. Each hour is read once for all the cubes,
+     * so hours in a spill file are only decoded once.
+     */
+    protected Map<DataCube, ReadWriteData> getCubeData(ReadWriteData data, Collection<DataCube> cubes) {
+    	List<DataCube> cubeList = Lists.newArrayList(cubes);
+    	List<Map<TagGroup, TagGroup>> cubeTagGroups = Lists.newArrayList();
+    	List<List<Map<TagGroup, Double>>> hourly = Lists.newArrayList();
+    	for (DataCube cube: cubeList) {
+	    	Map<TagGroup, TagGroup> reduced = Maps.newHashMap();
+	    	for (TagGroup tagGroup: data.getTagGroups())
+	    		reduced.put(tagGroup, cube.reduce(tagGroup));
+	    	cubeTagGroups.add(reduced);
+	    	hourly.add(Lists.<Map<TagGroup, Double>>newArrayList());
+    	}
+    	
+        for (int hour = 0; hour < data.getNum(); hour++) {
+        	Map<TagGroup, Double> map = data.getData(hour);
+        	for (int c = 0; c < cubeList.size(); c++) {
+        		ReadWriteData.getCreateData(hourly.get(c), hour);
+	            for (Entry<TagGroup, Double> entry: map.entrySet()) {
+	            	Double v = entry.getValue();
+	                if (v != null && v != 0)
+	                	addValue(hourly.get(c), hour, cubeTagGroups.get(c).get(entry.getKey()), v);
+	            }
+        	}
+        }
+        
+        Map<DataCube, ReadWriteData> result = new EnumMap<DataCube, ReadWriteData>(DataCube.class);
+        for (int c = 0; c < cubeList.size(); c++) {
+	        ReadWriteData cubeData = new ReadWriteData();
+	        cubeData.setData(hourly.get(c), 0);
+	        result.put(cubeList.get(c), cubeData);
+        }
+        return result;
+    }
+    
+    private Future<Status> archiveCubesFuture(final DateTime monthDateTime, final DateTime startDate,
+    		final ReadWriteData data, final String prefix, ExecutorService pool) {
+    	return pool.submit(new Callable<Status>() {
+    		@Override
+    		public Status call() {
+    			String name = prefix + "<interval>_cube_*";
+    			try {
+    				Map<DataCube, ReadWriteData> cubes = getCubeData(data, EnumSet.allOf(DataCube.class));
+    				for (DataCube cube: cubes.keySet()) {
+    					name = prefix + "<interval>_" + cube.productName;
+    					ReadWriteData cubeData = cubes.get(cube);
+    					archiveSummaryProduct(monthDateTime, startDate, cube.productName, cubeData, prefix, cubeData.getTagGroups());
+    				}
+    			}
+    			catch (Exception e) {
+    				e.printStackTrace();
+    				return new Status(name, e);
+    			}
+				return new Status(prefix + "<interval>_cube_*");
+    		}
+        });
+    }
+    
     private void addTagCoverageValue(List<Map<TagGroup, TagCoverageMetrics>> list, int index, TagGroup tagGroup, TagCoverageMetrics v) {
         Map<TagGroup, TagCoverageMetrics> map = ReadWriteTagCoverageData.getCreateData(list, index);
         TagCoverageMetrics existedV = map.get(tagGroup);
@@ -200,4 +200,12 @@ public class CostAndUsageReport extends MonthlyReport {
 	public String[] getReportKeys() {
 		return manifest.reportKeys;
 	}
+
+	/**
+	 * Every delivery of the report for a month has a new assembly id.
+	 */
+	@Override
+	public String getRevision() {
+		return manifest == null || manifest.assemblyId == null ? super.getRevision() : getReportKey() + "@" + manifest.assemblyId;
+	}
 }
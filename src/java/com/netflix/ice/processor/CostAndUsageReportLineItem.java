@@ -226,16 +226,6 @@ public class CostAndUsageReportLineItem extends LineItem {
     	return items[costIndex];
     }
 
-    @Override
-    public long getStartMillis() {
-        return amazonBillingDateFormatISO.parseMillis(items[startTimeIndex]);
-    }
-
-    @Override
-    public long getEndMillis() {
-        return amazonBillingDateFormatISO.parseMillis(items[endTimeIndex]);
-    }
-    
     @Override
     public String getUsageType() {
     	String purchaseOption = getPurchaseOption();
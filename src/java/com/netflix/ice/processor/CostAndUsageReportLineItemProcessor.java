@@ -19,11 +19,11 @@ package com.netflix.ice.processor;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
-import org.joda.time.Interval;
 
 import com.netflix.ice.basic.BasicLineItemProcessor;
 import com.netflix.ice.basic.BasicReservationService.Reservation;
 import com.netflix.ice.common.AccountService;
+import com.netflix.ice.common.AwsUtils;
 import com.netflix.ice.common.LineItem;
 import com.netflix.ice.common.LineItem.BillType;
 import com.netflix.ice.common.LineItem.LineItemType;
@@ -62,7 +62,7 @@ public class CostAndUsageReportLineItemProcessor extends BasicLineItemProcessor
 	}
    
 	@Override
-    protected boolean ignore(String fileName, DateTime reportStart, DateTime reportModTime, String root, Interval usageInterval, LineItem lineItem) {    	
+    protected boolean ignore(String fileName, long reportStartMilli, long reportModMilli, String root, long usageStartMilli, long usageEndMilli, LineItem lineItem) {    	
     	BillType billType = lineItem.getBillType();
     	if (billType == BillType.Purchase || billType == BillType.Refund) {
             Product product = productService.getProduct(lineItem.getProduct(), lineItem.getProductServiceCode());
@@ -82,7 +82,7 @@ public class CostAndUsageReportLineItemProcessor extends BasicLineItemProcessor
     		return true;
     	}
     	
-    	if (lineItem.getLineItemType() == LineItemType.SavingsPlanRecurringFee && usageInterval.getStartMillis() >= reportModTime.getMillis()) {
+    	if (lineItem.getLineItemType() == LineItemType.SavingsPlanRecurringFee && usageStartMilli >= reportModMilli) {
     		// Don't show unused recurring fees for future hours in the month.
     		return true;
     	}        
@@ -90,7 +90,7 @@ public class CostAndUsageReportLineItemProcessor extends BasicLineItemProcessor
     	if (lit == LineItemType.Tax && Double.parseDouble(lineItem.getCost()) == 0)
     		return true;
     	
-    	return super.ignore(fileName, reportStart, reportModTime, root, usageInterval, lineItem);
+    	return super.ignore(fileName, reportStartMilli, reportModMilli, root, usageStartMilli, usageEndMilli, lineItem);
     }
 
 	@Override
@@ -342,13 +342,15 @@ public class CostAndUsageReportLineItemProcessor extends BasicLineItemProcessor
 
             if (resourceService != null) {
                 addHourData(fileName, lineItem, lineItemType, monthly, resourceTagGroup, reservationUsage, reservationArn, usageValue, costValue, edpDiscount, usageDataOfProduct, costDataOfProduct, i, amort, publicOnDemandCost, startMilli);
-                
-                // Collect statistics on tag coverage
-            	boolean[] userTagCoverage = resourceService.getUserTagCoverage(lineItem);
-            	costAndUsageData.addTagCoverage(null, i, tagGroup, userTagCoverage);
-            	costAndUsageData.addTagCoverage(product, i, resourceTagGroup, userTagCoverage);
             }
         }
+        
+        if (resourceService != null) {
+            // Collect statistics on tag coverage. Coverage is a property of the line item, so evaluate it once for all hours.
+        	boolean[] userTagCoverage = resourceService.getUserTagCoverage(lineItem);
+        	costAndUsageData.addTagCoverage(null, indexes, tagGroup, userTagCoverage);
+        	costAndUsageData.addTagCoverage(product, indexes, resourceTagGroup, userTagCoverage);
+        }
     }
 	
 	private void addAmortizationAndSavings(String fileName, TagGroup tagGroup, ReservationArn reservationArn, ReadWriteData costData, int hour, Product product,
@@ -389,13 +391,13 @@ public class CostAndUsageReportLineItemProcessor extends BasicLineItemProcessor
 	}		
 	
 	@Override
-    protected Result getResult(LineItem lineItem, DateTime reportStart, DateTime reportModTime, TagGroup tg, boolean processDelayed, boolean reservationUsage, double costValue) {        
+    protected Result getResult(LineItem lineItem, long reportStartMilli, long reportModMilli, TagGroup tg, boolean processDelayed, boolean reservationUsage, double costValue) {        
         switch (lineItem.getLineItemType()) {
         case RIFee:
             // Monthly recurring fees for EC2, RDS, and Redshift reserved instances
         	// Prior to Jan 1, 2018 we have to get cost from the RIFee record, so process as Monthly cost.
         	// As of Jan 1, 2018, we use the recurring fee and amortization values from DiscountedUsage line items.
-        	if (reportStart.getMillis() >= jan1_2018) {
+        	if (reportStartMilli >= jan1_2018) {
 	            // We use the RIFee line items to extract the reservation info
 		        return processDelayed ? Result.ignore : Result.delay;
         	}
@@ -407,7 +409,7 @@ public class CostAndUsageReportLineItemProcessor extends BasicLineItemProcessor
         	
         case SavingsPlanRecurringFee:
         	// If within a day of the report mod date, delay and truncate, else let it through.
-        	if (!processDelayed && lineItem.getStartMillis() < reportModTime.minusDays(1).getMillis())
+        	if (!processDelayed && lineItem.getStartMillis() < reportModMilli - 24 * AwsUtils.hourMillis)
         			return Result.hourly;
 
         	return processDelayed ? Result.hourlyTruncate : Result.delay;
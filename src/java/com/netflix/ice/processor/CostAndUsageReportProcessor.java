@@ -48,6 +48,7 @@ import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.PrefetchingInputStream;
 
 public class CostAndUsageReportProcessor implements MonthlyReportProcessor {
     protected Logger logger = LoggerFactory.getLogger(getClass());
@@ -55,12 +56,15 @@ public class CostAndUsageReportProcessor implements MonthlyReportProcessor {
     private ReservationProcessor reservationProcessor = null;
     private LineItemProcessor lineItemProcessor;
     private static int MAX_DOWNLOAD_RETRIES = 4;
+    // Fewer delayed items than this are processed on the calling thread rather than in shards
+    private static final int minDelayedItemsPerShard = 10000;
 
     private Instances instances;
     private long startMilli;
     private long reportMilli;
 
 	private final ExecutorService pool;
+	private final int numThreads;
     private volatile boolean aborting;
 
 	// The following two keys can be added to ice.properties for debugging purposes.
@@ -76,13 +80,10 @@ public class CostAndUsageReportProcessor implements MonthlyReportProcessor {
 
 	public CostAndUsageReportProcessor(ProcessorConfig config) throws IOException {
 		this.config = config;
-		this.pool = Executors.newFixedThreadPool(config == null ? 5 : config.numthreads);
+		this.numThreads = config == null ? 5 : config.numthreads;
+		this.pool = Executors.newFixedThreadPool(numThreads);
 		if (config != null) {
-	        reservationProcessor = new CostAndUsageReservationProcessor(
-					config.accountService.getReservationAccounts().keySet(),
-					config.productService,
-					config.priceListService);
-	        reservationProcessor.setDebugProperties(config.debugProperties);
+	        reservationProcessor = newReservationProcessor();
 	        lineItemProcessor = new CostAndUsageReportLineItemProcessor(config.accountService, config.productService, config.reservationService, config.resourceService);
 		}
 	}
@@ -204,6 +205,8 @@ public class CostAndUsageReportProcessor implements MonthlyReportProcessor {
 		        String fileKey = report.getS3ObjectSummary().getBucketName() + "/" + prefix + file.getName();
 		        
 		        try {
+		        	if (config.streamReports)
+		        		return streamAndProcessOneFile(report, prefix + filename, edpDiscount);
 			        
 			        // We delete files now once processed, so if it already exists it's probably not complete, so delete it
 			        if (file.exists()) {
@@ -227,8 +230,8 @@ public class CostAndUsageReportProcessor implements MonthlyReportProcessor {
 				        	logger.error("Error trying to download " + fileKey + ": " + e);
 				        	e.printStackTrace();
 				        	error = e;
-					        // Sleep for a while with some exponential back off
-					        Thread.sleep(5*1000 * retryCount * retryCount);
+					        // Sleep for a while with some jittered exponential back off
+					        Thread.sleep(AwsUtils.jitteredBackoff(5000L, retryCount));
 				        }
 			        }
 			        if (error != null)
@@ -262,6 +265,39 @@ public class CostAndUsageReportProcessor implements MonthlyReportProcessor {
 		});
 	}
 	
+	/*
+	 * Decompress and parse the report file as it's read from the billing bucket instead of downloading it first.
+	 * The stream resumes from the last byte it buffered if the transfer fails part way through.
+	 */
+	private FileData streamAndProcessOneFile(CostAndUsageReport report, String key, double edpDiscount) throws Exception {
+		BillingBucket bb = report.getBillingBucket();
+		String bucketName = report.getS3ObjectSummary().getBucketName();
+		String filename = key.substring(key.lastIndexOf("/") + 1);
+		
+        logger.info("streaming " + bucketName + "/" + key + "...");
+        PrefetchingInputStream input = AwsUtils.openStream(bucketName, bb.s3BucketRegion, key, bb.accountId, bb.accessRoleName, bb.accessExternalId,
+        		config.streamBufferSize, MAX_DOWNLOAD_RETRIES);
+        
+        FileData data = new FileData();
+		CostAndUsageReportLineItem lineItem = new CostAndUsageReportLineItem(config.useBlended, config.costAndUsageNetUnblendedStartDate, report);
+		try {
+			if (filename.endsWith(".zip"))
+				data.endMilli = processReportZip(filename, input, report.billingBucket.rootName, lineItem, data.delayedItems, data.costAndUsageData, edpDiscount);
+			else
+				data.endMilli = processReportGzip(filename, input, report.billingBucket.rootName, lineItem, data.delayedItems, data.costAndUsageData, edpDiscount);
+		}
+		finally {
+			input.close();
+		}
+		// The parser logs and stops at read errors, so check that the whole file was read
+		if (input.getError() != null)
+			return new FileData(input.getError());
+		
+        logger.info("done processing " + filename + ", end is " + new DateTime(data.endMilli, DateTimeZone.UTC).toString() + ", " + data.costAndUsageData.getCost(null).getNum() + " hours"
+        		+ (input.getResumes() > 0 ? ", resumed " + input.getResumes() + " times" : ""));
+        return data;
+	}
+	
 	@Override
 	public long downloadAndProcessReport(
 			DateTime dataTime,
@@ -314,6 +350,8 @@ public class CostAndUsageReportProcessor implements MonthlyReportProcessor {
 		}
 
 		// Wait for completion and merge the results together
+		List<CostAndUsageData> results = Lists.newArrayList(costAndUsageData);
+		List<String[]> delayedItems = Lists.newArrayList();
 		for (Future<FileData> ffd: fileData) {
 			FileData fd = ffd.get();
 			if (fd == null)
@@ -327,19 +365,62 @@ public class CostAndUsageReportProcessor implements MonthlyReportProcessor {
 				pool.awaitTermination(60, TimeUnit.SECONDS);
 				throw new Exception("Unrecoverable error processing CUR file, abort");
 			}
-			costAndUsageData.putAll(fd.costAndUsageData);
+			results.add(fd.costAndUsageData);
+			delayedItems.addAll(fd.delayedItems);
             endMilli = Math.max(endMilli, fd.endMilli);			
 		}
+		CostAndUsageData.merge(results, pool);
 		
-		// Process the delayed items		
-		for (Future<FileData> ffd: fileData) {
-			FileData fd = ffd.get();
-	        for (String[] items: fd.delayedItems) {
+		return processDelayedItems(cau, delayedItems, costAndUsageData, endMilli, edpDiscount);
+	}
+	
+	/*
+	 * Delayed items don't depend on each other once all the files are loaded, so process them in shards on the pool
+	 * and merge the shards into the data. Monthly and truncated items are spread over the hours already loaded, so
+	 * each shard starts out with that many hours.
+	 */
+	private long processDelayedItems(final CostAndUsageReport report, List<String[]> delayedItems, CostAndUsageData costAndUsageData, long endMilli, final double edpDiscount) throws Exception {
+		final String root = report.billingBucket.rootName;
+		int numShards = Math.min(numThreads, delayedItems.size() / minDelayedItemsPerShard);
+		if (numShards <= 1) {
+			CostAndUsageReportLineItem lineItem = new CostAndUsageReportLineItem(config.useBlended, config.costAndUsageNetUnblendedStartDate, report);
+	        for (String[] items: delayedItems) {
 	        	lineItem.setItems(items);
-	            endMilli = processOneLine("<delayed items>", null, report.billingBucket.rootName, lineItem, costAndUsageData, endMilli, edpDiscount);
+	            endMilli = processOneLine("<delayed items>", null, root, lineItem, costAndUsageData, endMilli, edpDiscount);
 	        }
+	        return endMilli;
 		}
-        return endMilli;
+		
+		logger.info("processing " + delayedItems.size() + " delayed items in " + numShards + " shards");
+		final int numHours = costAndUsageData.getUsage(null).getNum();
+		int shardSize = (delayedItems.size() + numShards - 1) / numShards;
+		List<Future<FileData>> shards = Lists.newArrayList();
+		for (int start = 0; start < delayedItems.size(); start += shardSize) {
+			final List<String[]> items = delayedItems.subList(start, Math.min(delayedItems.size(), start + shardSize));
+			shards.add(pool.submit(new Callable<FileData>() {
+				@Override
+				public FileData call() {
+					FileData data = new FileData();
+					if (numHours > 0)
+						data.costAndUsageData.getUsage(null).getCreateData(numHours - 1);
+					CostAndUsageReportLineItem lineItem = new CostAndUsageReportLineItem(config.useBlended, config.costAndUsageNetUnblendedStartDate, report);
+			        for (String[] item: items) {
+			        	lineItem.setItems(item);
+			            data.endMilli = processOneLine("<delayed items>", null, root, lineItem, data.costAndUsageData, data.endMilli, edpDiscount);
+			        }
+					return data;
+				}
+			}));
+		}
+		
+		List<CostAndUsageData> results = Lists.newArrayList(costAndUsageData);
+		for (Future<FileData> f: shards) {
+			FileData data = f.get();
+			results.add(data.costAndUsageData);
+			endMilli = Math.max(endMilli, data.endMilli);
+		}
+		CostAndUsageData.merge(results, pool);
+		return endMilli;
 	}
 
 	// Used for unit testing only.
@@ -381,7 +462,10 @@ public class CostAndUsageReportProcessor implements MonthlyReportProcessor {
 	}
 	
 	private long processReportZip(File file, String root, CostAndUsageReportLineItem lineItem, List<String[]> delayedItems, CostAndUsageData costAndUsageData, double edpDiscount) throws IOException {
-        InputStream input = new FileInputStream(file);
+		return processReportZip(file.getName(), new FileInputStream(file), root, lineItem, delayedItems, costAndUsageData, edpDiscount);
+	}
+	
+	private long processReportZip(String fileName, InputStream input, String root, CostAndUsageReportLineItem lineItem, List<String[]> delayedItems, CostAndUsageData costAndUsageData, double edpDiscount) {
         ZipArchiveInputStream zipInput = new ZipArchiveInputStream(input);
         long endMilli = startMilli;
 
@@ -398,46 +482,51 @@ public class CostAndUsageReportProcessor implements MonthlyReportProcessor {
             if (e.getMessage().equals("Stream closed"))
                 logger.info("reached end of file.");
             else
-                logger.error("Error processing " + file, e);
+                logger.error("Error processing " + fileName, e);
         }
         finally {
             try {
                 zipInput.close();
             } catch (IOException e) {
-                logger.error("Error closing " + file, e);
+                logger.error("Error closing " + fileName, e);
             }
             try {
                 input.close();
             }
             catch (IOException e1) {
-                logger.error("Cannot close input for " + file, e1);
+                logger.error("Cannot close input for " + fileName, e1);
             }
         }
         return endMilli;
 	}
 
-	private long processReportGzip(File file, String root, CostAndUsageReportLineItem lineItem, List<String[]> delayedItems, CostAndUsageData costAndUsageData, double edpDiscount) {
+	private long processReportGzip(File file, String root, CostAndUsageReportLineItem lineItem, List<String[]> delayedItems, CostAndUsageData costAndUsageData, double edpDiscount) throws IOException {
+		return processReportGzip(file.getName(), new FileInputStream(file), root, lineItem, delayedItems, costAndUsageData, edpDiscount);
+	}
+	
+	private long processReportGzip(String fileName, InputStream input, String root, CostAndUsageReportLineItem lineItem, List<String[]> delayedItems, CostAndUsageData costAndUsageData, double edpDiscount) {
         GZIPInputStream gzipInput = null;
         long endMilli = startMilli;
         
         try {
-            InputStream input = new FileInputStream(file);
             gzipInput = new GZIPInputStream(input);
-        	endMilli = processReportFile(file.getName(), gzipInput, root, lineItem, delayedItems, costAndUsageData, edpDiscount);
+        	endMilli = processReportFile(fileName, gzipInput, root, lineItem, delayedItems, costAndUsageData, edpDiscount);
         }
         catch (IOException e) {
             if (e.getMessage().equals("Stream closed"))
                 logger.info("reached end of file.");
             else
-                logger.error("Error processing " + file, e);
+                logger.error("Error processing " + fileName, e);
         }
         finally {
         	try {
         		if (gzipInput != null)
         			gzipInput.close();
+        		else
+        			input.close();
         	}
         	catch (IOException e) {
-        		logger.error("Error closing " + file, e);
+        		logger.error("Error closing " + fileName, e);
         	}
         }
         return endMilli;
@@ -492,4 +581,14 @@ public class CostAndUsageReportProcessor implements MonthlyReportProcessor {
 	public ReservationProcessor getReservationProcessor() {
 		return reservationProcessor;
 	}
+
+	@Override
+	public ReservationProcessor newReservationProcessor() throws IOException {
+		ReservationProcessor rp = new CostAndUsageReservationProcessor(
+				config.accountService.getReservationAccounts().keySet(),
+				config.productService,
+				config.priceListService);
+		rp.setDebugProperties(config.debugProperties);
+		return rp;
+	}
 }
@@ -19,15 +19,18 @@ package com.netflix.ice.processor;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.ChangeManifest;
+import com.netflix.ice.common.Codec;
 import com.netflix.ice.common.Config.WorkBucketConfig;
+import com.netflix.ice.common.MultipartOutputStream;
 import com.netflix.ice.processor.ReadWriteDataSerializer.TagGroupFilter;
 
 public abstract class DataFile {
@@ -35,16 +38,34 @@ public abstract class DataFile {
 
     private static final String compressExtension = ".gz";
     
+    // Codecs used to compress the hourly files and the daily, weekly and monthly summary files
+    private static Codec hourlyCodec = Codec.gzip;
+    private static Codec summaryCodec = Codec.gzip;
+    
+    // If true, files are compressed straight into an upload to the work bucket rather than written
+    // to the local directory and then uploaded.
+    private static boolean streamUploads = true;
+    
     protected final WorkBucketConfig config;
     protected final String dbName;
     protected final File file;
+    // Records the file when it's uploaded if not null
+    protected final ChangeManifest changes;
     
     protected OutputStream os;
+    private MultipartOutputStream upload;
+    private Codec codec;
 
     DataFile(String name, WorkBucketConfig config) throws Exception {
+    	this(name, config, null);
+    }
+    
+    DataFile(String name, WorkBucketConfig config, ChangeManifest changes) throws Exception {
     	this.config = config;
+    	this.changes = changes;
         dbName = name;
         os = null;
+        codec = summaryCodec;
         
         String filename = dbName + compressExtension;
         file = config == null ? new File(filename) : new File(config.localDir, filename);
@@ -55,19 +76,94 @@ public abstract class DataFile {
     	config = null;
     	dbName = null;
     	file = null;
+    	changes = null;
+    	codec = Codec.gzip;
+    }
+    
+    static void setStreamUploads(boolean streamUploads) {
+    	DataFile.streamUploads = streamUploads;
+    }
+    
+    static void setCodecs(Codec hourly, Codec summary) {
+    	DataFile.hourlyCodec = hourly;
+    	DataFile.summaryCodec = summary;
+    }
+    
+    /**
+     * Compress the file with the codec used for hourly data rather than the one for summary data.
+     */
+    DataFile setHourly() {
+    	codec = hourlyCodec;
+    	return this;
+    }
+    
+    /**
+     * Use a particular codec rather than the configured one, e.g. for files read by other tools.
+     */
+    DataFile setCodec(Codec codec) {
+    	this.codec = codec;
+    	return this;
     }
     
     public void open() throws IOException {
+    	if (streamUploads) {
+    		upload = AwsUtils.uploadStream(config.workS3BucketName, config.workS3BucketPrefix + file.getName());
+    		// Writers close os when they're done, so don't let that complete the upload until close() is called
+    		os = codec.compress(new FilterOutputStream(upload) {
+    			@Override
+    			public void write(byte[] b, int off, int len) throws IOException {
+    				out.write(b, off, len);
+    			}
+    			
+    			@Override
+    			public void close() throws IOException {
+    				flush();
+    			}
+    		});
+    		return;
+    	}
     	os = new FileOutputStream(file);
-    	os = new GZIPOutputStream(os);
+    	os = codec.compress(os);
     }
     
     public void close() throws IOException {
-    	os.close();
-    	
-        logger.info(this.dbName + " uploading to s3...");
-        AwsUtils.upload(config.workS3BucketName, config.workS3BucketPrefix, config.localDir, dbName);
+    	try {
+    		os.close();
+    	}
+    	catch (IOException e) {
+    		// Don't leave the parts already uploaded behind
+    		abort();
+    		throw e;
+    	}
+    	catch (RuntimeException e) {
+    		abort();
+    		throw e;
+    	}
+
+    	if (upload != null) {
+    		logger.info(this.dbName + " completing upload to s3...");
+    		upload.close();
+    		upload = null;
+    		// Any local copy we loaded the data from is now out of date
+    		file.delete();
+    	}
+    	else {
+	        logger.info(this.dbName + " uploading to s3...");
+	        AwsUtils.upload(config.workS3BucketName, config.workS3BucketPrefix, config.localDir, dbName);
+    	}
         logger.info(this.dbName + " uploading done.");    	
+        if (changes != null)
+        	changes.add(file.getName());
+    }
+    
+    /**
+     * Abandon a streamed upload so nothing written so far replaces the file in the work bucket.
+     */
+    void abort() {
+    	if (upload != null) {
+    		upload.abort();
+    		upload = null;
+    	}
     }
     
     void archive() throws IOException {
@@ -76,7 +172,17 @@ public abstract class DataFile {
     
     void archive(TagGroupFilter filter) throws IOException {
     	open();
-    	write(filter);
+    	try {
+    		write(filter);
+    	}
+    	catch (IOException e) {
+    		abort();
+    		throw e;
+    	}
+    	catch (RuntimeException e) {
+    		abort();
+    		throw e;
+    	}
     	close();
     }
     
@@ -38,6 +38,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.netflix.ice.common.Codec;
 import com.netflix.ice.common.Config.WorkBucketConfig;
 import com.netflix.ice.common.PurchaseOption;
 import com.netflix.ice.common.TagGroup;
@@ -76,6 +77,8 @@ public class DataJsonWriter extends DataFile {
 			InstanceMetrics instanceMetrics, PriceListService priceListService, WorkBucketConfig workBucketConfig)
 			throws Exception {
 		super(name, workBucketConfig);
+		// The JSON files are loaded by other tools that only understand gzip
+		setCodec(Codec.gzip);
 		this.monthDateTime = monthDateTime;
 		this.tagNames = tagNames;
 		this.fileType = fileType;
@@ -107,7 +110,18 @@ public class DataJsonWriter extends DataFile {
 
 	@Override
     public void close() throws IOException {
-		writer.close();
+		try {
+			writer.close();
+		}
+		catch (IOException e) {
+			// Don't leave the parts already uploaded behind
+			abort();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			abort();
+			throw e;
+		}
 		super.close();
     }
 
@@ -19,19 +19,25 @@ package com.netflix.ice.processor;
 
 import com.netflix.ice.common.AccountService;
 import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.ChangeManifest;
+import com.netflix.ice.common.Codec;
 import com.netflix.ice.common.Config.WorkBucketConfig;
 import com.netflix.ice.common.ProductService;
 import com.netflix.ice.processor.ReadWriteDataSerializer.TagGroupFilter;
 
 import java.io.*;
-import java.util.zip.GZIPInputStream;
 
 public class DataWriter extends DataFile {
     protected ReadWriteDataSerializer data;
 
     DataWriter(String name, ReadWriteDataSerializer data, boolean load, WorkBucketConfig workBucketConfig,
     		AccountService accountService, ProductService productService) throws Exception {
-    	super(name, workBucketConfig);
+    	this(name, data, load, workBucketConfig, accountService, productService, null);
+    }
+
+    DataWriter(String name, ReadWriteDataSerializer data, boolean load, WorkBucketConfig workBucketConfig,
+    		AccountService accountService, ProductService productService, ChangeManifest changes) throws Exception {
+    	super(name, workBucketConfig, changes);
         this.data = data;
 
         if (!load)
@@ -41,7 +47,7 @@ public class DataWriter extends DataFile {
 
         if (file.exists()) {
         	InputStream is = new FileInputStream(file);
-        	is = new GZIPInputStream(is);
+        	is = Codec.decompress(is);
             DataInputStream in = new DataInputStream(is);
             try {
                 data.deserialize(accountService, productService, in);		
@@ -58,26 +58,6 @@ public class DetailedBillingReportLineItem extends LineItem {
         resourceIndex = 21 + (withTags ? 0 : -1) + (hasBlendedCost ? 0 : -2);
     }
 
-    @Override
-    public long getStartMillis() {
-        try {
-            return amazonBillingDateFormat.parseMillis(items[startTimeIndex]);
-        }
-        catch (IllegalArgumentException e) {
-            return amazonBillingDateFormat2.parseMillis(items[startTimeIndex]);
-        }
-    }
-
-    @Override
-    public long getEndMillis() {
-        try {
-            return amazonBillingDateFormat.parseMillis(items[endTimeIndex]);
-        }
-        catch (IllegalArgumentException e) {
-            return amazonBillingDateFormat2.parseMillis(items[endTimeIndex]);
-        }
-    }
-    
     @Override
     public String[] getResourceTagsHeader() {
     	return resourceIndex < header.length ? Arrays.copyOfRange(header, resourceIndex + 1, header.length) : new String[]{};
@@ -23,7 +23,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.List;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
@@ -36,6 +43,7 @@ import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.csvreader.CsvReader;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.netflix.ice.basic.BasicLineItemProcessor;
 import com.netflix.ice.common.AwsUtils;
 import com.netflix.ice.common.LineItem;
@@ -47,14 +55,17 @@ public class DetailedBillingReportProcessor implements MonthlyReportProcessor {
     private DetailedBillingReservationProcessor reservationProcessor;
     private long endMilli;
     private long reportMilli;
+    
+    // Number of lines handed to a worker at a time when parsing in parallel
+    private static final int batchSize = 5000;
+    // Parses the lines of a report in parallel if not null
+    private final ExecutorService pool;
 
 	public DetailedBillingReportProcessor(ProcessorConfig config) throws IOException {
 		this.config = config;
 		lineItemProcessor = new BasicLineItemProcessor(config.accountService, config.productService, config.reservationService, config.resourceService);
-        reservationProcessor = new DetailedBillingReservationProcessor(
-				config.accountService.getReservationAccounts().keySet(),
-				config.productService,
-				config.priceListService);
+        reservationProcessor = newReservationProcessor();
+        pool = config.numthreads > 1 ? Executors.newFixedThreadPool(config.numthreads) : null;
 	}
 	
 	@Override
@@ -178,8 +189,8 @@ public class DetailedBillingReportProcessor implements MonthlyReportProcessor {
         CsvReader reader = new CsvReader(new InputStreamReader(tempIn), ',');
 
         long lineNumber = 0;
-        List<String[]> delayedItems = Lists.newArrayList();
         LineItem lineItem = null;
+        List<Shard> shards = null;
         try {
             reader.readRecord();
             String[] headers = reader.getValues();
@@ -187,28 +198,26 @@ public class DetailedBillingReportProcessor implements MonthlyReportProcessor {
             lineItem = new DetailedBillingReportLineItem(config.useBlended, withTags, headers);
             if (config.resourceService != null)
             	config.resourceService.initHeader(lineItem.getResourceTagsHeader(), accountId);
-
-            while (reader.readRecord()) {
-                String[] items = reader.getValues();
-                try {
-                	lineItem.setItems(items);
-                    processOneLine(fileName, delayedItems, root, lineItem, costAndUsageData, instances);
-                    String accountID = lineItem.getAccountId();
-                    if (!accountID.isEmpty()) {
-                        reservationProcessor.addBorrower(config.accountService.getAccountById(accountID));
-                    }
-                }
-                catch (Exception e) {
-                    logger.error(StringUtils.join(items, ","), e);
-                }
-                lineNumber++;
-
-                if (lineNumber % 500000 == 0) {
-                    logger.info("processed " + lineNumber + " lines...");
-                }
-//                if (lineNumber == 40000000) {//100000000      //
-//                    break;
-//                }
+            
+            if (pool == null) {
+            	shards = Lists.newArrayList(new Shard(costAndUsageData, lineItem));
+	            while (reader.readRecord()) {
+	                shards.get(0).process(fileName, root, reader.getValues(), instances);
+	                lineNumber++;
+	
+	                if (lineNumber % 500000 == 0) {
+	                    logger.info("processed " + lineNumber + " lines...");
+	                }
+	            }
+            }
+            else {
+            	shards = Lists.newArrayList();
+            	for (int i = 0; i < config.numthreads; i++) {
+            		CostAndUsageData data = new CostAndUsageData(costAndUsageData.getStartMilli(), config.workBucketConfig,
+            				config.resourceService == null ? null : config.resourceService.getUserTags(), config.getTagCoverage(), config.accountService, config.productService);
+            		shards.add(new Shard(data, new DetailedBillingReportLineItem(config.useBlended, withTags, headers)));
+            	}
+            	lineNumber = processBatches(fileName, root, reader, shards, instances);
             }
         }
         catch (IOException e ) {
@@ -222,14 +231,122 @@ public class DetailedBillingReportProcessor implements MonthlyReportProcessor {
                 logger.error("Cannot close BufferedReader...", e);
             }
         }
-
-        for (String[] items: delayedItems) {
-        	lineItem.setItems(items);
-            processOneLine(fileName, null, root, lineItem, costAndUsageData, instances);
+        if (shards == null)
+        	return;
+        
+        if (pool != null) {
+        	List<CostAndUsageData> data = Lists.newArrayList(costAndUsageData);
+        	for (Shard shard: shards)
+        		data.add(shard.data);
+        	CostAndUsageData.merge(data, pool);
         }
+        
+        for (Shard shard: shards) {
+        	endMilli = Math.max(endMilli, shard.endMilli);
+        	for (String accountID: shard.accountIds)
+        		reservationProcessor.addBorrower(config.accountService.getAccountById(accountID));
+        }
+        for (Shard shard: shards) {
+	        for (String[] items: shard.delayedItems) {
+	        	lineItem.setItems(items);
+	            endMilli = processOneLine(fileName, null, root, lineItem, costAndUsageData, instances, endMilli);
+	        }
+        }
+    }
+    
+    /*
+     * Read the lines in batches and parse each batch on the pool into whichever shard is free. At most two batches
+     * per thread are read ahead of the workers. Returns the number of lines read.
+     */
+    private long processBatches(final String fileName, final String root, CsvReader reader, List<Shard> shards, final Instances instances) throws Exception {
+    	final BlockingQueue<Shard> free = new ArrayBlockingQueue<Shard>(shards.size(), false, shards);
+    	final Semaphore pending = new Semaphore(shards.size() * 2);
+    	List<Future<?>> batches = Lists.newArrayList();
+    	long lineNumber = 0;
+    	try {
+	    	List<String[]> batch = Lists.newArrayListWithCapacity(batchSize);
+	    	while (true) {
+	    		boolean more = reader.readRecord();
+	    		if (more) {
+	    			batch.add(reader.getValues());
+	    			lineNumber++;
+	                if (lineNumber % 500000 == 0) {
+	                    logger.info("read " + lineNumber + " lines...");
+	                }
+	                if (batch.size() < batchSize)
+	                	continue;
+	    		}
+	    		if (batch.size() > 0) {
+		    		pending.acquire();
+		    		final List<String[]> lines = batch;
+		    		batches.add(pool.submit(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								Shard shard = free.take();
+								try {
+									for (String[] items: lines)
+										shard.process(fileName, root, items, instances);
+								}
+								finally {
+									free.add(shard);
+								}
+							}
+							catch (InterruptedException e) {
+								throw new RuntimeException(e);
+							}
+							finally {
+								pending.release();
+							}
+						}
+		    		}));
+		    		batch = Lists.newArrayListWithCapacity(batchSize);
+	    		}
+	    		if (!more)
+	    			break;
+	    	}
+    	}
+    	finally {
+    		// Wait for the batches already queued even if the read failed, so the shards aren't in use
+	    	for (Future<?> f: batches)
+	    		f.get();
+    	}
+    	logger.info("processed " + lineNumber + " lines in " + batches.size() + " batches");
+    	return lineNumber;
+    }
+    
+    /*
+     * Line items parsed by one worker at a time along with its own data, delayed items and reservation borrowers.
+     * The shards are merged once all the lines have been parsed.
+     */
+    private class Shard {
+    	final CostAndUsageData data;
+    	final LineItem lineItem;
+    	final List<String[]> delayedItems = Lists.newArrayList();
+    	final Set<String> accountIds = Sets.newHashSet();
+    	long endMilli = 0;
+    	
+    	Shard(CostAndUsageData data, LineItem lineItem) {
+    		this.data = data;
+    		this.lineItem = lineItem;
+    	}
+    	
+    	void process(String fileName, String root, String[] items, Instances instances) {
+            try {
+            	lineItem.setItems(items);
+                endMilli = processOneLine(fileName, delayedItems, root, lineItem, data, instances, endMilli);
+                String accountID = lineItem.getAccountId();
+                if (!accountID.isEmpty()) {
+                    accountIds.add(accountID);
+                }
+            }
+            catch (Exception e) {
+                logger.error(StringUtils.join(items, ","), e);
+            }
+    	}
     }
 
-    private void processOneLine(String fileName, List<String[]> delayedItems, String root, LineItem lineItem, CostAndUsageData costAndUsageData, Instances instances) {
+    private long processOneLine(String fileName, List<String[]> delayedItems, String root, LineItem lineItem, CostAndUsageData costAndUsageData, Instances instances, long endMilli) {
 
         LineItemProcessor.Result result = lineItemProcessor.process(fileName, reportMilli, delayedItems == null, root, lineItem, costAndUsageData, instances, 0.0);
 
@@ -239,6 +356,7 @@ public class DetailedBillingReportProcessor implements MonthlyReportProcessor {
         else if (result == LineItemProcessor.Result.hourly) {
             endMilli = Math.max(endMilli, lineItem.getEndMillis());
         }
+        return endMilli;
     }
 
 	private File downloadReport(Report report, String localDir, long lastProcessed) {
@@ -301,4 +419,12 @@ public class DetailedBillingReportProcessor implements MonthlyReportProcessor {
 	public ReservationProcessor getReservationProcessor() {
 		return reservationProcessor;
 	}
+
+	@Override
+	public DetailedBillingReservationProcessor newReservationProcessor() throws IOException {
+		return new DetailedBillingReservationProcessor(
+				config.accountService.getReservationAccounts().keySet(),
+				config.productService,
+				config.priceListService);
+	}
 }
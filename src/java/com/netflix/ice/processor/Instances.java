@@ -17,22 +17,27 @@
  */
 package com.netflix.ice.processor;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
@@ -42,117 +47,399 @@ import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.netflix.ice.common.AccountService;
 import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.Codec;
 import com.netflix.ice.common.Instance;
 import com.netflix.ice.common.ProductService;
+import com.netflix.ice.common.TagGroup;
 import com.netflix.ice.tag.Account;
 import com.netflix.ice.tag.Product;
 import com.netflix.ice.tag.Region;
 import com.netflix.ice.tag.Zone;
 import com.netflix.ice.tag.Zone.BadZone;
 
+/**
+ * Instances seen in the billing reports for a month, stored as columns. The type, account, region, zone,
+ * product and tag key and value columns hold indexes into a dictionary per column, so each distinct value is
+ * kept once no matter how many instances share it. Instance objects are only built when asked for.
+ * 
+ * The archived file is a sequence of segments, each holding the dictionaries and columns for a set of instances.
+ * Segments are read in order with later ones replacing earlier entries for the same id, so archive() can
+ * append the instances that changed since it last wrote the month rather than replacing the whole file.
+ */
 public class Instances {
     private final static Logger logger = LoggerFactory.getLogger(Instances.class);
     
+    // Written at the start of each segment of the archived file. Version 1 segments didn't have the start
+    // times and dropped the "user:" prefix from the tag keys.
+    private static final int segmentVersion = 2;
+    // Number of segments after which archive() replaces the file rather than appending to it
+    private static final int maxSegments = 16;
+    
 	private final String localDir;
 	private final String workS3BucketName;
 	private final String workS3BucketPrefix;
-	private ConcurrentMap<String, Instance> data;
+	private Columns data;
+	
+	// File written by the last archive() and its length at the time, so we know whether we can append to it
+	private String archivedFilename = null;
+	private long archivedLength = 0;
+	private int archivedSegments = 0;
 
 	public Instances(String localDir, String workS3BucketName, String workS3BucketPrefix) {
     	this.localDir = localDir;
 		this.workS3BucketName = workS3BucketName;
 		this.workS3BucketPrefix = workS3BucketPrefix;
-		data = Maps.newConcurrentMap();
+		data = new Columns();
 	}
 	
-	public void add(String id, long startMillis, String type, Map<String, String> tags, Account account, Region region, Zone zone, Product product) {
+	public synchronized void add(String id, long startMillis, String type, Map<String, String> tags, Account account, Region region, Zone zone, Product product) {
 		if (id.isEmpty()) {
 			return;
 		}
 		// Save the most recent version of the resource data.
-		Instance i = data.get(id);
-		if (i == null || i.startMillis < startMillis)
-			data.put(id, new Instance(id, type, account, region, zone, product, tags, startMillis));
+		int row = data.find(id);
+		if (row >= 0 && data.startMillis[row] >= startMillis)
+			return;
+		
+		int[] tagPairs = new int[tags.size() * 2];
+		int i = 0;
+		for (Map.Entry<String, String> tag: tags.entrySet()) {
+			tagPairs[i++] = data.tagKeys.index(tag.getKey());
+			tagPairs[i++] = data.tagValues.index(Instance.cleanTagValue(tag.getKey(), tag.getValue()));
+		}
+		data.put(row, id, startMillis, data.types.index(type), data.accounts.index(account), data.regions.index(region),
+				data.zones.index(zone), data.products.index(product), tagPairs, 0, tagPairs.length);
+	}
+	
+	public synchronized Instance get(String id) {
+		int row = data.find(id);
+		return row < 0 ? null : data.instance(row);
+	}
+	
+	/**
+	 * Find the instance with the id or, if there isn't one, the instances whose resource id matches
+	 * the part of their id (usually an ARN) after the last ':' or '/'. Returns null if there aren't any.
+	 */
+	public synchronized List<Instance> find(String id) {
+		int row = data.find(id);
+		if (row >= 0)
+			return Lists.newArrayList(data.instance(row));
+		
+		List<Instance> instances = Lists.newArrayList();
+		for (row = data.findResourceId(id); row >= 0; row = data.resourceIdNext[row]) {
+			if (id.equals(resourceId(data.ids[row])))
+				instances.add(data.instance(row));
+		}
+		return instances.isEmpty() ? null : instances;
 	}
 	
-	public Instance get(String id) {
-		return data.get(id);
+	public synchronized Collection<Instance> values() {
+		List<Instance> instances = Lists.newArrayListWithCapacity(data.size);
+		for (int row = 0; row < data.size; row++)
+			instances.add(data.instance(row));
+		return instances;
 	}
 	
-	public Collection<Instance> values() {
-		return data.values();
+	public synchronized int size() {
+		return data.size;
 	}
 	
-	public int size() {
-		return data.size();
+	/*
+	 * Number of tag key and value pairs held, including any no longer used by a row.
+	 */
+	synchronized int getNumTagPairs() {
+		return data.numTags / 2;
+	}
+	
+	private static String resourceId(String id) {
+		int separatorIndex = id.lastIndexOf(":");
+		if (separatorIndex < 0) {
+			separatorIndex = id.lastIndexOf("/");
+		}
+		return separatorIndex >= 0 && id.length() > separatorIndex+1 ? id.substring(separatorIndex+1) : null;
 	}
 	
 	private String getFilename(long timeMillis) {
+        DateTime monthDateTime = new DateTime(timeMillis, DateTimeZone.UTC);
+		return "instances_" + AwsUtils.monthDateFormat.print(monthDateTime) + ".dat.gz";
+	}
+
+	// Name of the file written before the columnar format
+	private String getCsvFilename(long timeMillis) {
         DateTime monthDateTime = new DateTime(timeMillis, DateTimeZone.UTC);
 		return "instances_" + AwsUtils.monthDateFormat.print(monthDateTime) + ".csv.gz";
 	}
 
-    public void archive(long timeMillis) throws IOException {
+	/**
+	 * Write the instances for the month to the work bucket. If the file was last written by this object,
+	 * a segment with just the instances added or changed since then is appended to it, otherwise it's replaced.
+	 */
+    public synchronized void archive(long timeMillis) throws IOException {
         
         File file = new File(localDir, getFilename(timeMillis));
+        boolean append = file.getName().equals(archivedFilename) && file.length() == archivedLength && archivedSegments < maxSegments;
+        if (append && data.modified.isEmpty()) {
+        	logger.info("no changes to " + file + " since it was archived");
+        	return;
+        }
         
-    	OutputStream os = new FileOutputStream(file);
-		os = new GZIPOutputStream(os);        
-		Writer out = new OutputStreamWriter(os);
-        
+        // gzip members can be concatenated, so an appended segment is just another compressed stream on the end of the file
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Codec.gzip.compress(new FileOutputStream(file, append))));
+        int rows;
         try {
-        	writeCsv(out);
+        	rows = write(out, append);
         }
         finally {
             out.close();
         }
+        data.modified.clear();
+        archivedFilename = file.getName();
+        archivedLength = file.length();
+        archivedSegments = append ? archivedSegments + 1 : 1;
 
         // archive to s3
-        logger.info("uploading " + file + "...");
-        AwsUtils.upload(workS3BucketName, workS3BucketPrefix, localDir, file.getName());
+        logger.info("uploading " + file + " with " + (append ? "appended segment of " : "") + rows + " instances...");
+        upload(file);
         logger.info("uploaded " + file);
     }
     
-    protected void writeCsv(Writer out) throws IOException {
+    protected void upload(File file) {
+        AwsUtils.upload(workS3BucketName, workS3BucketPrefix, localDir, file.getName());
+    }
+    
+    /**
+     * Download the file from the work bucket if it has changed. Throws AmazonS3Exception if it isn't there.
+     */
+    protected boolean download(File file) {
+        return AwsUtils.downloadFileIfChanged(workS3BucketName, workS3BucketPrefix, file);
+    }
+    
+    /**
+     * Write a segment in the following order:<br/>
+     * 
+     * 1. Segment version (int)<br/>
+     * 2. Instance count (varint)<br/>
+     * 3. The type, account id, region, zone, product service code, tag key and tag value dictionaries, each a
+     * 		size (varint) followed by the strings (UTF)<br/>
+     * 4. The ids (UTF)<br/>
+     * 5. The start time of the line item each instance was last seen in (long) per instance<br/>
+     * 6. The type, account, region, zone and product columns, each a dictionary index (varint) per instance<br/>
+     * 7. The number of tags (varint) per instance<br/>
+     * 8. The tag key and value dictionary indecies (varint) for each instance<br/>
+     * 
+     * If modifiedOnly is true, only the instances added or changed since the last archive() are written.
+     * Returns the number of instances written.
+     */
+    protected synchronized int write(DataOutput out, boolean modifiedOnly) throws IOException {
+    	BitSet filter = modifiedOnly ? data.modified : null;
+    	int[] rows;
+    	if (filter == null) {
+    		rows = new int[data.size];
+    		for (int i = 0; i < rows.length; i++)
+    			rows[i] = i;
+    	}
+    	else {
+    		rows = new int[filter.cardinality()];
+    		int i = 0;
+    		for (int row = filter.nextSetBit(0); row >= 0; row = filter.nextSetBit(row + 1))
+    			rows[i++] = row;
+    	}
+    	
+    	out.writeInt(segmentVersion);
+    	TagGroup.Serializer.writeVarInt(out, rows.length);
+    	
+    	List<String> strings = Lists.newArrayList();
+    	for (String type: data.types.values)
+    		strings.add(type);
+    	writeDictionary(out, strings);
+    	strings.clear();
+    	for (Account account: data.accounts.values)
+    		strings.add(account.getId());
+    	writeDictionary(out, strings);
+    	strings.clear();
+    	for (Region region: data.regions.values)
+    		strings.add(region.toString());
+    	writeDictionary(out, strings);
+    	strings.clear();
+    	for (Zone zone: data.zones.values)
+    		strings.add(zone == null ? "" : zone.toString());
+    	writeDictionary(out, strings);
+    	strings.clear();
+    	for (Product product: data.products.values)
+    		strings.add(product.getServiceCode());
+    	writeDictionary(out, strings);
+    	writeDictionary(out, data.tagKeys.values);
+    	writeDictionary(out, data.tagValues.values);
+    	
+    	for (int row: rows)
+    		out.writeUTF(data.ids[row]);
+    	for (int row: rows)
+    		out.writeLong(data.startMillis[row]);
+    	for (int[] column: new int[][]{ data.type, data.account, data.region, data.zone, data.product, data.tagCount }) {
+    		for (int row: rows)
+    			TagGroup.Serializer.writeVarInt(out, column[row]);
+    	}
+    	for (int row: rows) {
+    		for (int i = data.tagOffset[row]; i < data.tagOffset[row] + data.tagCount[row] * 2; i++)
+    			TagGroup.Serializer.writeVarInt(out, data.tags[i]);
+    	}
+    	return rows.length;
+    }
+    
+    private static void writeDictionary(DataOutput out, List<String> strings) throws IOException {
+    	TagGroup.Serializer.writeVarInt(out, strings.size());
+    	for (String s: strings)
+    		out.writeUTF(s);
+    }
+    
+    private static String[] readDictionary(DataInput in) throws IOException {
+    	String[] strings = new String[TagGroup.Serializer.readVarInt(in)];
+    	for (int i = 0; i < strings.length; i++)
+    		strings[i] = in.readUTF();
+    	return strings;
+    }
+    
+    /**
+     * Read the segments written by write() until the end of the input, replacing the current instances.
+     */
+    protected void read(DataInput in, AccountService accountService, ProductService productService) throws IOException, BadZone {
+    	Columns columns = new Columns();
+    	while (true) {
+    		int version;
+    		try {
+    			version = in.readInt();
+    		}
+    		catch (EOFException e) {
+    			break;
+    		}
+    		if (version != segmentVersion && version != 1)
+    			throw new IOException("unsupported instances segment version " + version);
+    		readSegment(in, version, columns, accountService, productService);
+    	}
+    	columns.modified.clear();
+    	synchronized (this) {
+    		data = columns;
+    	}
+    }
+    
+    private void readSegment(DataInput in, int version, Columns columns, AccountService accountService, ProductService productService) throws IOException, BadZone {
+    	int numRows = TagGroup.Serializer.readVarInt(in);
+    	
+    	// Map each entry of the segment dictionaries to the entry in ours once
+    	String[] strings = readDictionary(in);
+    	int[] types = new int[strings.length];
+    	for (int i = 0; i < strings.length; i++)
+    		types[i] = columns.types.index(strings[i]);
+    	strings = readDictionary(in);
+    	int[] accounts = new int[strings.length];
+    	for (int i = 0; i < strings.length; i++)
+    		accounts[i] = columns.accounts.index(accountService.getAccountById(strings[i]));
+    	strings = readDictionary(in);
+    	Region[] regions = new Region[strings.length];
+    	int[] regionIndexes = new int[strings.length];
+    	for (int i = 0; i < strings.length; i++) {
+    		regions[i] = Region.getRegionByName(strings[i]);
+    		regionIndexes[i] = columns.regions.index(regions[i]);
+    	}
+    	String[] zoneNames = readDictionary(in);
+    	strings = readDictionary(in);
+    	int[] products = new int[strings.length];
+    	for (int i = 0; i < strings.length; i++)
+    		products[i] = columns.products.index(productService.getProductByServiceCode(strings[i]));
+    	strings = readDictionary(in);
+    	int[] tagKeys = new int[strings.length];
+    	for (int i = 0; i < strings.length; i++)
+    		tagKeys[i] = columns.tagKeys.index(strings[i]);
+    	strings = readDictionary(in);
+    	int[] tagValues = new int[strings.length];
+    	for (int i = 0; i < strings.length; i++)
+    		tagValues[i] = columns.tagValues.index(strings[i]);
+    	
+    	String[] ids = new String[numRows];
+    	for (int row = 0; row < numRows; row++)
+    		ids[row] = in.readUTF();
+    	long[] startMillis = new long[numRows];
+    	if (version > 1) {
+	    	for (int row = 0; row < numRows; row++)
+	    		startMillis[row] = in.readLong();
+    	}
+    	int[][] rowColumns = new int[6][numRows];
+    	for (int[] column: rowColumns) {
+    		for (int row = 0; row < numRows; row++)
+    			column[row] = TagGroup.Serializer.readVarInt(in);
+    	}
+    	int[] tagPairs = new int[16];
+    	for (int row = 0; row < numRows; row++) {
+    		int numPairs = rowColumns[5][row] * 2;
+    		if (tagPairs.length < numPairs)
+    			tagPairs = new int[numPairs];
+    		for (int i = 0; i < numPairs; i += 2) {
+    			tagPairs[i] = tagKeys[TagGroup.Serializer.readVarInt(in)];
+    			tagPairs[i + 1] = tagValues[TagGroup.Serializer.readVarInt(in)];
+    		}
+    		Region region = regions[rowColumns[2][row]];
+    		String zoneName = zoneNames[rowColumns[3][row]];
+    		Zone zone = zoneName.isEmpty() ? null : region.getZone(zoneName);
+    		
+    		// Later segments replace the entries from earlier ones
+    		columns.put(columns.find(ids[row]), ids[row], startMillis[row], types[rowColumns[0][row]], accounts[rowColumns[1][row]], regionIndexes[rowColumns[2][row]],
+    				columns.zones.index(zone), products[rowColumns[4][row]], tagPairs, 0, numPairs);
+    	}
+    }
+    
+    protected synchronized void writeCsv(Writer out) throws IOException {
     	CSVPrinter printer = new CSVPrinter(out, CSVFormat.DEFAULT.withHeader(Instance.header()));
-    	for (Instance instance: data.values()) {
-    		printer.printRecord((Object[]) instance.values());
+    	for (int row = 0; row < data.size; row++) {
+    		printer.printRecord((Object[]) data.instance(row).values());
     	}
   	
     	printer.close(true);
     }
     
     public void retrieve(long timeMillis, AccountService accountService, ProductService productService) {
-        File file = new File(localDir, getFilename(timeMillis));
+    	File file = new File(localDir, getFilename(timeMillis));
+    	boolean csv = false;
     	
         // read from s3 if not exists
         boolean downloaded = false;
         
         try {
-            downloaded = AwsUtils.downloadFileIfChanged(workS3BucketName, workS3BucketPrefix, file);
+        	try {
+        		downloaded = download(file);
+        	}
+        	catch (AmazonS3Exception e) {
+        		if (e.getStatusCode() != 404 || file.exists())
+        			throw e;
+            	// Month archived before the columnar format
+            	file = new File(localDir, getCsvFilename(timeMillis));
+            	csv = true;
+            	downloaded = download(file);
+        	}
         }
         catch (Exception e) {
             logger.error("error downloading " + file, e);
             return;
         }
-        if (downloaded || (data.size() == 0 && file.exists())) {
-            BufferedReader reader = null;
+        if (downloaded || (size() == 0 && file.exists())) {
+        	InputStream is = null;
             try {
-            	InputStream is = new FileInputStream(file);
-            	is = new GZIPInputStream(is);
-                reader = new BufferedReader(new InputStreamReader(is));
-                readCsv(reader, accountService, productService);
+            	is = Codec.decompress(new BufferedInputStream(new FileInputStream(file)));
+            	if (csv)
+            		readCsv(new BufferedReader(new InputStreamReader(is)), accountService, productService);
+            	else
+            		read(new DataInputStream(new BufferedInputStream(is)), accountService, productService);
             }
             catch (Exception e) {
-            	Logger logger = LoggerFactory.getLogger(ReservationService.class);
             	logger.error("error in reading " + file, e);
             }
             finally {
-                if (reader != null)
-                    try {reader.close();} catch (Exception e) {}
+                if (is != null)
+                    try {is.close();} catch (Exception e) {}
             }
         }        
     }
@@ -165,16 +452,225 @@ public class Instances {
     		      .withFirstRecordAsHeader()
     		      .parse(reader);
     	
-    	ConcurrentMap<String, Instance> dataMap = Maps.newConcurrentMap();
+    	Columns columns = new Columns();
         String[] values = new String[numCols];
 	    for (CSVRecord record : records) {
 	    	for (int i = 0; i < numCols; i++)
 	    		values[i] = record.get(i);
 	    	
         	Instance instance = new Instance(values, accountService, productService);
-        	dataMap.put(instance.id, instance);
-
+        	int[] tagPairs = new int[instance.tags.size() * 2];
+        	int i = 0;
+        	for (Map.Entry<String, String> tag: instance.tags.entrySet()) {
+        		tagPairs[i++] = columns.tagKeys.index(tag.getKey());
+        		tagPairs[i++] = columns.tagValues.index(tag.getValue());
+        	}
+        	columns.put(columns.find(instance.id), instance.id, 0, columns.types.index(instance.type), columns.accounts.index(instance.account),
+        			columns.regions.index(instance.region), columns.zones.index(instance.zone), columns.products.index(instance.product), tagPairs, 0, tagPairs.length);
+	    }
+	    columns.modified.clear();
+	    synchronized (this) {
+	    	data = columns;
 	    }
-	    data = dataMap;
+    }
+    
+    /*
+     * Distinct values of a column. Values are never removed, so an index stays valid for the life of the dictionary.
+     */
+    private static class Dictionary<T> {
+    	final Map<T, Integer> indexes = Maps.newHashMap();
+    	final List<T> values = Lists.newArrayList();
+    	
+    	int index(T value) {
+    		Integer index = indexes.get(value);
+    		if (index == null) {
+    			index = values.size();
+    			indexes.put(value, index);
+    			values.add(value);
+    		}
+    		return index;
+    	}
+    }
+    
+    /*
+     * The instance columns, one entry per row. Rows are looked up by id with an open addressed hash table and
+     * by resource id with a chained hash table that is only built when first needed, which is only by the reader.
+     */
+    private static class Columns {
+    	final Dictionary<String> types = new Dictionary<String>();
+    	final Dictionary<Account> accounts = new Dictionary<Account>();
+    	final Dictionary<Region> regions = new Dictionary<Region>();
+    	final Dictionary<Zone> zones = new Dictionary<Zone>();
+    	final Dictionary<Product> products = new Dictionary<Product>();
+    	final Dictionary<String> tagKeys = new Dictionary<String>();
+    	final Dictionary<String> tagValues = new Dictionary<String>();
+    	
+    	int size = 0;
+    	String[] ids = new String[16];
+    	long[] startMillis = new long[16];
+    	int[] type = new int[16];
+    	int[] account = new int[16];
+    	int[] region = new int[16];
+    	int[] zone = new int[16];
+    	int[] product = new int[16];
+    	// Offset in tags of each row's key and value pairs and the number of pairs
+    	int[] tagOffset = new int[16];
+    	int[] tagCount = new int[16];
+    	int[] tags = new int[64];
+    	int numTags = 0;
+    	// Pairs in tags no longer used by any row
+    	int deadTags = 0;
+    	private static final int minCompactTags = 1024;
+    	// Rows added or changed since the last archive
+    	final BitSet modified = new BitSet();
+    	
+    	// Row + 1 for each id, zero for empty slots
+    	int[] idSlots = new int[32];
+    	// First row for each resource id hash and the next row with the same hash, -1 at the end of the chain
+    	int[] resourceIdSlots = null;
+    	int[] resourceIdNext = null;
+    	
+    	/*
+    	 * Return the row with the id or -1 if there isn't one.
+    	 */
+    	int find(String id) {
+    		int mask = idSlots.length - 1;
+    		for (int slot = hash(id) & mask; idSlots[slot] != 0; slot = (slot + 1) & mask) {
+    			int row = idSlots[slot] - 1;
+    			if (ids[row].equals(id))
+    				return row;
+    		}
+    		return -1;
+    	}
+    	
+    	/*
+    	 * Set the values for the row, adding a new row if row is negative.
+    	 */
+    	void put(int row, String id, long millis, int typeIndex, int accountIndex, int regionIndex, int zoneIndex, int productIndex, int[] tagPairs, int off, int len) {
+    		if (row < 0) {
+    			if (size == ids.length)
+    				grow();
+    			row = size++;
+    			ids[row] = id;
+    			if (size * 2 > idSlots.length)
+    				rehash(idSlots.length * 2);
+    			else
+    				insert(row);
+    			resourceIdSlots = null;
+    			resourceIdNext = null;
+    		}
+    		startMillis[row] = millis;
+    		type[row] = typeIndex;
+    		account[row] = accountIndex;
+    		region[row] = regionIndex;
+    		zone[row] = zoneIndex;
+    		product[row] = productIndex;
+    		
+    		// Most updates are a later hour of the same instance with the same tags, so reuse the row's pairs if they fit
+    		if (len <= tagCount[row] * 2) {
+    			System.arraycopy(tagPairs, off, tags, tagOffset[row], len);
+    			deadTags += tagCount[row] * 2 - len;
+    		}
+    		else {
+    			deadTags += tagCount[row] * 2;
+    			tagCount[row] = 0;
+    			// Compact once at least half the pairs are unused, so the cost is spread over the updates that freed them
+    			if (deadTags >= minCompactTags && deadTags * 2 > numTags)
+    				compactTags();
+    			if (numTags + len > tags.length)
+    				tags = Arrays.copyOf(tags, Math.max(tags.length * 2, numTags + len));
+    			System.arraycopy(tagPairs, off, tags, numTags, len);
+    			tagOffset[row] = numTags;
+    			numTags += len;
+    		}
+    		tagCount[row] = len / 2;
+    		modified.set(row);
+    	}
+    	
+    	/*
+    	 * Copy the pairs still used by the rows into a new array. Rows updated out of order aren't
+    	 * sorted by offset, so they can't be moved down in place.
+    	 */
+    	private void compactTags() {
+    		int[] compacted = new int[Math.max(64, (numTags - deadTags) * 2)];
+    		int n = 0;
+    		for (int row = 0; row < size; row++) {
+    			int len = tagCount[row] * 2;
+    			System.arraycopy(tags, tagOffset[row], compacted, n, len);
+    			tagOffset[row] = n;
+    			n += len;
+    		}
+    		tags = compacted;
+    		numTags = n;
+    		deadTags = 0;
+    	}
+    	
+    	private void grow() {
+    		int capacity = ids.length * 2;
+    		ids = Arrays.copyOf(ids, capacity);
+    		startMillis = Arrays.copyOf(startMillis, capacity);
+    		type = Arrays.copyOf(type, capacity);
+    		account = Arrays.copyOf(account, capacity);
+    		region = Arrays.copyOf(region, capacity);
+    		zone = Arrays.copyOf(zone, capacity);
+    		product = Arrays.copyOf(product, capacity);
+    		tagOffset = Arrays.copyOf(tagOffset, capacity);
+    		tagCount = Arrays.copyOf(tagCount, capacity);
+    	}
+    	
+    	private void rehash(int capacity) {
+    		idSlots = new int[capacity];
+    		for (int row = 0; row < size; row++)
+    			insert(row);
+    	}
+    	
+    	private void insert(int row) {
+    		int mask = idSlots.length - 1;
+    		int slot = hash(ids[row]) & mask;
+    		while (idSlots[slot] != 0)
+    			slot = (slot + 1) & mask;
+    		idSlots[slot] = row + 1;
+    	}
+    	
+    	/*
+    	 * Return the first row in the chain for the resource id's hash or -1 if there isn't one.
+    	 * Callers follow resourceIdNext and check each row's resource id.
+    	 */
+    	int findResourceId(String resourceId) {
+    		if (resourceIdSlots == null) {
+    			resourceIdSlots = new int[idSlots.length];
+    			Arrays.fill(resourceIdSlots, -1);
+    			resourceIdNext = new int[size];
+    			int mask = resourceIdSlots.length - 1;
+    			// Build the chains backwards so they list the rows in order
+    			for (int row = size - 1; row >= 0; row--) {
+    				String r = resourceId(ids[row]);
+    				if (r == null) {
+    					resourceIdNext[row] = -1;
+    					continue;
+    				}
+    				int slot = hash(r) & mask;
+    				resourceIdNext[row] = resourceIdSlots[slot];
+    				resourceIdSlots[slot] = row;
+    			}
+    		}
+    		return resourceIdSlots[hash(resourceId) & (resourceIdSlots.length - 1)];
+    	}
+    	
+    	private static int hash(String s) {
+    		// Spread the bits so ids that differ only in their last characters don't cluster
+    		int h = s.hashCode();
+    		h ^= (h >>> 16);
+    		h *= 0x85ebca6b;
+    		return h ^ (h >>> 13);
+    	}
+    	
+    	Instance instance(int row) {
+    		Map<String, String> tagMap = Maps.newHashMapWithExpectedSize(tagCount[row]);
+    		for (int i = tagOffset[row]; i < tagOffset[row] + tagCount[row] * 2; i += 2)
+    			tagMap.put(tagKeys.values.get(tags[i]), tagValues.values.get(tags[i + 1]));
+    		return new Instance(ids[row], types.values.get(type[row]), accounts.values.get(account[row]), regions.values.get(region[row]),
+    				zones.values.get(zone[row]), products.values.get(product[row]), tagMap, startMillis[row]);
+    	}
     }
 }
@@ -0,0 +1,256 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.processor;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Sets;
+import com.netflix.ice.common.AccountService;
+import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.Codec;
+import com.netflix.ice.common.ProductService;
+
+/**
+ * Intermediate results of processing a month of billing data saved after each stage, so a run that fails late
+ * resumes from the last completed stage rather than downloading and parsing the reports again. A small state
+ * file records the stage and the revisions of the reports the results were built from, and is only written
+ * once the data has been, so it never refers to a partial checkpoint.
+ */
+public class MonthCheckpoint {
+    protected Logger logger = LoggerFactory.getLogger(getClass());
+
+    public static final String dbName = "checkpoint_";
+    private static final int version = 2;
+
+    /**
+     * Processing stages in the order they're completed.
+     */
+    public enum Stage {
+    	none,
+    	parsed,
+    	reserved,
+    	postProcessed;
+    }
+
+    public enum Location {
+    	none,
+    	local,
+    	workBucket;
+    }
+
+    /**
+     * Stage and end time of the data read by load().
+     */
+    public static class Loaded {
+    	public final Stage stage;
+    	public final long endMilli;
+
+    	Loaded(Stage stage, long endMilli) {
+    		this.stage = stage;
+    		this.endMilli = endMilli;
+    	}
+    }
+
+    private final String workS3BucketName;
+    private final String workS3BucketPrefix;
+    private final Location location;
+    private final String revision;
+    private final File stateFile;
+    private final File dataFile;
+
+    MonthCheckpoint(String localDir, String workS3BucketName, String workS3BucketPrefix, Location location, DateTime month, List<MonthlyReport> reports) {
+    	this.workS3BucketName = workS3BucketName;
+    	this.workS3BucketPrefix = workS3BucketPrefix;
+    	this.location = location;
+    	Set<String> revisions = Sets.newTreeSet();
+    	for (MonthlyReport report: reports)
+    		revisions.add(report.getRevision());
+    	this.revision = Joiner.on(",").join(revisions);
+    	String name = dbName + AwsUtils.monthDateFormat.print(month);
+    	this.stateFile = new File(localDir, name);
+    	this.dataFile = new File(localDir, name + "_data");
+    }
+
+    public boolean isEnabled() {
+    	return location != Location.none;
+    }
+
+    /**
+     * Get the last completed stage if the checkpoint was built from the same revisions of the reports.
+     */
+    public Stage getSavedStage() {
+    	if (!isEnabled())
+    		return Stage.none;
+    	try {
+	    	if (location == Location.workBucket && !download(stateFile))
+	    		return Stage.none;
+	    	if (!stateFile.exists())
+	    		return Stage.none;
+
+	    	BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), StandardCharsets.UTF_8));
+	    	try {
+	    		String savedRevision = reader.readLine();
+	    		String stage = reader.readLine();
+	    		if (!revision.equals(savedRevision) || stage == null) {
+	    			logger.info("ignoring checkpoint " + stateFile.getName() + " for different reports");
+	    			return Stage.none;
+	    		}
+	    		return Stage.valueOf(stage);
+	    	}
+	    	finally {
+	    		reader.close();
+	    	}
+    	}
+    	catch (Exception e) {
+    		logger.error("unable to read checkpoint " + stateFile.getName() + ", " + e);
+    		return Stage.none;
+    	}
+    }
+
+    /**
+     * Save the results of the completed stage.
+     */
+    public void save(Stage stage, CostAndUsageData data, long endMilli, Instances instances) throws IOException {
+    	if (!isEnabled())
+    		return;
+    	long start = System.currentTimeMillis();
+
+    	File tmp = new File(dataFile.getPath() + ".tmp");
+    	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Codec.snappy.compress(new FileOutputStream(tmp))));
+    	try {
+    		out.writeInt(version);
+    		out.writeUTF(revision);
+    		out.writeUTF(stage.name());
+    		out.writeLong(endMilli);
+    		data.writeCheckpoint(out);
+
+    		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    		DataOutputStream instancesOut = new DataOutputStream(bytes);
+    		instances.write(instancesOut, false);
+    		instancesOut.close();
+    		out.writeInt(bytes.size());
+    		bytes.writeTo(out);
+    	}
+    	finally {
+    		out.close();
+    	}
+    	if (!tmp.renameTo(dataFile)) {
+    		dataFile.delete();
+    		if (!tmp.renameTo(dataFile))
+    			throw new IOException("unable to rename " + tmp + " to " + dataFile);
+    	}
+
+    	Writer state = new OutputStreamWriter(new FileOutputStream(stateFile), StandardCharsets.UTF_8);
+    	try {
+    		state.write(revision + "\n" + stage.name() + "\n");
+    	}
+    	finally {
+    		state.close();
+    	}
+
+    	if (location == Location.workBucket) {
+    		AwsUtils.upload(workS3BucketName, workS3BucketPrefix, dataFile);
+    		AwsUtils.upload(workS3BucketName, workS3BucketPrefix, stateFile);
+    	}
+    	logger.info("saved checkpoint " + stateFile.getName() + " after stage " + stage + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Load the data saved by the last completed stage. The stage is taken from the data rather than the state file,
+     * since a run that stops between writing the two leaves the state file one stage behind.
+     */
+    public Loaded load(CostAndUsageData data, Instances instances, AccountService accountService, ProductService productService) throws Exception {
+    	if (location == Location.workBucket)
+    		download(dataFile);
+
+    	long start = System.currentTimeMillis();
+    	DataInputStream in = new DataInputStream(Codec.decompress(new FileInputStream(dataFile)));
+    	try {
+    		if (in.readInt() != version)
+    			throw new IOException("unsupported checkpoint version");
+    		if (!revision.equals(in.readUTF()))
+    			throw new IOException("checkpoint data is for different reports than the state file");
+    		Stage stage = Stage.valueOf(in.readUTF());
+    		long endMilli = in.readLong();
+    		data.readCheckpoint(in);
+
+    		byte[] bytes = new byte[in.readInt()];
+    		in.readFully(bytes);
+    		instances.read(new DataInputStream(new ByteArrayInputStream(bytes)), accountService, productService);
+
+    		logger.info("loaded checkpoint " + stateFile.getName() + " after stage " + stage + " in " + (System.currentTimeMillis() - start) + "ms");
+    		return new Loaded(stage, endMilli);
+    	}
+    	finally {
+    		in.close();
+    	}
+    }
+
+    /**
+     * Remove the checkpoint once the month has been archived.
+     */
+    public void delete() {
+    	if (!isEnabled())
+    		return;
+    	stateFile.delete();
+    	dataFile.delete();
+    	if (location == Location.workBucket) {
+    		try {
+    			// Remove the state first so it never refers to missing data
+    			AwsUtils.deleteFile(workS3BucketName, workS3BucketPrefix + stateFile.getName());
+    			AwsUtils.deleteFile(workS3BucketName, workS3BucketPrefix + dataFile.getName());
+    		}
+    		catch (Exception e) {
+    			logger.error("unable to delete checkpoint " + stateFile.getName() + ", " + e);
+    		}
+    	}
+    }
+
+    private boolean download(File file) {
+    	try {
+    		AwsUtils.downloadFileIfChanged(workS3BucketName, workS3BucketPrefix, file);
+    		return true;
+    	}
+    	catch (AmazonS3Exception e) {
+    		if (e.getStatusCode() != 404)
+    			throw e;
+    		return false;
+    	}
+    }
+}
@@ -38,5 +38,12 @@ public abstract class MonthlyReport extends Report {
 	 * If report has multiple files, getReportKeys will return the keys to the files.
 	 */
 	abstract public String[] getReportKeys();
+	
+	/**
+	 * Identifies the version of the report so results derived from it can be matched to it later.
+	 */
+	public String getRevision() {
+		return getReportKey() + "@" + getLastModifiedMillis();
+	}
 
 }
@@ -17,6 +17,7 @@
  */
 package com.netflix.ice.processor;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.TreeMap;
 
@@ -37,4 +38,10 @@ public interface MonthlyReportProcessor {
 		    Instances instances) throws Exception;
 
 	abstract public ReservationProcessor getReservationProcessor();
+	
+	/**
+	 * Create a reservation processor that isn't shared with any other month. Reservation processors hold
+	 * state for the month being processed, so months processed concurrently each need their own.
+	 */
+	abstract public ReservationProcessor newReservationProcessor() throws IOException;
 }
@@ -83,6 +83,12 @@ public class ProcessorConfig extends Config {
     public final boolean processOnce;
     public final String processorRegion;
     public final String processorInstanceId;
+    public final int monthParallelism;
+    public final double monthMemoryGuard;
+    public final boolean streamReports;
+    public final int streamBufferSize;
+    public final boolean archiveLocalFiles;
+    public final MonthCheckpoint.Location checkpoints;
 
     public final String useCostForResourceGroup;
     public final List<JsonFileType> jsonFiles;
@@ -192,6 +198,18 @@ public class ProcessorConfig extends Config {
                 : Boolean.parseBoolean(properties.getProperty(IceOptions.PROCESS_ONCE));
         processorRegion = properties.getProperty(IceOptions.PROCESSOR_REGION);
         processorInstanceId = properties.getProperty(IceOptions.PROCESSOR_INSTANCE_ID);
+        monthParallelism = Math.max(1, Integer.parseInt(properties.getProperty(IceOptions.PROCESSOR_MONTH_PARALLELISM, "1")));
+        monthMemoryGuard = Double.parseDouble(properties.getProperty(IceOptions.PROCESSOR_MONTH_MEMORY_GUARD, "50")) / 100;
+        streamReports = Boolean.parseBoolean(properties.getProperty(IceOptions.PROCESSOR_STREAM_REPORTS, "false"));
+        streamBufferSize = Integer.parseInt(properties.getProperty(IceOptions.PROCESSOR_STREAM_BUFFER, "16")) * 1024 * 1024;
+        archiveLocalFiles = Boolean.parseBoolean(properties.getProperty(IceOptions.PROCESSOR_ARCHIVE_LOCAL_FILES, "false"));
+        DataFile.setStreamUploads(!archiveLocalFiles);
+        AwsUtils.setUploadOptions(Integer.parseInt(properties.getProperty(IceOptions.UPLOAD_PART_SIZE, "16")),
+        		Integer.parseInt(properties.getProperty(IceOptions.UPLOAD_THREADS, "4")));
+        DataFile.setCodecs(Codec.valueOf(properties.getProperty(IceOptions.PROCESSOR_HOURLY_CODEC, "gzip")),
+        		Codec.valueOf(properties.getProperty(IceOptions.PROCESSOR_SUMMARY_CODEC, "gzip")));
+        checkpoints = MonthCheckpoint.Location.valueOf(properties.getProperty(IceOptions.PROCESSOR_CHECKPOINTS, "none"));
+        CostAndUsageData.setMemoryBudget(Long.parseLong(properties.getProperty(IceOptions.PROCESSOR_MEMORY_BUDGET_MB, "0")) << 20);
 
         ProcessorConfig.instance = this;
 
@@ -22,6 +22,7 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -62,6 +63,17 @@ public class ReadWriteData extends ReadWriteGenericData<Double> {
         return v != 0 ? v : null;
 	}
 	
+	@Override
+	protected int getValueSize() {
+		return 8;
+	}
+
+	@Override
+	protected boolean isPresent(ByteBuffer values, int offset) {
+		// readValue() treats both positive and negative zero as missing, so ignore the sign bit
+		return (values.getLong(offset) & Long.MAX_VALUE) != 0;
+	}
+	
 	@Override
     protected Double add(Double a, Double b) {
 		return a + b;
@@ -109,7 +121,7 @@ public class ReadWriteData extends ReadWriteGenericData<Double> {
         	map.put(tag, v);
         }
 
-        this.data = data;
+        replaceData(data);
     }
 
 }
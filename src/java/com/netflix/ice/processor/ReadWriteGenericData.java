@@ -17,29 +17,70 @@
  */
 package com.netflix.ice.processor;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.netflix.ice.common.AccountService;
 import com.netflix.ice.common.ProductService;
 import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.common.TagGroupRI;
+import com.netflix.ice.common.TagGroupSP;
+import com.netflix.ice.tag.ReservationArn;
+import com.netflix.ice.tag.SavingsPlanArn;
 import com.netflix.ice.tag.Zone.BadZone;
 
 public abstract class ReadWriteGenericData<T> implements ReadWriteDataSerializer {
+    private final static Logger logger = LoggerFactory.getLogger(ReadWriteGenericData.class);
+    
     protected List<Map<TagGroup, T>> data;
     // Cached set of tagGroup keys used throughout the list of data maps.
     // Post processing for reservations, savings plans, savings data, post processor, and data writing
     // all need an aggregated set of tagGroups and it's very expensive to walk the maps calling addAll().
     protected Set<TagGroup> tagGroups;
+    
+    // Encoded values of the intervals loaded by deserialize() or moved to a spill file by spill() that haven't
+    // been modified, in the tag group order of rawKeys. An interval's map in data is null until it's first
+    // accessed, and its raw values are dropped once it can be modified. For data with fixed size values,
+    // serialize() copies the raw values of unmodified intervals through without decoding them.
+    private List<ByteBuffer> raw = null;
+    private List<TagGroup> rawKeys = null;
+    private Map<TagGroup, Integer> rawIndex = null;
+    // Mappings of the current spill file, unmapped when the data is spilled to a new one
+    private List<MappedByteBuffer> mappings = null;
+    
+    // Position of the last access in the owner's access order, used to pick the data to spill
+    long lastAccess = 0;
+    
+    // Kinds of tag group in a checkpoint
+    private static final byte checkpointTagGroup = 0;
+    private static final byte checkpointReservation = 1;
+    private static final byte checkpointSavingsPlan = 2;
 
 	public ReadWriteGenericData() {
         data = Lists.newArrayList();
@@ -47,31 +88,50 @@ public abstract class ReadWriteGenericData<T> implements ReadWriteDataSerializer
     }
 
     public int getNum() {
+    	flush();
         return data.size();
     }
 
     void cutData(int num) {
-        if (data.size() > num)
+    	flush();
+        if (data.size() > num) {
             data = data.subList(0, num);
+            if (raw != null)
+            	raw = raw.subList(0, num);
+        }
     }
 
+    /**
+     * Gets the map of values for interval i. Although the map can't be modified, the call isn't a pure read:
+     * it flushes values counted outside the maps, keeps the map of an interval loaded by deserialize() once
+     * it's decoded, and creates empty maps up to interval i if it's past the end, which changes getNum().
+     * Use get(), getTagGroups(i) or getNum() to read the data without growing it.
+     */
     public Map<TagGroup, T> getData(int i) {
+    	flush();
+    	if (i < data.size())
+    		return Collections.unmodifiableMap(decode(i, true));
         return Collections.unmodifiableMap(getCreateData(i));
     }
     
     public T get(int i, TagGroup tagGroup) {
+    	flush();
+    	if (raw != null && i < data.size() && getValueSize() > 0)
+    		return getRawValue(i, tagGroup);
     	return getData(i).get(tagGroup);
     }
 
     public void put(int i, TagGroup tagGroup, T value) {
+    	flush();
     	getCreateData(i).put(tagGroup, value);
     	tagGroups.add(tagGroup);
     }
 
     public T remove(int i, TagGroup tagGroup) {
+    	flush();
     	if (i >= data.size())
     		return null;
-    	T existing = data.get(i).remove(tagGroup);
+    	T existing = decode(i, false).remove(tagGroup);
     	if (existing != null) {
     		// See if we can purge the value from the cache
     		boolean found = false;
@@ -81,8 +141,7 @@ public abstract class ReadWriteGenericData<T> implements ReadWriteDataSerializer
     		// can save time by checking from back to front since we'll
     		// bail quickly if we find the tagGroup at the end.
     		for (int j = data.size() - 1; j >= 0; j--) {
-    			Map<TagGroup, T> d = data.get(j);
-    			if (d.containsKey(tagGroup)) {
+    			if (hasValue(j, tagGroup)) {
     				found = true;
     				break;
     			}
@@ -98,6 +157,7 @@ public abstract class ReadWriteGenericData<T> implements ReadWriteDataSerializer
      * Set the supplied data in the map. Called by the cost and usage data archiver to merge summary data.
      */
     void setData(List<Map<TagGroup, T>> newData, int startIndex) {
+    	flush();
         for (int i = 0; i < newData.size(); i++) {
             int index = startIndex + i;
 
@@ -105,17 +165,19 @@ public abstract class ReadWriteGenericData<T> implements ReadWriteDataSerializer
                 getCreateData(index-1);
             }
             if (index >= data.size()) {
-                data.add(newData.get(i));
+                addData(newData.get(i));
             }
             else {
-            	Map<TagGroup, T> removed = data.set(index, newData.get(i));
+            	Collection<TagGroup> removed = getKeys(index);
+            	data.set(index, newData.get(i));
+            	if (raw != null)
+            		raw.set(index, null);
             	if (removed != null) {
-	            	for (TagGroup tg: removed.keySet()) {
+	            	for (TagGroup tg: removed) {
 	            		// See if we can purge the value from the cache
 	            		boolean found = false;
 	            		for (int j = 0; j < data.size(); j++) {
-	            			Map<TagGroup, T> d = data.get(j);
-	            			if (d.containsKey(tg)) {
+	            			if (hasValue(j, tg)) {
 	            				found = true;
 	            				break;
 	            			}
@@ -135,19 +197,21 @@ public abstract class ReadWriteGenericData<T> implements ReadWriteDataSerializer
      * Merge all the data from the source into the existing destination.
      */
     void putAll(ReadWriteGenericData<T> srcData) {
-    	List<Map<TagGroup, T>> newData = srcData.data;
-        for (int i = 0; i < newData.size(); i++) {
+    	flush();
+    	srcData.flush();
+        for (int i = 0; i < srcData.getNum(); i++) {
+        	Map<TagGroup, T> newData = srcData.getCreateData(i);
             if (i > data.size()) {
                 getCreateData(i-1);
             }
             if (i >= data.size()) {
-                data.add(newData.get(i));
+                addData(newData);
             }
             else {
-                Map<TagGroup, T> existed = data.get(i);
-                for (TagGroup tg: newData.get(i).keySet()) {
+                Map<TagGroup, T> existed = decode(i, false);
+                for (TagGroup tg: newData.keySet()) {
                 	T existingValue = existed.get(tg);
-                	T value = newData.get(i).get(tg);
+                	T value = newData.get(tg);
                     existed.put(tg, existingValue == null ? value : add(existingValue, value));
                 }
             }
@@ -155,13 +219,141 @@ public abstract class ReadWriteGenericData<T> implements ReadWriteDataSerializer
         tagGroups.addAll(srcData.tagGroups);
     }
 
+    /**
+     * Replace all the data, e.g. with data read from another format.
+     */
+    protected void replaceData(List<Map<TagGroup, T>> data) {
+    	flush();
+    	this.data = data;
+    	this.raw = null;
+    }
+
     Map<TagGroup, T> getCreateData(int i) {
+    	flush();
         if (i >= data.size()) {
             for (int j = data.size(); j <= i; j++) {
-                data.add(Maps.<TagGroup, T>newHashMap());
+                addData(Maps.<TagGroup, T>newHashMap());
             }
         }
-        return data.get(i);
+        return decode(i, false);
+    }
+    
+    private void addData(Map<TagGroup, T> map) {
+    	data.add(map);
+    	if (raw != null)
+    		raw.add(null);
+    }
+    
+    /*
+     * Get the map for interval i, decoding its raw values if it hasn't been accessed yet. The raw values are
+     * kept if the caller only reads the map.
+     */
+    private synchronized Map<TagGroup, T> decode(int i, boolean readOnly) {
+    	if (raw == null)
+    		return data.get(i);
+    	if (readOnly)
+    		return decodeReadOnly(i);
+    	Map<TagGroup, T> map = data.get(i);
+    	ByteBuffer values = raw.get(i);
+    	if (map == null) {
+    		map = readValues(values);
+    		data.set(i, map);
+    	}
+    	if (values != null)
+    		raw.set(i, null);
+    	return map;
+    }
+    
+    /*
+     * Several archive threads can read the same data, so decode each interval under the lock. Intervals in a
+     * spill file are decoded on every read rather than kept, or archiving would bring them back onto the heap.
+     */
+    private synchronized Map<TagGroup, T> decodeReadOnly(int i) {
+    	Map<TagGroup, T> map = data.get(i);
+    	if (map == null) {
+    		ByteBuffer values = raw.get(i);
+    		map = readValues(values);
+    		if (!values.isDirect())
+    			data.set(i, map);
+    	}
+    	return map;
+    }
+    
+    /*
+     * Get one value of interval i, reading it from the raw values if the interval hasn't been decoded.
+     */
+    private synchronized T getRawValue(int i, TagGroup tagGroup) {
+    	Map<TagGroup, T> map = data.get(i);
+    	if (map != null)
+    		return map.get(tagGroup);
+    	Integer index = rawIndex.get(tagGroup);
+    	if (index == null)
+    		return null;
+    	ByteBuffer values = raw.get(i).duplicate();
+    	values.position(index * getValueSize());
+		try {
+			return readValue(new DataInputStream(new ByteBufferInputStream(values)));
+		}
+		catch (IOException e) {
+			// Can't happen, see readValues()
+			throw new RuntimeException(e);
+		}
+    }
+    
+    /*
+     * Get the map for interval i without keeping it if it has to be decoded.
+     */
+    private synchronized Map<TagGroup, T> peek(int i) {
+    	Map<TagGroup, T> map = data.get(i);
+    	return map != null ? map : readValues(raw.get(i));
+    }
+    
+    private Map<TagGroup, T> readValues(ByteBuffer values) {
+    	Map<TagGroup, T> map = Maps.newHashMap();
+		try {
+    		DataInput in = new DataInputStream(new ByteBufferInputStream(values));
+    		for (int j = 0; j < rawKeys.size(); j++) {
+    			T v = readValue(in);
+    			if (v != null)
+    				map.put(rawKeys.get(j), v);
+    		}
+		}
+		catch (IOException e) {
+			// Can't happen, the values were all read from the file when it was loaded or written by spill()
+			throw new RuntimeException(e);
+		}
+		return map;
+    }
+    
+    /*
+     * Get the tag groups with values in interval i. Doesn't decode raw values.
+     */
+    private synchronized Collection<TagGroup> getKeys(int i) {
+    	Map<TagGroup, T> map = data.get(i);
+    	if (map != null)
+    		return map.keySet();
+    	if (getValueSize() == 0)
+    		return readValues(raw.get(i)).keySet();
+    	List<TagGroup> keys = Lists.newArrayList();
+    	ByteBuffer values = raw.get(i);
+    	for (int j = 0; j < rawKeys.size(); j++) {
+    		if (isPresent(values, j * getValueSize()))
+    			keys.add(rawKeys.get(j));
+    	}
+    	return keys;
+    }
+    
+    /*
+     * True if interval i has a value for the tag group. Doesn't decode raw values.
+     */
+    private synchronized boolean hasValue(int i, TagGroup tagGroup) {
+    	Map<TagGroup, T> map = data.get(i);
+    	if (map != null)
+    		return map.containsKey(tagGroup);
+    	if (getValueSize() == 0)
+    		return readValues(raw.get(i)).containsKey(tagGroup);
+    	Integer index = rawIndex.get(tagGroup);
+    	return index != null && isPresent(raw.get(i), index * getValueSize());
     }
 
     /**
@@ -177,32 +369,129 @@ public abstract class ReadWriteGenericData<T> implements ReadWriteDataSerializer
      * Gets the tagGroup key set for the given hour
      */
     public Collection<TagGroup> getTagGroups(int i) {
-    	return getData(i).keySet();
+    	flush();
+    	if (i >= data.size())
+    		return Collections.emptySet();
+    	return Collections.unmodifiableCollection(getKeys(i));
+    }
+    
+    /**
+     * Called before the maps of data are used. Subclasses that count values outside the maps add them in.
+     */
+    protected void flush() {
+    }
+    
+    /**
+     * Size in bytes of every value written by writeValue(), or 0 if the size varies. Data with fixed size
+     * values is loaded lazily by deserialize() and the intervals that aren't modified are copied through
+     * by serialize() without being decoded.
+     */
+    protected int getValueSize() {
+    	return 0;
+    }
+    
+    /**
+     * True if the encoded value at offset isn't the encoding of a missing value. Only called when getValueSize() is not 0.
+     * Decodes the value, so subclasses override it if they can check the encoding directly.
+     */
+    protected boolean isPresent(ByteBuffer values, int offset) {
+    	ByteBuffer value = values.duplicate();
+    	value.position(offset);
+		try {
+			return readValue(new DataInputStream(new ByteBufferInputStream(value))) != null;
+		}
+		catch (IOException e) {
+			// Can't happen, see readValues()
+			throw new RuntimeException(e);
+		}
     }
     
     /**
      * Serialize data using standard Java serialization DataOutput methods in the following order:<br/>
      * 
-     * 1. TagGroup count (int)<br/>
-     * 2. TagGroup Array<br/>
-     * 3. Number of hours/days/weeks/months of data (int)<br/>
-     * 4. Data matrix:<br/>
-     * 		4a. Data present for TagGroup flag (boolean)<br/>
-     * 		4b. Data array for TagGroup (if flag is true)<br/>
+     * 1. TagGroup list using the dictionary encoding of TagGroup.Serializer.serializeTagGroupList()<br/>
+     * 2. Number of hours/days/weeks/months of data (int)<br/>
+     * 3. Data matrix:<br/>
+     * 		3a. Data present for TagGroup flag (boolean)<br/>
+     * 		3b. Data array for TagGroup (if flag is true)<br/>
      */
     public void serialize(DataOutput out, TagGroupFilter filter) throws IOException {
+    	flush();
+    	if (raw != null && filter == null && getValueSize() > 0) {
+			serializeSegments(out);
+			return;
+    	}
+    	
         Collection<TagGroup> keys = getTagGroups();
         if (filter != null)
         	keys = filter.getTagGroups(keys);
         
-        out.writeInt(keys.size());
-        for (TagGroup tagGroup: keys) {
-            TagGroup.Serializer.serialize(out, tagGroup);
+        TagGroup.Serializer.serializeTagGroupList(out, keys);
+        writeMatrix(out, keys);
+    }
+    
+    private void writeMatrix(DataOutput out, Collection<TagGroup> keys) throws IOException {
+        out.writeInt(data.size());
+        for (int i = 0; i < data.size(); i++) {
+            Map<TagGroup, T> map = peek(i);
+            out.writeBoolean(map.size() > 0);
+            if (map.size() > 0) {
+                for (TagGroup tagGroup: keys) {
+                    writeValue(out, map.get(tagGroup));
+                }
+            }
         }
+    }
+
+    /*
+     * Serialize data loaded by deserialize() in the same layout, keeping the tag group order of the file so the
+     * raw values of the unmodified intervals can be copied through. Tag groups that no longer have values are
+     * dropped from the list and new ones are appended, so only the modified intervals are encoded again.
+     */
+    private synchronized void serializeSegments(DataOutput out) throws IOException {
+    	int size = getValueSize();
+    	List<TagGroup> keys = Lists.newArrayListWithCapacity(tagGroups.size());
+    	// Byte ranges of the raw values to copy, as pairs of offset and length
+    	List<Integer> ranges = Lists.newArrayList();
+    	for (int j = 0; j < rawKeys.size(); j++) {
+    		if (!tagGroups.contains(rawKeys.get(j)))
+    			continue;
+    		keys.add(rawKeys.get(j));
+    		int last = ranges.size() - 2;
+    		if (last >= 0 && ranges.get(last) + ranges.get(last + 1) == j * size)
+    			ranges.set(last + 1, ranges.get(last + 1) + size);
+    		else {
+    			ranges.add(j * size);
+    			ranges.add(size);
+    		}
+    	}
+    	int numRawKeys = keys.size();
+    	for (TagGroup tg: tagGroups) {
+    		if (!rawIndex.containsKey(tg))
+    			keys.add(tg);
+    	}
+    	
+    	// Missing values for the appended tag groups
+    	ByteArrayOutputStream padding = new ByteArrayOutputStream();
+    	DataOutputStream paddingOut = new DataOutputStream(padding);
+    	for (int j = numRawKeys; j < keys.size(); j++)
+    		writeValue(paddingOut, null);
+    	paddingOut.close();
+    	byte[] missing = padding.toByteArray();
+    	
+        TagGroup.Serializer.serializeTagGroupList(out, keys);
 
         out.writeInt(data.size());
         for (int i = 0; i < data.size(); i++) {
-            Map<TagGroup, T> map = getData(i);
+        	ByteBuffer values = raw.get(i);
+        	if (values != null) {
+        		out.writeBoolean(true);
+        		for (int r = 0; r < ranges.size(); r += 2)
+        			write(out, values, ranges.get(r), ranges.get(r + 1));
+        		out.write(missing);
+        		continue;
+        	}
+            Map<TagGroup, T> map = data.get(i);
             out.writeBoolean(map.size() > 0);
             if (map.size() > 0) {
                 for (TagGroup tagGroup: keys) {
@@ -212,18 +501,77 @@ public abstract class ReadWriteGenericData<T> implements ReadWriteDataSerializer
         }
     }
 
+    private static void write(DataOutput out, ByteBuffer values, int offset, int length) throws IOException {
+    	if (values.hasArray()) {
+    		out.write(values.array(), values.arrayOffset() + offset, length);
+    		return;
+    	}
+    	byte[] b = new byte[length];
+    	ByteBuffer src = values.duplicate();
+    	src.position(offset);
+    	src.get(b);
+    	out.write(b);
+    }
+
+    /**
+     * Serialize all the data for a processing checkpoint. Unlike serialize(), the reservation and savings plan
+     * ARNs of the tag groups are kept because the reservation and savings plan processors need them.
+     */
+    void serializeCheckpoint(DataOutput out) throws IOException {
+    	flush();
+    	List<TagGroup> keys = Lists.newArrayList(getTagGroups());
+        TagGroup.Serializer.serializeTagGroupList(out, keys);
+        for (TagGroup tg: keys) {
+        	if (tg instanceof TagGroupRI) {
+        		out.writeByte(checkpointReservation);
+        		out.writeUTF(((TagGroupRI) tg).arn.name);
+        	}
+        	else if (tg instanceof TagGroupSP) {
+        		out.writeByte(checkpointSavingsPlan);
+        		out.writeUTF(((TagGroupSP) tg).arn.name);
+        	}
+        	else {
+        		out.writeByte(checkpointTagGroup);
+        	}
+        }
+        writeMatrix(out, keys);
+    }
+    
+    void deserializeCheckpoint(AccountService accountService, ProductService productService, DataInput in) throws IOException, BadZone {
+    	List<TagGroup> keys = TagGroup.Serializer.deserializeTagGroupList(accountService, productService, in);
+    	for (int j = 0; j < keys.size(); j++) {
+    		TagGroup tg = keys.get(j);
+    		switch (in.readByte()) {
+    		case checkpointReservation:
+    			keys.set(j, TagGroupRI.get(tg.account, tg.region, tg.zone, tg.product, tg.operation, tg.usageType, tg.resourceGroup, ReservationArn.get(in.readUTF())));
+    			break;
+    		case checkpointSavingsPlan:
+    			keys.set(j, TagGroupSP.get(tg.account, tg.region, tg.zone, tg.product, tg.operation, tg.usageType, tg.resourceGroup, SavingsPlanArn.get(in.readUTF())));
+    			break;
+    		default:
+    			break;
+    		}
+    	}
+        tagGroups.addAll(keys);
+        readMatrix(keys, in);
+    }
+
     abstract protected void writeValue(DataOutput out, T value) throws IOException;
 
     public void deserialize(AccountService accountService, ProductService productService, DataInput in) throws IOException, BadZone {
 
-        int numKeys = in.readInt();
-        List<TagGroup> keys = Lists.newArrayList();
-        for (int j = 0; j < numKeys; j++) {
-        	TagGroup tg = TagGroup.Serializer.deserialize(accountService, productService, in);
-            keys.add(tg);
-        	tagGroups.add(tg);
-        }
+        List<TagGroup> keys = TagGroup.Serializer.deserializeTagGroupList(accountService, productService, in);
+        tagGroups.addAll(keys);
 
+        int size = getValueSize();
+        if (size > 0) {
+        	deserializeSegments(keys, size, in);
+        	return;
+        }
+        readMatrix(keys, in);
+    }
+    
+    private void readMatrix(List<TagGroup> keys, DataInput in) throws IOException {
         List<Map<TagGroup, T>> data = Lists.newArrayList();
         int num = in.readInt();
         for (int i = 0; i < num; i++)  {
@@ -241,7 +589,243 @@ public abstract class ReadWriteGenericData<T> implements ReadWriteDataSerializer
         }
         
         this.data = data;
+        this.raw = null;
+    }
+    
+    /*
+     * Read the values of each interval without decoding them. They're decoded when the interval is first accessed.
+     */
+    private void deserializeSegments(List<TagGroup> keys, int size, DataInput in) throws IOException {
+        List<Map<TagGroup, T>> data = Lists.newArrayList();
+        List<ByteBuffer> raw = Lists.newArrayList();
+        int num = in.readInt();
+        for (int i = 0; i < num; i++)  {
+            boolean hasData = in.readBoolean();
+            if (hasData) {
+            	byte[] values = new byte[keys.size() * size];
+            	in.readFully(values);
+            	data.add(null);
+            	raw.add(ByteBuffer.wrap(values));
+            }
+            else {
+            	data.add(Maps.<TagGroup, T>newHashMap());
+            	raw.add(null);
+            }
+        }
+        
+        Map<TagGroup, Integer> rawIndex = Maps.newHashMapWithExpectedSize(keys.size());
+        for (int j = 0; j < keys.size(); j++)
+        	rawIndex.put(keys.get(j), j);
+        
+        this.data = data;
+        this.raw = raw;
+        this.rawKeys = keys;
+        this.rawIndex = rawIndex;
     }
         
-    abstract protected T readValue(DataInput in) throws IOException;        
+    abstract protected T readValue(DataInput in) throws IOException;
+    
+    /**
+     * Rough number of bytes of heap used by each value in a decoded map, including the map entry.
+     */
+    protected int getEntrySize() {
+    	return 64;
+    }
+    
+    /**
+     * Rough number of bytes of heap used by the decoded maps and by the raw values that aren't in a spill file.
+     */
+    long getMemorySize() {
+    	long size = 0;
+    	int entrySize = getEntrySize();
+    	for (int i = 0; i < data.size(); i++) {
+    		Map<TagGroup, T> map = data.get(i);
+    		if (map != null)
+    			size += (long) map.size() * entrySize;
+    		ByteBuffer values = raw == null ? null : raw.get(i);
+    		if (values != null && !values.isDirect())
+    			size += values.capacity();
+    	}
+    	return size;
+    }
+    
+    /*
+     * True if all the intervals with values are in a spill file and none have been modified since.
+     */
+    private boolean isSpilled() {
+    	if (raw == null)
+    		return false;
+    	for (int i = 0; i < data.size(); i++) {
+    		ByteBuffer values = raw.get(i);
+    		if (values == null ? data.get(i).size() > 0 : !values.isDirect())
+    			return false;
+    	}
+    	return true;
+    }
+    
+    /**
+     * Move the values of all the intervals to a memory-mapped file in dir so they no longer take up heap.
+     * Intervals are decoded again when they're next accessed, so callers holding on to this object don't
+     * see any difference. If nothing has been modified since the last spill, the decoded maps are just dropped.
+     * 
+     * @return estimated number of bytes of heap freed
+     */
+    synchronized long spill(File dir) throws IOException {
+    	flush();
+    	long before = getMemorySize();
+    	if (before == 0)
+    		return 0;
+    	if (isSpilled()) {
+    		for (int i = 0; i < data.size(); i++) {
+    			if (raw.get(i) != null)
+    				data.set(i, null);
+    		}
+    		return before - getMemorySize();
+    	}
+    	
+    	List<TagGroup> keys = Lists.newArrayList(tagGroups);
+    	int num = data.size();
+    	long[] starts = new long[num];
+    	int[] lengths = new int[num];
+    	List<ByteBuffer> spilled = Lists.newArrayListWithCapacity(num);
+    	List<MappedByteBuffer> newMappings = Lists.newArrayList();
+    	
+    	File file = File.createTempFile("spill", ".data", dir);
+    	try {
+    		// Write the values of each interval in the order of the new key list
+    		OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+    		try {
+    			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    			DataOutputStream values = new DataOutputStream(buf);
+    			long offset = 0;
+	    		for (int i = 0; i < num; i++) {
+	    			Map<TagGroup, T> map = peek(i);
+	    			if (map.size() == 0)
+	    				continue;
+	    			buf.reset();
+	    			for (TagGroup tg: keys)
+	    				writeValue(values, map.get(tg));
+	    			buf.writeTo(os);
+	    			starts[i] = offset;
+	    			lengths[i] = buf.size();
+	    			offset += buf.size();
+	    		}
+    		}
+    		finally {
+    			os.close();
+    		}
+    		
+    		// Mappings are limited to 2GB, so start a new one when the next interval doesn't fit
+    		RandomAccessFile f = new RandomAccessFile(file, "r");
+    		try {
+    			FileChannel channel = f.getChannel();
+    			long fileLength = channel.size();
+    			MappedByteBuffer mapped = null;
+    			long mappedStart = 0;
+    			for (int i = 0; i < num; i++) {
+    				if (lengths[i] == 0) {
+    					spilled.add(null);
+    					continue;
+    				}
+    				if (mapped == null || starts[i] + lengths[i] > mappedStart + mapped.capacity()) {
+    					mappedStart = starts[i];
+    					mapped = channel.map(FileChannel.MapMode.READ_ONLY, mappedStart, Math.min(Integer.MAX_VALUE, fileLength - mappedStart));
+    					newMappings.add(mapped);
+    				}
+    				ByteBuffer values = mapped.duplicate();
+    				values.position((int) (starts[i] - mappedStart));
+    				values.limit(values.position() + lengths[i]);
+    				spilled.add(values.slice());
+    			}
+    		}
+    		finally {
+    			// The mappings stay valid after the channel is closed
+    			f.close();
+    		}
+    	}
+    	finally {
+    		// The mappings keep the file's space until they're released, so it can be removed now
+    		if (!file.delete())
+    			file.deleteOnExit();
+    	}
+    	
+    	Map<TagGroup, Integer> index = Maps.newHashMapWithExpectedSize(keys.size());
+    	for (int j = 0; j < keys.size(); j++)
+    		index.put(keys.get(j), j);
+    	for (int i = 0; i < num; i++)
+    		data.set(i, spilled.get(i) == null ? Maps.<TagGroup, T>newHashMap() : null);
+    	raw = spilled;
+    	rawKeys = keys;
+    	rawIndex = index;
+    	
+    	// Nothing refers to the previous spill file any more, so give its space back now rather than when the
+    	// mappings are garbage collected. Readers of raw values hold the lock, so none can be using it.
+    	if (mappings != null) {
+    		for (MappedByteBuffer m: mappings)
+    			unmap(m);
+    	}
+    	mappings = newMappings;
+    	
+    	return before - getMemorySize();
+    }
+    
+    /**
+     * Number of mappings of the current spill file.
+     */
+    synchronized int getNumMappings() {
+    	return mappings == null ? 0 : mappings.size();
+    }
+    
+    /*
+     * Release a mapping straight away. There's no public API for this, so use the JDK's cleaner if we can get at it.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+    	try {
+    		try {
+    			// Java 9 and later
+    			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+    			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+    			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+    			theUnsafe.setAccessible(true);
+    			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+    		}
+    		catch (NoSuchMethodException e) {
+    			// Java 8
+    			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+    			cleanerMethod.setAccessible(true);
+    			Object cleaner = cleanerMethod.invoke(buffer);
+    			cleaner.getClass().getMethod("clean").invoke(cleaner);
+    		}
+    	}
+    	catch (Exception e) {
+    		logger.warn("unable to unmap spill file, it will be released when garbage collected: " + e);
+    	}
+    }
+    
+    /*
+     * Reads a buffer without changing its position so it can be shared by concurrent readers.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+    	private final ByteBuffer buf;
+    	
+    	ByteBufferInputStream(ByteBuffer buf) {
+    		this.buf = buf.duplicate();
+    	}
+
+		@Override
+		public int read() {
+			return buf.hasRemaining() ? buf.get() & 0xff : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buf.hasRemaining())
+				return -1;
+			int n = Math.min(len, buf.remaining());
+			buf.get(b, off, n);
+			return n;
+		}
+    }
 }
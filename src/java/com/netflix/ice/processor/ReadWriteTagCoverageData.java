@@ -20,15 +20,24 @@ package com.netflix.ice.processor;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.netflix.ice.common.TagGroup;
 
 public class ReadWriteTagCoverageData extends ReadWriteGenericData<TagCoverageMetrics> {
 	private final int numUserTags;
 	
+	// Coverage counted by add() that hasn't been added to the maps of data yet. Tag groups are given ids
+	// in the order they're first counted.
+	private final Map<TagGroup, Integer> counterIds = Maps.newHashMap();
+	private final List<TagGroup> counterTagGroups = Lists.newArrayList();
+	private Counters[] counters = new Counters[0];
+	private int numCounterIntervals = 0;
+	
     static public Map<TagGroup, TagCoverageMetrics> getCreateData(List<Map<TagGroup, TagCoverageMetrics>> data, int i) {
         if (i >= data.size()) {
             for (int j = data.size(); j <= i; j++) {
@@ -56,6 +65,150 @@ public class ReadWriteTagCoverageData extends ReadWriteGenericData<TagCoverageMe
 		return hasValue ? TagCoverageMetrics.deserialize(in, numUserTags) : null;
 	}
 	
+	/**
+	 * Count a line item's user tag coverage in each of the supplied intervals. The counts are kept in
+	 * primitive arrays and only turned into TagCoverageMetrics when the maps of data are next used.
+	 */
+	public void add(int[] indexes, TagGroup tagGroup, boolean[] userTagCoverage) {
+		Integer id = counterIds.get(tagGroup);
+		if (id == null) {
+			id = counterTagGroups.size();
+			counterIds.put(tagGroup, id);
+			counterTagGroups.add(tagGroup);
+		}
+		for (int i: indexes) {
+			if (i >= counters.length)
+				counters = Arrays.copyOf(counters, Math.max(i + 1, counters.length * 2));
+			if (counters[i] == null)
+				counters[i] = new Counters(1 + userTagCoverage.length);
+			counters[i].add(id, userTagCoverage);
+			numCounterIntervals = Math.max(numCounterIntervals, i + 1);
+		}
+		tagGroups.add(tagGroup);
+	}
+	
+	/*
+	 * Archive threads read the same data and every read flushes first, so only one of them can move the counters into the maps.
+	 */
+	@Override
+	protected synchronized void flush() {
+		if (numCounterIntervals == 0)
+			return;
+		Counters[] pending = counters;
+		int num = numCounterIntervals;
+		counters = new Counters[0];
+		numCounterIntervals = 0;
+		
+		for (int i = 0; i < num; i++) {
+			Counters c = pending[i];
+			if (c == null)
+				continue;
+			Map<TagGroup, TagCoverageMetrics> map = getCreateData(i);
+			for (int slot = 0; slot < c.ids.length; slot++) {
+				if (c.ids[slot] == 0)
+					continue;
+				TagGroup tagGroup = counterTagGroups.get(c.ids[slot] - 1);
+				int block = c.blocks[slot];
+				TagCoverageMetrics metrics = new TagCoverageMetrics(c.counts[block], Arrays.copyOfRange(c.counts, block + 1, block + c.width));
+				TagCoverageMetrics existing = map.get(tagGroup);
+				if (existing == null)
+					map.put(tagGroup, metrics);
+				else
+					existing.add(metrics);
+			}
+		}
+		counterIds.clear();
+		counterTagGroups.clear();
+	}
+	
+	@Override
+	long getMemorySize() {
+		long size = super.getMemorySize();
+		for (int i = 0; i < numCounterIntervals; i++) {
+			if (counters[i] != null)
+				size += counters[i].getMemorySize();
+		}
+		return size;
+	}
+	
+	/*
+	 * Coverage counts for one interval. Each tag group's total and user tag counts are a block of ints in
+	 * counts, found through an open addressed table of tag group ids.
+	 */
+	private static class Counters {
+		final int width;
+		// Tag group id + 1 of each slot, zero if the slot is empty, and the start of the slot's block in counts
+		int[] ids = new int[16];
+		int[] blocks = new int[16];
+		int[] counts;
+		int size = 0;
+		
+		Counters(int width) {
+			this.width = width;
+			counts = new int[width * 8];
+		}
+		
+		void add(int id, boolean[] userTagCoverage) {
+			int block = find(id);
+			counts[block]++;
+			for (int j = 0; j < userTagCoverage.length; j++) {
+				if (userTagCoverage[j])
+					counts[block + 1 + j]++;
+			}
+		}
+		
+		private int find(int id) {
+			int mask = ids.length - 1;
+			int slot = hash(id) & mask;
+			while (ids[slot] != 0) {
+				if (ids[slot] == id + 1)
+					return blocks[slot];
+				slot = (slot + 1) & mask;
+			}
+			int block = size * width;
+			if (block + width > counts.length)
+				counts = Arrays.copyOf(counts, counts.length * 2);
+			ids[slot] = id + 1;
+			blocks[slot] = block;
+			size++;
+			if (size * 2 > ids.length)
+				rehash();
+			return block;
+		}
+		
+		private void rehash() {
+			int[] oldIds = ids;
+			int[] oldBlocks = blocks;
+			ids = new int[oldIds.length * 2];
+			blocks = new int[oldIds.length * 2];
+			int mask = ids.length - 1;
+			for (int i = 0; i < oldIds.length; i++) {
+				if (oldIds[i] == 0)
+					continue;
+				int slot = hash(oldIds[i] - 1) & mask;
+				while (ids[slot] != 0)
+					slot = (slot + 1) & mask;
+				ids[slot] = oldIds[i];
+				blocks[slot] = oldBlocks[i];
+			}
+		}
+		
+		private static int hash(int id) {
+			int h = id * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+		
+		long getMemorySize() {
+			return 8L * ids.length + 4L * counts.length;
+		}
+	}
+	
+	@Override
+	protected int getEntrySize() {
+		// Map entry, metrics object and its array of counts
+		return 80 + 4 * numUserTags;
+	}
+	
 	@Override
     protected TagCoverageMetrics add(TagCoverageMetrics a, TagCoverageMetrics b) {
 		a.add(b);
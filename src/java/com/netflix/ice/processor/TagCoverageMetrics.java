@@ -95,13 +95,17 @@ public class TagCoverageMetrics {
 		return metrics;
 	}
 	
+	public void add(boolean[] userTagCoverage) {
+		total++;
+		for (int i = 0; i < userTagCoverage.length; i++) {
+			if (userTagCoverage[i])
+				counts[i]++;
+		}
+	}
+	
 	static public TagCoverageMetrics add(TagCoverageMetrics existing, boolean[] userTagCoverage) {
 		TagCoverageMetrics metrics = existing == null ? new TagCoverageMetrics(userTagCoverage.length) : existing;
-		
-		metrics.total++;
-		for (int i = 0; i < userTagCoverage.length; i++)
-			metrics.counts[i] += userTagCoverage[i] ? 1 : 0;
-		
+		metrics.add(userTagCoverage);
 		return metrics;
 	}
 }
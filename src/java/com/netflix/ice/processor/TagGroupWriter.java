@@ -20,6 +20,8 @@ package com.netflix.ice.processor;
 import com.google.common.collect.Maps;
 import com.netflix.ice.common.AccountService;
 import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.ChangeManifest;
+import com.netflix.ice.common.Codec;
 import com.netflix.ice.common.Config.WorkBucketConfig;
 import com.netflix.ice.common.ProductService;
 import com.netflix.ice.common.TagGroup;
@@ -30,7 +32,6 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.util.Collection;
 import java.util.TreeMap;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 public class TagGroupWriter {
@@ -43,10 +44,17 @@ public class TagGroupWriter {
     private final File file;
     private final boolean compress;
     private final WorkBucketConfig workBucketConfig;
+    // Records the file when it's uploaded if not null
+    private final ChangeManifest changes;
 
     TagGroupWriter(String name, boolean compress, WorkBucketConfig workBucketConfig, AccountService accountService, ProductService productService) throws Exception {
+    	this(name, compress, workBucketConfig, accountService, productService, null);
+    }
+
+    TagGroupWriter(String name, boolean compress, WorkBucketConfig workBucketConfig, AccountService accountService, ProductService productService, ChangeManifest changes) throws Exception {
     	this.compress = compress;
     	this.workBucketConfig = workBucketConfig;
+    	this.changes = changes;
 
         dbName = DB_PREFIX + name;
         String filename = dbName + (compress ? compressExtension : "");
@@ -57,7 +65,7 @@ public class TagGroupWriter {
         if (file.exists()) {
         	InputStream is = new FileInputStream(file);
         	if (compress)
-        		is = new GZIPInputStream(is);
+        		is = Codec.decompress(is);
             DataInputStream in = new DataInputStream(is);
             try {
                 tagGroups = TagGroup.Serializer.deserializeTagGroups(accountService, productService, in);
@@ -90,6 +98,8 @@ public class TagGroupWriter {
         logger.info(dbName + " uploading to s3...");
         AwsUtils.upload(workBucketConfig.workS3BucketName, workBucketConfig.workS3BucketPrefix, workBucketConfig.localDir, dbName);
         logger.info(dbName + " uploading done.");
+        if (changes != null)
+        	changes.add(file.getName());
     }
     
     // Output file to CSV for general debugging
@@ -182,7 +182,7 @@ public class PriceListService {
         return versionIndex;
 	}
 	
-    public InstancePrices getPrices(DateTime start, ServiceCode serviceCode) throws Exception {
+    public synchronized InstancePrices getPrices(DateTime start, ServiceCode serviceCode) throws Exception {
         VersionIndex versionIndex = getVersionIndex(getIndex(), serviceCode);
 	       
         String id = versionIndex.getVersionId(start);
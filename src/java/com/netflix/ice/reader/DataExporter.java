@@ -0,0 +1,290 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.reader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.google.common.collect.Lists;
+import com.netflix.ice.tag.Tag;
+
+/**
+ * Streams query results for download straight to an output stream.
+ *
+ * The wide layout writes one row per time interval with a column for each tag. The long layout writes one
+ * (time, tag, value) row for each non-zero value, so results can be written in pieces without ever holding the
+ * full result matrix. Rows are written as CSV or as newline-delimited JSON.
+ */
+public class DataExporter {
+	public enum Format {
+		csv,
+		ndjson;
+	}
+
+    private static final DateTimeFormatter dateFormatter = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(DateTimeZone.UTC);
+    private static final int fractionDigits = 9;
+    // Decimal digits a double always holds
+    private static final int significantDigits = 15;
+    private static final double maxFastValue = 1e9;
+
+	private final Writer out;
+	private final Format format;
+	private final boolean longFormat;
+	private final StringBuilder sb;
+	private List<Tag> columns;
+
+	public DataExporter(OutputStream os, Format format, boolean longFormat) {
+		this.out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 64 * 1024);
+		this.format = format;
+		this.longFormat = longFormat;
+		this.sb = new StringBuilder(256);
+		this.columns = null;
+	}
+
+	/**
+	 * Write the rows for a piece of the result. In the wide layout the columns are fixed by the first call
+	 * and tags not seen in that call are dropped, so the wide layout should be written with a single call.
+	 *
+	 * @param data values for each tag
+	 * @param times start time in millis of each time interval in the data arrays
+	 */
+	public void write(Map<Tag, double[]> data, long[] times) throws IOException {
+		if (columns == null) {
+			columns = Lists.newArrayList(data.keySet());
+			if (format == Format.csv)
+				writeCsvHeader();
+		}
+		if (longFormat)
+			writeLong(data, times);
+		else
+			writeWide(data, times);
+	}
+
+	public void close() throws IOException {
+		if (columns == null && format == Format.csv) {
+			columns = Lists.newArrayList();
+			writeCsvHeader();
+		}
+		out.close();
+	}
+
+	private void writeCsvHeader() throws IOException {
+		if (longFormat) {
+			out.write("Time,Tag,Value\n");
+			return;
+		}
+		sb.setLength(0);
+		sb.append("Time");
+		for (Tag tag: columns) {
+			sb.append(',');
+			appendCsv(sb, tag.name);
+		}
+		sb.append('\n');
+		out.write(sb.toString());
+	}
+
+	private void writeWide(Map<Tag, double[]> data, long[] times) throws IOException {
+		double[][] values = new double[columns.size()][];
+		for (int i = 0; i < columns.size(); i++)
+			values[i] = data.get(columns.get(i));
+
+		for (int t = 0; t < times.length; t++) {
+			sb.setLength(0);
+			if (format == Format.csv) {
+				sb.append(dateFormatter.print(times[t]));
+				for (int i = 0; i < values.length; i++) {
+					sb.append(',');
+					appendDouble(sb, values[i] == null || t >= values[i].length ? 0 : values[i][t]);
+				}
+			}
+			else {
+				sb.append("{\"time\":\"").append(dateFormatter.print(times[t])).append("\",\"values\":{");
+				for (int i = 0; i < values.length; i++) {
+					if (i > 0)
+						sb.append(',');
+					appendJsonString(sb, columns.get(i).name);
+					sb.append(':');
+					appendJsonDouble(sb, values[i] == null || t >= values[i].length ? 0 : values[i][t]);
+				}
+				sb.append('}').append('}');
+			}
+			sb.append('\n');
+			out.write(sb.toString());
+		}
+	}
+
+	private void writeLong(Map<Tag, double[]> data, long[] times) throws IOException {
+		for (int t = 0; t < times.length; t++) {
+			String time = dateFormatter.print(times[t]);
+			for (Map.Entry<Tag, double[]> entry: data.entrySet()) {
+				double[] values = entry.getValue();
+				if (t >= values.length || values[t] == 0)
+					continue;
+
+				sb.setLength(0);
+				if (format == Format.csv) {
+					sb.append(time).append(',');
+					appendCsv(sb, entry.getKey().name);
+					sb.append(',');
+					appendDouble(sb, values[t]);
+				}
+				else {
+					sb.append("{\"time\":\"").append(time).append("\",\"tag\":");
+					appendJsonString(sb, entry.getKey().name);
+					sb.append(",\"value\":");
+					appendJsonDouble(sb, values[t]);
+					sb.append('}');
+				}
+				sb.append('\n');
+				out.write(sb.toString());
+			}
+		}
+	}
+
+	/**
+	 * Append a double in plain decimal notation rounded to nine fractional digits without going through
+	 * Double.toString(). The fraction is cut short so no more than the fifteen significant digits a double
+	 * holds are written, and if that isn't enough to represent the value exactly, its Double.toString()
+	 * digits are written instead. Values too large for the fast path, NaN and infinities fall back to Double.toString().
+	 */
+	public static void appendDouble(StringBuilder sb, double value) {
+		if (value == 0) {
+			sb.append('0');
+			return;
+		}
+		double abs = Math.abs(value);
+		if (!(abs < maxFastValue)) {
+			sb.append(Double.toString(value));
+			return;
+		}
+		int digits = Math.min(fractionDigits, significantDigits - integerDigits((long) abs));
+		long scale = pow10(digits);
+		long scaled = Math.round(abs * scale);
+		if (digits < fractionDigits && scaled / (double) scale != abs) {
+			// Needs more digits than we can get from the scaled value without noise
+			sb.append(BigDecimal.valueOf(value).toPlainString());
+			return;
+		}
+		if (scaled == 0) {
+			sb.append('0');
+			return;
+		}
+		if (value < 0)
+			sb.append('-');
+		long whole = scaled / scale;
+		long fraction = scaled % scale;
+		sb.append(whole);
+		if (fraction == 0)
+			return;
+
+		// Drop trailing zeros from the fraction
+		while (fraction % 10 == 0) {
+			fraction /= 10;
+			digits--;
+		}
+		sb.append('.');
+		for (long p = pow10(digits - 1); p > fraction; p /= 10)
+			sb.append('0');
+		sb.append(fraction);
+	}
+
+	private static int integerDigits(long whole) {
+		int digits = 0;
+		for (; whole > 0; whole /= 10)
+			digits++;
+		return digits;
+	}
+
+	private static long pow10(int n) {
+		long result = 1;
+		for (int i = 0; i < n; i++)
+			result *= 10;
+		return result;
+	}
+
+	private static void appendJsonDouble(StringBuilder sb, double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			sb.append("null");
+		else
+			appendDouble(sb, value);
+	}
+
+	private static void appendCsv(StringBuilder sb, String value) {
+		boolean quote = false;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+				quote = true;
+				break;
+			}
+		}
+		if (!quote) {
+			sb.append(value);
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"')
+				sb.append('"');
+			sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	private static void appendJsonString(StringBuilder sb, String value) {
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+}
@@ -25,6 +25,7 @@ import com.netflix.ice.tag.UserTag;
 import org.joda.time.DateTime;
 import org.joda.time.Interval;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -55,8 +56,52 @@ public interface DataManager {
      */
     Map<Tag, double[]> getData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex);
 
+    /**
+     * Get map of data with the groupBy tags aggregated under the keys supplied by the mapper.
+     * @param interval
+     * @param tagLists
+     * @param groupBy
+     * @param aggregate
+     * @param exclude
+     * @param usageUnit
+     * @param userTagGroupByIndex
+     * @param mapper groupBy key mapper, may be null
+     * @return
+     */
+    Map<Tag, double[]> getData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex, GroupKeyMapper mapper);
+
+    /**
+     * Get map of data for the groupBy values in groups with all other groupBy values combined under Tag.other.
+     * @param interval
+     * @param tagLists
+     * @param groupBy
+     * @param aggregate
+     * @param exclude
+     * @param usageUnit
+     * @param userTagGroupByIndex
+     * @param mapper groupBy key mapper, may be null
+     * @param groups groupBy values to return, null returns all of them
+     * @return
+     */
+    Map<Tag, double[]> getData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex, GroupKeyMapper mapper, Collection<Tag> groups);
+
+    /**
+     * Get the total of each groupBy value across the interval.
+     * @param interval
+     * @param tagLists
+     * @param groupBy
+     * @param exclude
+     * @param usageUnit
+     * @param userTagGroupByIndex
+     * @param mapper groupBy key mapper, may be null
+     * @return map of totals or null if the data can't be ranked
+     */
+    Map<Tag, Double> getGroupTotals(Interval interval, TagLists tagLists, TagType groupBy, List<Operation.Identity.Value> exclude, UsageUnit usageUnit, int userTagGroupByIndex, GroupKeyMapper mapper);
+
     Map<Tag, double[]> getData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, int userTagGroupByIndex, List<UserTag> tagKeys);
 
+    Map<Tag, double[]> getData(Interval interval, TagLists tagLists, TagType groupBy, AggregateType aggregate, int userTagGroupByIndex, List<UserTag> tagKeys, GroupKeyMapper mapper);
+
     /**
      * Get data length.
      * @param start
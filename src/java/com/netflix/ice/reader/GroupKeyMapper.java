@@ -0,0 +1,75 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.reader;
+
+import com.netflix.ice.tag.Account;
+import com.netflix.ice.tag.ConsolidatedOperation;
+import com.netflix.ice.tag.CostType;
+import com.netflix.ice.tag.FamilyTag;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.OrganizationalUnit;
+import com.netflix.ice.tag.Tag;
+
+/**
+ * Maps a groupBy tag to the key of the series it is reported under. All groupBy tags
+ * that map to the same key are aggregated into a single series while the data is being read.
+ */
+public interface GroupKeyMapper {
+	public Tag map(Tag tag);
+
+	/**
+	 * Group accounts by organizational unit. Use with groupBy Account.
+	 */
+	public static final GroupKeyMapper orgUnit = new GroupKeyMapper() {
+		@Override
+		public Tag map(Tag tag) {
+			OrganizationalUnit ou = OrganizationalUnit.get(((Account) tag).getParents());
+			return ou == null ? OrganizationalUnit.get(OrganizationalUnit.none) : ou;
+		}
+	};
+
+	/**
+	 * Group operations by cost type. Use with groupBy Operation.
+	 */
+	public static final GroupKeyMapper costType = new GroupKeyMapper() {
+		@Override
+		public Tag map(Tag tag) {
+			return tag instanceof Operation ? CostType.getCostType((Operation) tag) : CostType.other;
+		}
+	};
+
+	/**
+	 * Group instance usage types by family and CloudFront usage types across edge regions. Use with groupBy UsageType.
+	 */
+	public static final GroupKeyMapper family = new GroupKeyMapper() {
+		@Override
+		public Tag map(Tag tag) {
+			return new FamilyTag(tag.name);
+		}
+	};
+
+	/**
+	 * Group reservation and savings plan operations into consolidated categories. Use with groupBy Operation.
+	 */
+	public static final GroupKeyMapper consolidatedOperation = new GroupKeyMapper() {
+		@Override
+		public Tag map(Tag tag) {
+			return new ConsolidatedOperation(tag.name);
+		}
+	};
+}
@@ -18,15 +18,11 @@
 package com.netflix.ice.reader;
 
 import java.util.Collection;
-import java.util.List;
-import java.util.Map;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.netflix.ice.common.AccountService;
 import com.netflix.ice.common.Instance;
 import com.netflix.ice.common.ProductService;
@@ -38,7 +34,6 @@ public class InstancesService implements DataCache {
 	private final Instances instances;
 	private final AccountService accountService;
 	private final ProductService productService;
-	private Map<String, List<Instance>> instancesCache;
 
 	public InstancesService(String localDir, String workS3BucketName, String workS3BucketPrefix, AccountService accountService, ProductService productService) {
 		instances = new Instances(localDir, workS3BucketName, workS3BucketPrefix);
@@ -46,34 +41,11 @@ public class InstancesService implements DataCache {
 		this.productService = productService;
 	}
 	
+	/**
+	 * Find the instance by its full id (usually the ARN) or the instances whose resource id portion of the ARN matches.
+	 */
 	public Collection<Instance> getInstances(String id) {
-		return instancesCache.get(id);
-	}
-	
-	private Map<String, List<Instance>> buildCache() {
-		Map<String, List<Instance>> newCache = Maps.newHashMap();
-		
-		for (Instance i: instances.values()) {
-			// Store by full ID key (usually the ARN)
-			List<Instance> instances = Lists.newArrayList(i);
-			newCache.put(i.id, instances);
-			
-			// Store by the resource id portion of the ARN
-			int separatorIndex = i.id.lastIndexOf(":");
-			if (separatorIndex < 0) {
-				separatorIndex = i.id.lastIndexOf("/");
-			}
-			if (separatorIndex >= 0 && i.id.length() > separatorIndex+1) {
-				String key = i.id.substring(separatorIndex+1);
-				instances = newCache.get(key);
-				if (instances == null) {
-					instances = Lists.newArrayList();
-					newCache.put(key, instances);
-				}
-				instances.add(i);
-			}
-		}
-		return newCache;
+		return instances.find(id);
 	}
 
 	@Override
@@ -83,8 +55,6 @@ public class InstancesService implements DataCache {
         	// Ask for one day prior to make sure we've processed a report if at
         	// start of month.
         	instances.retrieve(DateTime.now().minusDays(1).getMillis(), accountService, productService);
-        	
-        	instancesCache = buildCache();
         }
         catch (Exception e) {
             logger.error("failed to download instances data", e);
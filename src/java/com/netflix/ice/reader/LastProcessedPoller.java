@@ -19,19 +19,25 @@ package com.netflix.ice.reader;
 
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
 import org.joda.time.DateTime;
 
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.common.ChangeManifest;
 import com.netflix.ice.common.Config.WorkBucketConfig;
 import com.netflix.ice.common.Poller;
 
 /**
  * LastProcessedPoller will periodically scan the timestamps from all the lastProcessedMillis_YYYY-MM files
- * to determine the latest timestamp from all the monthly files.
+ * to determine the latest timestamp from all the monthly files. When a month is processed again, the
+ * files listed in the month's change manifest are collected so the reader can refresh only those files.
  */
 public class LastProcessedPoller extends Poller {
 	
@@ -39,6 +45,10 @@ public class LastProcessedPoller extends Poller {
     private DateTime startDate;
     private final String dbName;
     private Long lastProcessedMillis;
+    private final Map<DateTime, Long> monthMillis = Maps.newHashMap();
+    // Files rewritten since the last call to takeChangedFiles(). Null if the changes aren't known.
+    private Set<String> changedFiles = null;
+    private boolean initialized = false;
 
 	public LastProcessedPoller(DateTime startDate, WorkBucketConfig workBucketConfig) {
 		this.startDate = startDate;
@@ -61,21 +71,86 @@ public class LastProcessedPoller extends Poller {
 		return lastProcessedMillis;
 	}
 
+	/**
+	 * Get the names of the work bucket files rewritten by the processor since the last call.
+	 * Returns null if the changes aren't known and all files should be refreshed.
+	 */
+	public synchronized Set<String> takeChangedFiles() {
+		Set<String> result = changedFiles;
+		changedFiles = Sets.newHashSet();
+		return result;
+	}
+	
+	/**
+	 * Put back changed files that couldn't be refreshed so they're returned again by the next call
+	 * to takeChangedFiles(). Null means all files should be refreshed.
+	 */
+	public synchronized void restoreChangedFiles(Set<String> files) {
+		if (files == null)
+			changedFiles = null;
+		else if (changedFiles != null)
+			changedFiles.addAll(files);
+	}
+	
 	@Override
-	protected void poll() throws Exception {
+	protected synchronized void poll() throws Exception {
         //logger.info(dbName + " start polling...");
         Long oldLastProcessedMillis = lastProcessedMillis;
         for (DateTime month = startDate; month.isBefore(DateTime.now()); month = month.plusMonths(1)) {
         	Long lastProcessedForMonth = getLastMillis(month);
+        	Long previous = monthMillis.get(month);
+        	if (previous == null)
+        		previous = 0L;
+        	if (lastProcessedForMonth > previous) {
+        		if (initialized)
+        			addChangedFiles(month, previous, lastProcessedForMonth);
+        		monthMillis.put(month, lastProcessedForMonth);
+        	}
         	if (lastProcessedForMonth > lastProcessedMillis)
         		lastProcessedMillis = lastProcessedForMonth;
         }
+        initialized = true;
         if (lastProcessedMillis > oldLastProcessedMillis)
         	logger.info("Data updated at " + lastProcessedMillis);
         //else
         //	logger.info("No updates since " + oldLastProcessedMillis);
 	}
 	
+    /*
+     * Add the files from the month's change manifest. If the manifest is missing or doesn't
+     * cover all the runs since the previous time we saw, fall back to refreshing everything.
+     */
+    private void addChangedFiles(DateTime month, long previous, long current) {
+    	if (changedFiles == null)
+    		return;
+    	
+    	ChangeManifest manifest = getChangeManifest(month);
+    	if (manifest == null || manifest.getProcessTime() != current || manifest.getPreviousProcessTime() != previous) {
+    		logger.info("change manifest doesn't match process time for " + AwsUtils.monthDateFormat.print(month) + ", refreshing all files");
+    		changedFiles = null;
+    		return;
+    	}
+    	changedFiles.addAll(manifest.getFiles());
+    }
+    
+    private ChangeManifest getChangeManifest(DateTime monthDate) {
+    	String filename = ChangeManifest.getFilename(monthDate);
+        AmazonS3Client s3Client = AwsUtils.getAmazonS3Client();
+        InputStream in = null;
+        try {
+            in = s3Client.getObject(workBucketConfig.workS3BucketName, workBucketConfig.workS3BucketPrefix + filename).getObjectContent();
+            return ChangeManifest.read(in);
+        }
+        catch (Exception e) {
+            logger.warn("Unable to read change manifest " + filename + ", " + e);
+            return null;
+        }
+        finally {
+            if (in != null)
+                try {in.close();} catch (Exception e){}
+        }
+    }
+    
     private Long getLastMillis(DateTime monthDate) {
     	String filename = dbName + "_" + AwsUtils.monthDateFormat.print(monthDate);
     	
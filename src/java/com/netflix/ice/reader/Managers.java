@@ -69,6 +69,16 @@ public interface Managers {
      */
     DataManager getCostManager(Product product, ConsolidateType consolidateType);
 
+    /**
+     * Get the cost DataManager for the smallest pre-aggregated cube that can answer a query across all products.
+     * @param interval
+     * @param consolidateType
+     * @param tagLists query filters
+     * @param groupBy
+     * @return cube DataManager or null if the query needs the full cost data
+     */
+    DataManager getCostCubeManager(Interval interval, ConsolidateType consolidateType, TagLists tagLists, TagType groupBy);
+
     /**
      *
      * @param product
@@ -97,12 +107,76 @@ public interface Managers {
     		List<List<UserTag>> userTagLists,
     		int userTagGroupByIndex) throws Exception;
     
+    /**
+     * Get the data with the groupBy tags aggregated under the keys supplied by the mapper.
+     */
+    Map<Tag, double[]> getData(
+    		Interval interval,
+    		List<Account> accounts,
+    		List<Region> regions,
+    		List<Zone> zones,
+    		List<Product> products,
+    		List<Operation> operations,
+    		List<UsageType> usageTypes,
+    		boolean isCost,
+    		ConsolidateType consolidateType,
+    		TagType groupBy,
+    		AggregateType aggregate,
+    		List<Operation.Identity.Value> exclude,
+    		UsageUnit usageUnit,
+    		List<List<UserTag>> userTagLists,
+    		int userTagGroupByIndex,
+    		GroupKeyMapper mapper) throws Exception;
+    
+    /**
+     * Get the data for the topN groupBy values ranked by total across the interval with all
+     * other groupBy values combined under Tag.other. A topN of zero returns all groupBy values.
+     */
+    Map<Tag, double[]> getData(
+    		Interval interval,
+    		List<Account> accounts,
+    		List<Region> regions,
+    		List<Zone> zones,
+    		List<Product> products,
+    		List<Operation> operations,
+    		List<UsageType> usageTypes,
+    		boolean isCost,
+    		ConsolidateType consolidateType,
+    		TagType groupBy,
+    		AggregateType aggregate,
+    		List<Operation.Identity.Value> exclude,
+    		UsageUnit usageUnit,
+    		List<List<UserTag>> userTagLists,
+    		int userTagGroupByIndex,
+    		GroupKeyMapper mapper,
+    		int topN) throws Exception;
+    
     /**
      * 
      * @return
      */
     DataManager getTagCoverageManager(Product product, ConsolidateType consolidateType);
 
+    /**
+     * Get tag coverage for user tags. Products are queried in parallel and their coverage counts
+     * merged before being converted to percentages.
+     */
+    Map<Tag, double[]> getTagCoverageData(
+    		Interval interval,
+    		List<Account> accounts,
+    		List<Region> regions,
+    		List<Zone> zones,
+    		List<Product> products,
+    		List<Operation> operations,
+    		List<UsageType> usageTypes,
+    		ConsolidateType consolidateType,
+    		TagType groupBy,
+    		AggregateType aggregate,
+    		List<List<UserTag>> userTagLists,
+    		int userTagGroupByIndex,
+    		List<UserTag> tagKeys,
+    		GroupKeyMapper mapper) throws Exception;
+
     /**
      * 
      */
@@ -115,6 +189,15 @@ public interface Managers {
      */
     Collection<Operation> getOperations(TagLists tagLists, Collection<Product> products, Collection<Operation.Identity.Value> exclude, boolean withUserTags);
     
+    /**
+     * Get the distinct values of each dimension and user tag for the dashboard filters from the resource-based data.
+     * The values of each dimension are restricted by the filters on all the other dimensions.
+     * @param tagLists
+     * @param exclude operation identities to leave out of the operations
+     * @return facets
+     */
+    TagFacets getFacets(TagLists tagLists, Collection<Operation.Identity.Value> exclude) throws Exception;
+    
     /**
      * shutdown all manager instances
      */
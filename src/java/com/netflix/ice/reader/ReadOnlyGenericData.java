@@ -69,6 +69,15 @@ public abstract class ReadOnlyGenericData<D> {
         return byTag == null ? null : byTag.get(tag);
     }
     
+    /**
+     * Returns true if there is an index of tag groups for the groupBy dimension.
+     */
+    public boolean hasIndex(TagType groupBy, int userTagIndex) {
+    	if (groupBy == TagType.Tag)
+    		return tagGroupsByUserTag != null && userTagIndex < tagGroupsByUserTag.size();
+    	return tagGroupsByTagAndTagType != null && tagGroupsByTagAndTagType.get(groupBy) != null;
+    }
+    
     abstract protected D[][] newDataMatrix(int size);
     abstract protected D[] newDataArray(int size);
     abstract protected D readValue(DataInput in) throws IOException ;
@@ -79,15 +88,10 @@ public abstract class ReadOnlyGenericData<D> {
     
     public void deserialize(AccountService accountService, ProductService productService, int numUserTags, DataInput in, boolean buildIndecies) throws IOException, BadZone {
 
-        int numKeys = in.readInt();
-        List<TagGroup> keys = Lists.newArrayList();
-        for (int j = 0; j < numKeys; j++) {
-        	TagGroup tg = TagGroup.Serializer.deserialize(accountService, productService, in);
-//        	if (keys.contains(tg))
-//        		logger.error("Duplicate tag group in data file: " + tg + ", existing at index: " + keys.indexOf(tg));
+        List<TagGroup> keys = TagGroup.Serializer.deserializeTagGroupList(accountService, productService, in);
+        for (TagGroup tg: keys) {
         	if (tg.resourceGroup != null && tg.resourceGroup.getUserTags().length != numUserTags)
         		logger.error("Wrong number of user tags: " + tg);
-            keys.add(tg);
         }
 
         int num = in.readInt();
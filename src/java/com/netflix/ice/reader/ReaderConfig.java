@@ -136,9 +136,25 @@ public class ReaderConfig extends Config {
         return instance;
     }
 
-    public void start() throws InterruptedException, ExecutionException {
+    public void start() {
+    	// Prime the data caches in the background so the dashboard can serve requests right away.
+    	// Requests load what they need on demand.
+    	Thread primer = new Thread(new Runnable() {
+    		@Override
+    		public void run() {
+    			try {
+    				primeCaches();
+    			}
+    			catch (Exception e) {
+    				logger.error("failed to prime data caches", e);
+    			}
+    		}
+    	}, "ice-cache-primer");
+    	primer.setDaemon(true);
+    	primer.start();
+    }
 
-    	// Prime the data caches
+    private void primeCaches() throws InterruptedException, ExecutionException {
         Managers managers = ReaderConfig.getInstance().managers;
         Collection<Product> products = managers.getProducts();
         List<UserTag> userTagList = Lists.newArrayList();
@@ -167,9 +183,15 @@ public class ReaderConfig extends Config {
             }
         }
 		// Wait for completion
-		for (Future<Void> f: futures) {
-			f.get();
+		try {
+			for (Future<Void> f: futures) {
+				f.get();
+			}
+		}
+		finally {
+			pool.shutdown();
 		}
+		logger.info("done priming data caches");
     }
         
     public Future<Void> readData(final Product product, final ConsolidateType consolidateType, final Interval interval, final DataManager dataManager, final List<UserTag> userTagList, ExecutorService pool) {
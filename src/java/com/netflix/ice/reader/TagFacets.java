@@ -0,0 +1,109 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.reader;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.netflix.ice.tag.Account;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.Tag;
+import com.netflix.ice.tag.TagType;
+import com.netflix.ice.tag.UsageType;
+import com.netflix.ice.tag.UserTag;
+import com.netflix.ice.tag.Zone;
+
+/**
+ * Distinct values of each dimension for the dashboard filters. The values of a dimension are
+ * those of the tag groups that match the filters on all the other dimensions, so a filter never
+ * hides the alternative values of its own dimension.
+ */
+public class TagFacets {
+	public final Set<Account> accounts;
+	public final Set<Region> regions;
+	public final Set<Zone> zones;
+	public final Set<Product> products;
+	public final Set<Operation> operations;
+	public final Set<UsageType> usageTypes;
+	public final List<Set<UserTag>> userTags; // indexed by user tag index
+
+	public TagFacets(int numUserTags) {
+		accounts = Sets.newTreeSet();
+		regions = Sets.newTreeSet();
+		zones = Sets.newTreeSet();
+		products = Sets.newTreeSet();
+		operations = Sets.newTreeSet();
+		usageTypes = Sets.newTreeSet();
+		userTags = Lists.newArrayList();
+		for (int i = 0; i < numUserTags; i++)
+			userTags.add(Sets.<UserTag>newTreeSet());
+	}
+
+	/**
+	 * Get the values of a dimension. Returns null for dimensions that aren't faceted.
+	 */
+	public Set<? extends Tag> get(TagType dimension) {
+		switch (dimension) {
+		case Account:
+			return accounts;
+		case Region:
+			return regions;
+		case Zone:
+			return zones;
+		case Product:
+			return products;
+		case Operation:
+			return operations;
+		case UsageType:
+			return usageTypes;
+		default:
+			return null;
+		}
+	}
+
+	public void add(TagFacets other) {
+		accounts.addAll(other.accounts);
+		regions.addAll(other.regions);
+		zones.addAll(other.zones);
+		products.addAll(other.products);
+		operations.addAll(other.operations);
+		usageTypes.addAll(other.usageTypes);
+		for (int i = 0; i < userTags.size() && i < other.userTags.size(); i++)
+			userTags.get(i).addAll(other.userTags.get(i));
+	}
+
+	/**
+	 * Remove the operations with any of the excluded identities.
+	 */
+	public void excludeOperations(Collection<Operation.Identity.Value> exclude) {
+        int excludeBitSet = exclude == null ? 0 : Operation.Identity.getIdentitySet(exclude);
+        if (excludeBitSet == 0)
+        	return;
+        Set<Operation> excluded = Sets.newHashSet();
+        for (Operation operation: operations) {
+        	if (operation.isOneOf(excludeBitSet))
+        		excluded.add(operation);
+        }
+        operations.removeAll(excluded);
+	}
+}
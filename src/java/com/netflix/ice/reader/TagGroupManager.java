@@ -87,6 +87,15 @@ public interface TagGroupManager {
      */
     Collection<ResourceGroup> getResourceGroups(TagLists tagLists);
 
+    /**
+     * Get the distinct values of each dimension and user tag that meet the query in tagLists
+     * using cross-filter semantics: the filter on a dimension doesn't restrict its own values.
+     * @param tagLists
+     * @param numUserTags
+     * @return facets
+     */
+    TagFacets getFacets(TagLists tagLists, int numUserTags);
+
     /**
      * Get overlapping interval
      * @param interval
@@ -114,6 +123,19 @@ public interface TagGroupManager {
      */
     Map<Tag, TagLists> getTagListsMap(Interval interval, TagLists tagLists, TagType groupBy, List<Operation.Identity.Value> exclude, int userTagGroupByIndex);
     
+    /**
+     * Get map of tag lists based on group by with the groupBy tags mapped to the keys they're reported under.
+     * Each TagLists holds all the groupBy tags that map to the key.
+     * @param interval
+     * @param tagLists
+     * @param groupBy
+     * @param exclude
+     * @param userTagGroupByIndex
+     * @param mapper groupBy key mapper, may be null
+     * @return
+     */
+    Map<Tag, TagLists> getTagListsMap(Interval interval, TagLists tagLists, TagType groupBy, List<Operation.Identity.Value> exclude, int userTagGroupByIndex, GroupKeyMapper mapper);
+    
     /**
      * Get sizes of the data
      */
@@ -221,6 +221,67 @@ public class TagLists {
         return result;
     }
     
+    /**
+     * Get a TagLists with the groupBy dimension restricted to the supplied tags. Used
+     * when several groupBy values are aggregated under a single key.
+     */
+    @SuppressWarnings("unchecked")
+	public TagLists getTagLists(List<? extends Tag> tags, TagType groupBy) {
+        TagLists result = null;
+
+        switch (groupBy) {
+            case Account:
+                result = new TagLists((List<Account>)tags, this.regions, this.zones, this.products, this.operations, this.usageTypes, this.resourceGroups);
+                break;
+            case Region:
+                result = new TagLists(this.accounts, (List<Region>)tags, this.zones, this.products, this.operations, this.usageTypes, this.resourceGroups);
+                break;
+            case Zone:
+                result = new TagLists(this.accounts, this.regions, (List<Zone>)tags, this.products, this.operations, this.usageTypes, this.resourceGroups);
+                break;
+            case Product:
+                result = new TagLists(this.accounts, this.regions, this.zones, (List<Product>)tags, this.operations, this.usageTypes, this.resourceGroups);
+                break;
+            case Operation:
+                result = new TagLists(this.accounts, this.regions, this.zones, this.products, (List<Operation>)tags, this.usageTypes, this.resourceGroups);
+                break;
+            case UsageType:
+                result = new TagLists(this.accounts, this.regions, this.zones, this.products, this.operations, (List<UsageType>)tags, this.resourceGroups);
+                break;
+            case ResourceGroup:
+                result = new TagLists(this.accounts, this.regions, this.zones, this.products, this.operations, this.usageTypes, (List<ResourceGroup>)tags);
+                break;
+            default:
+            	result = null;
+            	break;
+        }
+        return result;
+    }
+    
+    /**
+     * Get the list of tags for the groupBy dimension.
+     */
+    public List<? extends Tag> getTags(TagType groupBy) {
+        switch (groupBy) {
+            case Account:
+                return accounts;
+            case Region:
+                return regions;
+            case Zone:
+                return zones;
+            case Product:
+                return products;
+            case Operation:
+                return operations;
+            case UsageType:
+                return usageTypes;
+            case ResourceGroup:
+                return resourceGroups;
+            default:
+            	return null;
+        }
+    }
+    
     public TagLists getTagListsWithNullResourceGroup() {
     	return new TagLists(this.accounts, this.regions, this.zones, this.products, this.operations, this.usageTypes, null);
     }
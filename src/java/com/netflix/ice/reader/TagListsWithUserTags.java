@@ -161,6 +161,37 @@ public class TagListsWithUserTags extends TagLists {
         return result;
     }
     
+    @SuppressWarnings("unchecked")
+	@Override
+    public TagLists getTagLists(List<? extends Tag> tags, TagType groupBy) {
+        TagLists result = null;
+
+        switch (groupBy) {
+            case Account:
+                result = new TagListsWithUserTags((List<Account>)tags, this.regions, this.zones, this.products, this.operations, this.usageTypes, this.resourceUserTagLists);
+                break;
+            case Region:
+                result = new TagListsWithUserTags(this.accounts, (List<Region>)tags, this.zones, this.products, this.operations, this.usageTypes, this.resourceUserTagLists);
+                break;
+            case Zone:
+                result = new TagListsWithUserTags(this.accounts, this.regions, (List<Zone>)tags, this.products, this.operations, this.usageTypes, this.resourceUserTagLists);
+                break;
+            case Product:
+                result = new TagListsWithUserTags(this.accounts, this.regions, this.zones, (List<Product>)tags, this.operations, this.usageTypes, this.resourceUserTagLists);
+                break;
+            case Operation:
+                result = new TagListsWithUserTags(this.accounts, this.regions, this.zones, this.products, (List<Operation>)tags, this.usageTypes, this.resourceUserTagLists);
+                break;
+            case UsageType:
+                result = new TagListsWithUserTags(this.accounts, this.regions, this.zones, this.products, this.operations, (List<UsageType>)tags, this.resourceUserTagLists);
+                break;
+            default:
+            	result = null;
+            	break;
+        }
+        return result;
+    }
+    
     @Override
     public TagLists getTagListsWithNullResourceGroup() {
     	List<List<UserTag>> newResourceTagLists = Lists.newArrayList();
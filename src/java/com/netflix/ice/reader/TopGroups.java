@@ -0,0 +1,71 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.reader;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.netflix.ice.tag.Tag;
+
+/**
+ * Selects the groupBy values with the largest totals for top-N queries.
+ * All other groupBy values are reported as a single Tag.other series.
+ */
+public class TopGroups {
+
+	/**
+	 * Get the n groupBy values with the largest totals.
+	 * @param totals total for each groupBy value, may be null
+	 * @param n number of groups to keep
+	 * @return the groups to keep or null if all groups should be kept
+	 */
+	public static Set<Tag> select(Map<Tag, Double> totals, int n) {
+		// Nothing to gain from folding a single group into other
+		if (totals == null || n <= 0 || totals.size() <= n + 1)
+			return null;
+		
+		List<Map.Entry<Tag, Double>> entries = Lists.newArrayList(totals.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<Tag, Double>>() {
+			@Override
+			public int compare(Map.Entry<Tag, Double> a, Map.Entry<Tag, Double> b) {
+				int result = Double.compare(b.getValue(), a.getValue());
+				return result != 0 ? result : a.getKey().compareTo(b.getKey());
+			}
+		});
+		
+		Set<Tag> result = Sets.newHashSet();
+		for (int i = 0; i < n; i++)
+			result.add(entries.get(i).getKey());
+		return result;
+	}
+	
+	/**
+	 * Add the totals in from to the totals in to.
+	 */
+	public static void merge(Map<Tag, Double> from, Map<Tag, Double> to) {
+		for (Map.Entry<Tag, Double> entry: from.entrySet()) {
+			Double total = to.get(entry.getKey());
+			to.put(entry.getKey(), total == null ? entry.getValue() : total + entry.getValue());
+		}
+	}
+}
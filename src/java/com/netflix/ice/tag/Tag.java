@@ -36,6 +36,15 @@ public abstract class Tag implements Comparable<Tag>, Serializable {
         }
     };
 
+    public static final Tag other = new Tag("(other)") {
+		private static final long serialVersionUID = 1L;
+		// Always put other last
+		@Override
+        public int compareTo(Tag t) {
+            return this == t ? 0 : 1;
+        }
+    };
+
     public final String name;
     Tag(String name) {
         this.name = name == null ? "" : name;
@@ -67,7 +76,7 @@ public abstract class Tag implements Comparable<Tag>, Serializable {
     }
 
     public int compareTo(Tag t) {
-        if (t == aggregated)
+        if (t == aggregated || t == other)
             return -t.compareTo(this);
         int result = this.getName().compareToIgnoreCase(t.getName());
         return result != 0 ? result : this.getName().compareTo(t.getName());
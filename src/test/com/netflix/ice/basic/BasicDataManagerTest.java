@@ -35,9 +35,11 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.amazonaws.AmazonServiceException;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.netflix.ice.common.AccountService;
+import com.netflix.ice.common.AwsUtils;
 import com.netflix.ice.common.Config.WorkBucketConfig;
 import com.netflix.ice.common.ConsolidateType;
 import com.netflix.ice.common.ProductService;
@@ -47,6 +49,7 @@ import com.netflix.ice.reader.ReadOnlyData;
 import com.netflix.ice.reader.TagGroupManager;
 import com.netflix.ice.reader.TagLists;
 import com.netflix.ice.reader.TagListsWithUserTags;
+import com.netflix.ice.reader.TopGroups;
 import com.netflix.ice.reader.UsageUnit;
 import com.netflix.ice.tag.Operation;
 import com.netflix.ice.tag.Product;
@@ -79,6 +82,44 @@ public class BasicDataManagerTest {
 	    }
 	}
 	
+	@Test
+	public void stageAfterFailedDownload() throws Exception {
+		DateTime jan = new DateTime("2019-01-01T00:00:00Z", DateTimeZone.UTC);
+		DateTime feb = jan.plusMonths(1);
+		final ReadOnlyData loaded = new ReadOnlyData(0);
+		
+		BasicDataManager data = new BasicDataManager(jan, "cost_hourly_all", ConsolidateType.hourly, null, false, 0, 10, null, null, null, null) {
+			@Override
+			protected File getFile(DateTime monthDate) {
+				return new File(dbName + "_" + AwsUtils.monthDateFormat.print(monthDate));
+			}
+			
+			@Override
+			protected String fetchFile(File file) throws Exception {
+				if (file.getName().endsWith("2019-01")) {
+					AmazonServiceException e = new AmazonServiceException("Service Unavailable");
+					e.setStatusCode(503);
+					throw e;
+				}
+				return "feb-2";
+			}
+			
+			@Override
+			protected ReadOnlyData loadDataFromFile(File file) throws Exception {
+				return loaded;
+			}
+		};
+		data.fileCache.put(jan, data.getFile(jan));
+		data.fileCache.put(feb, data.getFile(feb));
+		
+		// The failure is reported so the caller can retry, but the other month is still staged
+		assertTrue("Stage should report the failed download", data.stage(null));
+		data.publish();
+		assertNull("January should not have been staged", data.eTags.get(jan));
+		assertEquals("Wrong ETag for February", "feb-2", data.eTags.get(feb));
+		assertSame("February data not published", loaded, data.getReadOnlyData(feb));
+	}
+	
 	@Test
 	public void loadHourlyDataFromFile() throws Exception {
 		AccountService as = new BasicAccountService();
@@ -291,6 +332,50 @@ public class BasicDataManagerTest {
 		assertEquals("Without operation specified, wrong value for aggregation", 1.0, data.get(Tag.aggregated)[0], 0.001);
 	}
 	
+	@Test
+	public void groupByAccountTopN() throws BadZone {
+		AccountService as = new BasicAccountService();
+		ProductService ps = new BasicProductService();
+		
+		Double[][] rawData = new Double[][]{
+				new Double[]{ 1.0, 4.0, 3.0, 2.0 },
+		};
+		List<TagGroup> tagGroups = Lists.newArrayList();
+		tagGroups.add(TagGroup.getTagGroup("a", "us-east-1", null, "product", "operation", "usgaeType", "usageTypeUnit", null, as, ps));
+		tagGroups.add(TagGroup.getTagGroup("b", "us-east-1", null, "product", "operation", "usgaeType", "usageTypeUnit", null, as, ps));
+		tagGroups.add(TagGroup.getTagGroup("c", "us-east-1", null, "product", "operation", "usgaeType", "usageTypeUnit", null, as, ps));
+		tagGroups.add(TagGroup.getTagGroup("d", "us-east-1", null, "product", "operation", "usgaeType", "usageTypeUnit", null, as, ps));
+		
+		ReadOnlyData rod = new ReadOnlyData(rawData, tagGroups, 0);
+		DateTime testMonth = DateTime.parse("2018-01-01");
+		TagGroupManager tagGroupManager = makeTagGroupManager(testMonth, tagGroups);
+		
+		BasicDataManager dataManager = new TestDataFileCache(testMonth, null, ConsolidateType.monthly, tagGroupManager, true, 0, 0, null, as, ps, rod);
+		
+		Interval interval = new Interval(testMonth, testMonth.plusMonths(1));
+		TagLists tagLists = new TagLists();
+		
+		Map<Tag, Double> totals = dataManager.getGroupTotals(interval, tagLists, TagType.Account, null, UsageUnit.Instances, 0, null);
+		assertEquals("Wrong number of totals", 4, totals.size());
+		assertEquals("Wrong total for b", 4.0, totals.get(as.getAccountById("b")), 0.001);
+		
+		Collection<Tag> groups = TopGroups.select(totals, 2);
+		assertEquals("Wrong number of top groups", 2, groups.size());
+		assertTrue("Missing b", groups.contains(as.getAccountById("b")));
+		assertTrue("Missing c", groups.contains(as.getAccountById("c")));
+		
+		Map<Tag, double[]> data = dataManager.getData(interval, tagLists, TagType.Account, AggregateType.data, null, UsageUnit.Instances, 0, null, groups);
+		assertEquals("Wrong number of groupBy tags", 4, data.size());
+		assertEquals("Wrong value for b", 4.0, data.get(as.getAccountById("b"))[0], 0.001);
+		assertEquals("Wrong value for c", 3.0, data.get(as.getAccountById("c"))[0], 0.001);
+		assertEquals("Wrong value for other", 3.0, data.get(Tag.other)[0], 0.001);
+		assertEquals("Wrong aggregated value", 10.0, data.get(Tag.aggregated)[0], 0.001);
+		assertEquals("Other should sort last", Tag.other, Lists.newArrayList(data.keySet()).get(3));
+		
+		// Folding a single group into other returns all the groups
+		assertNull("Should keep all groups", TopGroups.select(totals, 3));
+	}
+	
 	// Example for debugging getData()
 	@Test
 	public void testHourlyDataFromFile() throws Exception {
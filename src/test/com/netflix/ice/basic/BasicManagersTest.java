@@ -0,0 +1,91 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.basic;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.netflix.ice.common.ConsolidateType;
+import com.netflix.ice.common.DataCube;
+import com.netflix.ice.reader.DataManager;
+import com.netflix.ice.reader.TagLists;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.TagType;
+
+public class BasicManagersTest {
+	
+	class TestManagers extends BasicManagers {
+		private final Set<DataCube> complete;
+		
+		TestManagers(DataCube... complete) {
+			super(false);
+			this.complete = Sets.newHashSet(complete);
+		}
+		
+		@Override
+	    protected BasicDataManager getCubeManager(DataCube cube, ConsolidateType consolidateType) {
+			return new BasicDataManager(null, cube.productName, consolidateType, null, false, 0, 0, null, null, null, null);
+		}
+		
+		@Override
+	    protected boolean isCubeComplete(DataCube cube, Interval interval) {
+			return complete.contains(cube);
+		}
+	}
+	
+	private String getCubeName(DataManager dataManager) {
+		return dataManager == null ? null : ((BasicDataManager) dataManager).dbName;
+	}
+
+	@Test
+	public void testGetCostCubeManager() {
+		DateTime start = DateTime.parse("2019-01-01T00:00:00Z");
+		Interval interval = new Interval(start, start.plusMonths(1));
+		TagLists tagLists = new TagLists();
+		List<Region> regions = Lists.newArrayList(Region.US_EAST_1);
+		TagLists regionTagLists = new TagLists(null, regions);
+		
+		// Use the smallest cube that fits
+		BasicManagers managers = new TestManagers(DataCube.values());
+		assertEquals("Wrong cube", DataCube.accountProductOperation.productName,
+				getCubeName(managers.getCostCubeManager(interval, ConsolidateType.daily, tagLists, TagType.Account)));
+		assertEquals("Wrong cube for region filter", DataCube.accountRegionProductOperation.productName,
+				getCubeName(managers.getCostCubeManager(interval, ConsolidateType.daily, regionTagLists, TagType.Account)));
+		assertNull("Should not use cube for hourly data", managers.getCostCubeManager(interval, ConsolidateType.hourly, tagLists, TagType.Account));
+		assertNull("Should not use cube for usage type group by", managers.getCostCubeManager(interval, ConsolidateType.daily, tagLists, TagType.UsageType));
+		
+		// Skip an incomplete cube and try the next one that fits
+		managers = new TestManagers(DataCube.accountRegionProductOperation);
+		assertEquals("Wrong cube when smallest is incomplete", DataCube.accountRegionProductOperation.productName,
+				getCubeName(managers.getCostCubeManager(interval, ConsolidateType.daily, tagLists, TagType.Account)));
+		
+		// Fall back to the full data when none of the cubes that fit are complete
+		managers = new TestManagers(DataCube.accountProductOperation);
+		assertNull("Should fall back for region filter", managers.getCostCubeManager(interval, ConsolidateType.daily, regionTagLists, TagType.Account));
+		managers = new TestManagers();
+		assertNull("Should fall back with no complete cubes", managers.getCostCubeManager(interval, ConsolidateType.daily, tagLists, TagType.Account));
+	}
+}
@@ -609,4 +609,63 @@ public class BasicResourceServiceTest {
 		resource = getResourceGroup(yaml, start, tags, customTags, payerDefaultTags, payerAccount, payerAccount);		
 		assertEquals("Resource name doesn't match", String.join(ResourceGroup.separator, expect), resource.name);
 	}
+	
+	@Test
+	public void testResourceGroupCacheWithMidMonthRules() throws Exception {
+		String payerAccount = "123456789012";
+		
+		// Mapping rule and default tag that both take effect in the middle of the month
+		String yaml = "" +
+		"name: DestKey\n" +
+		"mapped:\n" +
+		"  - maps:\n" +
+		"      DestValue1:\n" +
+		"        TagKey1: [SrcValue1a]\n" +
+		"  - start: 2020-01-15\n" +
+		"    maps:\n" +
+		"      DestValue2:\n" +
+		"        TagKey1: [SrcValue1a]\n";
+		ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+		TagConfig tc = mapper.readValue(yaml, TagConfig.class);
+		
+		BasicAccountService as = new BasicAccountService();
+		ProductService ps = new BasicProductService();
+		ResourceService rs = new BasicResourceService(ps, new String[]{"DestKey", "TagKey1", "TagKey2"}, new String[]{}, false);
+		rs.setTagConfigs(payerAccount, Lists.newArrayList(tc));
+		Map<String, String> defaultTags = Maps.newHashMap();
+		defaultTags.put("TagKey2", "Prod/2020-01-20=Dev");
+		rs.putDefaultTags(payerAccount, defaultTags);
+		
+		S3ObjectSummary s3ObjectSummary = new S3ObjectSummary();
+		s3ObjectSummary.setLastModified(new Date());
+		CostAndUsageReport caur = new CostAndUsageReport(s3ObjectSummary, new File(resourcesDir, "ResourceTest-Manifest.json"), null);
+		LineItem li = new CostAndUsageReportLineItem(false, null, caur);
+		rs.initHeader(li.getResourceTagsHeader(), payerAccount);
+		Account account = as.getAccountByName(payerAccount);
+		Product product = ps.getProduct(Product.Code.Ec2Instance);
+		
+		String[][] expect = new String[][]{
+				{ "2020-01-01T00:00:00Z", "DestValue1", "Prod" },
+				{ "2020-01-14T23:00:00Z", "DestValue1", "Prod" },
+				{ "2020-01-15T00:00:00Z", "DestValue2", "Prod" },
+				{ "2020-01-19T23:00:00Z", "DestValue2", "Prod" },
+				{ "2020-01-20T00:00:00Z", "DestValue2", "Dev" },
+				{ "2020-01-31T23:00:00Z", "DestValue2", "Dev" },
+		};
+		// Run through twice so the second pass is served from the cache
+		for (int pass = 0; pass < 2; pass++) {
+			for (String[] e: expect) {
+				li.setItems(new String[]{ payerAccount, "DiscountedUsage", e[0], "SrcValue1a", "", "", "" });
+				ResourceGroup rg = rs.getResourceGroup(account, Region.US_EAST_1, product, li, new DateTime(e[0], DateTimeZone.UTC).getMillis());
+				assertEquals("Wrong resource group at " + e[0] + " on pass " + pass, String.join(ResourceGroup.separator, e[1], "SrcValue1a", e[2]), rg.name);
+			}
+		}
+		
+		// Changing the default tags must invalidate the cached values
+		defaultTags.put("TagKey2", "QA");
+		rs.putDefaultTags(payerAccount, defaultTags);
+		li.setItems(new String[]{ payerAccount, "DiscountedUsage", "2020-01-31T23:00:00Z", "SrcValue1a", "", "", "" });
+		ResourceGroup rg = rs.getResourceGroup(account, Region.US_EAST_1, product, li, new DateTime("2020-01-31T23:00:00Z", DateTimeZone.UTC).getMillis());
+		assertEquals("Cached value not invalidated", String.join(ResourceGroup.separator, "DestValue2", "SrcValue1a", "QA"), rg.name);
+	}
 }
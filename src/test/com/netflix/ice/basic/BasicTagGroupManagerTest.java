@@ -19,6 +19,7 @@ package com.netflix.ice.basic;
 
 import static org.junit.Assert.*;
 
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -35,9 +36,12 @@ import com.google.common.collect.Maps;
 import com.netflix.ice.common.AccountService;
 import com.netflix.ice.common.ProductService;
 import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.reader.GroupKeyMapper;
+import com.netflix.ice.reader.TagFacets;
 import com.netflix.ice.reader.TagLists;
 import com.netflix.ice.reader.TagListsWithUserTags;
 import com.netflix.ice.tag.Account;
+import com.netflix.ice.tag.ConsolidatedOperation;
 import com.netflix.ice.tag.Operation;
 import com.netflix.ice.tag.Operation.ReservationOperation;
 import com.netflix.ice.tag.Product;
@@ -238,6 +242,113 @@ public class BasicTagGroupManagerTest {
 		}
 	}
 
+	@Test
+	public void testTagGroupIndexMatchesContains() throws Exception {
+		List<TagGroup> tagGroups = Lists.newArrayList(
+				TagGroup.getTagGroup("Account1", "us-east-1", "us-east-1a", "ProductA", "OperationA", "UsageTypeA", "", "|", accountService, productService),
+				TagGroup.getTagGroup("Account1", "us-east-1", "us-east-1b", "ProductA", "OperationA", "UsageTypeB", "", "TagA|", accountService, productService),
+				TagGroup.getTagGroup("Account1", "us-west-2", null, "ProductB", "OperationB", "UsageTypeA", "", "TagB|TagX", accountService, productService),
+				TagGroup.getTagGroup("Account2", "us-east-1", "us-east-1a", "ProductA", "OperationB", "UsageTypeB", "", "|TagY", accountService, productService),
+				TagGroup.getTagGroup("Account2", "us-west-2", null, "ProductB", "OperationA", "UsageTypeA", "", "TagA", accountService, productService),
+				TagGroup.getTagGroup("Account2", "us-west-2", null, "ProductB", "OperationA", "UsageTypeA", "", null, accountService, productService));
+		TagGroupIndex index = new TagGroupIndex(tagGroups);
+		
+		List<List<UserTag>> userTagLists = Lists.newArrayList();
+		userTagLists.add(Lists.newArrayList(UserTag.get(""), UserTag.get("TagB")));
+		userTagLists.add(Lists.newArrayList(UserTag.get("")));
+		List<List<UserTag>> secondTagLists = Lists.newArrayList();
+		secondTagLists.add(null);
+		secondTagLists.add(Lists.newArrayList(UserTag.get("TagX"), UserTag.get("TagY")));
+		
+		List<TagLists> filters = Lists.newArrayList(
+				new TagLists(),
+				new TagLists(Lists.newArrayList(accountService.getAccountByName("Account2"))),
+				new TagLists(null, Lists.newArrayList(Region.US_EAST_1), null, null, null, Lists.newArrayList(UsageType.getUsageType("UsageTypeA", ""))),
+				new TagListsWithUserTags(null, null, null, null, null, null, userTagLists),
+				new TagListsWithUserTags(null, null, null, null, null, null, secondTagLists),
+				new TagLists(null, null, null, null, null, null, Lists.newArrayList(tagGroups.get(1).resourceGroup)));
+		
+		for (TagLists tagLists: filters) {
+			BitSet bits = index.filter(tagLists);
+			for (int i = 0; i < tagGroups.size(); i++)
+				assertEquals("wrong filter result for " + tagGroups.get(i) + " with " + tagLists, tagLists.contains(tagGroups.get(i)), bits.get(i));
+		}
+		
+		// Facet over a second month
+		TreeMap<Long, Collection<TagGroup>> months = Maps.newTreeMap();
+		months.put(testMonth.getMillis(), tagGroups.subList(0, 3));
+		months.put(testMonth.plusMonths(1).getMillis(), tagGroups.subList(3, tagGroups.size()));
+		BasicTagGroupManager manager = new BasicTagGroupManager(months, new Interval(testMonth, testMonth.plusMonths(2)));
+		
+		TagLists westTagLists = new TagLists(null, Lists.newArrayList(Region.US_WEST_2));
+		assertEquals("wrong number of accounts in us-west-2", 2, manager.getAccounts(westTagLists).size());
+		assertEquals("wrong number of zones", 2, manager.getZones(new TagLists()).size());
+		assertEquals("wrong number of operations for Account2", 2, manager.getOperations(new TagLists(Lists.newArrayList(accountService.getAccountByName("Account2"))), null).size());
+		assertEquals("wrong number of resource groups", 5, manager.getResourceGroups(new TagLists()).size());
+		
+		Collection<UserTag> firstTags = manager.getResourceGroupTags(new Interval(testMonth, testMonth.plusMonths(2)), new TagLists(), 0);
+		assertEquals("wrong number of first user tag values", 3, firstTags.size());
+		assertTrue("missing empty user tag", firstTags.contains(UserTag.get("")));
+		Collection<UserTag> secondTags = manager.getResourceGroupTags(new Interval(testMonth, testMonth.plusMonths(1)), new TagLists(), 1);
+		assertEquals("wrong number of second user tag values in first month", 2, secondTags.size());
+	}
+	
+	@Test
+	public void testTagGroupIndexMemory() throws Exception {
+		// Each tag group has its own resource group and user tag value, the sparsest case for the index
+		int numTagGroups = 10000;
+		List<TagGroup> tagGroups = Lists.newArrayList();
+		for (int i = 0; i < numTagGroups; i++)
+			tagGroups.add(TagGroup.getTagGroup("Account1", "us-east-1", null, "ProductA", "Operation" + (i % 10), "UsageType" + (i % 100), "", "Value" + i, accountService, productService));
+		TagGroupIndex index = new TagGroupIndex(tagGroups);
+		
+		// A bitmap for every value would take about numTagGroups^2 / 8 bytes for the resource groups alone
+		long bytes = index.getIdBytes();
+		assertTrue("index uses " + bytes + " bytes for " + numTagGroups + " tag groups", bytes < 64L * numTagGroups);
+		
+		// Sparse and dense values still filter correctly
+		List<List<UserTag>> userTagLists = Lists.newArrayList();
+		userTagLists.add(Lists.newArrayList(UserTag.get("Value42")));
+		BitSet bits = index.filter(new TagListsWithUserTags(null, null, null, null, Lists.newArrayList(Operation.getOperation("Operation2")), null, userTagLists));
+		assertEquals("wrong number of matches", 1, bits.cardinality());
+		assertTrue("wrong match", bits.get(42));
+		
+		bits = index.filter(new TagLists(null, null, null, null, null, Lists.newArrayList(UsageType.getUsageType("UsageType7", ""))));
+		assertEquals("wrong number of usage type matches", numTagGroups / 100, bits.cardinality());
+	}
+	
+	@Test
+	public void testGetFacets() throws Exception {
+		TagGroup[] tagGroups = new TagGroup[]{
+				TagGroup.getTagGroup("Account1", "us-east-1", "us-east-1a", "ProductA", "OperationA", "UsageTypeA", "", "TagA|TagX", accountService, productService),
+				TagGroup.getTagGroup("Account1", "us-west-2", null, "ProductA", "OperationB", "UsageTypeB", "", "TagB|", accountService, productService),
+				TagGroup.getTagGroup("Account2", "eu-west-1", null, "ProductA", "OperationC", "UsageTypeA", "", "|TagY", accountService, productService),
+				TagGroup.getTagGroup("Account2", "eu-west-1", null, "ProductA", "OperationC", "UsageTypeC", "", null, accountService, productService),
+		};
+		BasicTagGroupManager manager = getTagGroupManager(tagGroups);
+		Account account1 = accountService.getAccountByName("Account1");
+		
+		// Filtering on account doesn't restrict the accounts, but does restrict everything else
+		TagFacets facets = manager.getFacets(new TagLists(Lists.newArrayList(account1)), 2);
+		assertEquals("wrong number of accounts", 2, facets.accounts.size());
+		assertEquals("wrong number of regions", 2, facets.regions.size());
+		assertEquals("wrong number of operations", 2, facets.operations.size());
+		assertEquals("wrong number of usage types", 2, facets.usageTypes.size());
+		assertEquals("wrong number of first user tag values", 2, facets.userTags.get(0).size());
+		assertTrue("missing TagB", facets.userTags.get(0).contains(UserTag.get("TagB")));
+		
+		// Filtering on a user tag restricts the other dimensions, tag groups without user tags always pass
+		List<List<UserTag>> userTagLists = Lists.newArrayList();
+		userTagLists.add(Lists.newArrayList(UserTag.get("TagA")));
+		userTagLists.add(null);
+		facets = manager.getFacets(new TagListsWithUserTags(null, null, null, null, null, null, userTagLists), 2);
+		assertEquals("wrong number of accounts with user tag filter", 2, facets.accounts.size());
+		assertEquals("wrong number of usage types with user tag filter", 2, facets.usageTypes.size());
+		assertEquals("wrong number of first user tag values with user tag filter", 3, facets.userTags.get(0).size());
+		assertEquals("wrong number of second user tag values with user tag filter", 1, facets.userTags.get(1).size());
+		assertTrue("missing TagX", facets.userTags.get(1).contains(UserTag.get("TagX")));
+	}
+	
 	private TagGroup getTagGroup(Operation operation) {
 		return TagGroup.getTagGroup(a1, Region.US_EAST_1, null, ec2, operation, UsageType.getUsageType("None", ""), null);
 	}
@@ -270,4 +381,36 @@ public class BasicTagGroupManagerTest {
 		ops = manager.getOperations(new TagLists(), exclude);
 		assertEquals("wrong number of operations after excluding amortized", tagGroups.size() - numLent, ops.size());
 	}
+	
+	@Test
+	public void testGetTagListsMapWithMapper() throws Exception {
+		TagGroup[] tagGroups = new TagGroup[]{
+				TagGroup.getTagGroup("Account1", "us-east-1", "us-east-1a", "ProductA", "OperationA", "UsageTypeA", "", "|", accountService, productService),
+				TagGroup.getTagGroup("Account1", "us-east-1", "us-east-1a", "EC2 Instance", "Savings - Spot", "m1.small", "hour", "|", 	accountService, productService),
+				TagGroup.getTagGroup("Account1", "us-east-1", "us-east-1a", "EC2 Instance", "Savings RIs - All Upfront", "m1.small", "hour", "|", 	accountService, productService),
+				TagGroup.getTagGroup("Account1", "us-east-1", "us-east-1a", "EC2 Instance", "Lent RIs - All Upfront", "m1.small", "hour", "|", 	accountService, productService),				
+				TagGroup.getTagGroup("Account1", "us-east-1", "us-east-1a", "EC2 Instance", "Borrowed RIs - All Upfront", "m1.small", "hour", "|", 	accountService, productService),				
+				TagGroup.getTagGroup("Account1", "us-east-1", "us-east-1a", "EC2 Instance", "BorrowedAmortized RIs - All Upfront", "m1.small", "hour", "|", 	accountService, productService),				
+		};
+		
+		BasicTagGroupManager manager = getTagGroupManager(tagGroups);
+		Interval interval = new Interval(testMonth.getMillis(), testMonth.plusMonths(1).getMillis());		
+		TagLists tagLists = new TagLists();
+		
+		// Group by consolidated operation for reservation with borrowed
+		List<Operation.Identity.Value> exclude = Operation.exclude(null, false, true, true);		
+		Map<Tag, TagLists> groupByLists = manager.getTagListsMap(interval, tagLists, TagType.Operation, exclude, 0, GroupKeyMapper.consolidatedOperation);
+		assertEquals("wrong number of groupBy tags for consolidated operation", 4, groupByLists.size());
+		assertEquals("wrong number of operations for savings", 2, groupByLists.get(new ConsolidatedOperation("Savings")).operations.size());
+		assertEquals("wrong number of operations for RIs", 1, groupByLists.get(new ConsolidatedOperation("RIs")).operations.size());
+		assertEquals("wrong operation for RIs", ReservationOperation.borrowedInstancesAllUpfront, groupByLists.get(new ConsolidatedOperation("RIs")).operations.get(0));
+		assertEquals("wrong number of operations for amortized RIs", 1, groupByLists.get(new ConsolidatedOperation("Amortized RIs")).operations.size());
+		
+		// Non-mapped dimensions are left alone
+		assertNull("accounts should not be restricted", groupByLists.get(new ConsolidatedOperation("Savings")).accounts);
+		
+		// Without a mapper each operation gets its own TagLists
+		groupByLists = manager.getTagListsMap(interval, tagLists, TagType.Operation, exclude, 0, null);
+		assertEquals("wrong number of groupBy tags for operation", 5, groupByLists.size());
+	}
 }
@@ -101,6 +101,40 @@ public class TagCoverageDataManagerTest {
 	}
 	
 	
+	@Test
+	public void testProcessMergedCounts() {
+		List<String> userTags = Lists.newArrayList("Email", "Department");
+		Tag a = UserTag.get("a");
+		Tag b = UserTag.get("b");
+		
+		// First product has coverage for both intervals of a, second product for the second interval of a and the first of b
+		TagCoverageMetrics m1 = TagCoverageMetrics.add(null, new boolean[]{ true, false });
+		TagCoverageMetrics m2 = TagCoverageMetrics.add(null, new boolean[]{ true, true });
+		TagCoverageMetrics m3 = TagCoverageMetrics.add(null, new boolean[]{ false, true });
+		TagCoverageMetrics m4 = TagCoverageMetrics.add(null, new boolean[]{ false, false });
+		
+		Map<Tag, TagCoverageMetrics[]> product1 = Maps.newHashMap();
+		product1.put(a, new TagCoverageMetrics[]{ m1, m2 });
+		Map<Tag, TagCoverageMetrics[]> product2 = Maps.newHashMap();
+		product2.put(a, new TagCoverageMetrics[]{ null, m3 });
+		product2.put(b, new TagCoverageMetrics[]{ m4, null });
+		
+		Map<Tag, TagCoverageCounts> counts = Maps.newHashMap();
+		TagCoverageCounts.merge(TagCoverageCounts.fromMetrics(product1, userTags.size()), counts);
+		TagCoverageCounts.merge(TagCoverageCounts.fromMetrics(product2, userTags.size()), counts);
+		
+		List<UserTag> tagKeys = Lists.newArrayList(UserTag.get("Email"));
+		Map<Tag, double[]> result = TagCoverageDataManager.processCounts(counts, TagType.Tag, AggregateType.stats, tagKeys, userTags);
+		
+		assertEquals("wrong number of series", 3, result.size());
+		assertEquals("wrong coverage for a[0]", 100.0, result.get(a)[0], 0.001);
+		assertEquals("wrong coverage for a[1]", 50.0, result.get(a)[1], 0.001);
+		assertEquals("wrong coverage for b[0]", 0.0, result.get(b)[0], 0.001);
+		assertEquals("wrong coverage for b[1]", 0.0, result.get(b)[1], 0.001);
+		assertEquals("wrong aggregate coverage [0]", 50.0, result.get(Tag.aggregated)[0], 0.001);
+		assertEquals("wrong aggregate coverage [1]", 50.0, result.get(Tag.aggregated)[1], 0.001);
+	}
+	
 	class TestDataFileCache extends TagCoverageDataManager {
 		private final int userTagSize;
 		
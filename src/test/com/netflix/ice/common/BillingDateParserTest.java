@@ -0,0 +1,69 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import static org.junit.Assert.*;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+public class BillingDateParserTest {
+
+	@Test
+	public void testMatchesJoda() {
+		BillingDateParser parser = new BillingDateParser();
+		// Walk every hour from 1999 through 2021 to cover leap years and century rules
+		DateTime end = new DateTime("2021-01-01T00:00:00Z", DateTimeZone.UTC);
+		for (DateTime dt = new DateTime("1999-12-31T00:00:00Z", DateTimeZone.UTC); dt.isBefore(end); dt = dt.plusMinutes(61).plusSeconds(7)) {
+			String iso = LineItem.amazonBillingDateFormatISO.print(dt).replace("+0000", "Z");
+			String dbr = LineItem.amazonBillingDateFormat.print(dt);
+			String dbr2 = LineItem.amazonBillingDateFormat2.print(dt);
+
+			assertEquals("Wrong millis for " + iso, LineItem.amazonBillingDateFormatISO.parseMillis(iso), parser.parseMillis(iso));
+			assertEquals("Wrong millis for " + dbr, LineItem.amazonBillingDateFormat.parseMillis(dbr), parser.parseMillis(dbr));
+			assertEquals("Wrong millis for " + dbr2, LineItem.amazonBillingDateFormat2.parseMillis(dbr2), parser.parseMillis(dbr2));
+		}
+	}
+
+	@Test
+	public void testCache() {
+		BillingDateParser parser = new BillingDateParser();
+		long millis = parser.parseMillis("2017-09-01T00:00:00Z");
+		assertEquals("Wrong cached millis", millis, parser.parseMillis(new String("2017-09-01T00:00:00Z")));
+		assertEquals("Wrong millis on same day", millis + AwsUtils.hourMillis, parser.parseMillis("2017-09-01T01:00:00Z"));
+		assertEquals("Wrong millis on next day", millis + 24 * AwsUtils.hourMillis, parser.parseMillis("2017-09-02T00:00:00Z"));
+	}
+
+	@Test
+	public void testFallback() {
+		BillingDateParser parser = new BillingDateParser();
+		// Offset layout isn't handled directly, but Joda still parses it
+		assertEquals("Wrong millis for offset layout", LineItem.amazonBillingDateFormatISO.parseMillis("2017-09-01T00:00:00-0800"), parser.parseMillis("2017-09-01T00:00:00-0800"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadDate() {
+		new BillingDateParser().parseMillis("2017-02-29 00:00:00");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGarbage() {
+		new BillingDateParser().parseMillis("not a date");
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+public class ChangeManifestTest {
+
+	@Test
+	public void testFilename() {
+		assertEquals("wrong filename", "lastProcessChanges_2020-02", ChangeManifest.getFilename(new DateTime("2020-02-01T00:00:00Z", DateTimeZone.UTC)));
+	}
+	
+	@Test
+	public void testReadWrite() throws IOException {
+		ChangeManifest manifest = new ChangeManifest();
+		manifest.add("usage_hourly_all_2020-02.gz");
+		manifest.add("cost_hourly_all_2020-02.gz");
+		manifest.add("usage_hourly_all_2020-02.gz");
+		
+		StringWriter out = new StringWriter();
+		manifest.write(out);
+		// Times are only set when archived, so the header is empty
+		assertEquals("wrong manifest", "0,0\ncost_hourly_all_2020-02.gz\nusage_hourly_all_2020-02.gz\n", out.toString());
+		
+		String text = "1000,2000\n" + "cost_hourly_all_2020-02.gz\n" + "tagdb_all.gz\n";
+		ChangeManifest read = ChangeManifest.read(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+		assertEquals("wrong previous process time", 1000, read.getPreviousProcessTime());
+		assertEquals("wrong process time", 2000, read.getProcessTime());
+		assertEquals("wrong number of files", 2, read.getFiles().size());
+		assertTrue("missing tag group file", read.getFiles().contains("tagdb_all.gz"));
+	}
+	
+	@Test(expected = IOException.class)
+	public void testReadEmpty() throws IOException {
+		ChangeManifest.read(new ByteArrayInputStream(new byte[0]));
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+
+public class CodecTest {
+    protected Logger logger = LoggerFactory.getLogger(getClass());
+
+	/*
+	 * Something that looks like a serialized data file: runs of tag group indexes and doubles, many of them zero
+	 */
+	private byte[] sampleData(int numValues) throws IOException {
+		Random random = new Random(1);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int i = 0; i < numValues; i++) {
+			out.writeInt(random.nextInt(1000));
+			out.writeDouble(random.nextInt(4) == 0 ? 0 : Math.round(random.nextDouble() * 10000) / 100.0);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private byte[] compress(Codec codec, byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = codec.compress(bytes);
+		// Write in odd sized pieces
+		for (int i = 0; i < data.length; i += 1000)
+			out.write(data, i, Math.min(1000, data.length - i));
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private byte[] decompress(byte[] compressed) throws IOException {
+		InputStream in = Codec.decompress(new ByteArrayInputStream(compressed));
+		try {
+			return ByteStreams.toByteArray(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		byte[] data = sampleData(100000);
+		for (Codec codec: Codec.values()) {
+			byte[] compressed = compress(codec, data);
+			assertEquals("wrong codec detected", codec, Codec.detect(new BufferedInputStream(new ByteArrayInputStream(compressed))));
+			assertArrayEquals("wrong data for " + codec, data, decompress(compressed));
+			assertTrue(codec + " didn't compress", compressed.length < data.length);
+		}
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		for (Codec codec: Codec.values())
+			assertEquals("wrong length for " + codec, 0, decompress(compress(codec, new byte[0])).length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownFormat() throws IOException {
+		decompress("not compressed".getBytes());
+	}
+
+	@Test
+	public void testThroughput() throws IOException {
+		byte[] data = sampleData(1000000);
+		int rounds = 3;
+		for (Codec codec: Codec.values()) {
+			// Warm up
+			byte[] compressed = compress(codec, data);
+			decompress(compressed);
+
+			long start = System.nanoTime();
+			for (int i = 0; i < rounds; i++)
+				compressed = compress(codec, data);
+			long compressNanos = (System.nanoTime() - start) / rounds;
+
+			start = System.nanoTime();
+			for (int i = 0; i < rounds; i++)
+				decompress(compressed);
+			long decompressNanos = (System.nanoTime() - start) / rounds;
+
+			logger.info(String.format("%-6s ratio %.2f, compress %.0f MB/s, decompress %.0f MB/s", codec,
+					(double) data.length / compressed.length,
+					data.length * 1000.0 / Math.max(1, compressNanos),
+					data.length * 1000.0 / Math.max(1, decompressNanos)));
+		}
+	}
+}
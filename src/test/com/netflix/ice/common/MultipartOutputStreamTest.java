@@ -0,0 +1,167 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+public class MultipartOutputStreamTest {
+	private static final ExecutorService pool = Executors.newFixedThreadPool(3);
+
+	@AfterClass
+	public static void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/*
+	 * Collects the parts in memory. Fails the first attempt to upload each of the failing part numbers.
+	 */
+	private static class TestStream extends MultipartOutputStream {
+		final Map<Integer, byte[]> parts = Maps.newConcurrentMap();
+		final List<Integer> failing;
+		final AtomicInteger attempts = new AtomicInteger();
+		byte[] object = null;
+		String md5 = null;
+		boolean aborted = false;
+		boolean initiated = false;
+		boolean failAlways = false;
+
+		TestStream(int partSize, Integer... failing) {
+			super("test", partSize, pool, 2, 2);
+			this.failing = new CopyOnWriteArrayList<Integer>(failing);
+		}
+
+		@Override
+		protected String initiate() {
+			initiated = true;
+			return "upload";
+		}
+
+		@Override
+		protected String uploadPart(String uploadId, int partNumber, byte[] data, int length) throws IOException {
+			attempts.incrementAndGet();
+			if (failAlways || failing.remove((Integer) partNumber))
+				throw new IOException("connection reset");
+			parts.put(partNumber, Arrays.copyOf(data, length));
+			return "etag" + partNumber;
+		}
+
+		@Override
+		protected void complete(String uploadId, List<String> eTags, String md5) {
+			this.md5 = md5;
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (int i = 0; i < eTags.size(); i++) {
+				assertEquals("wrong etag", "etag" + (i + 1), eTags.get(i));
+				byte[] part = parts.get(i + 1);
+				out.write(part, 0, part.length);
+			}
+			object = out.toByteArray();
+		}
+
+		@Override
+		protected void abort(String uploadId) {
+			aborted = true;
+		}
+
+		@Override
+		protected void put(byte[] data, int length) {
+			object = Arrays.copyOf(data, length);
+		}
+	}
+
+	private byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(1).nextBytes(data);
+		return data;
+	}
+
+	@Test
+	public void testMultipart() throws IOException {
+		byte[] data = randomBytes(100001);
+		TestStream out = new TestStream(1000, 3, 50);
+		// Mix of single byte and array writes that don't line up with the parts
+		out.write(data[0]);
+		for (int i = 1; i < data.length; i += 777)
+			out.write(data, i, Math.min(777, data.length - i));
+		assertNull("object visible before close", out.object);
+		out.close();
+
+		assertTrue("not multipart", out.initiated);
+		assertEquals("wrong number of parts", 101, out.parts.size());
+		assertEquals("wrong number of attempts", 103, out.attempts.get());
+		assertArrayEquals("wrong object", data, out.object);
+		assertEquals("wrong digest", Hashing.md5().hashBytes(data).toString(), out.md5);
+		assertFalse("aborted", out.aborted);
+	}
+
+	@Test
+	public void testSinglePut() throws IOException {
+		byte[] data = randomBytes(1000);
+		TestStream out = new TestStream(1000);
+		out.write(data);
+		out.close();
+
+		assertFalse("used multipart for one part", out.initiated);
+		assertArrayEquals("wrong object", data, out.object);
+	}
+
+	@Test
+	public void testFailedPartAborts() throws IOException {
+		TestStream out = new TestStream(1000);
+		out.failAlways = true;
+		try {
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			gzip.write(randomBytes(10000));
+			gzip.close();
+			fail("completed upload with a failed part");
+		}
+		catch (IOException e) {
+			assertEquals("wrong error", "connection reset", e.getMessage());
+		}
+		assertTrue("not aborted", out.aborted);
+		assertNull("object written", out.object);
+	}
+
+	@Test
+	public void testAbort() throws IOException {
+		TestStream out = new TestStream(1000);
+		out.write(randomBytes(5000));
+		out.abort();
+		out.close();
+
+		assertTrue("not aborted", out.aborted);
+		assertNull("object written", out.object);
+	}
+}
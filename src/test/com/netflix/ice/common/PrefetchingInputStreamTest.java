@@ -0,0 +1,154 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+public class PrefetchingInputStreamTest {
+
+	/*
+	 * Source that fails once after reading past each of the failure offsets
+	 */
+	private static class FailingSource extends PrefetchingInputStream {
+		private final byte[] data;
+		private final List<Long> failAt;
+		final List<Long> opened = Lists.newArrayList();
+
+		FailingSource(byte[] data, int bufferSize, int maxRetries, Long... failAt) {
+			super("test", data.length, bufferSize, maxRetries, 0);
+			this.data = data;
+			this.failAt = Lists.newArrayList(failAt);
+		}
+
+		@Override
+		protected InputStream open(final long offset) throws IOException {
+			opened.add(offset);
+			final long fail = failAt.isEmpty() ? data.length : failAt.remove(0);
+			return new InputStream() {
+				long pos = offset;
+
+				@Override
+				public int read() throws IOException {
+					if (pos >= fail && fail < data.length)
+						throw new IOException("connection reset");
+					return pos < data.length ? data[(int) pos++] & 0xff : -1;
+				}
+			};
+		}
+	}
+
+	private byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(1).nextBytes(data);
+		return data;
+	}
+
+	@Test
+	public void testResume() throws IOException {
+		byte[] data = randomBytes(1000000);
+		FailingSource in = new FailingSource(data, 512 * 1024, 2, 300000L, 700001L);
+		in.start();
+		byte[] read = ByteStreams.toByteArray(in);
+		in.close();
+
+		assertArrayEquals("wrong data", data, read);
+		assertEquals("wrong number of resumes", 2, in.getResumes());
+		assertNull("unexpected error", in.getError());
+		// Each open resumes from the start of the chunk that failed
+		assertEquals("wrong number of opens", 3, in.opened.size());
+		assertEquals("didn't start at beginning", 0L, (long) in.opened.get(0));
+		assertTrue("resumed past failure", in.opened.get(1) <= 300000L && in.opened.get(1) > 0);
+		assertTrue("resumed past failure", in.opened.get(2) <= 700001L && in.opened.get(2) > in.opened.get(1));
+	}
+
+	@Test
+	public void testGzipStream() throws IOException {
+		byte[] data = randomBytes(2000000);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(compressed);
+		out.write(data);
+		out.close();
+
+		byte[] bytes = compressed.toByteArray();
+		FailingSource in = new FailingSource(bytes, 256 * 1024, 1, bytes.length / 2L);
+		in.start();
+		InputStream gzip = new GZIPInputStream(in);
+		byte[] read = ByteStreams.toByteArray(gzip);
+		gzip.close();
+
+		assertArrayEquals("wrong inflated data", data, read);
+		assertEquals("wrong number of resumes", 1, in.getResumes());
+	}
+
+	@Test
+	public void testGiveUp() {
+		byte[] data = randomBytes(100000);
+		FailingSource in = new FailingSource(data, 512 * 1024, 1, 1000L, 1000L);
+		in.start();
+		try {
+			ByteStreams.toByteArray(in);
+			fail("read past failed transfer");
+		}
+		catch (IOException e) {
+			assertEquals("wrong error", "connection reset", e.getMessage());
+		}
+		finally {
+			in.close();
+		}
+		assertNotNull("no error", in.getError());
+	}
+
+	@Test
+	public void testCloseEarly() throws IOException {
+		byte[] data = randomBytes(5000000);
+		FailingSource in = new FailingSource(data, 256 * 1024, 0);
+		in.start();
+		byte[] buf = new byte[1000];
+		assertEquals("wrong first byte", data[0] & 0xff, in.read());
+		assertTrue("no data", in.read(buf) > 0);
+		in.close();
+		try {
+			in.read();
+			fail("read from closed stream");
+		}
+		catch (IOException e) {
+		}
+		assertNull("unexpected error", in.getError());
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		FailingSource in = new FailingSource(new byte[0], 1024, 0);
+		in.start();
+		assertEquals("read data from empty object", -1, in.read());
+		in.close();
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+public class RangedDownloaderTest {
+	private static final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+	@AfterClass
+	public static void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/*
+	 * Serves ranges of the data, failing the first request for each of the failing part starts
+	 */
+	private static class TestDownloader extends RangedDownloader {
+		private final byte[] data;
+		private final Set<Long> failing;
+		final AtomicInteger requests = new AtomicInteger();
+
+		TestDownloader(byte[] data, long partSize, int maxRetries, Long... failing) {
+			super("test", data.length, partSize, pool, maxRetries, 0);
+			this.data = data;
+			this.failing = Collections.newSetFromMap(Maps.<Long, Boolean>newConcurrentMap());
+			this.failing.addAll(Arrays.asList(failing));
+		}
+
+		@Override
+		protected InputStream open(long start, long end) throws IOException {
+			requests.incrementAndGet();
+			final boolean fail = failing.remove(start);
+			return new ByteArrayInputStream(data, (int) start, (int) (end - start + 1)) {
+				@Override
+				public synchronized int read(byte[] b, int off, int len) {
+					// Fail after returning some of the part
+					if (fail && pos > mark + 100)
+						throw new IllegalStateException("connection reset");
+					return super.read(b, off, Math.min(len, 64));
+				}
+			};
+		}
+	}
+
+	private byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(1).nextBytes(data);
+		return data;
+	}
+
+	@Test
+	public void testDownload() throws IOException {
+		byte[] data = randomBytes(100003);
+		File file = File.createTempFile("ranged", ".gz");
+		try {
+			TestDownloader downloader = new TestDownloader(data, 10000, 2, 0L, 50000L, 90000L);
+			assertEquals("wrong number of parts", 11, downloader.getNumParts());
+			downloader.download(file);
+			assertArrayEquals("wrong data", data, Files.toByteArray(file));
+			assertEquals("wrong number of requests", 14, downloader.requests.get());
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testOverwrite() throws IOException {
+		byte[] data = randomBytes(5000);
+		File file = File.createTempFile("ranged", ".gz");
+		try {
+			Files.write(randomBytes(20000), file);
+			new TestDownloader(data, 1024, 0).download(file);
+			assertArrayEquals("wrong data", data, Files.toByteArray(file));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testGiveUp() throws IOException {
+		byte[] data = randomBytes(50000);
+		File file = File.createTempFile("ranged", ".gz");
+		try {
+			new TestDownloader(data, 10000, 0, 20000L).download(file);
+			fail("downloaded with failed part");
+		}
+		catch (IOException e) {
+			assertTrue("wrong error " + e, e.getMessage().contains("connection reset"));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testJitteredBackoff() {
+		for (int attempt = 1; attempt < 30; attempt++) {
+			long ceiling = Math.min(60000L, 1000L << Math.min(attempt - 1, 16));
+			long delay = AwsUtils.jitteredBackoff(1000L, attempt);
+			assertTrue("delay " + delay + " too short for attempt " + attempt, delay >= ceiling / 2);
+			assertTrue("delay " + delay + " too long for attempt " + attempt, delay <= ceiling);
+		}
+		assertEquals("no delay", 0, AwsUtils.jitteredBackoff(0, 3));
+	}
+}
@@ -19,17 +19,27 @@ package com.netflix.ice.common;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Lists;
 import com.netflix.ice.basic.BasicAccountService;
 import com.netflix.ice.basic.BasicProductService;
 import com.netflix.ice.tag.Operation;
 import com.netflix.ice.tag.Product;
 import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.ResourceGroup;
 import com.netflix.ice.tag.UsageType;
+import com.netflix.ice.tag.Zone.BadZone;
 
 public class TagGroupTest {
     protected Logger logger = LoggerFactory.getLogger(getClass());
@@ -72,4 +82,36 @@ public class TagGroupTest {
 		assertFalse("Should not be equal", tga.equals(tgb));
 	}
 	
+	@Test
+	public void testSerializeTagGroupList() throws IOException, BadZone {
+		AccountService as = new BasicAccountService();
+		List<TagGroup> tagGroups = Lists.newArrayList();
+		tagGroups.add(TagGroup.getTagGroup(as.getAccountById("111111111456", ""), Region.US_EAST_1, Region.US_EAST_1.getZone("us-east-1a"), ps.getProduct(Product.Code.Ec2Instance), Operation.ondemandInstances, UsageType.getUsageType("m5.large", "hours"), null));
+		tagGroups.add(TagGroup.getTagGroup(as.getAccountById("111111111456", ""), Region.US_EAST_1, null, ps.getProduct(Product.Code.S3), Operation.getOperation("StandardStorage"), UsageType.getUsageType("TimedStorage-ByteHrs", "GB"), ResourceGroup.getResourceGroup(new String[]{"Prod", "", "Web|App"})));
+		tagGroups.add(TagGroup.getTagGroup(as.getAccountById("111111111567", ""), Region.US_WEST_2, null, ps.getProduct(Product.Code.S3), Operation.getOperation("StandardStorage"), UsageType.getUsageType("TimedStorage-ByteHrs", "GB"), ResourceGroup.getResourceGroup(new String[]{"Prod", "Dev", ""})));
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		TagGroup.Serializer.serializeTagGroupList(new DataOutputStream(output), tagGroups);
+		
+		List<TagGroup> result = TagGroup.Serializer.deserializeTagGroupList(as, ps, new DataInputStream(new ByteArrayInputStream(output.toByteArray())));
+		assertEquals("Wrong number of tag groups", tagGroups.size(), result.size());
+		for (int i = 0; i < tagGroups.size(); i++)
+			assertTrue("Tag group " + i + " doesn't match", tagGroups.get(i) == result.get(i));
+	}
+	
+	@Test
+	public void testDeserializeLegacyTagGroupList() throws IOException, BadZone {
+		AccountService as = new BasicAccountService();
+		TagGroup tg = TagGroup.getTagGroup(as.getAccountById("111111111456", ""), Region.US_EAST_1, null, ps.getProduct(Product.Code.S3), Operation.getOperation("StandardStorage"), UsageType.getUsageType("TimedStorage-ByteHrs", "GB"), ResourceGroup.getResourceGroup(new String[]{"Prod", "Web"}));
+		
+		// Legacy data files write the count followed by each tag group as UTF strings
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(output);
+		out.writeInt(1);
+		TagGroup.Serializer.serialize(out, tg);
+		
+		List<TagGroup> result = TagGroup.Serializer.deserializeTagGroupList(as, ps, new DataInputStream(new ByteArrayInputStream(output.toByteArray())));
+		assertEquals("Wrong number of tag groups", 1, result.size());
+		assertTrue("Tag group doesn't match", tg == result.get(0));
+	}
 }
@@ -202,12 +202,6 @@ public class BillingFileProcessorTest {
 										reservationService,
 										priceListService);
 		Long startMilli = config.startDate.getMillis();
-		BillingFileProcessor bfp = ProcessorConfig.billingFileProcessor;
-		bfp.init(startMilli);
-		
-		// Debug settings
-		//bfp.reservationProcessor.setDebugHour(0);
-		//bfp.reservationProcessor.setDebugFamily("c4");
     	
 		CostAndUsageData costAndUsageData = new CostAndUsageData(startMilli, null, null, TagCoverage.none, null, productService);
         Instances instances = new Instances(null, null, null);
@@ -19,10 +19,20 @@ package com.netflix.ice.processor;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -34,9 +44,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.netflix.ice.basic.BasicAccountService;
 import com.netflix.ice.basic.BasicProductService;
 import com.netflix.ice.common.AccountService;
+import com.netflix.ice.common.DataCube;
 import com.netflix.ice.common.ProductService;
 import com.netflix.ice.common.TagGroup;
 import com.netflix.ice.common.Config.TagCoverage;
@@ -44,6 +56,7 @@ import com.netflix.ice.tag.Operation;
 import com.netflix.ice.tag.Product;
 import com.netflix.ice.tag.Region;
 import com.netflix.ice.tag.UsageType;
+import com.netflix.ice.tag.Zone.BadZone;
 
 public class CostAndUsageDataTest {
     protected Logger logger = LoggerFactory.getLogger(getClass());
@@ -349,4 +362,193 @@ public class CostAndUsageDataTest {
         for (int m = monthIndex + 1; m < cau.monthlyCost.getNum(); m++)
         	assertNotNull("did not find stale data for month", cau.monthlyCost.get(m, staleDataTagGroup));
 	}
+	
+	@Test
+	public void testGetCubeData() {
+		DateTime start = new DateTime("2020-01", DateTimeZone.UTC);
+		TestCostAndUsageData cau = new TestCostAndUsageData(start, start, start);
+		TagGroup otherUsageType = TagGroup.getTagGroup(as.getAccountById("123", ""), Region.US_WEST_2, null, ps.getProduct(Product.Code.S3), Operation.ondemandInstances, UsageType.getUsageType("m1.small", "hours"), null);
+		ReadWriteData cost = new ReadWriteData();
+		cost.put(0, tg, 1.0);
+		cost.put(0, otherUsageType, 2.0);
+		cost.put(0, staleDataTagGroup, 4.0);
+		cost.put(2, tg, 8.0);
+		
+		// Regions and usage types collapse into a single tag group
+		ReadWriteData apo = cau.getCubeData(cost, DataCube.accountProductOperation);
+		assertEquals("wrong number of hours", 3, apo.getNum());
+		assertEquals("wrong number of tag groups", 1, apo.getTagGroups().size());
+		TagGroup cubeTagGroup = apo.getTagGroups().iterator().next();
+		assertEquals("wrong account", tg.account, cubeTagGroup.account);
+		assertEquals("wrong product", tg.product, cubeTagGroup.product);
+		assertEquals("wrong operation", tg.operation, cubeTagGroup.operation);
+		assertEquals("wrong value for hour 0", 7.0, apo.get(0, cubeTagGroup), 0.001);
+		assertNull("found value for hour 1", apo.get(1, cubeTagGroup));
+		assertEquals("wrong value for hour 2", 8.0, apo.get(2, cubeTagGroup), 0.001);
+		
+		// Regions are kept
+		ReadWriteData arpo = cau.getCubeData(cost, DataCube.accountRegionProductOperation);
+		assertEquals("wrong number of tag groups", 2, arpo.getTagGroups().size());
+		assertEquals("wrong value for us-west-2", 3.0, arpo.get(0, DataCube.accountRegionProductOperation.reduce(tg)), 0.001);
+		assertEquals("wrong value for us-west-1", 4.0, arpo.get(0, DataCube.accountRegionProductOperation.reduce(staleDataTagGroup)), 0.001);
+	}
+	
+	@Test
+	public void testMemoryBudget() throws IOException, BadZone {
+		long budget = 1 << 20;
+		Product[] products = new Product[]{
+				ps.getProduct(Product.Code.Ec2Instance),
+				ps.getProduct(Product.Code.S3),
+				ps.getProduct(Product.Code.Ebs),
+				ps.getProduct(Product.Code.DynamoDB),
+				ps.getProduct(Product.Code.CloudFront),
+		};
+		// Synthetic month with far more data than the budget. Values are whole numbers so the sums are exact.
+		Map<String, Double> expected = Maps.newHashMap();
+		CostAndUsageData.setMemoryBudget(budget);
+		try {
+			CostAndUsageData cau = new CostAndUsageData(0, null, null, TagCoverage.none, as, ps);
+			int lines = 200000;
+			for (int line = 0; line < lines; line++) {
+				Product product = products[line % products.length];
+				TagGroup tagGroup = TagGroup.getTagGroup(tg.account, Region.US_EAST_1, null, product, Operation.ondemandInstances, UsageType.getUsageType("type" + (line % 300), "hours"), null);
+				int hour = (line * 7) % (24 * 31);
+				
+				ReadWriteData usage = cau.getUsage(product);
+				if (usage == null) {
+					usage = new ReadWriteData();
+					cau.putUsage(product, usage);
+				}
+				Double existing = usage.get(hour, tagGroup);
+				usage.put(hour, tagGroup, (existing == null ? 0 : existing) + 1);
+				
+				String key = product.getServiceCode() + "," + hour + "," + tagGroup.usageType.name;
+				Double v = expected.get(key);
+				expected.put(key, (v == null ? 0 : v) + 1);
+			}
+			assertTrue("data over budget: " + cau.getMemorySize(), cau.getMemorySize() <= budget);
+			
+			int count = 0;
+			for (Product product: products) {
+				ReadWriteData usage = cau.getUsage(product);
+				
+				// Write a spilled product out and read it back
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				usage.serialize(out, null);
+				out.close();
+				ReadWriteData copy = new ReadWriteData();
+				copy.deserialize(as, ps, new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+				
+				for (ReadWriteData data: new ReadWriteData[]{ usage, copy }) {
+					for (int hour = 0; hour < data.getNum(); hour++) {
+						for (TagGroup tagGroup: data.getTagGroups(hour)) {
+							String key = product.getServiceCode() + "," + hour + "," + tagGroup.usageType.name;
+							assertEquals("wrong value for " + key, expected.get(key), data.get(hour, tagGroup), 0.001);
+							if (data == usage)
+								count++;
+						}
+					}
+				}
+			}
+			assertEquals("wrong number of values", expected.size(), count);
+		}
+		finally {
+			CostAndUsageData.setMemoryBudget(0);
+		}
+	}
+	
+	@Test
+	public void testArchiveSpilledData() throws Exception {
+		final ReadWriteData data = new ReadWriteData();
+		final List<TagGroup> tagGroups = Lists.newArrayList();
+		for (int i = 0; i < 50; i++)
+			tagGroups.add(TagGroup.getTagGroup(tg.account, Region.US_EAST_1, null, tg.product, Operation.ondemandInstances, UsageType.getUsageType("type" + i, "hours"), null));
+		int hours = 24 * 31;
+		for (int hour = 0; hour < hours; hour++) {
+			for (int i = 0; i < tagGroups.size(); i++)
+				data.put(hour, tagGroups.get(i), (double) (hour % 24 + i + 1));
+		}
+		assertTrue("nothing spilled", data.spill(new File(System.getProperty("java.io.tmpdir"))) > 0);
+		assertEquals("data left on heap", 0, data.getMemorySize());
+		
+		// Read the spilled data from several threads the way the archive futures do
+		final CostAndUsageData cau = new CostAndUsageData(0, null, null, TagCoverage.none, as, ps);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<ReadWriteData>> cubes = Lists.newArrayList();
+			for (int n = 0; n < 8; n++) {
+				final DataCube cube = n % 2 == 0 ? DataCube.accountProductOperation : DataCube.accountRegionProductOperation;
+				cubes.add(pool.submit(new Callable<ReadWriteData>() {
+					@Override
+					public ReadWriteData call() {
+						return cau.getCubeData(data, cube);
+					}
+				}));
+			}
+			
+			double lastHour = 0;
+			for (int i = 0; i < tagGroups.size(); i++)
+				lastHour += 23 + i + 1;
+			for (int n = 0; n < cubes.size(); n++) {
+				DataCube cube = n % 2 == 0 ? DataCube.accountProductOperation : DataCube.accountRegionProductOperation;
+				ReadWriteData cubeData = cubes.get(n).get();
+				assertEquals("wrong number of hours", hours, cubeData.getNum());
+				assertEquals("wrong cube value", lastHour, cubeData.get(hours - 1, cube.reduce(tagGroups.get(0))), 0.001);
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+		
+		// All the cubes from one pass over the data
+		Map<DataCube, ReadWriteData> cubes = cau.getCubeData(data, EnumSet.allOf(DataCube.class));
+		assertEquals("wrong number of cubes", DataCube.values().length, cubes.size());
+		for (DataCube cube: DataCube.values()) {
+			ReadWriteData expected = cau.getCubeData(data, cube);
+			ReadWriteData cubeData = cubes.get(cube);
+			assertEquals("wrong number of hours for " + cube, expected.getNum(), cubeData.getNum());
+			for (int hour = 0; hour < expected.getNum(); hour++) {
+				assertEquals("wrong tag groups for " + cube, expected.getTagGroups(hour).size(), cubeData.getTagGroups(hour).size());
+				for (TagGroup tagGroup: expected.getTagGroups(hour))
+					assertEquals("wrong value for " + cube, expected.get(hour, tagGroup), cubeData.get(hour, tagGroup), 0.001);
+			}
+		}
+		
+		// Archiving doesn't bring the spilled intervals back onto the heap
+		assertEquals("spilled data decoded onto heap", 0, data.getMemorySize());
+		assertEquals("wrong value", 10.0, data.get(5, tagGroups.get(4)), 0.001);
+		assertEquals("spilled data decoded onto heap by get", 0, data.getMemorySize());
+	}
+	
+	@Test
+	public void testMerge() throws Exception {
+		Product ec2 = ps.getProduct(Product.Code.Ec2Instance);
+		
+		// Odd number of data sets with differing numbers of hours, only some having the product
+		List<CostAndUsageData> data = Lists.newArrayList();
+		for (int i = 0; i < 7; i++) {
+			CostAndUsageData cau = new CostAndUsageData(0, null, null, TagCoverage.none, as, ps);
+			cau.getCost(null).put(i, tg, 1.0);
+			if (i % 2 == 0) {
+				ReadWriteData cost = new ReadWriteData();
+				cost.put(0, tg, 2.0);
+				cau.putCost(ec2, cost);
+			}
+			data.add(cau);
+		}
+		CostAndUsageData first = data.get(0);
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			CostAndUsageData.merge(data, pool);
+		}
+		finally {
+			pool.shutdown();
+		}
+		
+		assertEquals("wrong number of hours", 7, first.getCost(null).getNum());
+		for (int i = 0; i < 7; i++)
+			assertEquals("wrong cost for hour " + i, 1.0, first.getCost(null).get(i, tg), 0.001);
+		assertEquals("wrong product cost", 8.0, first.getCost(ec2).get(0, tg), 0.001);
+	}
 }
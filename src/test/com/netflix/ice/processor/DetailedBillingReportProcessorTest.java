@@ -0,0 +1,204 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.processor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.collect.Maps;
+import com.netflix.ice.basic.BasicProductService;
+import com.netflix.ice.basic.BasicReservationService;
+import com.netflix.ice.common.IceOptions;
+import com.netflix.ice.common.LineItem;
+import com.netflix.ice.common.ProductService;
+import com.netflix.ice.common.PurchaseOption;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.common.WorkBucketDataConfig;
+import com.netflix.ice.common.Config.TagCoverage;
+import com.netflix.ice.processor.ReservationService.ReservationPeriod;
+import com.netflix.ice.processor.config.AccountConfig;
+import com.netflix.ice.processor.config.BillingDataConfig;
+import com.netflix.ice.tag.Product;
+
+public class DetailedBillingReportProcessorTest {
+	private static final DateTime start = new DateTime("2017-08-01T00:00:00Z", DateTimeZone.UTC);
+	private static final String dbrName = "aws-billing-detailed-line-items-with-resources-and-tags-2017-08.csv.zip";
+	
+	private static ProductService productService;
+	private static ReservationService reservationService;
+	private static File dbr;
+	
+	class TestConfig extends ProcessorConfig {
+		public TestConfig(Properties properties) throws Exception {
+			super(properties, null, DetailedBillingReportProcessorTest.productService, DetailedBillingReportProcessorTest.reservationService, null);
+		}
+		
+		@Override
+	    protected void initZones() {			
+		}
+		
+		@Override
+	    protected Map<String, AccountConfig> getAccountsFromOrganizations() {
+			return Maps.newHashMap();
+		}
+				
+		@Override
+		protected BillingDataConfig readBillingDataConfig(BillingBucket bb) {
+			return null;
+		}
+		
+		@Override
+		protected WorkBucketDataConfig downloadWorkBucketDataConfig(boolean force) {
+			return null;
+		}
+	}
+	
+	@BeforeClass
+	public static void init() throws Exception {
+		productService = new BasicProductService();
+		// DBRs don't have product codes, so load the products by name
+		for (Product.Code code: new Product.Code[]{ Product.Code.Ec2, Product.Code.Ec2Instance, Product.Code.Ebs, Product.Code.Eip, Product.Code.S3, Product.Code.DataTransfer })
+			productService.getProduct(code);
+		reservationService = new BasicReservationService(ReservationPeriod.oneyear, PurchaseOption.PartialUpfront);
+		
+		dbr = File.createTempFile("dbr", ".zip");
+		writeReport(dbr, 30001);
+	}
+	
+	@AfterClass
+	public static void cleanup() {
+		dbr.delete();
+	}
+	
+	/*
+	 * Synthetic report with hourly, daily and delayed monthly line items across a few accounts and resources
+	 */
+	private static void writeReport(File file, int lines) throws Exception {
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+		zip.putNextEntry(new ZipEntry(dbrName.substring(0, dbrName.length() - ".zip".length())));
+		Writer out = new OutputStreamWriter(zip);
+		out.write("InvoiceID,PayerAccountId,LinkedAccountId,RecordType,RecordId,ProductName,RateId,SubscriptionId,PricingPlanId,UsageType,Operation,AvailabilityZone,ReservedInstance,ItemDescription,UsageStartDate,UsageEndDate,UsageQuantity,BlendedRate,BlendedCost,UnBlendedRate,UnBlendedCost,ResourceId,user:Environment\n");
+		String[][] items = new String[][]{
+				{ "Amazon Elastic Compute Cloud", "USW2-BoxUsage:m5.large", "RunInstances", "us-west-2a" },
+				{ "Amazon Elastic Compute Cloud", "USW2-EBS:VolumeUsage.gp2", "CreateVolume-Gp2", "us-west-2b" },
+				{ "Amazon Simple Storage Service", "USW2-Requests-Tier1", "PutObject", "" },
+				{ "Amazon Simple Storage Service", "USW2-TimedStorage-ByteHrs", "StandardStorage", "" },
+				{ "AWS Data Transfer", "USW2-DataTransfer-Out-Bytes", "GetObject", "" },
+				{ "AWS Data Transfer", "USW2-PrevMon-DataXfer-Out-Bytes", "GetObject", "" },
+		};
+		for (int line = 0; line < lines; line++) {
+			String[] item = items[line % items.length];
+			DateTime hour = start.plusHours((line * 13) % (24 * 31));
+			String account = "12345678901" + (line % 3);
+			String cost = Double.toString((line % 97) / 100.0 + 0.01);
+			out.write("1," + "123456789010," + account + ",LineItem," + line + "," + item[0] + ",1,1,1," + item[1] + "," + item[2] + "," + item[3] + ",N,description,"
+					+ LineItem.amazonBillingDateFormat.print(hour) + "," + LineItem.amazonBillingDateFormat.print(hour.plusHours(1).minusSeconds(1)) + ","
+					+ (line % 5 + 1) + ",0.1," + cost + ",0.1," + cost + ",i-" + (line % 50) + "," + (line % 2 == 0 ? "prod" : "") + "\n");
+		}
+		out.flush();
+		zip.closeEntry();
+		zip.close();
+	}
+	
+	private CostAndUsageData process(int threads, Instances instances, long[] end) throws Exception {
+		Properties props = new Properties();
+        props.setProperty(IceOptions.START_MONTH, "2017-08");
+        props.setProperty(IceOptions.WORK_S3_BUCKET_NAME, "foo");
+        props.setProperty(IceOptions.WORK_S3_BUCKET_REGION, "us-east-1");
+        props.setProperty(IceOptions.BILLING_S3_BUCKET_NAME, "bar");
+        props.setProperty(IceOptions.BILLING_S3_BUCKET_REGION, "us-east-1");
+        props.setProperty(IceOptions.PROCESSOR_THREADS, Integer.toString(threads));
+		ProcessorConfig config = new TestConfig(props);
+		
+		DetailedBillingReportProcessor processor = new DetailedBillingReportProcessor(config);
+		S3ObjectSummary s3ObjectSummary = new S3ObjectSummary();
+		s3ObjectSummary.setKey("/" + dbrName);
+		s3ObjectSummary.setLastModified(new Date(start.plusMonths(1).plusDays(2).getMillis()));
+		DetailedBillingReportProcessor.BillingFile report = processor.new BillingFile(s3ObjectSummary, processor);
+		
+		CostAndUsageData data = new CostAndUsageData(start.getMillis(), null, null, TagCoverage.none, config.accountService, productService);
+		end[0] = processor.processReport(start, report, dbr, data, instances);
+		return data;
+	}
+	
+	/*
+	 * Values keyed by hour and tag group name, since each config has its own accounts
+	 */
+	private Map<String, Double> values(ReadWriteData data) {
+		Map<String, Double> values = Maps.newHashMap();
+		for (int i = 0; i < data.getNum(); i++) {
+			for (TagGroup tg: data.getTagGroups(i))
+				values.put(i + "," + tg, data.get(i, tg));
+		}
+		return values;
+	}
+	
+	private void compare(String name, ReadWriteData expected, ReadWriteData actual) {
+		if (expected == null) {
+			assertNull("unexpected " + name + " data", actual);
+			return;
+		}
+		assertNotNull("missing " + name + " data", actual);
+		assertEquals("wrong number of hours for " + name, expected.getNum(), actual.getNum());
+		Map<String, Double> expectedValues = values(expected);
+		Map<String, Double> actualValues = values(actual);
+		assertEquals("wrong tag groups for " + name, expectedValues.keySet(), actualValues.keySet());
+		for (String key: expectedValues.keySet()) {
+			double v = expectedValues.get(key);
+			assertEquals("wrong value for " + name + " " + key, v, actualValues.get(key), Math.abs(v) * 1e-9);
+		}
+	}
+
+	@Test
+	public void testParallelMatchesSerial() throws Exception {
+		Instances serialInstances = new Instances(null, null, null);
+		long[] serialEnd = new long[1];
+		CostAndUsageData serial = process(1, serialInstances, serialEnd);
+		
+		Instances parallelInstances = new Instances(null, null, null);
+		long[] parallelEnd = new long[1];
+		CostAndUsageData parallel = process(4, parallelInstances, parallelEnd);
+		
+		assertTrue("no data", serial.getCost(null).getTagGroups().size() > 0);
+		assertEquals("wrong end", serialEnd[0], parallelEnd[0]);
+		assertEquals("wrong number of instances", serialInstances.size(), parallelInstances.size());
+		compare("usage", serial.getUsage(null), parallel.getUsage(null));
+		compare("cost", serial.getCost(null), parallel.getCost(null));
+		for (Product.Code code: Product.Code.values()) {
+			Product product = productService.getProduct(code);
+			compare(code + " usage", serial.getUsage(product), parallel.getUsage(product));
+			compare(code + " cost", serial.getCost(product), parallel.getCost(product));
+		}
+	}
+}
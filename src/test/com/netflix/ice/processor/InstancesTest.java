@@ -19,17 +19,34 @@ package com.netflix.ice.processor;
 
 import static org.junit.Assert.*;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.Test;
 
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 import com.netflix.ice.basic.BasicAccountService;
 import com.netflix.ice.basic.BasicProductService;
 import com.netflix.ice.common.AccountService;
+import com.netflix.ice.common.Codec;
+import com.netflix.ice.common.Instance;
 import com.netflix.ice.common.ProductService;
 import com.netflix.ice.tag.Account;
 import com.netflix.ice.tag.Product;
@@ -65,4 +82,169 @@ public class InstancesTest {
 		instances.readCsv(reader, as, ps);
 		assertArrayEquals("wrong instance values", originalValues, instances.get(id).values());
 	}
+	
+	@Test
+	public void testArchive() throws IOException, BadZone {
+		AccountService as = new BasicAccountService();
+		ProductService ps = new BasicProductService();
+		Account account = as.getAccountById("123456789012", "");
+		Product ec2 = ps.getProduct(Product.Code.Ec2);
+		Product rds = ps.getProduct(Product.Code.Rds);
+		Map<String, String> tags = Maps.newHashMap();
+		tags.put("user:Name", "web");
+		tags.put("user:Env", "prod");
+		
+		File dir = Files.createTempDir();
+		final List<String> uploads = Lists.newArrayList();
+		Instances instances = new Instances(dir.getPath(), null, null) {
+			@Override
+			protected void upload(File file) {
+				uploads.add(file.getName());
+			}
+		};
+		try {
+			for (int i = 0; i < 100; i++)
+				instances.add("i-" + i, 0, "c4.2xlarge", tags, account, Region.US_EAST_1, Region.US_EAST_1.getZone("us-east-1a"), ec2);
+			String arn = "arn:aws:rds:us-west-2:123456789012:db:i-5";
+			instances.add(arn, 0, "db.m4.large", Maps.<String, String>newHashMap(), account, Region.US_WEST_2, null, rds);
+			// Older data for an instance we already have is ignored
+			instances.add("i-0", -1, "m1.small", tags, account, Region.US_EAST_1, null, ec2);
+			assertEquals("wrong type", "c4.2xlarge", instances.get("i-0").type);
+			
+			long month = new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC).getMillis();
+			File file = new File(dir, "instances_2019-01.dat.gz");
+			instances.archive(month);
+			long length = file.length();
+			
+			// Second archive appends a segment with just a new instance and a change to an existing one
+			Map<String, String> newTags = Maps.newHashMap();
+			newTags.put("user:Name", "batch");
+			instances.add("i-1", 1, "c5.large", newTags, account, Region.US_EAST_1, Region.US_EAST_1.getZone("us-east-1b"), ec2);
+			instances.add("i-100", 1, "c5.large", newTags, account, Region.US_EAST_1, null, ec2);
+			instances.archive(month);
+			assertEquals("wrong uploads", Lists.newArrayList(file.getName(), file.getName()), uploads);
+			assertTrue("file not appended to", file.length() > length);
+			
+			Instances read = new Instances(null, null, null);
+			DataInputStream in = new DataInputStream(Codec.decompress(new FileInputStream(file)));
+			read.read(in, as, ps);
+			in.close();
+			assertEquals("wrong number of instances read", 102, read.size());
+			for (Instance expected: instances.values()) {
+				Instance actual = read.get(expected.id);
+				// Tags are last and their order depends on the order the keys were added
+				assertArrayEquals("wrong instance values for " + expected.id, Arrays.copyOf(expected.values(), 7), Arrays.copyOf(actual.values(), 7));
+				assertEquals("wrong number of tags for " + expected.id, expected.tags.size(), actual.tags.size());
+				assertEquals("wrong start time for " + expected.id, expected.startMillis, actual.startMillis);
+			}
+			assertEquals("wrong tags", "prod", read.get("i-0").tags.get("user:Env"));
+			Instance i1 = read.get("i-1");
+			assertEquals("appended segment didn't replace type", "c5.large", i1.type);
+			assertEquals("appended segment didn't replace zone", "us-east-1b", i1.zone.name);
+			assertEquals("appended segment didn't replace tags", 1, i1.tags.size());
+			assertEquals("wrong tag", "batch", i1.tags.get("user:Name"));
+			
+			// Older line items don't replace the instances read back
+			read.add("i-1", 0, "m1.small", tags, account, Region.US_EAST_1, null, ec2);
+			assertEquals("older line item replaced type", "c5.large", read.get("i-1").type);
+			assertNull("wrong zone", read.get("i-100").zone);
+			
+			// Look up by full id and by the resource id portion of an ARN
+			Collection<Instance> found = read.find("i-5");
+			assertEquals("wrong number of instances for i-5", 1, found.size());
+			assertEquals("wrong instance for i-5", "i-5", found.iterator().next().id);
+			assertNull("found partial resource id", read.find("db:i-5"));
+			read.add("arn:aws:ec2:us-east-1:123456789012:instance/i-200", 0, "c4.large", tags, account, Region.US_EAST_1, null, ec2);
+			found = read.find("instance/i-200");
+			assertEquals("wrong number of instances for instance/i-200", 1, found.size());
+			assertEquals("wrong instance for instance/i-200", "arn:aws:ec2:us-east-1:123456789012:instance/i-200", found.iterator().next().id);
+			assertNull("found missing instance", read.find("i-300"));
+		}
+		finally {
+			for (File f: dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+	}
+	
+	@Test
+	public void testUpdateTags() throws BadZone {
+		AccountService as = new BasicAccountService();
+		ProductService ps = new BasicProductService();
+		Account account = as.getAccountById("123456789012", "");
+		Product ec2 = ps.getProduct(Product.Code.Ec2);
+		Map<String, String> tags = Maps.newHashMap();
+		for (int i = 0; i < 10; i++)
+			tags.put("user:Key" + i, "value" + i);
+		Map<String, String> moreTags = Maps.newHashMap(tags);
+		moreTags.put("user:Extra", "extra");
+		
+		// Each hour of the same instances updates their rows
+		Instances instances = new Instances(null, null, null);
+		int numInstances = 1000;
+		for (int hour = 0; hour < 744; hour++) {
+			for (int i = 0; i < numInstances; i++)
+				instances.add("i-" + i, hour * 3600000L, "c4.large", hour % 100 == 99 && i % 2 == 0 ? moreTags : tags, account, Region.US_EAST_1, null, ec2);
+		}
+		assertEquals("wrong number of instances", numInstances, instances.size());
+		assertTrue("too many tag pairs: " + instances.getNumTagPairs(), instances.getNumTagPairs() <= numInstances * 11 * 2);
+		assertEquals("wrong tags", tags, instances.get("i-0").tags);
+		assertEquals("wrong start time", 743 * 3600000L, instances.get("i-0").startMillis);
+		
+		// The tags of the other rows survive growing a row's tags
+		instances.add("i-1", 744 * 3600000L, "c4.large", moreTags, account, Region.US_EAST_1, null, ec2);
+		assertEquals("wrong updated tags", moreTags, instances.get("i-1").tags);
+		for (int i = 2; i < numInstances; i++)
+			assertEquals("wrong tags for i-" + i, tags, instances.get("i-" + i).tags);
+	}
+	
+	@Test
+	public void testRetrieveCsv() throws IOException, BadZone {
+		AccountService as = new BasicAccountService();
+		ProductService ps = new BasicProductService();
+		Account account = as.getAccountById("123456789012", "");
+		Product ec2 = ps.getProduct(Product.Code.Ec2);
+		Map<String, String> tags = Maps.newHashMap();
+		tags.put("user:Name", "web");
+		
+		final Instances archived = new Instances(null, null, null);
+		archived.add("i-1", 0, "c4.2xlarge", tags, account, Region.US_EAST_1, Region.US_EAST_1.getZone("us-east-1a"), ec2);
+		archived.add("i-2", 0, "c4.large", tags, account, Region.US_EAST_1, null, ec2);
+		
+		// Month archived before the columnar format only has the csv file in the work bucket
+		File dir = Files.createTempDir();
+		final List<String> downloads = Lists.newArrayList();
+		Instances instances = new Instances(dir.getPath(), null, null) {
+			@Override
+			protected boolean download(File file) {
+				downloads.add(file.getName());
+				if (!file.getName().endsWith(".csv.gz")) {
+					AmazonS3Exception e = new AmazonS3Exception("Not Found");
+					e.setStatusCode(404);
+					throw e;
+				}
+				try {
+					Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)));
+					archived.writeCsv(out);
+					out.close();
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				return true;
+			}
+		};
+		try {
+			instances.retrieve(new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC).getMillis(), as, ps);
+			assertEquals("wrong downloads", Lists.newArrayList("instances_2019-01.dat.gz", "instances_2019-01.csv.gz"), downloads);
+			assertEquals("wrong number of instances", 2, instances.size());
+			assertEquals("wrong type", "c4.large", instances.get("i-2").type);
+			assertEquals("wrong zone", "us-east-1a", instances.get("i-1").zone.name);
+		}
+		finally {
+			for (File f: dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+	}
 }
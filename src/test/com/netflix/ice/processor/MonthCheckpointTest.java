@@ -0,0 +1,208 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.processor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.netflix.ice.basic.BasicAccountService;
+import com.netflix.ice.basic.BasicProductService;
+import com.netflix.ice.basic.BasicReservationService.Reservation;
+import com.netflix.ice.common.AccountService;
+import com.netflix.ice.common.ProductService;
+import com.netflix.ice.common.PurchaseOption;
+import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.common.TagGroupRI;
+import com.netflix.ice.common.TagGroupSP;
+import com.netflix.ice.common.Config.TagCoverage;
+import com.netflix.ice.tag.Account;
+import com.netflix.ice.tag.Operation;
+import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Region;
+import com.netflix.ice.tag.ReservationArn;
+import com.netflix.ice.tag.SavingsPlanArn;
+import com.netflix.ice.tag.UsageType;
+
+public class MonthCheckpointTest {
+	private static final String resourcesDir = "src/test/resources/";
+	private static final DateTime month = new DateTime("2019-12-01", DateTimeZone.UTC);
+	private static final String reservationArn = "arn:aws:ec2:us-east-1:123456789012:reserved-instances/aaaaaaaa-bbbb-cccc-ddddddddddddddddd";
+	private static final String savingsPlanArn = "arn:aws:savingsplans::123456789012:savingsplan/abcdef70-abcd-5abc-4k4k-01236ab65555";
+
+	private File dir;
+	private AccountService as;
+	private ProductService ps;
+
+	@Before
+	public void init() {
+		dir = Files.createTempDir();
+		as = new BasicAccountService();
+		ps = new BasicProductService();
+	}
+
+	@After
+	public void cleanup() {
+		for (File f: dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	private List<MonthlyReport> getReports(String manifest) {
+		S3ObjectSummary s3ObjectSummary = new S3ObjectSummary();
+		s3ObjectSummary.setKey("cur/" + manifest);
+		s3ObjectSummary.setLastModified(new Date());
+		List<MonthlyReport> reports = Lists.newArrayList();
+		reports.add(new CostAndUsageReport(s3ObjectSummary, new File(resourcesDir, manifest), null));
+		return reports;
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		Account account = as.getAccountById("123456789012", "");
+		Product ec2Instance = ps.getProduct(Product.Code.Ec2Instance);
+		UsageType usageType = UsageType.getUsageType("m5.large", "hours");
+		TagGroup tg = TagGroup.getTagGroup(account, Region.US_EAST_1, null, ec2Instance, Operation.ondemandInstances, usageType, null);
+		TagGroupRI ri = TagGroupRI.get(account, Region.US_EAST_1, null, ec2Instance, Operation.getReservedInstances(PurchaseOption.NoUpfront), usageType, null, ReservationArn.get(reservationArn));
+		TagGroupSP sp = TagGroupSP.get(account, Region.US_EAST_1, null, ec2Instance, Operation.savingsPlanUsedNoUpfront, usageType, null, SavingsPlanArn.get(savingsPlanArn));
+
+		CostAndUsageData data = new CostAndUsageData(month.getMillis(), null, null, TagCoverage.none, as, ps);
+		data.getCost(null).put(0, tg, 1.0);
+		data.getCost(null).put(1, ri, 2.0);
+		data.getUsage(null).put(1, sp, 3.0);
+		ReadWriteData productCost = new ReadWriteData();
+		productCost.put(2, tg, 4.0);
+		data.putCost(ec2Instance, productCost);
+		data.addReservation(new Reservation(ri, 2, 100L, 200L, PurchaseOption.NoUpfront, 0.01, 0.05));
+		data.addSavingsPlan(savingsPlanArn, PurchaseOption.NoUpfront, "0.25", "0.0");
+
+		Instances instances = new Instances(null, null, null);
+		Map<String, String> tags = Maps.newHashMap();
+		tags.put("Name", "test");
+		instances.add("i-17f85eef87efb7a53", 0, "m5.large", tags, account, Region.US_EAST_1, Region.US_EAST_1.getZone("us-east-1a"), ec2Instance);
+
+		MonthCheckpoint checkpoint = new MonthCheckpoint(dir.getPath(), null, null, MonthCheckpoint.Location.local, month, getReports("manifest-2019-12.json"));
+		assertEquals("found checkpoint before save", MonthCheckpoint.Stage.none, checkpoint.getSavedStage());
+		checkpoint.save(MonthCheckpoint.Stage.reserved, data, 12345L, instances);
+
+		// Checkpoint for a later delivery of the report shouldn't be used
+		MonthCheckpoint other = new MonthCheckpoint(dir.getPath(), null, null, MonthCheckpoint.Location.local, month, getReports("manifest-2019-01.json"));
+		assertEquals("used checkpoint for different report", MonthCheckpoint.Stage.none, other.getSavedStage());
+
+		checkpoint = new MonthCheckpoint(dir.getPath(), null, null, MonthCheckpoint.Location.local, month, getReports("manifest-2019-12.json"));
+		assertEquals("wrong stage", MonthCheckpoint.Stage.reserved, checkpoint.getSavedStage());
+
+		CostAndUsageData loaded = new CostAndUsageData(month.getMillis(), null, null, TagCoverage.none, as, ps);
+		Instances loadedInstances = new Instances(null, null, null);
+		MonthCheckpoint.Loaded result = checkpoint.load(loaded, loadedInstances, as, ps);
+		assertEquals("wrong loaded stage", MonthCheckpoint.Stage.reserved, result.stage);
+		assertEquals("wrong end time", 12345L, result.endMilli);
+
+		assertEquals("wrong cost", 1.0, loaded.getCost(null).get(0, tg), 0.001);
+		assertEquals("wrong reservation cost", 2.0, loaded.getCost(null).get(1, ri), 0.001);
+		assertEquals("wrong savings plan usage", 3.0, loaded.getUsage(null).get(1, sp), 0.001);
+		assertEquals("wrong product cost", 4.0, loaded.getCost(ec2Instance).get(2, tg), 0.001);
+		for (TagGroup key: loaded.getCost(null).getTagGroups()) {
+			if (key.equals(ri))
+				assertEquals("lost reservation arn", ri.arn, ((TagGroupRI) key).arn);
+		}
+		for (TagGroup key: loaded.getUsage(null).getTagGroups())
+			assertEquals("lost savings plan arn", sp.arn, ((TagGroupSP) key).arn);
+
+		Reservation r = loaded.getReservations().get(ReservationArn.get(reservationArn));
+		assertNotNull("missing reservation", r);
+		assertEquals("wrong reservation count", 2, r.count);
+		assertEquals("wrong reservation end", 200L, r.end);
+		assertEquals("wrong reservation usage price", 0.05, r.usagePrice, 0.0001);
+		assertEquals("wrong savings plan fee", 0.25, loaded.getSavingsPlans().get(savingsPlanArn).hourlyRecurringFee, 0.0001);
+		assertArrayEquals("wrong instance", instances.get("i-17f85eef87efb7a53").values(), loadedInstances.get("i-17f85eef87efb7a53").values());
+
+		checkpoint.delete();
+		assertEquals("checkpoint not deleted", MonthCheckpoint.Stage.none, checkpoint.getSavedStage());
+	}
+
+	@Test
+	public void testStateBehindData() throws Exception {
+		MonthCheckpoint checkpoint = new MonthCheckpoint(dir.getPath(), null, null, MonthCheckpoint.Location.local, month, getReports("manifest-2019-12.json"));
+		CostAndUsageData data = new CostAndUsageData(month.getMillis(), null, null, TagCoverage.none, as, ps);
+		checkpoint.save(MonthCheckpoint.Stage.parsed, data, 100L, new Instances(null, null, null));
+		File parsedState = new File(dir, "parsed_state");
+		Files.copy(new File(dir, MonthCheckpoint.dbName + "2019-12"), parsedState);
+		checkpoint.save(MonthCheckpoint.Stage.postProcessed, data, 200L, new Instances(null, null, null));
+		
+		// Stop between writing the data and the state file of the last stage
+		Files.copy(parsedState, new File(dir, MonthCheckpoint.dbName + "2019-12"));
+		parsedState.delete();
+		assertEquals("wrong saved stage", MonthCheckpoint.Stage.parsed, checkpoint.getSavedStage());
+		
+		// Resume from the stage of the data we load
+		MonthCheckpoint.Loaded result = checkpoint.load(new CostAndUsageData(month.getMillis(), null, null, TagCoverage.none, as, ps), new Instances(null, null, null), as, ps);
+		assertEquals("wrong loaded stage", MonthCheckpoint.Stage.postProcessed, result.stage);
+		assertEquals("wrong end time", 200L, result.endMilli);
+	}
+
+	@Test
+	public void testTruncatedData() throws Exception {
+		Account account = as.getAccountById("123456789012", "");
+		TagGroup tg = TagGroup.getTagGroup(account, Region.US_EAST_1, null, ps.getProduct(Product.Code.Ec2Instance), Operation.ondemandInstances, UsageType.getUsageType("m5.large", "hours"), null);
+		CostAndUsageData data = new CostAndUsageData(month.getMillis(), null, null, TagCoverage.none, as, ps);
+		for (int i = 0; i < 744; i++)
+			data.getCost(null).put(i, tg, 1.0);
+		
+		MonthCheckpoint checkpoint = new MonthCheckpoint(dir.getPath(), null, null, MonthCheckpoint.Location.local, month, getReports("manifest-2019-12.json"));
+		checkpoint.save(MonthCheckpoint.Stage.parsed, data, 100L, new Instances(null, null, null));
+		
+		// Cut the data file short as if the copy from an earlier run was interrupted
+		File dataFile = new File(dir, MonthCheckpoint.dbName + "2019-12_data");
+		byte[] bytes = Files.toByteArray(dataFile);
+		Files.write(Arrays.copyOf(bytes, bytes.length / 2), dataFile);
+		assertEquals("wrong saved stage", MonthCheckpoint.Stage.parsed, checkpoint.getSavedStage());
+		
+		CostAndUsageData loaded = new CostAndUsageData(month.getMillis(), null, null, TagCoverage.none, as, ps);
+		try {
+			checkpoint.load(loaded, new Instances(null, null, null), as, ps);
+			fail("loaded truncated checkpoint");
+		}
+		catch (IOException e) {
+			// The month discards the objects it loaded into and parses the reports into new ones
+		}
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		MonthCheckpoint checkpoint = new MonthCheckpoint(dir.getPath(), null, null, MonthCheckpoint.Location.none, month, getReports("manifest-2019-12.json"));
+		checkpoint.save(MonthCheckpoint.Stage.parsed, new CostAndUsageData(month.getMillis(), null, null, TagCoverage.none, as, ps), 0, new Instances(null, null, null));
+		assertEquals("wrote files", 0, dir.listFiles().length);
+		assertEquals("found checkpoint", MonthCheckpoint.Stage.none, checkpoint.getSavedStage());
+	}
+}
@@ -48,6 +48,7 @@ import com.netflix.ice.basic.BasicProductService;
 import com.netflix.ice.common.AccountService;
 import com.netflix.ice.common.ProductService;
 import com.netflix.ice.common.TagGroup;
+import com.netflix.ice.processor.ReadWriteDataSerializer.TagGroupFilter;
 import com.netflix.ice.tag.Account;
 import com.netflix.ice.tag.Operation;
 import com.netflix.ice.tag.Product;
@@ -174,11 +175,65 @@ public class ReadWriteDataTest {
 		assertEquals("Tags don't match", tg, tg2);
 	}
 	
+	@Test
+	public void testSerializeModifiedRange() throws IOException, BadZone {
+		final TagGroup[] tgs = new TagGroup[4];
+		for (int i = 0; i < tgs.length; i++)
+			tgs[i] = TagGroup.getTagGroup(as.getAccountByName("Account1"), Region.US_WEST_2, null, ps.getProduct(Product.Code.S3), Operation.getOperation("StandardStorage"), UsageType.getUsageType("TimedStorage-ByteHrs" + i, "GB"), null);
+		
+		// tgs[0] in every day, tgs[1] only in the days that get replaced, tgs[2] in day 2, tgs[3] is new
+		ReadWriteData data = new ReadWriteData();
+		for (int i = 0; i < 10; i++)
+			data.put(i, tgs[0], (double) i + 1);
+		data.put(5, tgs[1], 5.5);
+		data.put(6, tgs[1], 6.5);
+		data.put(2, tgs[2], 2.5);
+		
+		data = serializeDeserialize(as, ps, data);
+		assertEquals("Wrong value for read only access", 1.0, data.get(0, tgs[0]), 0.001);
+		
+        List<Map<TagGroup, Double>> list = Lists.newArrayList();
+        ReadWriteData.getCreateData(list, 0).put(tgs[0], 50.0);
+        ReadWriteData.getCreateData(list, 0).put(tgs[3], 4.0);
+        ReadWriteData.getCreateData(list, 1).put(tgs[0], 60.0);
+		data.setData(list, 5);
+		assertEquals("Wrong number of tag groups after replacing days", 3, data.getTagGroups().size());
+		assertFalse("Tag group only in replaced days not removed", data.getTagGroups().contains(tgs[1]));
+		
+		ReadWriteData result = serializeDeserialize(as, ps, data);
+		assertEquals("Wrong number of tag groups", 3, result.getTagGroups().size());
+		assertEquals("Length of data is wrong", 10, result.getNum());
+		for (int i = 0; i < 10; i++) {
+			double expected = i == 5 ? 50 : i == 6 ? 60 : i + 1;
+			assertEquals("Wrong value for day " + i, expected, result.get(i, tgs[0]), 0.001);
+			assertEquals("Wrong number of values for day " + i, i == 2 || i == 5 ? 2 : 1, result.getData(i).size());
+		}
+		assertEquals("Wrong value of unmodified tag group", 2.5, result.get(2, tgs[2]), 0.001);
+		assertEquals("Wrong value of new tag group", 4.0, result.get(5, tgs[3]), 0.001);
+		
+		// Filtering falls back to encoding all the days
+		result = serializeDeserialize(as, ps, result, new TagGroupFilter() {
+			@Override
+			public Collection<TagGroup> getTagGroups(Collection<TagGroup> tagGroups) {
+				List<TagGroup> filtered = Lists.newArrayList(tagGroups);
+				filtered.remove(tgs[0]);
+				return filtered;
+			}
+		});
+		assertEquals("Wrong number of tag groups after filter", 2, result.getTagGroups().size());
+		assertEquals("Wrong value of filtered data", 2.5, result.get(2, tgs[2]), 0.001);
+		assertEquals("Wrong number of values after filter", 0, result.getData(0).size());
+	}
+	
 	ReadWriteData serializeDeserialize(AccountService as, ProductService ps, ReadWriteData data) throws IOException, BadZone {
+		return serializeDeserialize(as, ps, data, null);
+	}
+	
+	ReadWriteData serializeDeserialize(AccountService as, ProductService ps, ReadWriteData data, TagGroupFilter filter) throws IOException, BadZone {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         DataOutput out = new DataOutputStream(output);
 		
-		data.serialize(out, null);
+		data.serialize(out, filter);
 		ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
 		DataInput in = new DataInputStream(input);
 		data = new ReadWriteData();
@@ -204,6 +259,61 @@ public class ReadWriteDataTest {
         }
     }
     
+    /*
+     * Fixed size values that rely on the default isPresent(), with zero encoding a missing value.
+     */
+    private static class FixedSizeData extends ReadWriteGenericData<Integer> {
+		@Override
+		protected Integer add(Integer a, Integer b) {
+			return a + b;
+		}
+
+		@Override
+		protected void writeValue(DataOutput out, Integer value) throws IOException {
+			out.writeInt(value == null ? 0 : value);
+		}
+
+		@Override
+		protected Integer readValue(DataInput in) throws IOException {
+			int v = in.readInt();
+			return v != 0 ? v : null;
+		}
+		
+		@Override
+		protected int getValueSize() {
+			return 4;
+		}
+    }
+    
+    @Test
+    public void testDefaultIsPresent() throws IOException, BadZone {
+		TagGroup tg1 = TagGroup.getTagGroup(as.getAccountByName("Account1"), Region.US_WEST_2, null, ps.getProduct(Product.Code.S3), Operation.getOperation("StandardStorage"), UsageType.getUsageType("TimedStorage-ByteHrs", "GB"), null);
+		TagGroup tg2 = TagGroup.getTagGroup(as.getAccountByName("Account2"), Region.US_WEST_2, null, ps.getProduct(Product.Code.S3), Operation.getOperation("StandardStorage"), UsageType.getUsageType("TimedStorage-ByteHrs", "GB"), null);
+		
+		FixedSizeData data = new FixedSizeData();
+		data.put(0, tg1, 1);
+		data.put(0, tg2, 2);
+		data.put(1, tg2, 3);
+		
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+		data.serialize(new DataOutputStream(output), null);
+		FixedSizeData result = new FixedSizeData();
+		result.deserialize(as, ps, new DataInputStream(new ByteArrayInputStream(output.toByteArray())));
+		
+		// Reading the tag groups of the loaded intervals checks the encoded values
+		assertEquals("Wrong number of tag groups in first interval", 2, result.getTagGroups(0).size());
+		assertEquals("Wrong number of tag groups in second interval", 1, result.getTagGroups(1).size());
+		assertTrue("Wrong tag group in second interval", result.getTagGroups(1).contains(tg2));
+		
+		// Removing a value still has to find whether the tag group is used in other intervals
+		assertEquals("Wrong value removed", 1, (int) result.remove(0, tg1));
+		assertFalse("Tag group not removed", result.getTagGroups().contains(tg1));
+		
+		// Reading past the end doesn't add intervals
+		assertEquals("Wrong number of tag groups past the end", 0, result.getTagGroups(5).size());
+		assertEquals("Reading tag groups changed the number of intervals", 2, result.getNum());
+    }
+    
     @Test
     public void testPutAll() {
     	// test the merging of two data sets.
@@ -17,10 +17,14 @@
  */
 package com.netflix.ice.processor;
 
+import static org.junit.Assert.*;
+
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.zip.GZIPInputStream;
@@ -29,6 +33,7 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Lists;
 import com.netflix.ice.basic.BasicAccountService;
 import com.netflix.ice.basic.BasicProductService;
 import com.netflix.ice.common.AccountService;
@@ -36,6 +41,7 @@ import com.netflix.ice.common.ProductService;
 import com.netflix.ice.common.TagGroup;
 import com.netflix.ice.tag.Account;
 import com.netflix.ice.tag.Product;
+import com.netflix.ice.tag.Zone.BadZone;
 
 public class ReadWriteTagCoverageDataTest {
     protected Logger logger = LoggerFactory.getLogger(getClass());
@@ -76,4 +82,85 @@ public class ReadWriteTagCoverageDataTest {
 	    	logger.info("  " + a.getIceName());
 	}
 
+	@Test
+	public void testAddCoverage() throws BadZone {
+		AccountService as = new BasicAccountService();
+		ProductService ps = new BasicProductService();
+		TagGroup tg = TagGroup.getTagGroup("123456789012", "us-east-1", null, "ProductA", "OperationA", "UsageTypeA", "", null, as, ps);
+		
+		ReadWriteTagCoverageData data = new ReadWriteTagCoverageData(2);
+		data.add(new int[]{ 0, 1, 2 }, tg, new boolean[]{ true, false });
+		data.add(new int[]{ 1, 2 }, tg, new boolean[]{ true, true });
+		
+		assertEquals("wrong number of hours", 3, data.getNum());
+		assertEquals("wrong number of tag groups", 1, data.getTagGroups().size());
+		
+		TagCoverageMetrics metrics = data.get(0, tg);
+		assertEquals("wrong total for hour 0", 1, metrics.getTotal());
+		assertEquals("wrong count for hour 0", 1, metrics.getCount(0));
+		assertEquals("wrong count for hour 0", 0, metrics.getCount(1));
+		
+		metrics = data.get(2, tg);
+		assertEquals("wrong total for hour 2", 2, metrics.getTotal());
+		assertEquals("wrong count for hour 2", 2, metrics.getCount(0));
+		assertEquals("wrong count for hour 2", 1, metrics.getCount(1));
+	}
+	
+	@Test
+	public void testSpill() throws BadZone, IOException {
+		AccountService as = new BasicAccountService();
+		ProductService ps = new BasicProductService();
+		TagGroup tgA = TagGroup.getTagGroup("123456789012", "us-east-1", null, "ProductA", "OperationA", "UsageTypeA", "", null, as, ps);
+		TagGroup tgB = TagGroup.getTagGroup("123456789012", "us-east-1", null, "ProductA", "OperationA", "UsageTypeB", "", null, as, ps);
+		
+		ReadWriteTagCoverageData data = new ReadWriteTagCoverageData(2);
+		data.add(new int[]{ 0, 2 }, tgA, new boolean[]{ true, false });
+		data.add(new int[]{ 2 }, tgB, new boolean[]{ true, true });
+		
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		assertTrue("nothing spilled", data.spill(dir) > 0);
+		assertEquals("data left on heap", 0, data.getMemorySize());
+		assertEquals("wrong tag groups for hour 1", 0, data.getTagGroups(1).size());
+		assertEquals("wrong tag groups for hour 2", 2, data.getTagGroups(2).size());
+		
+		// Modify a spilled interval and spill again
+		data.add(new int[]{ 0 }, tgB, new boolean[]{ false, true });
+		data.spill(dir);
+		assertEquals("previous spill file still mapped", 1, data.getNumMappings());
+		assertEquals("wrong total for hour 0", 1, data.get(0, tgA).getTotal());
+		assertEquals("wrong count for hour 0", 1, data.get(0, tgB).getCount(1));
+		assertEquals("wrong count for hour 2", 1, data.get(2, tgB).getCount(1));
+		assertNull("value for missing tag group", data.get(1, tgA));
+	}
+	
+	@Test
+	public void testAddManyTagGroups() throws BadZone {
+		AccountService as = new BasicAccountService();
+		ProductService ps = new BasicProductService();
+		List<TagGroup> tagGroups = Lists.newArrayList();
+		for (int i = 0; i < 100; i++)
+			tagGroups.add(TagGroup.getTagGroup("123456789012", "us-east-1", null, "ProductA", "OperationA", "UsageType" + i, "", null, as, ps));
+		
+		ReadWriteTagCoverageData data = new ReadWriteTagCoverageData(3);
+		for (int n = 0; n < 3; n++) {
+			for (int i = 0; i < tagGroups.size(); i++)
+				data.add(new int[]{ i % 5, 5 }, tagGroups.get(i), new boolean[]{ true, i % 2 == 0, false });
+		}
+		assertTrue("counts not in memory size", data.getMemorySize() > 0);
+		assertEquals("wrong number of hours", 6, data.getNum());
+		
+		// Count more after the first counts have been added to the maps
+		data.add(new int[]{ 5 }, tagGroups.get(0), new boolean[]{ false, false, true });
+		for (int i = 0; i < tagGroups.size(); i++) {
+			TagCoverageMetrics metrics = data.get(i % 5, tagGroups.get(i));
+			assertEquals("wrong total for " + i, 3, metrics.getTotal());
+			assertEquals("wrong count 0 for " + i, 3, metrics.getCount(0));
+			assertEquals("wrong count 1 for " + i, i % 2 == 0 ? 3 : 0, metrics.getCount(1));
+			assertNull("value in wrong hour for " + i, data.get((i + 1) % 5, tagGroups.get(i)));
+		}
+		TagCoverageMetrics metrics = data.get(5, tagGroups.get(0));
+		assertEquals("wrong total for hour 5", 4, metrics.getTotal());
+		assertEquals("wrong count 2 for hour 5", 1, metrics.getCount(2));
+		assertEquals("wrong number of tag groups for hour 5", 100, data.getTagGroups(5).size());
+	}
 }
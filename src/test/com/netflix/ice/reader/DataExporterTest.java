@@ -0,0 +1,144 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.reader;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.netflix.ice.common.AwsUtils;
+import com.netflix.ice.tag.Tag;
+import com.netflix.ice.tag.UserTag;
+
+public class DataExporterTest {
+	private static final long start = 1483228800000L; // 2017-01-01T00:00:00Z
+	private static final long[] times = new long[]{ start, start + AwsUtils.hourMillis };
+
+	private Map<Tag, double[]> getData() {
+		Map<Tag, double[]> data = Maps.newTreeMap();
+		data.put(Tag.aggregated, new double[]{ 3.5, 0.25 });
+		data.put(UserTag.get("web,app"), new double[]{ 1.5, 0 });
+		data.put(UserTag.get("db"), new double[]{ 2, 0.25 });
+		return data;
+	}
+
+	private String export(DataExporter.Format format, boolean longFormat) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		DataExporter exporter = new DataExporter(os, format, longFormat);
+		exporter.write(getData(), times);
+		exporter.close();
+		return new String(os.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testWideCsv() throws IOException {
+		String expect =
+				"Time,aggregated,db,\"web,app\"\n" +
+				"2017-01-01T00:00:00Z,3.5,2,1.5\n" +
+				"2017-01-01T01:00:00Z,0.25,0.25,0\n";
+		assertEquals("Wrong wide csv", expect, export(DataExporter.Format.csv, false));
+	}
+
+	@Test
+	public void testLongCsv() throws IOException {
+		String expect =
+				"Time,Tag,Value\n" +
+				"2017-01-01T00:00:00Z,aggregated,3.5\n" +
+				"2017-01-01T00:00:00Z,db,2\n" +
+				"2017-01-01T00:00:00Z,\"web,app\",1.5\n" +
+				"2017-01-01T01:00:00Z,aggregated,0.25\n" +
+				"2017-01-01T01:00:00Z,db,0.25\n";
+		assertEquals("Wrong long csv", expect, export(DataExporter.Format.csv, true));
+	}
+
+	@Test
+	public void testLongNdjson() throws IOException {
+		String expect =
+				"{\"time\":\"2017-01-01T00:00:00Z\",\"tag\":\"aggregated\",\"value\":3.5}\n" +
+				"{\"time\":\"2017-01-01T00:00:00Z\",\"tag\":\"db\",\"value\":2}\n" +
+				"{\"time\":\"2017-01-01T00:00:00Z\",\"tag\":\"web,app\",\"value\":1.5}\n" +
+				"{\"time\":\"2017-01-01T01:00:00Z\",\"tag\":\"aggregated\",\"value\":0.25}\n" +
+				"{\"time\":\"2017-01-01T01:00:00Z\",\"tag\":\"db\",\"value\":0.25}\n";
+		assertEquals("Wrong long ndjson", expect, export(DataExporter.Format.ndjson, true));
+	}
+
+	@Test
+	public void testWideNdjson() throws IOException {
+		String expect =
+				"{\"time\":\"2017-01-01T00:00:00Z\",\"values\":{\"aggregated\":3.5,\"db\":2,\"web,app\":1.5}}\n" +
+				"{\"time\":\"2017-01-01T01:00:00Z\",\"values\":{\"aggregated\":0.25,\"db\":0.25,\"web,app\":0}}\n";
+		assertEquals("Wrong wide ndjson", expect, export(DataExporter.Format.ndjson, false));
+	}
+
+	@Test
+	public void testAppendDouble() {
+		double[] values = new double[]{ 0, 1, -1, 0.5, 123.456, -0.001, 0.000000001, 1234567.000000125, 0.1 + 0.2, 999999999.5 };
+		String[] expect = new String[]{ "0", "1", "-1", "0.5", "123.456", "-0.001", "0.000000001", "1234567.000000125", "0.3", "999999999.5" };
+		for (int i = 0; i < values.length; i++) {
+			StringBuilder sb = new StringBuilder();
+			DataExporter.appendDouble(sb, values[i]);
+			assertEquals("Wrong format for " + values[i], expect[i], sb.toString());
+		}
+
+		// Values that round to zero or are out of range for the fast path
+		StringBuilder sb = new StringBuilder();
+		DataExporter.appendDouble(sb, 1e-12);
+		assertEquals("Wrong format for tiny value", "0", sb.toString());
+		sb.setLength(0);
+		DataExporter.appendDouble(sb, 1.5e12);
+		assertEquals("Wrong format for large value", Double.toString(1.5e12), sb.toString());
+	}
+
+	@Test
+	public void testAppendDoubleLargeValues() {
+		double[] values = new double[]{ 4343504.207, 1000000.01, 12345678.9, 99999999.99, -54321987.125, 2500000.000001 };
+		String[] expect = new String[]{ "4343504.207", "1000000.01", "12345678.9", "99999999.99", "-54321987.125", "2500000.000001" };
+		for (int i = 0; i < values.length; i++) {
+			StringBuilder sb = new StringBuilder();
+			DataExporter.appendDouble(sb, values[i]);
+			assertEquals("Wrong format for " + values[i], expect[i], sb.toString());
+		}
+
+		// Cost-like values with up to three fractional digits come out as written, and values with
+		// more digits than we can write without noise still read back exactly
+		Random random = new Random(1);
+		StringBuilder sb = new StringBuilder();
+		for (double magnitude = 1e6; magnitude < 1e8; magnitude *= 10) {
+			for (int i = 0; i < 10000; i++) {
+				double value = Math.round((1 + 9 * random.nextDouble()) * magnitude * 1000) / 1000.0;
+				sb.setLength(0);
+				DataExporter.appendDouble(sb, value);
+				assertEquals("Wrong format for " + value, BigDecimal.valueOf(value).stripTrailingZeros().toPlainString(), sb.toString());
+
+				value = (1 + 9 * random.nextDouble()) * magnitude;
+				sb.setLength(0);
+				DataExporter.appendDouble(sb, value);
+				assertFalse("Exponent in " + sb, sb.toString().contains("E"));
+				assertEquals("Wrong value for " + sb, value, Double.parseDouble(sb.toString()), 0);
+			}
+		}
+	}
+}
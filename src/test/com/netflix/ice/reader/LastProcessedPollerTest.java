@@ -0,0 +1,52 @@
+/*
+ *
+ *  Copyright 2013 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+package com.netflix.ice.reader;
+
+import static org.junit.Assert.*;
+
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class LastProcessedPollerTest {
+
+	@Test
+	public void testRestoreChangedFiles() {
+		// Start in the future so the poller doesn't look for any files
+		LastProcessedPoller poller = new LastProcessedPoller(DateTime.now().plusMonths(1), null);
+		try {
+			assertNull("Changes should not be known before the first refresh", poller.takeChangedFiles());
+			assertEquals("Should have no changes after take", 0, poller.takeChangedFiles().size());
+			
+			// Files that failed to refresh are returned again with any new changes
+			Set<String> failed = Sets.newHashSet("cost_hourly_all_2019-01.gz");
+			poller.restoreChangedFiles(failed);
+			assertEquals("Wrong changed files after restore", failed, poller.takeChangedFiles());
+			
+			// A failed refresh of all the files refreshes everything again
+			poller.restoreChangedFiles(null);
+			assertNull("Should refresh all files after failed full refresh", poller.takeChangedFiles());
+		}
+		finally {
+			poller.shutdown();
+		}
+	}
+}